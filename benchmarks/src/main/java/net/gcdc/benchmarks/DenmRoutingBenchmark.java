@@ -0,0 +1,58 @@
+package net.gcdc.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import net.gcdc.asn1.uper.UperEncoder;
+import net.gcdc.camdenm.RunDecode;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * What routing a DENM costs: decoding only its header and management container, against decoding
+ * the whole message, eagerly or with the optional containers deferred.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class DenmRoutingBenchmark {
+
+    @Param({
+            Messages.DENM2_GEONET_STATION,
+            Messages.DENM1_RUN_DECODE,
+            Messages.DENM1_FULL,
+            Messages.DENM2_FULL })
+    public String message;
+
+    private Class<?> type;
+    private byte[] encoded;
+
+    @Setup public void setUp() throws Exception {
+        type = Messages.type(message);
+        encoded = Messages.bytes(message);
+    }
+
+    @Benchmark public Object decodeWhole() {
+        return UperEncoder.decode(encoded, type);
+    }
+
+    @Benchmark public Object decodeHeaderAndManagement() {
+        return RunDecode.getHeaderAndManagement(encoded);
+    }
+
+    @Benchmark public Object decodeLazily() {
+        return RunDecode.getDecodedLazily(encoded).getDenm().getManagement();
+    }
+}
@@ -0,0 +1,100 @@
+package net.gcdc.benchmarks;
+
+import net.gcdc.asn1.uper.TestMessages;
+import net.gcdc.asn1.uper.UperEncoder;
+import net.gcdc.camdenm.CoopIts.Cam1;
+import net.gcdc.camdenm.CoopIts.Cam2;
+import net.gcdc.camdenm.CoopIts.Denm1;
+import net.gcdc.camdenm.CoopIts.Denm2;
+import net.gcdc.camdenm.CoopIts.ItsPduHeader;
+import net.gcdc.camdenm.CoopIts.ItsPduHeader.MessageId;
+import net.gcdc.camdenm.Iclcm;
+import net.gcdc.camdenm.Iclcm.IgameCooperativeLaneChangeMessage;
+import net.gcdc.camdenm.RunDecode;
+import net.gcdc.geonetworking.GeonetStation;
+
+/**
+ * The messages the benchmarks run on, as UPER bytes.
+ *
+ * Real messages are the DENMs in the hex samples of {@link GeonetStation} and {@link RunDecode}
+ * (complete GeoNetworking packets; the DENM is taken out with the station's own decoder and
+ * encoded again). Full messages are built by {@link TestMessages#full}, shared with the codec
+ * tests: every optional field and extension is present, so every container of the message is
+ * coded.
+ */
+final class Messages {
+
+    private Messages() {}
+
+    /** The names accepted by {@link #bytes}, also the benchmark parameter values. */
+    static final String DENM2_GEONET_STATION = "Denm2-GeonetStation";
+    static final String DENM1_RUN_DECODE = "Denm1-RunDecode";
+    static final String DENM1_FULL = "Denm1-full";
+    static final String DENM2_FULL = "Denm2-full";
+    static final String CAM1_FULL = "Cam1-full";
+    static final String CAM2_FULL = "Cam2-full";
+    static final String ICLCM_FULL = "IgameCooperativeLaneChangeMessage-full";
+
+    static Class<?> type(String name) {
+        switch (name) {
+            case DENM2_GEONET_STATION: return Denm2.class;
+            case DENM1_RUN_DECODE: return Denm1.class;
+            case DENM1_FULL: return Denm1.class;
+            case DENM2_FULL: return Denm2.class;
+            case CAM1_FULL: return Cam1.class;
+            case CAM2_FULL: return Cam2.class;
+            case ICLCM_FULL: return IgameCooperativeLaneChangeMessage.class;
+            default: throw new IllegalArgumentException("Unknown message " + name);
+        }
+    }
+
+    static byte[] bytes(String name) throws Exception {
+        switch (name) {
+            case DENM2_GEONET_STATION: return embeddedDenm(GeonetStation.class, Denm2.class);
+            case DENM1_RUN_DECODE: return embeddedDenm(RunDecode.class, Denm1.class);
+            case DENM1_FULL: {
+                Denm1 denm = TestMessages.full(Denm1.class);
+                return pdu(denm, denm.getHeader(), 1, MessageId.denm);
+            }
+            case DENM2_FULL: {
+                Denm2 denm = TestMessages.full(Denm2.class);
+                return pdu(denm, denm.getHeader(), 2, MessageId.denm);
+            }
+            case CAM1_FULL: {
+                Cam1 cam = TestMessages.full(Cam1.class);
+                return pdu(cam, cam.getHeader(), 1, MessageId.cam);
+            }
+            case CAM2_FULL: {
+                Cam2 cam = TestMessages.full(Cam2.class);
+                return pdu(cam, cam.getHeader(), 2, MessageId.cam);
+            }
+            case ICLCM_FULL: {
+                IgameCooperativeLaneChangeMessage iclcm = TestMessages.full(
+                        IgameCooperativeLaneChangeMessage.class);
+                return pdu(iclcm, iclcm.getHeader(), 1, Iclcm.MessageID_iCLCM);
+            }
+            default: throw new IllegalArgumentException("Unknown message " + name);
+        }
+    }
+
+    /**
+     * The encoded message, with the header a real one of its class would have: ItsPdu (and
+     * RunDecode) tell the message classes apart by protocol version and message ID.
+     */
+    private static byte[] pdu(Object message, ItsPduHeader header, int protocolVersion,
+            int messageId) {
+        header.getProtocolVersion().value = protocolVersion;
+        header.getMessageID().value = messageId;
+        return UperEncoder.encode(message);
+    }
+
+    /** The DENM in the GeoNetworking packet of the testmsg hex sample of owner. */
+    private static byte[] embeddedDenm(Class<?> owner, Class<?> expectedType) throws Exception {
+        Object denm = TestMessages.embeddedDenm(owner);
+        if (denm.getClass() != expectedType) {
+            throw new IllegalStateException("Expected a " + expectedType.getSimpleName() + " in "
+                    + owner.getSimpleName() + ".testmsg, got " + denm);
+        }
+        return UperEncoder.encode(denm);
+    }
+}
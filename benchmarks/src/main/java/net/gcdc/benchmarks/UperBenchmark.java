@@ -0,0 +1,85 @@
+package net.gcdc.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import net.gcdc.asn1.uper.ShapeCache;
+import net.gcdc.asn1.uper.UperEncoder;
+import net.gcdc.camdenm.ItsPdu;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * UPER decoding and encoding of whole CAM, DENM and iCLCM messages, see {@link Messages} for the
+ * samples. Throughput and average time are measured by default; add the gc profiler for the
+ * allocation rate:
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar UperBenchmark -prof gc
+ * </pre>
+ *
+ * {@link #decodeShapeCached} decodes like {@link #decode} for models built with generated codecs
+ * (codegen profile) or run with runtime-compiled ones
+ * ({@code -jvmArgs -Dnet.gcdc.asn1.uper.runtimeCodecs=true}).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class UperBenchmark {
+
+    @Param({
+            Messages.DENM2_GEONET_STATION,
+            Messages.DENM1_RUN_DECODE,
+            Messages.DENM1_FULL,
+            Messages.DENM2_FULL,
+            Messages.CAM1_FULL,
+            Messages.CAM2_FULL,
+            Messages.ICLCM_FULL })
+    public String message;
+
+    private Class<?> type;
+    private byte[] encoded;
+    private Object decoded;
+    private Object target;
+    private ShapeCache<?> shapeCache;
+
+    @Setup public void setUp() throws Exception {
+        type = Messages.type(message);
+        encoded = Messages.bytes(message);
+        decoded = UperEncoder.decode(encoded, type);
+        target = UperEncoder.decode(encoded, type);
+        shapeCache = new ShapeCache<>(type);
+    }
+
+    @Benchmark public Object decode() {
+        return UperEncoder.decode(encoded, type);
+    }
+
+    @Benchmark public Object decodeDispatched() {
+        return ItsPdu.decode(encoded);
+    }
+
+    @Benchmark public Object decodeInto() {
+        return UperEncoder.decodeInto(encoded, target);
+    }
+
+    @Benchmark public Object decodeShapeCached() {
+        return shapeCache.decode(encoded);
+    }
+
+    @Benchmark public byte[] encode() {
+        return UperEncoder.encode(decoded);
+    }
+}
@@ -7,7 +7,7 @@ import java.util.Map;
 
 class AnnotationStore {
 
-    private Map<Class<? extends Annotation>, Annotation> annotations = new HashMap<>();
+    private final Map<Class<? extends Annotation>, Annotation> annotations = new HashMap<>();
 
     public AnnotationStore(Annotation[] classAnnot, Annotation[] fieldAnnot) {
         for (Annotation a : classAnnot) {
@@ -17,9 +17,48 @@ public interface BitBuffer {
     int position();
     int remaining();
     BitBuffer flip();
+    /**
+     * Resets the buffer for reuse: position 0, and the limit as when the buffer was made, i.e.
+     * 0 for buffers being written and the whole length for read-only views.
+     */
+    BitBuffer clear();
     String toBooleanString(int startIndex, int length);
     String toBooleanStringFromPosition(int startIndex);
+    /**
+     * The bits of the buffer as bytes, bit 0 being the most significant bit of byte 0. Buffers
+     * that own an array, or view one from its first bit, return that array, so changes to it show
+     * in the buffer; views at other offsets, or over direct buffers, return a copy.
+     */
     byte[] array();
     BitBuffer putByte(byte element);
     byte getByte();
+    /**
+     * Reads the next {@code n} bits (0 to 64) as an unsigned big-endian number, i.e. the first bit
+     * read becomes the most significant one.
+     */
+    long getBits(int n);
+    /** Writes the {@code n} (0 to 64) least significant bits of {@code value}, most significant first. */
+    BitBuffer putBits(long value, int n);
+    /**
+     * Transfers the next {@code n} bits of {@code source} into this buffer, advancing the
+     * positions of both. The bits are copied a byte or a word at a time, whatever their alignment.
+     */
+    BitBuffer putBits(BitBuffer source, int n);
+    /**
+     * Reads the next {@code length} octets (8 bits each, whatever their alignment) into
+     * {@code destination}, starting at index {@code offset}. From a byte boundary the bytes are
+     * copied as they are, otherwise each is shifted together from two.
+     */
+    BitBuffer getBytes(byte[] destination, int offset, int length);
+    /**
+     * Writes {@code length} bytes of {@code source}, starting at index {@code offset}, as 8 bits
+     * each, the reverse of {@link #getBytes}.
+     */
+    BitBuffer putBytes(byte[] source, int offset, int length);
+    /**
+     * Returns a read-only view of the next {@code n} bits, with position 0 and limit {@code n},
+     * and advances the position of this buffer past them. The view shares the bits of this
+     * buffer, nothing is copied.
+     */
+    BitBuffer getView(int n);
 }
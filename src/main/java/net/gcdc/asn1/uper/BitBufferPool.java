@@ -0,0 +1,98 @@
+package net.gcdc.asn1.uper;
+
+import java.util.ArrayDeque;
+
+/**
+ * Per-thread pools of the buffers {@link UperEncoder} needs while coding: read views (the input
+ * of a decode and the open types in it), writers (the output of an encode), scratch buffers
+ * (nested encodings, e.g. open types and UTF8String) and counters (sizing passes). With them, a
+ * steady stream of decodes creates no garbage for buffer management.
+ *
+ * Buffers are taken and given back in LIFO order, as open types nest. A buffer that is not given
+ * back, e.g. after an exception, is simply collected. Given-back views and writers drop their
+ * reference to the bytes, so a pool does not keep the caller's messages alive.
+ */
+final class BitBufferPool {
+
+    /** Deeper nesting than this takes new buffers, instead of growing the pool. */
+    private static final int MAX_POOLED = 16;
+    /** Scratch buffers that grew beyond this are not kept, to bound the memory held per thread. */
+    private static final int MAX_SCRATCH_BYTES = 64 * 1024;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private static final ThreadLocal<BitBufferPool> pools = new ThreadLocal<BitBufferPool>() {
+        @Override protected BitBufferPool initialValue() {
+            return new BitBufferPool();
+        }
+    };
+
+    static BitBufferPool get() {
+        return pools.get();
+    }
+
+    private final ArrayDeque<ByteBufferBitBuffer> views = new ArrayDeque<>();
+    private final ArrayDeque<ByteBitBuffer> writers = new ArrayDeque<>();
+    private final ArrayDeque<ByteBitBuffer> scratchBuffers = new ArrayDeque<>();
+    private final ArrayDeque<BitLengthCounter> counters = new ArrayDeque<>();
+
+    private BitBufferPool() {}
+
+    /** An empty view, to be rewrapped. */
+    ByteBufferBitBuffer view() {
+        ByteBufferBitBuffer result = views.pollFirst();
+        return result != null ? result : new ByteBufferBitBuffer();
+    }
+
+    void release(ByteBufferBitBuffer view) {
+        view.release();
+        if (views.size() < MAX_POOLED) {
+            views.addFirst(view);
+        }
+    }
+
+    /** An empty finite buffer over backingArray, see {@link ByteBitBuffer#rewrap}. */
+    ByteBitBuffer writer(byte[] backingArray) {
+        ByteBitBuffer result = writers.pollFirst();
+        return (result != null ? result : ByteBitBuffer.allocate(0)).rewrap(backingArray);
+    }
+
+    void releaseWriter(ByteBitBuffer writer) {
+        writer.rewrap(EMPTY);
+        if (writers.size() < MAX_POOLED) {
+            writers.addFirst(writer);
+        }
+    }
+
+    /** An empty infinite buffer. */
+    ByteBitBuffer scratch() {
+        ByteBitBuffer result = scratchBuffers.pollFirst();
+        if (result == null) {
+            return ByteBitBuffer.createInfinite();
+        }
+        result.clear();
+        return result;
+    }
+
+    void releaseScratch(ByteBitBuffer scratch) {
+        if (scratch.bytes.length <= MAX_SCRATCH_BYTES && scratchBuffers.size() < MAX_POOLED) {
+            scratchBuffers.addFirst(scratch);
+        }
+    }
+
+    /** A counter at 0. */
+    BitLengthCounter counter() {
+        BitLengthCounter result = counters.pollFirst();
+        if (result == null) {
+            return new BitLengthCounter();
+        }
+        result.clear();
+        return result;
+    }
+
+    void release(BitLengthCounter counter) {
+        if (counters.size() < MAX_POOLED) {
+            counters.addFirst(counter);
+        }
+    }
+}
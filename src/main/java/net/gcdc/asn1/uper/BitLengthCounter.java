@@ -0,0 +1,128 @@
+package net.gcdc.asn1.uper;
+
+/**
+ * A write-only {@link BitBuffer} that keeps no bits, only counts them. Encoding into it is the
+ * sizing pass of {@link UperEncoder#encodedBitLength}.
+ *
+ * Nothing can be read back; {@link #toBooleanString} returns an empty string, so debug logging of
+ * encoded bits shows nothing during the sizing pass.
+ */
+class BitLengthCounter implements BitBuffer {
+
+    private int position;
+    private int limit;
+
+    private BitBuffer advance(int n) {
+        position += n;
+        limit = limit < position ? position : limit;
+        return this;
+    }
+
+    @Override public BitBuffer put(boolean element) {
+        return advance(1);
+    }
+
+    @Override public BitBuffer put(int index, boolean element) {
+        if (index < 0) {
+            throw new IndexOutOfBoundsException("Index " + index + " is less than 0");
+        }
+        return this;
+    }
+
+    @Override public BitBuffer putByte(byte element) {
+        return advance(8);
+    }
+
+    @Override public BitBuffer putBits(long value, int n) {
+        ByteBitBuffer.checkBitCount(n);
+        return advance(n);
+    }
+
+    @Override public BitBuffer putBits(BitBuffer source, int n) {
+        if (n < 0 || n > source.remaining()) {
+            throw new IndexOutOfBoundsException("Transferring " + n + " bits violates the "
+                    + source.remaining() + " bits remaining in the source");
+        }
+        if (source instanceof BitLengthCounter) {  // E.g. a nested open type.
+            ((BitLengthCounter) source).position += n;
+        } else if (source instanceof ByteBitBuffer) {  // E.g. a UTF8String.
+            ((ByteBitBuffer) source).position += n;
+        } else {
+            source.getView(n);  // Skips the bits.
+        }
+        return advance(n);
+    }
+
+    @Override public BitBuffer putBytes(byte[] source, int offset, int length) {
+        ByteBitBuffer.checkBytes(source, offset, length);
+        return advance(length * 8);
+    }
+
+    @Override public boolean get() {
+        throw new UnsupportedOperationException("Bits are counted, not kept");
+    }
+
+    @Override public boolean get(int index) {
+        throw new UnsupportedOperationException("Bits are counted, not kept");
+    }
+
+    @Override public byte getByte() {
+        throw new UnsupportedOperationException("Bits are counted, not kept");
+    }
+
+    @Override public BitBuffer getBytes(byte[] destination, int offset, int length) {
+        throw new UnsupportedOperationException("Bits are counted, not kept");
+    }
+
+    @Override public long getBits(int n) {
+        throw new UnsupportedOperationException("Bits are counted, not kept");
+    }
+
+    @Override public BitBuffer getView(int n) {
+        throw new UnsupportedOperationException("Bits are counted, not kept");
+    }
+
+    @Override public byte[] array() {
+        throw new UnsupportedOperationException("Bits are counted, not kept");
+    }
+
+    @Override public int limit() {
+        return limit;
+    }
+
+    @Override public int capacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override public int position() {
+        return position;
+    }
+
+    @Override public int remaining() {
+        return limit - position;
+    }
+
+    @Override public BitBuffer flip() {
+        limit = position;
+        position = 0;
+        return this;
+    }
+
+    @Override public BitBuffer clear() {
+        position = 0;
+        limit = 0;
+        return this;
+    }
+
+    @Override public String toBooleanString(int startIndex, int length) {
+        return "";
+    }
+
+    @Override public String toBooleanStringFromPosition(int startIndex) {
+        return "";
+    }
+
+    @Override public String toString() {
+        return "BitLengthCounter(position " + position + ", limit " + limit + ")";
+    }
+}
@@ -1,51 +1,184 @@
 package net.gcdc.asn1.uper;
 
 import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.BitSet;
+import java.util.List;
 
 import net.gcdc.asn1.datatypes.Asn1VarSizeBitstring;
 import net.gcdc.asn1.datatypes.Bitstring;
 import net.gcdc.asn1.datatypes.FixedSize;
 import net.gcdc.asn1.datatypes.SizeRange;
-import net.gcdc.asn1.uper.UperEncoder.Asn1ContainerFieldSorter;
+import net.gcdc.asn1.uper.CodecPlan.FieldPlan;
 
-class BitStringCoder implements Decoder, Encoder {
+class BitStringCoder implements SkippingDecoder, Encoder {
+
+    // We use reflection here to reach the private BitSet of Asn1VarSizeBitstring, so that all
+    // bits are read and set at once instead of calling its getBit and protected setBit per bit.
+    // Alternative would be to mandate BitSet constructors for all subclasses of
+    // Asn1VarSizeBitstring. The BitSet bypasses getBit and setBit, so bit strings of subclasses
+    // that override either are coded bit by bit through them, and so are all bit strings if the
+    // field can't be reached (another version of the datatypes, a security manager). Resolved on
+    // first use, so that the rest of the codec works either way.
+    private static volatile MethodHandle backingGetter;
+    private static volatile MethodHandle bitSetter;
+
+    /** The getter if there is no field to get: null, no BitSet at hand. */
+    private static final MethodHandle NO_BACKING = MethodHandles.dropArguments(
+            MethodHandles.constant(BitSet.class, null), 0, Asn1VarSizeBitstring.class);
+
+    /** Whether a subclass overrides getBit or setBit, which its BitSet would bypass. */
+    private static final ClassValue<Boolean> OVERRIDES_BITS = new ClassValue<Boolean>() {
+        @Override protected Boolean computeValue(Class<?> type) {
+            for (Class<?> c = type; c != Asn1VarSizeBitstring.class; c = c.getSuperclass()) {
+                if (declares(c, "getBit", int.class)
+                        || declares(c, "setBit", int.class, boolean.class)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    };
+
+    private static boolean declares(Class<?> type, String name, Class<?>... parameterTypes) {
+        try {
+            type.getDeclaredMethod(name, parameterTypes);
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /** The BitSet of bitstring, null if its bits have to go through getBit and setBit. */
+    private static BitSet backing(Asn1VarSizeBitstring bitstring) {
+        if (OVERRIDES_BITS.get(bitstring.getClass())) {
+            return null;
+        }
+        MethodHandle getter = backingGetter;
+        if (getter == null) {
+            getter = backingGetter = findBackingGetter();
+        }
+        try {
+            return (BitSet) getter.invokeExact(bitstring);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new AssertionError("field access threw " + e);
+        }
+    }
+
+    private static MethodHandle findBackingGetter() {
+        try {
+            Field backing = Asn1VarSizeBitstring.class.getDeclaredField("backing");
+            if (backing.getType() != BitSet.class) {
+                throw new NoSuchFieldException("backing is a " + backing.getType().getName());
+            }
+            backing.setAccessible(true);
+            return MethodHandles.lookup().unreflectGetter(backing).asType(
+                    MethodType.methodType(BitSet.class, Asn1VarSizeBitstring.class));
+        } catch (RuntimeException | NoSuchFieldException | IllegalAccessException e) {
+            UperEncoder.logger.warn("Can't find/access backing of Asn1VarSizeBitstring, coding"
+                    + " bit strings bit by bit: {}", e.toString());
+            return NO_BACKING;
+        }
+    }
+
+    /** The bits of bitstring: its BitSet, or a copy read with getBit. */
+    private static BitSet bits(Asn1VarSizeBitstring bitstring) {
+        BitSet result = backing(bitstring);
+        if (result == null) {
+            int size = bitstring.size();
+            result = new BitSet(size);
+            for (int i = 0; i < size; i++) {
+                if (bitstring.getBit(i)) {
+                    result.set(i);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Sets bits 0 to size - 1 of bitstring to those of bits: all at once in its BitSet, which is
+     * cleared first, or with one setBit call per bit, set or not.
+     */
+    private static void setBits(Asn1VarSizeBitstring bitstring, BitSet bits, int size) {
+        BitSet backing = backing(bitstring);
+        if (backing != null) {
+            backing.clear();
+            backing.or(bits);
+            return;
+        }
+        MethodHandle setter = bitSetter;
+        if (setter == null) {
+            setter = bitSetter = findBitSetter();
+        }
+        for (int i = 0; i < size; i++) {
+            try {
+                setter.invokeExact(bitstring, i, bits.get(i));
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new AssertionError("setBit threw " + e);
+            }
+        }
+    }
+
+    /** The protected setBit of Asn1VarSizeBitstring, called virtually, so overrides are used. */
+    private static MethodHandle findBitSetter() {
+        try {
+            Method setBit = Asn1VarSizeBitstring.class.getDeclaredMethod("setBit", int.class,
+                    boolean.class);
+            setBit.setAccessible(true);
+            return MethodHandles.lookup().unreflect(setBit);
+        } catch (RuntimeException | NoSuchMethodException | IllegalAccessException e) {
+            throw new UnsupportedOperationException("Can't find/access setBit of "
+                    + "Asn1VarSizeBitstring: " + e, e);
+        }
+    }
 
     @Override public <T> boolean canEncode(T obj, Annotation[] extraAnnotations) {
         Class<?> type = obj.getClass();
-        AnnotationStore annotations = new AnnotationStore(type.getAnnotations(),
-                extraAnnotations);
-        return annotations.getAnnotation(Bitstring.class) != null;
+        CodecPlan.Binding binding = CodecPlan.of(type).binding(extraAnnotations);
+        return binding.annotations.getAnnotation(Bitstring.class) != null;
     }
 
     @Override public <T> void encode(BitBuffer bitbuffer, T obj, Annotation[] extraAnnotations) throws Asn1EncodingException {
         Class<?> type = obj.getClass();
-        AnnotationStore annotations = new AnnotationStore(type.getAnnotations(),
-                extraAnnotations);
+        CodecPlan.Binding binding = CodecPlan.of(type).binding(extraAnnotations);
         if (!(obj instanceof Asn1VarSizeBitstring)) {
-            if (UperEncoder.hasExtensionMarker(annotations)) {
+            if (binding.hasExtensionMarker) {
                 throw new UnsupportedOperationException(
                     "Bitstring with extensions is not implemented yet");
             }
             FixedSize size = type.getAnnotation(FixedSize.class);
             int position = bitbuffer.position();
             if (size != null) {
-                Asn1ContainerFieldSorter sorter = new Asn1ContainerFieldSorter(type);
-                if (sorter.ordinaryFields.size() != size.value()) { throw new AssertionError(
+                List<FieldPlan> fields = CodecPlan.of(type).ordinaryFields();
+                if (fields.size() != size.value()) { throw new AssertionError(
                         "Declared size (" + size.value() +
-                                ") and number of fields (" + sorter.ordinaryFields.size() +
+                                ") and number of fields (" + fields.size() +
                                 ") do not match!"); }
-                for (Field f : sorter.ordinaryFields) {
-                    try {
-                        bitbuffer.put(f.getBoolean(obj));
-                    } catch (IllegalArgumentException | IllegalAccessException e) {
-                        throw new IllegalArgumentException("can't encode" + obj, e);
+                for (int done = 0; done < fields.size(); done += 64) {
+                    int chunk = Math.min(64, fields.size() - done);
+                    long bits = 0;
+                    for (int i = 0; i < chunk; i++) {
+                        try {
+                            bits = (bits << 1) | (fields.get(done + i).getBoolean(obj) ? 1 : 0);
+                        } catch (IllegalArgumentException e) {
+                            throw new IllegalArgumentException("can't encode" + obj, e);
+                        }
                     }
+                    bitbuffer.putBits(bits, chunk);
+                }
+                if (UperEncoder.logger.isDebugEnabled()) {
+                    UperEncoder.logger.debug("BITSTRING {}, encoded as <{}>", obj.getClass().getName(),
+                            bitbuffer.toBooleanStringFromPosition(position));
                 }
-                UperEncoder.logger.debug("BITSTRING {}, encoded as <{}>", obj.getClass().getName(),
-                        bitbuffer.toBooleanStringFromPosition(position));
                 return;
             } else {
                 throw new UnsupportedOperationException(
@@ -53,29 +186,29 @@ class BitStringCoder implements Decoder, Encoder {
             }
         } else if (obj instanceof Asn1VarSizeBitstring) {
             int position = bitbuffer.position();
-            if (UperEncoder.hasExtensionMarker(annotations)) { throw new UnsupportedOperationException(
+            if (binding.hasExtensionMarker) { throw new UnsupportedOperationException(
                     "Bitstring with extensions is not implemented yet"); }
             Asn1VarSizeBitstring bitstring = (Asn1VarSizeBitstring) obj;
-            FixedSize fixedSize = annotations.getAnnotation(FixedSize.class);
-            SizeRange sizeRange = annotations.getAnnotation(SizeRange.class);
+            FixedSize fixedSize = binding.fixedSize;
+            SizeRange sizeRange = binding.sizeRange;
             if (fixedSize != null) {
-                for (int i = 0; i < fixedSize.value(); i++) {
-                    bitbuffer.put(bitstring.getBit(i));
+                putBits(bitbuffer, bits(bitstring), fixedSize.value());
+                if (UperEncoder.logger.isDebugEnabled()) {
+                    UperEncoder.logger.debug("BITSTRING {}: {}", obj.getClass().getName(),
+                            bitbuffer.toBooleanStringFromPosition(position));
                 }
-                UperEncoder.logger.debug("BITSTRING {}: {}", obj.getClass().getName(),
-                        bitbuffer.toBooleanStringFromPosition(position));
                 return;
             } else if (sizeRange != null) {
                 int position1 = bitbuffer.position();
                 UperEncoder.encodeConstrainedInt(bitbuffer, bitstring.size(), sizeRange.minValue(),
                         sizeRange.maxValue());
                 int position2 = bitbuffer.position();
-                for (int i = 0; i < bitstring.size(); i++) {
-                    bitbuffer.put(bitstring.getBit(i));
+                putBits(bitbuffer, bits(bitstring), bitstring.size());
+                if (UperEncoder.logger.isDebugEnabled()) {
+                    UperEncoder.logger.debug("BITSTRING {} size {}: {}", obj.getClass().getName(),
+                            bitbuffer.toBooleanString(position1, position2 - position1),
+                            bitbuffer.toBooleanStringFromPosition(position2));
                 }
-                UperEncoder.logger.debug("BITSTRING {} size {}: {}", obj.getClass().getName(),
-                        bitbuffer.toBooleanString(position1, position2 - position1),
-                        bitbuffer.toBooleanStringFromPosition(position2));
                 return;
             } else {
                 throw new IllegalArgumentException("Both SizeRange and FixedSize are null");
@@ -84,74 +217,145 @@ class BitStringCoder implements Decoder, Encoder {
     }
 
     @Override public <T> boolean canDecode(Class<T> classOfT, Annotation[] extraAnnotations) {
-        AnnotationStore annotations = new AnnotationStore(classOfT.getAnnotations(),
-                extraAnnotations);
-        return annotations.getAnnotation(Bitstring.class) != null;
+        CodecPlan.Binding binding = CodecPlan.of(classOfT).binding(extraAnnotations);
+        return binding.annotations.getAnnotation(Bitstring.class) != null;
     }
 
     @Override public <T> T decode(BitBuffer bitbuffer,
             Class<T> classOfT,
             Annotation[] extraAnnotations) {
-        AnnotationStore annotations = new AnnotationStore(classOfT.getAnnotations(),
-                extraAnnotations);
+        CodecPlan.Binding binding = CodecPlan.of(classOfT).binding(extraAnnotations);
         if (!Asn1VarSizeBitstring.class.isAssignableFrom(classOfT)) {
             UperEncoder.logger.debug("Bitlist(fixed-size, all-named)");
-            FixedSize fixedSize = annotations.getAnnotation(FixedSize.class);
+            FixedSize fixedSize = binding.fixedSize;
             if (fixedSize == null) { throw new UnsupportedOperationException(
                     "bitstrings of non-fixed size that do not extend Asn1VarSizeBitstring are not supported yet");
             }
-            Asn1ContainerFieldSorter sorter = new Asn1ContainerFieldSorter(classOfT);
-            if (fixedSize.value() != sorter.ordinaryFields.size()) { throw new IllegalArgumentException(
+            List<FieldPlan> fields = CodecPlan.of(classOfT).ordinaryFields();
+            if (fixedSize.value() != fields.size()) { throw new IllegalArgumentException(
                     "Fixed size annotation " + fixedSize.value()
                             + " does not match the number of fields "
-                            + sorter.ordinaryFields.size() + " in " + classOfT.getName()); }
-            if (UperEncoder.hasExtensionMarker(annotations)) {
+                            + fields.size() + " in " + classOfT.getName()); }
+            if (binding.hasExtensionMarker) {
                 boolean extensionPresent = bitbuffer.get();
                 if (extensionPresent) { throw new UnsupportedOperationException(
                         "extensions in fixed-size bitlist are not supported yet"); }
             }
             T result = UperEncoder.instantiate(classOfT);
-            for (Field f : sorter.ordinaryFields) {
-                boolean value = bitbuffer.get();
-                UperEncoder.logger.debug("Field {} set to {}", f.getName(), value);
-                try {
-                    f.set(result, value);
-                } catch (IllegalArgumentException | IllegalAccessException e) {
-                    throw new IllegalArgumentException("can't decode " + classOfT, e);
+            for (int done = 0; done < fields.size(); done += 64) {
+                int chunk = Math.min(64, fields.size() - done);
+                long bits = UperEncoder.getBits(bitbuffer, chunk);
+                for (int i = 0; i < chunk; i++) {
+                    FieldPlan f = fields.get(done + i);
+                    boolean value = ((bits >>> (chunk - 1 - i)) & 1) != 0;
+                    if (UperEncoder.logger.isDebugEnabled()) {
+                        UperEncoder.logger.debug("Field {} set to {}", f.name, value);
+                    }
+                    try {
+                        f.set(result, value);
+                    } catch (IllegalArgumentException e) {
+                        throw new IllegalArgumentException("can't decode " + classOfT, e);
+                    }
                 }
             }
             return result;
         } else {
             UperEncoder.logger.debug("Bitlist(var-size)");
-            FixedSize fixedSize = annotations.getAnnotation(FixedSize.class);
-            SizeRange sizeRange = annotations.getAnnotation(SizeRange.class);
-            // We use reflection here to access protected method of Asn1VarSizeBitstring.
-            // Alternative would be to mandate BitSet constructors for all subclasses of
-            // Asn1VarSizeBitstring.
-            Method setBitMethod;
-            try {
-                setBitMethod = Asn1VarSizeBitstring.class.getDeclaredMethod("setBit", int.class,
-                        boolean.class);
-                setBitMethod.setAccessible(true);
-            } catch (SecurityException | NoSuchMethodException e) {
-                throw new AssertionError("Can't find/access setBit " + e);
-            }
+            FixedSize fixedSize = binding.fixedSize;
+            SizeRange sizeRange = binding.sizeRange;
             long size = (fixedSize != null) ? fixedSize.value() :
                     (sizeRange != null) ? UperEncoder.decodeConstrainedInt(bitbuffer,
                             UperEncoder.intRangeFromSizeRange(sizeRange)) :
                             badSize(classOfT);
+            BitSet bits = getBits(bitbuffer, (int) size);
             T result = UperEncoder.instantiate(classOfT);
-            for (int i = 0; i < size; i++) {
-                try {
-                    setBitMethod.invoke(result, i, bitbuffer.get());
-                } catch (IllegalArgumentException | InvocationTargetException | IllegalAccessException e) {
-                    throw new IllegalArgumentException("Can't invoke setBit", e);
-                }
-            }
+            setBits((Asn1VarSizeBitstring) result, bits, (int) size);
             return result;
         }
     }
 
+    @Override public <T> void skip(BitBuffer bitbuffer, Class<T> classOfT,
+            Annotation[] extraAnnotations) {
+        CodecPlan.Binding binding = CodecPlan.of(classOfT).binding(extraAnnotations);
+        FixedSize fixedSize = binding.fixedSize;
+        if (!Asn1VarSizeBitstring.class.isAssignableFrom(classOfT)) {
+            if (fixedSize == null) { throw new UnsupportedOperationException(
+                    "bitstrings of non-fixed size that do not extend Asn1VarSizeBitstring are not supported yet");
+            }
+            if (binding.hasExtensionMarker && bitbuffer.get()) {
+                throw new UnsupportedOperationException(
+                        "extensions in fixed-size bitlist are not supported yet");
+            }
+            UperEncoder.skipBits(bitbuffer, fixedSize.value());
+        } else {
+            SizeRange sizeRange = binding.sizeRange;
+            long size = (fixedSize != null) ? fixedSize.value() :
+                    (sizeRange != null) ? UperEncoder.decodeConstrainedInt(bitbuffer,
+                            UperEncoder.intRangeFromSizeRange(sizeRange)) :
+                            badSize(classOfT);
+            UperEncoder.skipBits(bitbuffer, size);
+        }
+    }
+
+    @Override public <T> int fixedWidth(Class<T> classOfT, Annotation[] extraAnnotations) {
+        CodecPlan.Binding binding = CodecPlan.of(classOfT).binding(extraAnnotations);
+        if (binding.fixedSize == null || (binding.hasExtensionMarker
+                && !Asn1VarSizeBitstring.class.isAssignableFrom(classOfT))) {
+            return -1;
+        }
+        return binding.fixedSize.value();
+    }
+
+    /**
+     * Writes bits 0 to n - 1 of the set, bit 0 first, up to 64 bits at a time. BitSet keeps bit i
+     * at bit i % 64 of its words, UPER wants it first, hence the reversal.
+     */
+    private static void putBits(BitBuffer bitbuffer, BitSet bits, int n) {
+        long[] words = bits.toLongArray();
+        for (int done = 0; done < n; done += 64) {
+            int chunk = Math.min(64, n - done);
+            long word = done / 64 < words.length ? words[done / 64] : 0;
+            bitbuffer.putBits(Long.reverse(word) >>> (64 - chunk), chunk);
+        }
+    }
+
+    /** Reads the next n bits into a BitSet, the first as bit 0, the reverse of {@link #putBits}. */
+    private static BitSet getBits(BitBuffer bitbuffer, int n) {
+        long[] words = new long[(n + 63) / 64];
+        for (int done = 0; done < n; done += 64) {
+            int chunk = Math.min(64, n - done);
+            words[done / 64] = Long.reverse(UperEncoder.getBits(bitbuffer, chunk) << (64 - chunk));
+        }
+        return BitSet.valueOf(words);
+    }
+
+    /**
+     * The bits of a BIT STRING value in a long, bit i of the BIT STRING as {@code 1L << i}: the
+     * fields of a fixed-size named bit string in declaration order, or the bits of an
+     * {@link Asn1VarSizeBitstring}. See {@link BitStrings#toLong}.
+     */
+    static long pack(Object bitstring) {
+        if (bitstring instanceof Asn1VarSizeBitstring) {
+            BitSet bits = bits((Asn1VarSizeBitstring) bitstring);
+            if (bits.length() > 64) { throw new IllegalArgumentException(
+                    "Bitstring of " + bits.length() + " bits does not fit in a long"); }
+            return bits.isEmpty() ? 0 : bits.toLongArray()[0];
+        }
+        Class<?> type = bitstring.getClass();
+        if (type.getAnnotation(Bitstring.class) == null) { throw new IllegalArgumentException(
+                type.getName() + " is not a bitstring"); }
+        List<FieldPlan> fields = CodecPlan.of(type).ordinaryFields();
+        if (fields.size() > 64) { throw new IllegalArgumentException(
+                "Bitstring of " + fields.size() + " bits does not fit in a long"); }
+        long result = 0;
+        for (int i = 0; i < fields.size(); i++) {
+            if (fields.get(i).getBoolean(bitstring)) {
+                result |= 1L << i;
+            }
+        }
+        return result;
+    }
+
     /** This function only throws an exception, to be used in ternary (a?b:c) expression. */
     static <T> long badSize(Class<T> classOfT) {
         throw new IllegalArgumentException("both size range and fixed size are null for "
@@ -0,0 +1,25 @@
+package net.gcdc.asn1.uper;
+
+/**
+ * BIT STRING values packed into a long, to be tested with bit masks instead of field by field.
+ * Bit i of the BIT STRING, i.e. the i-th field of a fixed-size named bit string class such as
+ * ExteriorLights, or {@code getBit(i)} of an Asn1VarSizeBitstring, is {@code 1L << i}:
+ *
+ * <pre>
+ * long lights = BitStrings.toLong(lowFrequency.getExteriorLights());
+ * boolean turning = (lights &amp; (1L &lt;&lt; 2 | 1L &lt;&lt; 3)) != 0;  // left or right turn signal
+ * </pre>
+ */
+public final class BitStrings {
+
+    private BitStrings() {}
+
+    /**
+     * The bits of bitstring, a value of a class annotated Bitstring or an Asn1VarSizeBitstring.
+     *
+     * @throws IllegalArgumentException if bitstring is not a bit string, or has more than 64 bits
+     */
+    public static long toLong(Object bitstring) {
+        return BitStringCoder.pack(bitstring);
+    }
+}
@@ -2,7 +2,7 @@ package net.gcdc.asn1.uper;
 
 import java.lang.annotation.Annotation;
 
-class BooleanCoder implements Decoder, Encoder {
+class BooleanCoder implements SkippingDecoder, Encoder {
 
     @Override public <T> boolean canEncode(T obj, Annotation[] extraAnnotations) {
         return obj instanceof Boolean;
@@ -24,4 +24,13 @@ class BooleanCoder implements Decoder, Encoder {
         UperEncoder.logger.debug("BOOL");
         return (T) new Boolean(bitbuffer.get());
     }
+
+    @Override public <T> void skip(BitBuffer bitbuffer, Class<T> classOfT,
+            Annotation[] extraAnnotations) {
+        UperEncoder.skipBits(bitbuffer, 1);
+    }
+
+    @Override public <T> int fixedWidth(Class<T> classOfT, Annotation[] extraAnnotations) {
+        return 1;
+    }
 }
\ No newline at end of file
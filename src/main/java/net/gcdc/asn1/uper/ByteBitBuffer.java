@@ -1,15 +1,9 @@
 package net.gcdc.asn1.uper;
 
-import java.io.DataOutputStream;
-
-import net.gcdc.camdenm.RunDecode;
-import net.gcdc.geonetworking.GeonetStation;
-
-
 public class ByteBitBuffer implements BitBuffer {
 
     byte[] bytes;
-    byte[] mask = new byte[] {
+    static final byte[] mask = new byte[] {
      (byte) 0b1000_0000,
             0b0100_0000,
             0b0010_0000,
@@ -32,9 +26,7 @@ public class ByteBitBuffer implements BitBuffer {
         } else if (index >= limit) {
             throw new IndexOutOfBoundsException("Index " + index + " violates the limit " + limit);
         }
-        boolean result = (bytes[index / 8] & mask[index % 8]) != 0;
-        position = index;
-        return result;
+        return (bytes[index / 8] & mask[index % 8]) != 0;
     }
 
     @Override public boolean get() {
@@ -43,12 +35,30 @@ public class ByteBitBuffer implements BitBuffer {
         return result;
     }
 
+    @Override public long getBits(int n) {
+        checkBitCount(n);
+        if (n > limit - position) {
+            throw new IndexOutOfBoundsException("Reading " + n + " bits from position " + position
+                    + " violates the limit " + limit);
+        }
+        long result = readBits(bytes, position, n);
+        position += n;
+        return result;
+    }
+
     private void grow() {
         byte[] newbytes = new byte[2 * bytes.length];
         System.arraycopy(bytes, 0, newbytes, 0, bytes.length);
         bytes = newbytes;
     }
 
+    private void ensureCapacity(int lengthInBits) {
+        while (bytes.length * 8L < lengthInBits) {
+            if (isFinite) { throw new IndexOutOfBoundsException(); }
+            else { grow(); }
+        }
+    }
+
     @Override public BitBuffer put(int index, boolean element) {
         if (bytes.length <= index / 8) {
             if (isFinite) { throw new IndexOutOfBoundsException(); }
@@ -69,31 +79,169 @@ public class ByteBitBuffer implements BitBuffer {
         return this;
     }
 
-    @Override public BitBuffer putByte(byte element) {
-        for (int i = 0; i < 8; i++) {
-            put((element & mask[i]) != 0);
+    @Override public BitBuffer putBits(long value, int n) {
+        checkBitCount(n);
+        ensureCapacity(position + n);
+        writeBits(bytes, position, value, n);
+        position += n;
+        limit = limit < position ? position : limit;
+        return this;
+    }
+
+    @Override public BitBuffer putBits(BitBuffer source, int n) {
+        if (source == this) {
+            throw new IllegalArgumentException("Can't transfer bits of a buffer into itself");
+        }
+        if (n < 0 || n > source.remaining()) {
+            throw new IndexOutOfBoundsException("Transferring " + n + " bits violates the "
+                    + source.remaining() + " bits remaining in the source");
+        }
+        ensureCapacity(position + n);
+        if (source instanceof ByteBitBuffer) {
+            ByteBitBuffer byteSource = (ByteBitBuffer) source;
+            copyBits(byteSource.bytes, byteSource.position, bytes, position, n);
+            byteSource.position += n;
+        } else if (source instanceof ByteBufferBitBuffer) {
+            ((ByteBufferBitBuffer) source).getBits(bytes, position, n);
+        } else {
+            for (int done = 0; done < n; done += 64) {
+                int chunk = Math.min(64, n - done);
+                writeBits(bytes, position + done, source.getBits(chunk), chunk);
+            }
+        }
+        position += n;
+        limit = limit < position ? position : limit;
+        return this;
+    }
+
+    @Override public BitBuffer getBytes(byte[] destination, int offset, int length) {
+        checkBytes(destination, offset, length);
+        if (length * 8L > limit - position) {
+            throw new IndexOutOfBoundsException("Reading " + length + " bytes from position "
+                    + position + " violates the limit " + limit);
         }
+        copyBits(bytes, position, destination, offset * 8, length * 8);
+        position += length * 8;
         return this;
     }
 
+    @Override public BitBuffer putBytes(byte[] source, int offset, int length) {
+        checkBytes(source, offset, length);
+        ensureCapacity(position + length * 8);
+        copyBits(source, offset * 8, bytes, position, length * 8);
+        position += length * 8;
+        limit = limit < position ? position : limit;
+        return this;
+    }
+
+    /** Checks that offset and length are within array, like {@link System#arraycopy}. */
+    static void checkBytes(byte[] array, int offset, int length) {
+        if (offset < 0 || length < 0 || offset > array.length - length) {
+            throw new IndexOutOfBoundsException("Bytes " + offset + ".." + offset + "+" + length
+                    + " are outside of " + array.length + " bytes");
+        }
+    }
+
+    @Override public BitBuffer getView(int n) {
+        return new ByteBufferBitBuffer().rewrapAsView(this, n);
+    }
+
+    @Override public BitBuffer putByte(byte element) {
+        return putBits(element, 8);
+    }
+
     @Override public byte getByte() {
-        byte result = 0;
-        for (int i = 0; i < 8; i++) {
-            result |= (get() ? 1 : 0) << (7 - i);
+        return (byte) getBits(8);
+    }
+
+    static void checkBitCount(int n) {
+        if (n < 0 || n > 64) {
+            throw new IllegalArgumentException("Can't transfer " + n + " bits at once, 0..64 is allowed");
+        }
+    }
+
+    /**
+     * Reads {@code n} (0 to 64) bits starting at bit {@code bitIndex} of the array. The bytes
+     * covering the bits are loaded into one 64-bit word (plus a ninth byte if the bits straddle
+     * it), so the result is obtained with a couple of shifts instead of bit-by-bit.
+     */
+    static long readBits(byte[] bytes, int bitIndex, int n) {
+        if (n == 0) {
+            return 0;
+        }
+        int first = bitIndex >>> 3;
+        int shift = bitIndex & 7;
+        int last = Math.min((bitIndex + n - 1) >>> 3, first + 7);
+        long word = 0;
+        for (int i = first; i <= last; i++) {
+            word = (word << 8) | (bytes[i] & 0xff);
+        }
+        word <<= 8 * (first + 7 - last);  // Left-align the loaded bytes in the word.
+        long result = (word << shift) >>> (64 - n);
+        if (shift + n > 64) {
+            int extraBits = shift + n - 64;
+            result |= (bytes[first + 8] & 0xff) >>> (8 - extraBits);
         }
         return result;
     }
 
+    /** Writes the {@code n} (0 to 64) least significant bits of value starting at bit {@code bitIndex}. */
+    static void writeBits(byte[] bytes, int bitIndex, long value, int n) {
+        while (n > 0) {
+            int byteIndex = bitIndex >>> 3;
+            int free = 8 - (bitIndex & 7);
+            int take = Math.min(free, n);
+            int shift = free - take;
+            int chunkMask = ((1 << take) - 1) << shift;
+            int chunk = ((int) (value >>> (n - take)) << shift) & chunkMask;
+            bytes[byteIndex] = (byte) ((bytes[byteIndex] & ~chunkMask) | chunk);
+            bitIndex += take;
+            n -= take;
+        }
+    }
+
+    /**
+     * Copies {@code n} bits from bit {@code sourceIndex} of source to bit {@code destinationIndex}
+     * of destination. The ranges must not overlap. After the first few bits the destination is
+     * byte-aligned, so the bulk is written a whole byte at a time: with one
+     * {@link System#arraycopy} if the source is aligned too, otherwise each byte is shifted
+     * together from two source bytes.
+     */
+    static void copyBits(byte[] source, int sourceIndex, byte[] destination, int destinationIndex,
+            int n) {
+        int head = Math.min(n, -destinationIndex & 7);
+        if (head > 0) {
+            writeBits(destination, destinationIndex, readBits(source, sourceIndex, head), head);
+            sourceIndex += head;
+            destinationIndex += head;
+            n -= head;
+        }
+        int wholeBytes = n >>> 3;
+        int from = sourceIndex >>> 3;
+        int to = destinationIndex >>> 3;
+        int shift = sourceIndex & 7;
+        if (shift == 0) {
+            System.arraycopy(source, from, destination, to, wholeBytes);
+        } else {
+            for (int i = 0; i < wholeBytes; i++) {
+                destination[to + i] = (byte) ((source[from + i] << shift)
+                        | ((source[from + i + 1] & 0xff) >>> (8 - shift)));
+            }
+        }
+        int tail = n & 7;
+        if (tail > 0) {
+            int done = wholeBytes * 8;
+            writeBits(destination, destinationIndex + done,
+                    readBits(source, sourceIndex + done, tail), tail);
+        }
+    }
+
     @Override public int limit() {
         return limit;
     }
 
     @Override public String toBooleanString(int startIndex, int length) {
-        length = bytes.length*8;
         StringBuilder sb = new StringBuilder(length);
-        sb.append("0x"+UperEncoder.hexStringFromBytes(bytes));
-        sb.append(" - b");
-        //System.out.println("si:"+startIndex+" l:"+length+" p:"+position);
         for (int i = startIndex; i < startIndex + length; i++) {
             sb.append(get(i) ? "1" : "0");
         }
@@ -132,11 +280,28 @@ public class ByteBitBuffer implements BitBuffer {
 
     @Override public BitBuffer flip() {
         limit = position;
-        DataOutputStream d = null;
         position = 0;
         return this;
     }
 
+    /**
+     * Empties the buffer for reuse: position and limit go back to 0. The bytes are kept (and not
+     * zeroed), an infinite buffer keeps the capacity it has grown to.
+     */
+    @Override public BitBuffer clear() {
+        position = 0;
+        limit = 0;
+        return this;
+    }
+
+    /** Makes this an empty finite buffer over backingArray, as if made by {@link #allocate}. */
+    public ByteBitBuffer rewrap(byte[] backingArray) {
+        bytes = backingArray;
+        isFinite = true;
+        clear();
+        return this;
+    }
+
     @Override public String toBooleanStringFromPosition(int startIndex) {
         return toBooleanString(startIndex, position-startIndex);
     }
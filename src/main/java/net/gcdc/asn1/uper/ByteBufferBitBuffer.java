@@ -0,0 +1,471 @@
+package net.gcdc.asn1.uper;
+
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+
+/**
+ * A {@link BitBuffer} view over a byte array or a {@link ByteBuffer}, read-only unless made by
+ * {@link #rewrapForWriting}.
+ *
+ * Nothing is copied: bits are read straight from the caller's array (or, for direct and
+ * read-only buffers, with absolute {@link ByteBuffer#get(int)}), so the caller must not modify
+ * the underlying bytes while the view is in use. As everywhere in UPER, bit 0 is the most
+ * significant bit of the first byte.
+ */
+public class ByteBufferBitBuffer implements BitBuffer {
+
+    /** Backing array, or null if the bytes are only reachable through {@link #buffer}. */
+    private byte[] array;
+    /** Backing buffer for direct and read-only buffers, null when {@link #array} is used. */
+    private ByteBuffer buffer;
+    /** Index (in bits, counted from index 0 of the backing storage) of bit 0 of this view. */
+    private int start;
+
+    /** Number of bits in the view. */
+    private int capacity;
+    private boolean writable;
+
+    private int position;
+    private int limit;
+
+    /** An empty read-only view, to be {@link #rewrap rewrapped}, e.g. when pooled. */
+    ByteBufferBitBuffer() {
+        reset(EMPTY, null, 0, 0, false);
+    }
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private ByteBufferBitBuffer reset(byte[] array, ByteBuffer buffer, int start,
+            int lengthInBits, boolean writable) {
+        this.array = array;
+        this.buffer = buffer;
+        this.start = start;
+        this.capacity = lengthInBits;
+        this.writable = writable;
+        this.position = 0;
+        this.limit = writable ? 0 : lengthInBits;  // Like a fresh ByteBitBuffer when writing.
+        return this;
+    }
+
+    /** Wraps the whole array. */
+    public static ByteBufferBitBuffer wrap(byte[] bytes) {
+        return new ByteBufferBitBuffer().rewrap(bytes);
+    }
+
+    /** Wraps {@code bitLength} bits of the array, starting at bit {@code bitOffset}. */
+    public static ByteBufferBitBuffer wrap(byte[] bytes, int bitOffset, int bitLength) {
+        return new ByteBufferBitBuffer().rewrap(bytes, bitOffset, bitLength);
+    }
+
+    /**
+     * Wraps the remaining bytes of the buffer, i.e. from its position to its limit. The position
+     * of the buffer is not changed.
+     */
+    public static ByteBufferBitBuffer wrap(ByteBuffer buffer) {
+        return new ByteBufferBitBuffer().rewrap(buffer);
+    }
+
+    /**
+     * Wraps {@code bitLength} bits of the buffer, starting {@code bitOffset} bits after its
+     * position. The position of the buffer is not changed.
+     */
+    public static ByteBufferBitBuffer wrap(ByteBuffer buffer, int bitOffset, int bitLength) {
+        return new ByteBufferBitBuffer().rewrap(buffer, bitOffset, bitLength);
+    }
+
+    /** Makes this a read-only view of the whole array, like {@link #wrap(byte[])}. */
+    public ByteBufferBitBuffer rewrap(byte[] bytes) {
+        return reset(bytes, null, 0, bytes.length * 8, false);
+    }
+
+    /** Makes this a read-only view of bits of the array, like {@link #wrap(byte[], int, int)}. */
+    public ByteBufferBitBuffer rewrap(byte[] bytes, int bitOffset, int bitLength) {
+        checkBounds(bitOffset, bitLength, bytes.length);
+        return reset(bytes, null, bitOffset, bitLength, false);
+    }
+
+    /** Makes this a read-only view of the remaining bytes, like {@link #wrap(ByteBuffer)}. */
+    public ByteBufferBitBuffer rewrap(ByteBuffer buffer) {
+        return rewrap(buffer, 0, buffer.remaining() * 8);
+    }
+
+    /** Makes this a read-only view of bits of the buffer, like {@link #wrap(ByteBuffer, int, int)}. */
+    public ByteBufferBitBuffer rewrap(ByteBuffer buffer, int bitOffset, int bitLength) {
+        checkBounds(bitOffset, bitLength, buffer.remaining());
+        if (buffer.hasArray()) {
+            int first = (buffer.arrayOffset() + buffer.position()) * 8 + bitOffset;
+            return reset(buffer.array(), null, first, bitLength, false);
+        } else {
+            int first = buffer.position() * 8 + bitOffset;
+            return reset(null, buffer, first, bitLength, false);
+        }
+    }
+
+    /**
+     * Makes this a writable view of {@code bitLength} bits of the buffer, starting at its
+     * position. Bits are written in place, the position of the buffer is not changed. Other bits
+     * in the bytes written to are kept.
+     */
+    ByteBufferBitBuffer rewrapForWriting(ByteBuffer buffer, int bitLength) {
+        if (buffer.isReadOnly()) {
+            throw new ReadOnlyBufferException();
+        }
+        checkBounds(0, bitLength, buffer.remaining());
+        if (buffer.hasArray()) {
+            int first = (buffer.arrayOffset() + buffer.position()) * 8;
+            return reset(buffer.array(), null, first, bitLength, true);
+        } else {
+            return reset(null, buffer, buffer.position() * 8, bitLength, true);
+        }
+    }
+
+    /**
+     * Makes this a read-only view of the next {@code n} bits of source and advances source past
+     * them, like {@link BitBuffer#getView}.
+     */
+    ByteBufferBitBuffer rewrapAsView(BitBuffer source, int n) {
+        if (n < 0 || n > source.remaining()) {
+            throw new IndexOutOfBoundsException("Viewing " + n + " bits from position "
+                    + source.position() + " violates the limit " + source.limit());
+        }
+        if (source instanceof ByteBufferBitBuffer) {
+            ByteBufferBitBuffer parent = (ByteBufferBitBuffer) source;
+            reset(parent.array, parent.buffer, parent.start + parent.position, n, false);
+            parent.position += n;
+        } else if (source instanceof ByteBitBuffer) {
+            ByteBitBuffer parent = (ByteBitBuffer) source;
+            reset(parent.bytes, null, parent.position, n, false);
+            parent.position += n;
+        } else {
+            throw new IllegalArgumentException("Can't view " + source);
+        }
+        return this;
+    }
+
+    /** Drops the reference to the backing bytes, so a pooled view does not keep them alive. */
+    void release() {
+        reset(EMPTY, null, 0, 0, false);
+    }
+
+    private static void checkBounds(int bitOffset, int bitLength, int lengthInBytes) {
+        if (bitOffset < 0 || bitLength < 0 || (long) bitOffset + bitLength > lengthInBytes * 8L) {
+            throw new IndexOutOfBoundsException("Bits " + bitOffset + ".." + bitOffset + "+"
+                    + bitLength + " are outside of " + lengthInBytes + " bytes");
+        }
+    }
+
+    private int byteAt(int index) {
+        return array != null ? array[index] : buffer.get(index);
+    }
+
+    private void setByteAt(int index, int value) {
+        if (array != null) {
+            array[index] = (byte) value;
+        } else {
+            buffer.put(index, (byte) value);
+        }
+    }
+
+    private void checkWritable() {
+        if (!writable) {
+            throw new ReadOnlyBufferException();
+        }
+    }
+
+    private void checkCapacity(int n) {
+        if (n > capacity - position) {
+            throw new IndexOutOfBoundsException("Writing " + n + " bits from position " + position
+                    + " violates the capacity " + capacity);
+        }
+    }
+
+    private void advance(int n) {
+        position += n;
+        limit = limit < position ? position : limit;
+    }
+
+    @Override public boolean get(int index) {
+        if (index < 0) {
+            throw new IndexOutOfBoundsException("Index " + index + " is less than 0");
+        } else if (index >= limit) {
+            throw new IndexOutOfBoundsException("Index " + index + " violates the limit " + limit);
+        }
+        int bit = start + index;
+        return (byteAt(bit >>> 3) & (0x80 >>> (bit & 7))) != 0;
+    }
+
+    @Override public boolean get() {
+        boolean result = get(position);
+        position++;
+        return result;
+    }
+
+    @Override public long getBits(int n) {
+        ByteBitBuffer.checkBitCount(n);
+        if (n > limit - position) {
+            throw new IndexOutOfBoundsException("Reading " + n + " bits from position " + position
+                    + " violates the limit " + limit);
+        }
+        long result = readBits(start + position, n);
+        position += n;
+        return result;
+    }
+
+    private long readBits(int bitIndex, int n) {
+        if (array != null) {
+            return ByteBitBuffer.readBits(array, bitIndex, n);
+        }
+        long result = 0;
+        while (n > 0) {
+            int free = 8 - (bitIndex & 7);
+            int take = Math.min(free, n);
+            int chunk = (buffer.get(bitIndex >>> 3) & 0xff) >>> (free - take);
+            result = (result << take) | (chunk & ((1 << take) - 1));
+            bitIndex += take;
+            n -= take;
+        }
+        return result;
+    }
+
+    /**
+     * Reads the next {@code n} bits into destination, starting at bit {@code bitIndex} of it,
+     * see {@link ByteBitBuffer#putBits(BitBuffer, int)}. The caller checks the bounds.
+     */
+    void getBits(byte[] destination, int bitIndex, int n) {
+        if (array != null) {
+            ByteBitBuffer.copyBits(array, start + position, destination, bitIndex, n);
+        } else {
+            for (int done = 0; done < n; done += 64) {
+                int chunk = Math.min(64, n - done);
+                ByteBitBuffer.writeBits(destination, bitIndex + done,
+                        readBits(start + position + done, chunk), chunk);
+            }
+        }
+        position += n;
+    }
+
+    @Override public BitBuffer getBytes(byte[] destination, int offset, int length) {
+        ByteBitBuffer.checkBytes(destination, offset, length);
+        if (length * 8L > limit - position) {
+            throw new IndexOutOfBoundsException("Reading " + length + " bytes from position "
+                    + position + " violates the limit " + limit);
+        }
+        int bitIndex = start + position;
+        if (array == null && (bitIndex & 7) == 0) {
+            for (int i = 0; i < length; i++) {
+                destination[offset + i] = buffer.get((bitIndex >>> 3) + i);
+            }
+            position += length * 8;
+        } else {
+            getBits(destination, offset * 8, length * 8);
+        }
+        return this;
+    }
+
+    /**
+     * Reads the next {@code length} octets as a read-only buffer. If they start on a byte
+     * boundary the buffer shares the backing bytes, otherwise they are copied. The caller checks
+     * the bounds.
+     */
+    ByteBuffer getSlice(int length) {
+        int bitIndex = start + position;
+        if ((bitIndex & 7) != 0) {
+            byte[] copy = new byte[length];
+            getBits(copy, 0, length * 8);
+            return ByteBuffer.wrap(copy).asReadOnlyBuffer();
+        }
+        ByteBuffer shared;
+        if (array != null) {
+            shared = ByteBuffer.wrap(array, bitIndex >>> 3, length);
+        } else {
+            shared = buffer.duplicate();
+            shared.clear();
+            shared.limit((bitIndex >>> 3) + length);
+            shared.position(bitIndex >>> 3);
+        }
+        position += length * 8;
+        return shared.slice().asReadOnlyBuffer();
+    }
+
+    @Override public BitBuffer getView(int n) {
+        return new ByteBufferBitBuffer().rewrapAsView(this, n);
+    }
+
+    /** Advances the position past the next {@code n} bits without reading them. */
+    void skip(int n) {
+        if (n < 0 || n > remaining()) {
+            throw new IndexOutOfBoundsException("Skipping " + n + " bits from position "
+                    + position + " violates the limit " + limit);
+        }
+        position += n;
+    }
+
+    @Override public byte getByte() {
+        return (byte) getBits(8);
+    }
+
+    @Override public BitBuffer put(boolean element) {
+        checkWritable();
+        checkCapacity(1);
+        put(position, element);
+        advance(1);
+        return this;
+    }
+
+    @Override public BitBuffer put(int index, boolean element) {
+        checkWritable();
+        if (index < 0 || index >= capacity) {
+            throw new IndexOutOfBoundsException("Index " + index + " is outside of capacity "
+                    + capacity);
+        }
+        int bit = start + index;
+        int mask = 0x80 >>> (bit & 7);
+        int b = byteAt(bit >>> 3);
+        setByteAt(bit >>> 3, element ? b | mask : b & ~mask);
+        return this;
+    }
+
+    @Override public BitBuffer putByte(byte element) {
+        return putBits(element, 8);
+    }
+
+    @Override public BitBuffer putBits(long value, int n) {
+        checkWritable();
+        ByteBitBuffer.checkBitCount(n);
+        checkCapacity(n);
+        writeBits(start + position, value, n);
+        advance(n);
+        return this;
+    }
+
+    private void writeBits(int bitIndex, long value, int n) {
+        if (array != null) {
+            ByteBitBuffer.writeBits(array, bitIndex, value, n);
+            return;
+        }
+        while (n > 0) {
+            int free = 8 - (bitIndex & 7);
+            int take = Math.min(free, n);
+            int shift = free - take;
+            int chunkMask = ((1 << take) - 1) << shift;
+            int chunk = ((int) (value >>> (n - take)) << shift) & chunkMask;
+            setByteAt(bitIndex >>> 3, (byteAt(bitIndex >>> 3) & ~chunkMask) | chunk);
+            bitIndex += take;
+            n -= take;
+        }
+    }
+
+    @Override public BitBuffer putBytes(byte[] source, int offset, int length) {
+        checkWritable();
+        ByteBitBuffer.checkBytes(source, offset, length);
+        if (length * 8L > capacity - position) {
+            throw new IndexOutOfBoundsException("Writing " + length + " bytes from position "
+                    + position + " violates the capacity " + capacity);
+        }
+        int bitIndex = start + position;
+        if (array != null) {
+            ByteBitBuffer.copyBits(source, offset * 8, array, bitIndex, length * 8);
+        } else if ((bitIndex & 7) == 0) {
+            for (int i = 0; i < length; i++) {
+                buffer.put((bitIndex >>> 3) + i, source[offset + i]);
+            }
+        } else {
+            for (int i = 0; i < length; i++) {
+                writeBits(bitIndex + i * 8, source[offset + i], 8);
+            }
+        }
+        advance(length * 8);
+        return this;
+    }
+
+    @Override public BitBuffer putBits(BitBuffer source, int n) {
+        checkWritable();
+        if (source == this) {
+            throw new IllegalArgumentException("Can't transfer bits of a buffer into itself");
+        }
+        if (n < 0 || n > source.remaining()) {
+            throw new IndexOutOfBoundsException("Transferring " + n + " bits violates the "
+                    + source.remaining() + " bits remaining in the source");
+        }
+        checkCapacity(n);
+        if (array != null && source instanceof ByteBitBuffer) {
+            ByteBitBuffer byteSource = (ByteBitBuffer) source;
+            ByteBitBuffer.copyBits(byteSource.bytes, byteSource.position, array, start + position, n);
+            byteSource.position += n;
+        } else if (array != null && source instanceof ByteBufferBitBuffer) {
+            ((ByteBufferBitBuffer) source).getBits(array, start + position, n);
+        } else {
+            for (int done = 0; done < n; done += 64) {
+                int chunk = Math.min(64, n - done);
+                writeBits(start + position + done, source.getBits(chunk), chunk);
+            }
+        }
+        advance(n);
+        return this;
+    }
+
+    /**
+     * The backing array itself if the view starts at its first bit, like {@link ByteBitBuffer}.
+     * Otherwise (a view at an offset, or over a direct or read-only buffer) a copy of the bytes
+     * the view covers, bit 0 of the view being the most significant bit of the first byte.
+     */
+    @Override public byte[] array() {
+        if (array != null && start == 0) {
+            return array;
+        }
+        byte[] result = new byte[(capacity + 7) / 8];
+        if (array != null) {
+            ByteBitBuffer.copyBits(array, start, result, 0, capacity);
+        } else {
+            for (int done = 0; done < capacity; done += 64) {
+                int chunk = Math.min(64, capacity - done);
+                ByteBitBuffer.writeBits(result, done, readBits(start + done, chunk), chunk);
+            }
+        }
+        return result;
+    }
+
+    @Override public int limit() {
+        return limit;
+    }
+
+    @Override public int capacity() {
+        return capacity;
+    }
+
+    @Override public int position() {
+        return position;
+    }
+
+    @Override public int remaining() {
+        return limit - position;
+    }
+
+    @Override public BitBuffer flip() {
+        limit = position;
+        position = 0;
+        return this;
+    }
+
+    @Override public BitBuffer clear() {
+        position = 0;
+        limit = writable ? 0 : capacity;
+        return this;
+    }
+
+    @Override public String toBooleanString(int startIndex, int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = startIndex; i < startIndex + length; i++) {
+            sb.append(get(i) ? "1" : "0");
+        }
+        return sb.toString();
+    }
+
+    @Override public String toBooleanStringFromPosition(int startIndex) {
+        return toBooleanString(startIndex, position - startIndex);
+    }
+
+    @Override public String toString() {
+        return "ByteBufferBitBuffer(position " + position + ", limit " + limit + ")";
+    }
+}
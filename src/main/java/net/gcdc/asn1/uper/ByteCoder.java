@@ -2,7 +2,7 @@ package net.gcdc.asn1.uper;
 
 import java.lang.annotation.Annotation;
 
-class ByteCoder implements Decoder, Encoder {
+class ByteCoder implements SkippingDecoder, Encoder {
 
     @Override public <T> boolean canEncode(T obj, Annotation[] extraAnnotations) {
         return obj instanceof Byte;
@@ -24,4 +24,13 @@ class ByteCoder implements Decoder, Encoder {
         return (T) new Byte((byte) UperEncoder.decodeConstrainedInt(bitbuffer, UperEncoder.newRange(0, 255, false)));
     }
 
+    @Override public <T> void skip(BitBuffer bitbuffer, Class<T> classOfT,
+            Annotation[] extraAnnotations) {
+        UperEncoder.skipBits(bitbuffer, 8);
+    }
+
+    @Override public <T> int fixedWidth(Class<T> classOfT, Annotation[] extraAnnotations) {
+        return 8;
+    }
+
 }
\ No newline at end of file
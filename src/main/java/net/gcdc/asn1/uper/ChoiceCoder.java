@@ -1,59 +1,59 @@
 package net.gcdc.asn1.uper;
 
 import java.lang.annotation.Annotation;
-import java.lang.reflect.Field;
+import java.util.List;
 
 import net.gcdc.asn1.datatypes.Choice;
-import net.gcdc.asn1.uper.UperEncoder.Asn1ContainerFieldSorter;
+import net.gcdc.asn1.uper.CodecPlan.FieldPlan;
 
-class ChoiceCoder implements Decoder, Encoder {
+class ChoiceCoder implements ReusingDecoder, SkippingDecoder, Encoder {
 
     @Override public <T> boolean canEncode(T obj, Annotation[] extraAnnotations) {
         Class<?> type = obj.getClass();
-        AnnotationStore annotations = new AnnotationStore(type.getAnnotations(),
-                extraAnnotations);
-        return annotations.getAnnotation(Choice.class) != null;
+        CodecPlan.Binding binding = CodecPlan.of(type).binding(extraAnnotations);
+        return binding.annotations.getAnnotation(Choice.class) != null;
     }
 
     @Override public <T> void encode(BitBuffer bitbuffer, T obj, Annotation[] extraAnnotations) throws Asn1EncodingException {
         Class<?> type = obj.getClass();
-        AnnotationStore annotations = new AnnotationStore(type.getAnnotations(),
-                extraAnnotations);
+        CodecPlan plan = CodecPlan.of(type);
+        boolean hasExtensionMarker = plan.hasExtensionMarker(extraAnnotations);
         UperEncoder.logger.debug("CHOICE");
         int nonNullIndex = 0;
-        Field nonNullField = null;
+        FieldPlan nonNullField = null;
         Object nonNullFieldValue = null;
         int currentIndex = 0;
-        Asn1ContainerFieldSorter sorter = new Asn1ContainerFieldSorter(type);
         try {
-            for (Field f : sorter.ordinaryFields) {
-                if (f.get(obj) != null) {
+            for (FieldPlan f : plan.ordinaryFields()) {
+                Object fieldValue = f.get(obj);
+                if (fieldValue != null) {
                     nonNullIndex = currentIndex;
-                    nonNullFieldValue = f.get(obj);
+                    nonNullFieldValue = fieldValue;
                     nonNullField = f;
                     break;
                 }
                 currentIndex++;
             }
             if (nonNullFieldValue != null) {
-                if (UperEncoder.hasExtensionMarker(annotations)) {
+                if (hasExtensionMarker) {
                     boolean extensionBit = false;
                     UperEncoder.logger.debug("with extension marker, set to {}", extensionBit);
                     bitbuffer.put(extensionBit);
                 }
-                if (sorter.ordinaryFields.size() > 1) {  // Encode index only if more than one.
+                if (plan.ordinaryFields().size() > 1) {  // Encode index only if more than one.
                     UperEncoder.logger.debug("with chosen element indexed {}", nonNullIndex);
                     UperEncoder.encodeConstrainedInt(bitbuffer, nonNullIndex, 0,
-                            sorter.ordinaryFields.size() - 1);
+                            plan.ordinaryFields().size() - 1);
                 }
-                UperEncoder.encode2(bitbuffer, nonNullFieldValue, nonNullField.getAnnotations());
+                UperEncoder.encode2(bitbuffer, nonNullFieldValue, nonNullField.annotations);
                 return;
-            } else if (UperEncoder.hasExtensionMarker(annotations)) {
+            } else if (hasExtensionMarker) {
                 currentIndex = 0;
-                for (Field f : sorter.extensionFields) {
-                    if (f.get(obj) != null) {
+                for (FieldPlan f : plan.extensionFields()) {
+                    Object fieldValue = f.get(obj);
+                    if (fieldValue != null) {
                         nonNullIndex = currentIndex;
-                        nonNullFieldValue = f.get(obj);
+                        nonNullFieldValue = fieldValue;
                         nonNullField = f;
                         break;
                     }
@@ -70,7 +70,7 @@ class ChoiceCoder implements Decoder, Encoder {
                 throw new IllegalArgumentException(
                         "Not Extension and All ordinary fields of Choice are null");
             }
-        } catch (IllegalArgumentException | IllegalAccessException e) {
+        } catch (IllegalArgumentException e) {
             throw new IllegalArgumentException("can't encode " + obj, e);
         } catch (Asn1EncodingException e) {
             throw new Asn1EncodingException("." + type.getName(), e);
@@ -78,29 +78,71 @@ class ChoiceCoder implements Decoder, Encoder {
     }
 
     @Override public <T> boolean canDecode(Class<T> classOfT, Annotation[] extraAnnotations) {
-        AnnotationStore annotations = new AnnotationStore(classOfT.getAnnotations(),
-                extraAnnotations);
-        return annotations.getAnnotation(Choice.class) != null;
+        CodecPlan.Binding binding = CodecPlan.of(classOfT).binding(extraAnnotations);
+        return binding.annotations.getAnnotation(Choice.class) != null;
     }
 
     @Override public <T> T decode(BitBuffer bitbuffer,
             Class<T> classOfT,
             Annotation[] extraAnnotations) {
-        AnnotationStore annotations = new AnnotationStore(classOfT.getAnnotations(),
-                extraAnnotations);
         UperEncoder.logger.debug("CHOICE");
         T result = UperEncoder.instantiate(classOfT);
-        Asn1ContainerFieldSorter sorter = new Asn1ContainerFieldSorter(classOfT);
+        // Reset the fields that the default constructor initializes.
+        return decode(bitbuffer, classOfT, extraAnnotations, result,
+                CodecPlan.of(classOfT).fieldsSetByConstructor(), false);
+    }
+
+    @Override public <T> T decodeInto(BitBuffer bitbuffer, Class<T> classOfT,
+            Annotation[] extraAnnotations, T reuse) {
+        UperEncoder.logger.debug("CHOICE");
+        // Reset all fields, the chosen one is decoded into its old value if it is set.
+        return decode(bitbuffer, classOfT, extraAnnotations, reuse,
+                CodecPlan.of(classOfT).allFields(), true);
+    }
 
-        // Reset all fields, since default constructor initializes one.
-        for (Field f : sorter.allFields) {
+    @Override public <T> void skip(BitBuffer bitbuffer, Class<T> classOfT,
+            Annotation[] extraAnnotations) {
+        UperEncoder.logger.debug("CHOICE, skipped");
+        FieldPlan f = decodeChoice(bitbuffer, CodecPlan.of(classOfT), extraAnnotations);
+        UperEncoder.skip2(bitbuffer, f.type, f.annotations);
+    }
+
+    @Override public <T> int fixedWidth(Class<T> classOfT, Annotation[] extraAnnotations) {
+        return -1;
+    }
+
+    /**
+     * Decodes the chosen alternative into result, after setting fieldsToReset to null. If reuse,
+     * the alternative is decoded into its old value where possible.
+     */
+    private static <T> T decode(BitBuffer bitbuffer, Class<T> classOfT,
+            Annotation[] extraAnnotations, T result, List<FieldPlan> fieldsToReset,
+            boolean reuse) {
+        CodecPlan plan = CodecPlan.of(classOfT);
+        FieldPlan f = decodeChoice(bitbuffer, plan, extraAnnotations);
+        Object oldValue = reuse ? plan.reusableValue(f, result) : null;
+        for (FieldPlan other : fieldsToReset) {
             try {
-                f.set(result, null);
-            } catch (IllegalArgumentException | IllegalAccessException e) {
+                other.set(result, null);
+            } catch (IllegalArgumentException e) {
                 throw new IllegalArgumentException("can't decode " + classOfT, e);
             }
         }
-        if (UperEncoder.hasExtensionMarker(annotations)) {
+        Object fieldValue = reuse
+                ? UperEncoder.decodeInto2(bitbuffer, f.type, f.annotations, oldValue)
+                : UperEncoder.decode2(bitbuffer, f.type, f.annotations);
+        try {
+            f.set(result, fieldValue);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("can't decode " + classOfT, e);
+        }
+        return result;
+    }
+
+    /** Reads the extension bit and the index, returns the alternative they choose. */
+    private static FieldPlan decodeChoice(BitBuffer bitbuffer, CodecPlan plan,
+            Annotation[] extraAnnotations) {
+        if (plan.hasExtensionMarker(extraAnnotations)) {
             UperEncoder.logger.debug("with extension marker");
             boolean extensionPresent = bitbuffer.get();
             if (extensionPresent) {
@@ -110,16 +152,9 @@ class ChoiceCoder implements Decoder, Encoder {
                 // We already consumed the bit, keep processing as if there were no extension.
             }
         }
-        int index = (int) UperEncoder.decodeConstrainedInt(bitbuffer,
-                UperEncoder.newRange(0, sorter.ordinaryFields.size() - 1, false));
-        Field f = sorter.ordinaryFields.get(index);
-        Object fieldValue = UperEncoder.decode2(bitbuffer, f.getType(), f.getAnnotations());
-        try {
-            f.set(result, fieldValue);
-        } catch (IllegalArgumentException | IllegalAccessException e) {
-            throw new IllegalArgumentException("can't decode " + classOfT, e);
-        }
-        return result;
+        int index = (int) UperEncoder.decodeConstrainedInt(bitbuffer, 0,
+                plan.ordinaryFields().size() - 1, false);
+        return plan.ordinaryFields().get(index);
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,511 @@
+package net.gcdc.asn1.uper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Just enough of a class file writer for {@link CodecCompiler}: a constant pool, methods with
+ * code, forward and backward jumps, and catch-all exception handlers.
+ *
+ * Class files are written in version 49 (Java 5), which has no stack map frames, so the code does
+ * not need frame computation; the JVM verifies it by type inference. The maximum stack depth and
+ * number of locals of each method are computed by following every path through its code, which
+ * also rejects code that the JVM would reject for its stack (see {@link MethodWriter}).
+ */
+final class ClassFileWriter {
+
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    static final int ACONST_NULL = 0x01;
+    static final int ICONST_M1 = 0x02;
+    static final int ICONST_0 = 0x03;
+    static final int ICONST_5 = 0x08;
+    static final int LCONST_0 = 0x09;
+    static final int LCONST_1 = 0x0a;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC_W = 0x13;
+    static final int LDC2_W = 0x14;
+    static final int ILOAD = 0x15;
+    static final int LLOAD = 0x16;
+    static final int ALOAD = 0x19;
+    static final int AALOAD = 0x32;
+    static final int ISTORE = 0x36;
+    static final int LSTORE = 0x37;
+    static final int ASTORE = 0x3a;
+    static final int POP = 0x57;
+    static final int DUP = 0x59;
+    static final int LAND = 0x7f;
+    static final int I2L = 0x85;
+    static final int L2I = 0x88;
+    static final int I2S = 0x93;
+    static final int LCMP = 0x94;
+    static final int IFEQ = 0x99;
+    static final int IF_ICMPNE = 0xa0;
+    static final int IF_ACMPNE = 0xa6;
+    static final int GOTO = 0xa7;
+    static final int ARETURN = 0xb0;
+    static final int RETURN = 0xb1;
+    static final int GETFIELD = 0xb4;
+    static final int PUTFIELD = 0xb5;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+    static final int INVOKEINTERFACE = 0xb9;
+    static final int NEW = 0xbb;
+    static final int ATHROW = 0xbf;
+    static final int CHECKCAST = 0xc0;
+    static final int IFNULL = 0xc6;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_LONG = 5;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_STRING = 8;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_INTERFACE_METHODREF = 11;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> poolIndex = new HashMap<>();
+    /** Descriptors of the field and method references in the pool, for the stack sizes. */
+    private final Map<Integer, String> refDescriptors = new HashMap<>();
+    private int poolCount = 1;
+
+    private final int thisClass;
+    private final int superClass;
+    private final int[] interfaces;
+    private final List<MethodWriter> methods = new ArrayList<>();
+
+    /** Names are internal names, e.g. java/lang/Object. */
+    ClassFileWriter(String name, String superName, String... interfaceNames) {
+        this.thisClass = classRef(name);
+        this.superClass = classRef(superName);
+        this.interfaces = new int[interfaceNames.length];
+        for (int i = 0; i < interfaceNames.length; i++) {
+            interfaces[i] = classRef(interfaceNames[i]);
+        }
+    }
+
+    /** Internal name of a class, e.g. java/lang/Object. */
+    static String internalName(Class<?> type) {
+        return type.getName().replace('.', '/');
+    }
+
+    /** Field descriptor of a type, e.g. I or Ljava/lang/Object; */
+    static String descriptor(Class<?> type) {
+        if (type.isPrimitive()) {
+            if (type == boolean.class) { return "Z"; }
+            if (type == byte.class) { return "B"; }
+            if (type == char.class) { return "C"; }
+            if (type == short.class) { return "S"; }
+            if (type == int.class) { return "I"; }
+            if (type == long.class) { return "J"; }
+            if (type == float.class) { return "F"; }
+            if (type == double.class) { return "D"; }
+            return "V";
+        }
+        if (type.isArray()) { return internalName(type); }
+        return "L" + internalName(type) + ";";
+    }
+
+    /** Method descriptor, e.g. (Ljava/lang/Object;I)V */
+    static String methodDescriptor(Class<?> returnType, Class<?>... parameterTypes) {
+        StringBuilder result = new StringBuilder("(");
+        for (Class<?> p : parameterTypes) {
+            result.append(descriptor(p));
+        }
+        return result.append(')').append(descriptor(returnType)).toString();
+    }
+
+    private int constant(String key, int tag, int size, Object... contents) {
+        Integer index = poolIndex.get(key);
+        if (index != null) { return index; }
+        try {
+            pool.writeByte(tag);
+            for (Object c : contents) {
+                if (c instanceof String) {
+                    pool.writeUTF((String) c);
+                } else if (c instanceof Long) {
+                    pool.writeLong((Long) c);
+                } else if (c instanceof Integer && tag == CONSTANT_INTEGER) {
+                    pool.writeInt((Integer) c);
+                } else {
+                    pool.writeShort((Integer) c);
+                }
+            }
+        } catch (IOException e) {
+            throw new AssertionError(e);  // In-memory stream.
+        }
+        int result = poolCount;
+        poolCount += size;
+        poolIndex.put(key, result);
+        return result;
+    }
+
+    int utf8(String value) {
+        return constant("U" + value, CONSTANT_UTF8, 1, value);
+    }
+
+    int classRef(String internalName) {
+        return constant("C" + internalName, CONSTANT_CLASS, 1, utf8(internalName));
+    }
+
+    int string(String value) {
+        return constant("S" + value, CONSTANT_STRING, 1, utf8(value));
+    }
+
+    int integer(int value) {
+        return constant("I" + value, CONSTANT_INTEGER, 1, value);
+    }
+
+    int longConstant(long value) {
+        return constant("J" + value, CONSTANT_LONG, 2, value);
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        return constant("N" + name + ":" + descriptor, CONSTANT_NAME_AND_TYPE, 1, utf8(name),
+                utf8(descriptor));
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+        return ref(constant("F" + owner + "." + name + ":" + descriptor, CONSTANT_FIELDREF, 1,
+                classRef(owner), nameAndType(name, descriptor)), descriptor);
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        return ref(constant("M" + owner + "." + name + descriptor, CONSTANT_METHODREF, 1,
+                classRef(owner), nameAndType(name, descriptor)), descriptor);
+    }
+
+    int interfaceMethodRef(String owner, String name, String descriptor) {
+        return ref(constant("IM" + owner + "." + name + descriptor, CONSTANT_INTERFACE_METHODREF,
+                1, classRef(owner), nameAndType(name, descriptor)), descriptor);
+    }
+
+    private int ref(int index, String descriptor) {
+        refDescriptors.put(index, descriptor);
+        return index;
+    }
+
+    /** Stack or local slots a value of the field descriptor takes: 2 for long and double. */
+    private static int slots(String descriptor) {
+        char c = descriptor.charAt(0);
+        return c == 'V' ? 0 : c == 'J' || c == 'D' ? 2 : 1;
+    }
+
+    /** Slots the parameters of the method descriptor take. */
+    private static int parameterSlots(String descriptor) {
+        int result = 0;
+        int i = 1;
+        while (descriptor.charAt(i) != ')') {
+            int start = i;
+            while (descriptor.charAt(i) == '[') { i++; }
+            if (descriptor.charAt(i) == 'L') { i = descriptor.indexOf(';', i); }
+            result += i > start ? 1 : slots(descriptor.substring(i));
+            i++;
+        }
+        return result;
+    }
+
+    /** Slots the return value of the method descriptor takes. */
+    private static int returnSlots(String descriptor) {
+        return slots(descriptor.substring(descriptor.indexOf(')') + 1));
+    }
+
+    MethodWriter method(int access, String name, String descriptor) {
+        MethodWriter result = new MethodWriter(access, name, descriptor);
+        methods.add(result);
+        return result;
+    }
+
+    byte[] toByteArray() {
+        int codeAttribute = utf8("Code");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);  // Minor version.
+            out.writeShort(49);  // Java 5, verified without stack map frames.
+            out.writeShort(poolCount);
+            pool.flush();
+            poolBytes.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(interfaces.length);
+            for (int i : interfaces) {
+                out.writeShort(i);
+            }
+            out.writeShort(0);  // Fields.
+            out.writeShort(methods.size());
+            for (MethodWriter m : methods) {
+                m.write(out, codeAttribute);
+            }
+            out.writeShort(0);  // Attributes.
+        } catch (IOException e) {
+            throw new AssertionError(e);  // In-memory stream.
+        }
+        return bytes.toByteArray();
+    }
+
+    /** Jump target, placed with {@link MethodWriter#mark}. */
+    static final class Label {
+        private int position = -1;
+        /** Offsets of the branch instructions to this label and of their 16-bit operands. */
+        private final List<int[]> jumps = new ArrayList<>();
+    }
+
+    /**
+     * Writes the code of one method. Its maximum stack depth and number of locals are computed
+     * when the class is written: every path from the start and from the exception handlers is
+     * followed, and code that underflows the stack, reaches an instruction with two different
+     * stack depths or runs off its end fails with an IllegalStateException.
+     */
+    final class MethodWriter {
+        private final int access;
+        private final String name;
+        private final String descriptor;
+        private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+        private final List<int[]> handlers = new ArrayList<>();
+        private final List<Label> labels = new ArrayList<>();
+
+        private MethodWriter(int access, String name, String descriptor) {
+            this.access = access;
+            this.name = name;
+            this.descriptor = descriptor;
+            utf8(name);
+            utf8(descriptor);
+        }
+
+        int position() {
+            return code.size();
+        }
+
+        MethodWriter op(int opcode) {
+            code.write(opcode);
+            return this;
+        }
+
+        private MethodWriter u2(int value) {
+            code.write(value >>> 8);
+            code.write(value);
+            return this;
+        }
+
+        /** Instructions with a constant pool index operand: field, method and type instructions. */
+        MethodWriter op(int opcode, int poolIndex) {
+            return op(opcode).u2(poolIndex);
+        }
+
+        MethodWriter local(int opcode, int index) {
+            return op(opcode).op(index);
+        }
+
+        MethodWriter pushInt(int value) {
+            if (value >= -1 && value <= 5) { return op(ICONST_0 + value); }
+            if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) { return op(BIPUSH).op(value); }
+            if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) { return op(SIPUSH).u2(value); }
+            return op(LDC_W, integer(value));
+        }
+
+        MethodWriter pushLong(long value) {
+            if (value == 0 || value == 1) { return op(LCONST_0 + (int) value); }
+            return op(LDC2_W, longConstant(value));
+        }
+
+        MethodWriter pushString(String value) {
+            return op(LDC_W, string(value));
+        }
+
+        MethodWriter invokeInterface(String owner, String name, String descriptor, int argumentSlots) {
+            op(INVOKEINTERFACE, interfaceMethodRef(owner, name, descriptor));
+            return op(argumentSlots + 1).op(0);
+        }
+
+        MethodWriter jump(int opcode, Label target) {
+            int position = code.size();
+            op(opcode).u2(0);
+            target.jumps.add(new int[] { position, position + 1 });
+            if (!labels.contains(target)) { labels.add(target); }
+            return this;
+        }
+
+        MethodWriter mark(Label label) {
+            label.position = code.size();
+            if (!labels.contains(label)) { labels.add(label); }
+            return this;
+        }
+
+        /** Handler at handler for any exception thrown between start and end. */
+        MethodWriter catchAll(int start, int end, int handler) {
+            handlers.add(new int[] { start, end, handler });
+            return this;
+        }
+
+        /** The code, with the offsets of the jumps filled in. */
+        private byte[] code() {
+            byte[] bytes = code.toByteArray();
+            for (Label label : labels) {
+                if (label.position < 0) { throw new IllegalStateException("unplaced label"); }
+                for (int[] jump : label.jumps) {
+                    int offset = label.position - jump[0];
+                    bytes[jump[1]] = (byte) (offset >>> 8);
+                    bytes[jump[1] + 1] = (byte) offset;
+                }
+            }
+            return bytes;
+        }
+
+        private void write(DataOutputStream out, int codeAttribute) throws IOException {
+            byte[] bytes = code();
+            int[] maxStackAndLocals = maxStackAndLocals(bytes);
+            out.writeShort(access);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(1);  // Attributes: Code.
+            out.writeShort(codeAttribute);
+            out.writeInt(2 + 2 + 4 + bytes.length + 2 + 8 * handlers.size() + 2);
+            out.writeShort(maxStackAndLocals[0]);
+            out.writeShort(maxStackAndLocals[1]);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            out.writeShort(handlers.size());
+            for (int[] h : handlers) {
+                out.writeShort(h[0]);
+                out.writeShort(h[1]);
+                out.writeShort(h[2]);
+                out.writeShort(0);  // Any exception.
+            }
+            out.writeShort(0);  // Code attributes.
+        }
+
+        /** The maximum stack depth and number of locals of the code, see {@link MethodWriter}. */
+        int[] maxStackAndLocals() {
+            return maxStackAndLocals(code());
+        }
+
+        private int[] maxStackAndLocals(byte[] bytes) {
+            int maxLocals = parameterSlots(descriptor) + 1;  // And this, all methods are virtual.
+            int maxStack = 0;
+            int[] depths = new int[bytes.length];  // Stack depth + 1 before each instruction.
+            Deque<int[]> pending = new ArrayDeque<>();  // Offset and stack depth.
+            pending.add(new int[] { 0, 0 });
+            for (int[] h : handlers) {
+                pending.add(new int[] { h[2], 1 });  // The exception.
+            }
+            while (!pending.isEmpty()) {
+                int[] next = pending.poll();
+                int pc = next[0];
+                int depth = next[1];
+                while (true) {
+                    if (pc >= bytes.length) {
+                        throw new IllegalStateException(name + " runs off the end of its code");
+                    }
+                    if (depths[pc] != 0) {
+                        if (depths[pc] != depth + 1) {
+                            throw new IllegalStateException(name + " reaches " + pc
+                                    + " with stack depths " + (depths[pc] - 1) + " and " + depth);
+                        }
+                        break;
+                    }
+                    depths[pc] = depth + 1;
+                    int opcode = bytes[pc] & 0xff;
+                    int operand = pc + 2 < bytes.length
+                            ? ((bytes[pc + 1] & 0xff) << 8) | (bytes[pc + 2] & 0xff) : 0;
+                    int length = 1;
+                    int pops = 0;
+                    int pushes = 0;
+                    boolean branches = false;
+                    boolean ends = false;
+                    switch (opcode) {
+                        case ACONST_NULL: pushes = 1; break;
+                        case LCONST_0: case LCONST_1: pushes = 2; break;
+                        case BIPUSH: length = 2; pushes = 1; break;
+                        case SIPUSH: length = 3; pushes = 1; break;
+                        case LDC_W: length = 3; pushes = 1; break;
+                        case LDC2_W: length = 3; pushes = 2; break;
+                        case ILOAD: case ALOAD: case LLOAD: case ISTORE: case ASTORE: case LSTORE: {
+                            length = 2;
+                            int slots = opcode == LLOAD || opcode == LSTORE ? 2 : 1;
+                            maxLocals = Math.max(maxLocals, (bytes[pc + 1] & 0xff) + slots);
+                            if (opcode == ILOAD || opcode == ALOAD || opcode == LLOAD) {
+                                pushes = slots;
+                            } else {
+                                pops = slots;
+                            }
+                            break;
+                        }
+                        case AALOAD: pops = 2; pushes = 1; break;
+                        case POP: pops = 1; break;
+                        case DUP: pops = 1; pushes = 2; break;
+                        case LAND: pops = 4; pushes = 2; break;
+                        case I2L: pops = 1; pushes = 2; break;
+                        case L2I: pops = 2; pushes = 1; break;
+                        case I2S: pops = 1; pushes = 1; break;
+                        case LCMP: pops = 4; pushes = 1; break;
+                        case IFEQ: case IFNULL: length = 3; pops = 1; branches = true; break;
+                        case IF_ICMPNE: case IF_ACMPNE:
+                            length = 3; pops = 2; branches = true; break;
+                        case GOTO: length = 3; branches = true; ends = true; break;
+                        case ARETURN: case ATHROW: pops = 1; ends = true; break;
+                        case RETURN: ends = true; break;
+                        case GETFIELD:
+                            length = 3; pops = 1; pushes = slots(refDescriptor(operand)); break;
+                        case PUTFIELD:
+                            length = 3; pops = 1 + slots(refDescriptor(operand)); break;
+                        case INVOKEVIRTUAL: case INVOKESPECIAL: case INVOKEINTERFACE:
+                        case INVOKESTATIC: {
+                            String method = refDescriptor(operand);
+                            length = opcode == INVOKEINTERFACE ? 5 : 3;
+                            pops = parameterSlots(method) + (opcode == INVOKESTATIC ? 0 : 1);
+                            pushes = returnSlots(method);
+                            break;
+                        }
+                        case NEW: length = 3; pushes = 1; break;
+                        case CHECKCAST: length = 3; pops = 1; pushes = 1; break;
+                        default:
+                            if (opcode >= ICONST_M1 && opcode <= ICONST_5) {
+                                pushes = 1;
+                                break;
+                            }
+                            throw new IllegalStateException("Unknown opcode " + opcode + " at " + pc
+                                    + " in " + name);
+                    }
+                    if (depth < pops) {
+                        throw new IllegalStateException(name + " underflows the stack at " + pc);
+                    }
+                    depth += pushes - pops;
+                    maxStack = Math.max(maxStack, depth);
+                    if (branches) {
+                        pending.add(new int[] { pc + (short) operand, depth });
+                    }
+                    if (ends) {
+                        break;
+                    }
+                    pc += length;
+                }
+            }
+            return new int[] { maxStack, maxLocals };
+        }
+
+        private String refDescriptor(int poolIndex) {
+            String result = refDescriptors.get(poolIndex);
+            if (result == null) {
+                throw new IllegalStateException("No field or method at pool index " + poolIndex);
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,725 @@
+package net.gcdc.asn1.uper;
+
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.gcdc.asn1.datatypes.Asn1Integer;
+import net.gcdc.asn1.datatypes.Bitstring;
+import net.gcdc.asn1.datatypes.Choice;
+import net.gcdc.asn1.datatypes.IntRange;
+import net.gcdc.asn1.datatypes.Sequence;
+import net.gcdc.asn1.uper.ClassFileWriter.Label;
+import net.gcdc.asn1.uper.ClassFileWriter.MethodWriter;
+import net.gcdc.asn1.uper.CodecPlan.FieldPlan;
+
+import static net.gcdc.asn1.uper.ClassFileWriter.*;
+
+/**
+ * Compiles a codec for a SEQUENCE or CHOICE class at runtime, for classes that were not compiled
+ * with the uper-codegen annotation processor (e.g. message types loaded from plugins).
+ *
+ * The compiled class does what the generated source of the processor does: direct field access,
+ * no-argument constructor, presence bits read as one long, booleans, constrained INTEGERs and
+ * plain ENUMERATEDs coded inline, the rest handed to the reflective coders. Nested SEQUENCEs and
+ * CHOICEs of the same package become methods of the same class, so one class covers the whole
+ * message and the JIT can inline across it.
+ *
+ * The class is defined in the package of the model class, as a hidden class where the runtime has
+ * them (Java 15+), otherwise with Lookup.defineClass (Java 9+). On older runtimes, and where the
+ * package can't be reached (e.g. a module that does not open it), there is no compiled codec and
+ * the reflective coders are used. Anything else that goes wrong, e.g. a class the JVM does not
+ * verify, is a bug of the compiler and fails the decode or encode that needed the codec. Compiled
+ * codecs are kept in the {@link CodecPlan} of their class, so they live as long as the class and
+ * its class loader, and each class loader gets its own.
+ *
+ * The plugin message types this is for are not known when the uper-codegen processor runs, so
+ * they can't have generated codecs; the model of this project has them when it is built with the
+ * codegen profile, and then this compiler is not used for it. The compiler is off unless
+ * {@value CodecSupport#RUNTIME_CODECS_PROPERTY} is set to true, so by default types without a
+ * generated codec use the reflective coders.
+ */
+final class CodecCompiler {
+
+    static final boolean ENABLED = Boolean.getBoolean(CodecSupport.RUNTIME_CODECS_PROPERTY);
+
+    private static final String BIT_BUFFER = internalName(BitBuffer.class);
+    private static final String SUPPORT = internalName(CodecSupport.class);
+    private static final String BASE = internalName(CompiledCodec.class);
+    private static final String OBJECT = internalName(Object.class);
+    private static final String DECODE = methodDescriptor(Object.class, BitBuffer.class,
+            Object.class);
+    private static final String ENCODE = methodDescriptor(void.class, BitBuffer.class,
+            Object.class);
+
+    private static final AtomicInteger classCounter = new AtomicInteger();
+
+    // Looked up reflectively, this code also runs on runtimes without them.
+    private static final Method PRIVATE_LOOKUP_IN = method(MethodHandles.class, "privateLookupIn",
+            Class.class, MethodHandles.Lookup.class);
+    private static final Method DEFINE_CLASS = method(MethodHandles.Lookup.class, "defineClass",
+            byte[].class);
+    private static final Class<?> CLASS_OPTION = classForName(
+            "java.lang.invoke.MethodHandles$Lookup$ClassOption");
+    private static final Method DEFINE_HIDDEN_CLASS = CLASS_OPTION == null ? null : method(
+            MethodHandles.Lookup.class, "defineHiddenClass", byte[].class, boolean.class,
+            Array.newInstance(CLASS_OPTION, 0).getClass());
+
+    private static Method method(Class<?> owner, String name, Class<?>... parameterTypes) {
+        try {
+            return owner.getMethod(name, parameterTypes);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static Class<?> classForName(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+    }
+
+    /** How a field is coded by the compiled code. */
+    private enum Kind { BOOLEAN, INTEGER, ENUM, NESTED, REFLECTIVE }
+
+    private final Class<?> root;
+    private final String className;
+    private final ClassFileWriter writer;
+    /** Classes with a decode and encode method in the compiled class; index is the method suffix. */
+    private final List<Class<?>> types = new ArrayList<>();
+    private final List<Object> constants = new ArrayList<>();
+    private final Map<Object, Integer> constantIndex = new IdentityHashMap<>();
+
+    private CodecCompiler(Class<?> root) {
+        this.root = root;
+        this.className = internalName(root) + "$$UperCodec" + classCounter.incrementAndGet();
+        this.writer = new ClassFileWriter(className, BASE);
+    }
+
+    /**
+     * A compiled codec for type, or null if type can't be compiled or this runtime can't define
+     * a class in its package.
+     *
+     * @throws IllegalStateException if the compiled class is broken
+     */
+    static CompiledCodec compile(Class<?> type) {
+        if (PRIVATE_LOOKUP_IN == null || DEFINE_CLASS == null || !isCompilable(type)) {
+            return null;
+        }
+        MethodHandles.Lookup lookup;
+        try {
+            lookup = (MethodHandles.Lookup) invoke(PRIVATE_LOOKUP_IN, null, type,
+                    MethodHandles.lookup());
+        } catch (ReflectiveOperationException | SecurityException e) {
+            UperEncoder.logger.warn("can't define a codec in the package of {}, falling back to"
+                    + " reflection: {}", type.getName(), e.toString());
+            return null;
+        }
+        try {
+            return new CodecCompiler(type).compile(lookup);
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+            throw new IllegalStateException("Can't compile a codec for " + type.getName()
+                    + ", unset " + CodecSupport.RUNTIME_CODECS_PROPERTY + " to use reflection: "
+                    + e, e);
+        }
+    }
+
+    /** Same conditions as the uper-codegen processor uses for generated source. */
+    static boolean isCompilable(Class<?> type) {
+        boolean isSequence = type.getAnnotation(Sequence.class) != null;
+        boolean isChoice = type.getAnnotation(Choice.class) != null;
+        if (isSequence == isChoice || type.getAnnotation(Bitstring.class) != null
+                || type.isInterface() || Modifier.isAbstract(type.getModifiers())
+                || type.getTypeParameters().length > 0 || type.isAnonymousClass()
+                || type.isLocalClass()
+                || (type.isMemberClass() && !Modifier.isStatic(type.getModifiers()))) {
+            return false;
+        }
+        try {
+            if (Modifier.isPrivate(type.getDeclaredConstructor().getModifiers())) { return false; }
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+        CodecPlan plan = CodecPlan.of(type);
+        int optional = 0;
+        for (FieldPlan f : plan.allFields()) {
+            int modifiers = f.field.getModifiers();
+            if (Modifier.isPrivate(modifiers) || Modifier.isFinal(modifiers)) { return false; }
+            if (f.type.isPrimitive() && (isChoice || f.isOptional || f.isExtension)) {
+                return false;
+            }
+            if (f.isOptional && !f.isExtension) { optional++; }
+        }
+        return optional <= 64 && !(isChoice && plan.ordinaryFields().isEmpty());
+    }
+
+    private CompiledCodec compile(MethodHandles.Lookup lookup)
+            throws ReflectiveOperationException {
+        writeConstructor();
+        MethodWriter m = writer.method(ACC_PUBLIC, "decodeValue", DECODE);
+        m.local(ALOAD, 0).local(ALOAD, 1).local(ALOAD, 2)
+                .op(INVOKEVIRTUAL, writer.methodRef(className, "decode" + methodIndex(root), DECODE))
+                .op(ARETURN);
+        m = writer.method(ACC_PUBLIC, "encodeValue", ENCODE);
+        m.local(ALOAD, 0).local(ALOAD, 1).local(ALOAD, 2)
+                .op(INVOKEVIRTUAL, writer.methodRef(className, "encode" + methodIndex(root), ENCODE))
+                .op(RETURN);
+        // Nested types are added to the list while their fields are written.
+        for (int i = 0; i < types.size(); i++) {
+            Class<?> type = types.get(i);
+            if (type.getAnnotation(Choice.class) != null) {
+                writeChoiceDecode(i, type);
+                writeChoiceEncode(i, type);
+            } else {
+                writeSequenceDecode(i, type);
+                writeSequenceEncode(i, type);
+            }
+        }
+        Class<?> codecClass = define(lookup, writer.toByteArray());
+        Constructor<?> constructor = codecClass.getDeclaredConstructor(Class.class, Object[].class);
+        constructor.setAccessible(true);
+        return (CompiledCodec) constructor.newInstance(root, constants.toArray());
+    }
+
+    private static Class<?> define(MethodHandles.Lookup lookup, byte[] bytes)
+            throws ReflectiveOperationException {
+        if (DEFINE_HIDDEN_CLASS != null) {
+            try {
+                return ((MethodHandles.Lookup) invoke(DEFINE_HIDDEN_CLASS, lookup, bytes, true,
+                        Array.newInstance(CLASS_OPTION, 0))).lookupClass();
+            } catch (IllegalAccessException e) {
+                // Hidden classes need full privilege access, which a lookup into a class of
+                // another module (e.g. another class loader) does not have. Fall through.
+            }
+        }
+        return (Class<?>) invoke(DEFINE_CLASS, lookup, bytes);
+    }
+
+    private static Object invoke(Method method, Object target, Object... arguments)
+            throws ReflectiveOperationException {
+        try {
+            return method.invoke(target, arguments);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ReflectiveOperationException) {
+                throw (ReflectiveOperationException) cause;
+            }
+            if (cause instanceof RuntimeException) { throw (RuntimeException) cause; }
+            if (cause instanceof Error) { throw (Error) cause; }
+            throw e;
+        }
+    }
+
+    private void writeConstructor() {
+        String descriptor = methodDescriptor(void.class, Class.class, Object[].class);
+        writer.method(ACC_PUBLIC, "<init>", descriptor)
+                .local(ALOAD, 0).local(ALOAD, 1).local(ALOAD, 2)
+                .op(INVOKESPECIAL, writer.methodRef(BASE, "<init>", descriptor))
+                .op(RETURN);
+    }
+
+    private int methodIndex(Class<?> type) {
+        int result = types.indexOf(type);
+        if (result < 0) {
+            result = types.size();
+            types.add(type);
+        }
+        return result;
+    }
+
+    private int constant(Object value) {
+        Integer result = constantIndex.get(value);
+        if (result == null) {
+            result = constants.size();
+            constants.add(value);
+            constantIndex.put(value, result);
+        }
+        return result;
+    }
+
+    /** Pushes constants[index of value], cast to type. */
+    private void loadConstant(MethodWriter m, Object value, Class<?> type) {
+        m.local(ALOAD, 0)
+                .op(GETFIELD, writer.fieldRef(BASE, "constants", descriptor(Object[].class)))
+                .pushInt(constant(value))
+                .op(AALOAD)
+                .op(CHECKCAST, writer.classRef(internalName(type)));
+    }
+
+    private boolean inRootPackage(Class<?> type) {
+        return type.getClassLoader() == root.getClassLoader()
+                && packageName(type).equals(packageName(root));
+    }
+
+    private static String packageName(Class<?> type) {
+        String name = type.getName();
+        return name.substring(0, Math.max(0, name.lastIndexOf('.')));
+    }
+
+    /** Whether the compiled class may create or cast to type. */
+    private boolean isAccessible(Class<?> type) {
+        if (inRootPackage(type)) { return !Modifier.isPrivate(type.getModifiers()); }
+        for (Class<?> c = type; c != null; c = c.getEnclosingClass()) {
+            if (!Modifier.isPublic(c.getModifiers())) { return false; }
+        }
+        return true;
+    }
+
+    private Kind kind(FieldPlan f) {
+        Class<?> type = f.type;
+        if (type == boolean.class || type == Boolean.class) { return Kind.BOOLEAN; }
+        CodecPlan fieldTypePlan = f.plan();
+        // A field-level extension marker changes how the nested type is coded.
+        boolean sameExtensionMarker = fieldTypePlan.hasExtensionMarker(f.annotations)
+                == fieldTypePlan.hasExtensionMarker(UperEncoder.NO_ANNOTATIONS);
+        if (inRootPackage(type) && sameExtensionMarker && isCompilable(type)) {
+            return Kind.NESTED;
+        }
+        if (type.isEnum() && isAccessible(type) && !fieldTypePlan.hasExtensionMarker(f.annotations)
+                && type.getEnumConstants().length > 0) {
+            return Kind.ENUM;
+        }
+        if (Asn1Integer.class.isAssignableFrom(type) && !Modifier.isAbstract(type.getModifiers())
+                && isAccessible(type) && fieldTypePlan.binding(f.annotations).intRange != null
+                && integerConstructorParameter(type) != null) {
+            return Kind.INTEGER;
+        }
+        return Kind.REFLECTIVE;
+    }
+
+    /** The parameter type of the constructor IntCoder would use. */
+    private static Class<?> integerConstructorParameter(Class<?> type) {
+        Class<?> result = null;
+        for (Class<?> t : new Class<?>[] { long.class, int.class, short.class }) {
+            try {
+                type.getConstructor(t);
+                result = t;  // First found wins, as in IntCoder.
+                break;
+            } catch (NoSuchMethodException e) {
+                // Try the next one.
+            }
+        }
+        return result;
+    }
+
+    /** Whether IntCoder shares the decoded instances of type. */
+    private static boolean sharesInstances(Class<?> type) {
+        IntRange range = type.getAnnotation(IntRange.class);
+        long rangeSize = range != null ? range.maxValue() - range.minValue() : -1;
+        return IntCoder.SHARE_SMALL_INTEGERS && rangeSize >= 0
+                && rangeSize < IntCoder.MAX_SHARED_RANGE;
+    }
+
+    private static Class<?> boxed(Class<?> primitive) {
+        return Array.get(Array.newInstance(primitive, 1), 0).getClass();
+    }
+
+    private int fieldRef(FieldPlan f) {
+        return writer.fieldRef(internalName(f.field.getDeclaringClass()), f.name,
+                descriptor(f.type));
+    }
+
+    /**
+     * Starts a decode method: keeps the value to decode into (argument 2) if it can be reused,
+     * otherwise creates a new instance, into local 2; local 6 is whether it was reused.
+     */
+    private void newOrReusedInstance(MethodWriter m, Class<?> type) {
+        Label create = new Label();
+        Label done = new Label();
+        m.local(ALOAD, 2);
+        loadConstant(m, type, Class.class);
+        m.op(INVOKESTATIC, writer.methodRef(SUPPORT, "reusable",
+                        methodDescriptor(Object.class, Object.class, Class.class)))
+                .op(DUP).local(ASTORE, 2).jump(IFNULL, create)
+                .pushInt(1).local(ISTORE, 6).jump(GOTO, done)
+                .mark(create)
+                .op(NEW, writer.classRef(internalName(type))).op(DUP)
+                .op(INVOKESPECIAL, writer.methodRef(internalName(type), "<init>", "()V"))
+                .local(ASTORE, 2).pushInt(0).local(ISTORE, 6)
+                .mark(done)
+                .local(ALOAD, 2).op(CHECKCAST, writer.classRef(internalName(type)))
+                .local(ASTORE, 2);
+    }
+
+    /** Whether the decoding of field f can reuse its previous value. */
+    private boolean reusesValue(FieldPlan f) {
+        switch (kind(f)) {
+            case INTEGER:
+                return !sharesInstances(f.type);
+            case NESTED:
+                return true;
+            case REFLECTIVE:
+                return !f.type.isPrimitive();
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Stores the value of field f of the object in local 2 into local 7, if that object is reused
+     * (local 6) and the decoding of f can reuse it, otherwise null. Like
+     * {@link CodecPlan#reusableValue}, a value the constructor shares between instances is not
+     * reused.
+     */
+    private void storeOldValue(MethodWriter m, FieldPlan f) {
+        if (!reusesValue(f)) { return; }
+        Label none = new Label();
+        Label done = new Label();
+        m.local(ILOAD, 6).jump(IFEQ, none)
+                .local(ALOAD, 2).op(GETFIELD, fieldRef(f));
+        Object shared = CodecPlan.of(f.field.getDeclaringClass()).sharedConstructorValue(f);
+        if (shared != null) {
+            m.op(DUP);
+            loadConstant(m, shared, Object.class);
+            m.jump(IF_ACMPNE, done).op(POP);
+        } else {
+            m.jump(GOTO, done);
+        }
+        m.mark(none).op(ACONST_NULL)
+                .mark(done).local(ASTORE, 7);
+    }
+
+    private void decodeConstrainedInt(MethodWriter m, long lowerBound, long upperBound,
+            boolean hasExtensionMarker) {
+        m.local(ALOAD, 1).pushLong(lowerBound).pushLong(upperBound)
+                .pushInt(hasExtensionMarker ? 1 : 0)
+                .op(INVOKESTATIC, writer.methodRef(SUPPORT, "decodeConstrainedInt",
+                        methodDescriptor(long.class, BitBuffer.class, long.class, long.class,
+                                boolean.class)));
+    }
+
+    /**
+     * Decodes field f into the object in local 2, reusing the old value in local 7 (see
+     * {@link #storeOldValue}) where possible.
+     */
+    private void writeFieldDecode(MethodWriter m, FieldPlan f) {
+        m.local(ALOAD, 2);
+        switch (kind(f)) {
+            case BOOLEAN:
+                m.local(ALOAD, 1).invokeInterface(BIT_BUFFER, "get", "()Z", 0);
+                if (f.type == Boolean.class) {
+                    m.op(INVOKESTATIC, writer.methodRef("java/lang/Boolean", "valueOf",
+                            "(Z)Ljava/lang/Boolean;"));
+                }
+                break;
+            case INTEGER: {
+                IntRange range = f.plan().binding(f.annotations).intRange;
+                String type = internalName(f.type);
+                if (sharesInstances(f.type)) {
+                    loadConstant(m, f.type, Class.class);
+                    decodeConstrainedInt(m, range.minValue(), range.maxValue(),
+                            range.hasExtensionMarker());
+                    m.op(INVOKESTATIC, writer.methodRef(SUPPORT, "newInteger",
+                            methodDescriptor(Object.class, Class.class, long.class)))
+                            .op(CHECKCAST, writer.classRef(type));
+                } else {
+                    // Sets the value of the old instance if there is one.
+                    Label create = new Label();
+                    Label done = new Label();
+                    m.local(ALOAD, 7).jump(IFNULL, create).local(ALOAD, 7);
+                    decodeConstrainedInt(m, range.minValue(), range.maxValue(),
+                            range.hasExtensionMarker());
+                    m.op(PUTFIELD, writer.fieldRef(internalName(Asn1Integer.class), "value",
+                                    descriptor(long.class)))
+                            .local(ALOAD, 7).jump(GOTO, done)
+                            .mark(create);
+                    Class<?> parameter = integerConstructorParameter(f.type);
+                    m.op(NEW, writer.classRef(type)).op(DUP);
+                    decodeConstrainedInt(m, range.minValue(), range.maxValue(),
+                            range.hasExtensionMarker());
+                    if (parameter != long.class) { m.op(L2I); }
+                    if (parameter == short.class) { m.op(I2S); }
+                    m.op(INVOKESPECIAL, writer.methodRef(type, "<init>",
+                            methodDescriptor(void.class, parameter)));
+                    m.mark(done);
+                }
+                break;
+            }
+            case ENUM:
+                loadConstant(m, f.type.getEnumConstants(), Object[].class);
+                decodeConstrainedInt(m, 0, f.type.getEnumConstants().length - 1, false);
+                m.op(L2I).op(AALOAD).op(CHECKCAST, writer.classRef(internalName(f.type)));
+                break;
+            case NESTED:
+                m.local(ALOAD, 0).local(ALOAD, 1).local(ALOAD, 7)
+                        .op(INVOKEVIRTUAL, writer.methodRef(className,
+                                "decode" + methodIndex(f.type), DECODE))
+                        .op(CHECKCAST, writer.classRef(internalName(f.type)));
+                break;
+            case REFLECTIVE:
+                m.local(ALOAD, 1);
+                loadConstant(m, f.type, Class.class);
+                loadConstant(m, f.annotations, Annotation[].class);
+                if (f.type.isPrimitive()) {
+                    m.op(INVOKESTATIC, writer.methodRef(SUPPORT, "decode", methodDescriptor(
+                            Object.class, BitBuffer.class, Class.class, Annotation[].class)));
+                } else {
+                    m.local(ALOAD, 7).op(INVOKESTATIC, writer.methodRef(SUPPORT, "decodeInto",
+                            methodDescriptor(Object.class, BitBuffer.class, Class.class,
+                                    Annotation[].class, Object.class)));
+                }
+                if (f.type.isPrimitive()) {
+                    String box = internalName(boxed(f.type));
+                    m.op(CHECKCAST, writer.classRef(box)).op(INVOKEVIRTUAL, writer.methodRef(box,
+                            f.type.getName() + "Value", "()" + descriptor(f.type)));
+                } else {
+                    m.op(CHECKCAST, writer.classRef(internalName(f.type)));
+                }
+                break;
+            default:
+                throw new AssertionError(kind(f));
+        }
+        m.op(PUTFIELD, fieldRef(f));
+    }
+
+    /** Encodes field f of the object in local 2. */
+    private void writeFieldEncode(MethodWriter m, FieldPlan f) {
+        switch (kind(f)) {
+            case BOOLEAN:
+                m.local(ALOAD, 1).local(ALOAD, 2).op(GETFIELD, fieldRef(f));
+                if (f.type == Boolean.class) {
+                    m.op(INVOKEVIRTUAL, writer.methodRef("java/lang/Boolean", "booleanValue",
+                            "()Z"));
+                }
+                m.invokeInterface(BIT_BUFFER, "put", "(Z)L" + BIT_BUFFER + ";", 1).op(POP);
+                break;
+            case INTEGER: {
+                IntRange range = f.plan().binding(f.annotations).intRange;
+                m.local(ALOAD, 1).local(ALOAD, 2).op(GETFIELD, fieldRef(f))
+                        .pushLong(range.minValue()).pushLong(range.maxValue())
+                        .pushInt(range.hasExtensionMarker() ? 1 : 0)
+                        .op(INVOKESTATIC, writer.methodRef(SUPPORT, "encodeInteger",
+                                methodDescriptor(void.class, BitBuffer.class, Asn1Integer.class,
+                                        long.class, long.class, boolean.class)));
+                break;
+            }
+            case ENUM:
+                m.local(ALOAD, 1).local(ALOAD, 2).op(GETFIELD, fieldRef(f))
+                        .op(INVOKEVIRTUAL, writer.methodRef("java/lang/Enum", "ordinal", "()I"))
+                        .op(I2L).pushLong(0).pushLong(f.type.getEnumConstants().length - 1)
+                        .pushInt(0);
+                encodeConstrainedInt(m);
+                break;
+            case NESTED:
+                m.local(ALOAD, 0).local(ALOAD, 1).local(ALOAD, 2).op(GETFIELD, fieldRef(f))
+                        .op(INVOKEVIRTUAL, writer.methodRef(className,
+                                "encode" + methodIndex(f.type), ENCODE));
+                break;
+            case REFLECTIVE:
+                m.local(ALOAD, 1).local(ALOAD, 2).op(GETFIELD, fieldRef(f));
+                if (f.type.isPrimitive()) {
+                    Class<?> box = boxed(f.type);
+                    m.op(INVOKESTATIC, writer.methodRef(internalName(box), "valueOf",
+                            methodDescriptor(box, f.type)));
+                }
+                loadConstant(m, f.annotations, Annotation[].class);
+                m.op(INVOKESTATIC, writer.methodRef(SUPPORT, "encode", methodDescriptor(
+                        void.class, BitBuffer.class, Object.class, Annotation[].class)));
+                break;
+            default:
+                throw new AssertionError(kind(f));
+        }
+    }
+
+    /** Expects bitbuffer, value, lower bound, upper bound and extension marker on the stack. */
+    private void encodeConstrainedInt(MethodWriter m) {
+        m.op(INVOKESTATIC, writer.methodRef(SUPPORT, "encodeConstrainedInt", methodDescriptor(
+                void.class, BitBuffer.class, long.class, long.class, long.class, boolean.class)));
+    }
+
+    private void writeSequenceDecode(int index, Class<?> type) {
+        CodecPlan plan = CodecPlan.of(type);
+        boolean hasExtensionMarker = plan.hasExtensionMarker(UperEncoder.NO_ANNOTATIONS);
+        List<FieldPlan> optional = plan.optionalOrdinaryFields();
+        MethodWriter m = writer.method(ACC_PUBLIC, "decode" + index, DECODE);
+        newOrReusedInstance(m, type);
+        if (hasExtensionMarker) {
+            m.local(ALOAD, 1).invokeInterface(BIT_BUFFER, "get", "()Z", 0).local(ISTORE, 3);
+        }
+        if (!optional.isEmpty()) {
+            m.local(ALOAD, 1).pushInt(optional.size())
+                    .op(INVOKESTATIC, writer.methodRef(SUPPORT, "readBits",
+                            methodDescriptor(long.class, BitBuffer.class, int.class)))
+                    .local(LSTORE, 4);
+        }
+        int optionalIndex = 0;  // Counted along the same list, FieldPlans are not compared.
+        for (FieldPlan f : plan.ordinaryFields()) {
+            if (f.isOptional) {
+                // A reused object gets null for absent fields.
+                Label absent = new Label();
+                Label next = new Label();
+                m.local(LLOAD, 4).pushLong(1L << (optional.size() - 1 - optionalIndex++))
+                        .op(LAND).op(LCONST_0).op(LCMP).jump(IFEQ, absent);
+                storeOldValue(m, f);
+                writeFieldDecode(m, f);
+                m.jump(GOTO, next)
+                        .mark(absent).local(ILOAD, 6).jump(IFEQ, next)
+                        .local(ALOAD, 2).op(ACONST_NULL).op(PUTFIELD, fieldRef(f))
+                        .mark(next);
+            } else {
+                storeOldValue(m, f);
+                writeFieldDecode(m, f);
+            }
+        }
+        if (!plan.extensionFields().isEmpty()) {
+            Label notReused = new Label();
+            m.local(ILOAD, 6).jump(IFEQ, notReused);
+            for (FieldPlan f : plan.extensionFields()) {
+                m.local(ALOAD, 2).op(ACONST_NULL).op(PUTFIELD, fieldRef(f));
+            }
+            m.mark(notReused);
+        }
+        if (hasExtensionMarker) {
+            Label noExtensions = new Label();
+            m.local(ILOAD, 3).jump(IFEQ, noExtensions)
+                    .local(ALOAD, 1).local(ALOAD, 2)
+                    .op(INVOKESTATIC, writer.methodRef(SUPPORT, "decodeExtensions",
+                            methodDescriptor(void.class, BitBuffer.class, Object.class)))
+                    .mark(noExtensions);
+        }
+        m.local(ALOAD, 2).op(ARETURN);
+    }
+
+    private void writeSequenceEncode(int index, Class<?> type) {
+        CodecPlan plan = CodecPlan.of(type);
+        boolean hasExtensionMarker = plan.hasExtensionMarker(UperEncoder.NO_ANNOTATIONS);
+        MethodWriter m = writer.method(ACC_PUBLIC, "encode" + index, ENCODE);
+        m.local(ALOAD, 2).op(CHECKCAST, writer.classRef(internalName(type))).local(ASTORE, 2);
+        m.pushInt(-1).local(ISTORE, 4);  // Index of the field being encoded, for error messages.
+        int start = m.position();
+        if (hasExtensionMarker) {
+            m.local(ALOAD, 2)
+                    .op(INVOKESTATIC, writer.methodRef(SUPPORT, "hasNonNullExtensions",
+                            methodDescriptor(boolean.class, Object.class)))
+                    .local(ISTORE, 3)
+                    .local(ALOAD, 1).local(ILOAD, 3)
+                    .invokeInterface(BIT_BUFFER, "put", "(Z)L" + BIT_BUFFER + ";", 1).op(POP);
+        }
+        for (FieldPlan f : plan.optionalOrdinaryFields()) {
+            Label absent = new Label();
+            Label put = new Label();
+            m.local(ALOAD, 1).local(ALOAD, 2).op(GETFIELD, fieldRef(f)).jump(IFNULL, absent)
+                    .pushInt(1).jump(GOTO, put)
+                    .mark(absent).pushInt(0)
+                    .mark(put).invokeInterface(BIT_BUFFER, "put", "(Z)L" + BIT_BUFFER + ";", 1)
+                    .op(POP);
+        }
+        List<FieldPlan> fields = plan.ordinaryFields();
+        for (int i = 0; i < fields.size(); i++) {
+            FieldPlan f = fields.get(i);
+            m.pushInt(i).local(ISTORE, 4);
+            if (f.isOptional) {
+                Label absent = new Label();
+                m.local(ALOAD, 2).op(GETFIELD, fieldRef(f)).jump(IFNULL, absent);
+                writeFieldEncode(m, f);
+                m.mark(absent);
+            } else {
+                writeFieldEncode(m, f);
+            }
+        }
+        if (hasExtensionMarker) {
+            Label noExtensions = new Label();
+            m.local(ILOAD, 3).jump(IFEQ, noExtensions)
+                    .pushInt(-1).local(ISTORE, 4)
+                    .local(ALOAD, 1).local(ALOAD, 2)
+                    .op(INVOKESTATIC, writer.methodRef(SUPPORT, "encodeExtensions",
+                            methodDescriptor(void.class, BitBuffer.class, Object.class)))
+                    .mark(noExtensions);
+        }
+        int end = m.position();
+        m.op(RETURN);
+        int handler = m.position();
+        m.local(ASTORE, 5).local(ALOAD, 5).local(ILOAD, 4).local(ALOAD, 2)
+                .op(INVOKESTATIC, writer.methodRef(BASE, "sequenceEncodingFailed",
+                        methodDescriptor(Throwable.class, Throwable.class, int.class,
+                                Object.class)))
+                .op(ATHROW);
+        m.catchAll(start, end, handler);
+    }
+
+    private void writeChoiceDecode(int index, Class<?> type) {
+        CodecPlan plan = CodecPlan.of(type);
+        List<FieldPlan> fields = plan.ordinaryFields();
+        MethodWriter m = writer.method(ACC_PUBLIC, "decode" + index, DECODE);
+        newOrReusedInstance(m, type);
+        if (plan.hasExtensionMarker(UperEncoder.NO_ANNOTATIONS)) {
+            Label noExtension = new Label();
+            String exception = "java/lang/UnsupportedOperationException";
+            m.local(ALOAD, 1).invokeInterface(BIT_BUFFER, "get", "()Z", 0).jump(IFEQ, noExtension)
+                    .op(NEW, writer.classRef(exception)).op(DUP)
+                    .pushString("choice extension is not implemented yet")
+                    .op(INVOKESPECIAL, writer.methodRef(exception, "<init>",
+                            "(Ljava/lang/String;)V"))
+                    .op(ATHROW)
+                    .mark(noExtension);
+        }
+        decodeConstrainedInt(m, 0, fields.size() - 1, false);
+        m.op(L2I).local(ISTORE, 3);
+        Label done = new Label();
+        for (int i = 0; i < fields.size(); i++) {
+            Label next = new Label();
+            m.local(ILOAD, 3).pushInt(i).jump(IF_ICMPNE, next);
+            storeOldValue(m, fields.get(i));
+            // Only the chosen alternative is set.
+            for (FieldPlan f : plan.allFields()) {
+                m.local(ALOAD, 2).op(ACONST_NULL).op(PUTFIELD, fieldRef(f));
+            }
+            writeFieldDecode(m, fields.get(i));
+            m.jump(GOTO, done).mark(next);
+        }
+        m.local(ILOAD, 3).pushInt(fields.size())
+                .op(INVOKESTATIC, writer.methodRef(BASE, "choiceIndexOutOfBounds",
+                        methodDescriptor(RuntimeException.class, int.class, int.class)))
+                .op(ATHROW);
+        m.mark(done).local(ALOAD, 2).op(ARETURN);
+    }
+
+    private void writeChoiceEncode(int index, Class<?> type) {
+        CodecPlan plan = CodecPlan.of(type);
+        boolean hasExtensionMarker = plan.hasExtensionMarker(UperEncoder.NO_ANNOTATIONS);
+        List<FieldPlan> fields = plan.ordinaryFields();
+        MethodWriter m = writer.method(ACC_PUBLIC, "encode" + index, ENCODE);
+        m.local(ALOAD, 2).op(CHECKCAST, writer.classRef(internalName(type))).local(ASTORE, 2);
+        int start = m.position();
+        Label done = new Label();
+        for (int i = 0; i < fields.size(); i++) {
+            FieldPlan f = fields.get(i);
+            Label next = new Label();
+            m.local(ALOAD, 2).op(GETFIELD, fieldRef(f)).jump(IFNULL, next);
+            if (hasExtensionMarker) {
+                m.local(ALOAD, 1).pushInt(0)
+                        .invokeInterface(BIT_BUFFER, "put", "(Z)L" + BIT_BUFFER + ";", 1).op(POP);
+            }
+            if (fields.size() > 1) {  // Encode index only if more than one.
+                m.local(ALOAD, 1).pushLong(i).pushLong(0).pushLong(fields.size() - 1).pushInt(0);
+                encodeConstrainedInt(m);
+            }
+            writeFieldEncode(m, f);
+            m.jump(GOTO, done).mark(next);
+        }
+        m.local(ALOAD, 1).local(ALOAD, 2).pushInt(hasExtensionMarker ? 1 : 0)
+                .op(INVOKESTATIC, writer.methodRef(SUPPORT, "encodeChoiceWithoutRootAlternative",
+                        methodDescriptor(void.class, BitBuffer.class, Object.class,
+                                boolean.class)));
+        m.mark(done);
+        int end = m.position();
+        m.op(RETURN);
+        int handler = m.position();
+        m.local(ASTORE, 5).local(ALOAD, 5).local(ALOAD, 2)
+                .op(INVOKESTATIC, writer.methodRef(BASE, "choiceEncodingFailed",
+                        methodDescriptor(Throwable.class, Throwable.class, Object.class)))
+                .op(ATHROW);
+        m.catchAll(start, end, handler);
+    }
+}
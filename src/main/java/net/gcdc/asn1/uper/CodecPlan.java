@@ -0,0 +1,528 @@
+package net.gcdc.asn1.uper;
+
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.gcdc.asn1.datatypes.Asn1Optional;
+import net.gcdc.asn1.datatypes.Choice;
+import net.gcdc.asn1.datatypes.FixedSize;
+import net.gcdc.asn1.datatypes.HasExtensionMarker;
+import net.gcdc.asn1.datatypes.IntRange;
+import net.gcdc.asn1.datatypes.IsExtension;
+import net.gcdc.asn1.datatypes.RestrictedString;
+import net.gcdc.asn1.datatypes.Sequence;
+import net.gcdc.asn1.datatypes.SizeRange;
+import net.jodah.typetools.TypeResolver;
+import net.jodah.typetools.TypeResolver.Unknown;
+
+/**
+ * Everything about a class that the coders need and that does not depend on the value being
+ * coded: its fields in declaration order (split into extension root and extensions, mandatory and
+ * optional), with reflective access set up once, and its annotations merged with the annotations
+ * of the fields of that type.
+ *
+ * Plans are built on first use and cached per class, so the reflection is paid once per class
+ * instead of once per nested SEQUENCE of every message. Together with the {@link Binding}s they
+ * are also the dispatch table of {@link UperEncoder}: (class, field annotations) to coder.
+ *
+ * Plans are shared between threads. Everything in them is either final and immutable, or a cache
+ * whose entries are computed idempotently and published through volatile fields or concurrent
+ * maps, so a race only means the same value is computed twice. The exception are the fields
+ * ({@link FieldPlan}s), which are built under a lock: their identity matters, they are looked
+ * up in lists and their annotation arrays key the {@link Binding}s.
+ */
+final class CodecPlan {
+
+    private static final ClassValue<CodecPlan> plans = new ClassValue<CodecPlan>() {
+        @Override protected CodecPlan computeValue(Class<?> type) {
+            return new CodecPlan(type);
+        }
+    };
+
+    static CodecPlan of(Class<?> type) {
+        return plans.get(type);
+    }
+
+    final Class<?> type;
+    /** The constants of an enum type in ordinal order, null for other types. Not to be modified. */
+    final Object[] enumConstants;
+    private final Binding classBinding;
+    /**
+     * Bindings for each array of extra (field) annotations this type was coded with. Keyed by
+     * array identity: the arrays come from {@link FieldPlan#annotations} or
+     * {@link UperEncoder#NO_ANNOTATIONS}, so there is one entry per field of this type.
+     */
+    private final ConcurrentMap<Annotation[], Binding> bindingsByField = new ConcurrentHashMap<>();
+    /** Resolved on first use, only container types (SEQUENCE, CHOICE, BIT STRING) need it. */
+    private volatile Fields fields;
+    /** Resolved on first use, only SEQUENCE OF types need it. */
+    private volatile ListPlan listPlan;
+    /** Constructors found by {@link #constructorFor}, keyed by the classes of the arguments. */
+    private final ConcurrentMap<List<Class<?>>, MethodHandle> constructors =
+            new ConcurrentHashMap<>();
+    private volatile List<FieldPlan> fieldsSetByConstructor;
+    /** See {@link #sharedConstructorValue}, only for the fields that have one. */
+    private volatile Map<FieldPlan, Object> sharedConstructorValues;
+    /** The generated codec, {@link #NO_GENERATED_CODEC} if there is none, null if not looked up yet. */
+    private volatile Object generatedCodec;
+
+    private static final Object NO_GENERATED_CODEC = new Object();
+
+    private CodecPlan(Class<?> type) {
+        this.type = type;
+        this.enumConstants = type.isEnum() ? type.getEnumConstants() : null;
+        this.classBinding = new Binding(new AnnotationStore(type.getAnnotations(),
+                UperEncoder.NO_ANNOTATIONS));
+    }
+
+    private static final class Fields {
+        /** "Within extension root" */
+        final List<FieldPlan> ordinaryFields;
+        /** "Outside extension root" */
+        final List<FieldPlan> extensionFields;
+        final List<FieldPlan> optionalOrdinaryFields;
+        final List<FieldPlan> allFields;  // Excluding test instrumentation.
+
+        Fields(Class<?> type) {
+            List<FieldPlan> ordinary = new ArrayList<>();
+            List<FieldPlan> extension = new ArrayList<>();
+            List<FieldPlan> optional = new ArrayList<>();
+            List<FieldPlan> all = new ArrayList<>();
+            for (Field f : type.getDeclaredFields()) {
+                if (UperEncoder.isTestInstrumentation(f) || Modifier.isStatic(f.getModifiers())) {
+                    continue;
+                }
+                FieldPlan fieldPlan = new FieldPlan(f);
+                if (fieldPlan.isExtension) {
+                    extension.add(fieldPlan);
+                } else {
+                    ordinary.add(fieldPlan);
+                    if (fieldPlan.isOptional) {
+                        optional.add(fieldPlan);
+                    }
+                }
+                all.add(fieldPlan);
+            }
+            this.ordinaryFields = Collections.unmodifiableList(ordinary);
+            this.extensionFields = Collections.unmodifiableList(extension);
+            this.optionalOrdinaryFields = Collections.unmodifiableList(optional);
+            this.allFields = Collections.unmodifiableList(all);
+        }
+    }
+
+    /**
+     * Built once, under a lock: coders compare FieldPlans by identity (e.g. the index of a field
+     * among the optional ones), so two threads must never see different instances.
+     */
+    private Fields fields() {
+        Fields result = fields;
+        if (result == null) {
+            synchronized (this) {
+                result = fields;
+                if (result == null) {
+                    result = fields = new Fields(type);
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Fields within extension root, in declaration order. */
+    List<FieldPlan> ordinaryFields() {
+        return fields().ordinaryFields;
+    }
+
+    /** Fields outside extension root, in declaration order. */
+    List<FieldPlan> extensionFields() {
+        return fields().extensionFields;
+    }
+
+    /** Optional fields within extension root, i.e. the fields of the presence bitmask. */
+    List<FieldPlan> optionalOrdinaryFields() {
+        return fields().optionalOrdinaryFields;
+    }
+
+    List<FieldPlan> allFields() {
+        return fields().allFields;
+    }
+
+    /** This type as used with the given field annotations: its constraints and coders. */
+    Binding binding(Annotation[] extraAnnotations) {
+        if (extraAnnotations.length == 0) {
+            return classBinding;
+        }
+        Binding result = bindingsByField.get(extraAnnotations);
+        if (result == null) {
+            result = new Binding(new AnnotationStore(type.getAnnotations(), extraAnnotations));
+            Binding previous = bindingsByField.putIfAbsent(extraAnnotations, result);
+            if (previous != null) {
+                result = previous;
+            }
+        }
+        return result;
+    }
+
+    /** Annotations of this type merged with the given field annotations, the latter taking precedence. */
+    AnnotationStore annotations(Annotation[] extraAnnotations) {
+        return binding(extraAnnotations).annotations;
+    }
+
+    boolean hasExtensionMarker(Annotation[] extraAnnotations) {
+        return binding(extraAnnotations).hasExtensionMarker;
+    }
+
+    /**
+     * Method handle for the constructor of this type that takes the given arguments, of the
+     * generic type (Object, ..) Object. The Constructor it comes from is made accessible once;
+     * it is private to the plan, so nobody else observes the access flag.
+     */
+    MethodHandle constructorFor(Object... parameters) {
+        Class<?>[] parameterTypes = new Class<?>[parameters.length];
+        for (int i = 0; i < parameters.length; i++) {
+            parameterTypes[i] = parameters[i].getClass();
+        }
+        List<Class<?>> key = Arrays.asList(parameterTypes);
+        MethodHandle result = constructors.get(key);
+        if (result == null) {
+            Constructor<?> constructor = UperEncoder.findConsturctor(type, parameters);
+            constructor.setAccessible(true);
+            try {
+                result = MethodHandles.lookup().unreflectConstructor(constructor)
+                        .asType(MethodType.genericMethodType(parameters.length));
+            } catch (IllegalAccessException e) {
+                throw new IllegalArgumentException("Can't access " + constructor, e);
+            }
+            MethodHandle previous = constructors.putIfAbsent(key, result);
+            if (previous != null) {
+                result = previous;
+            }
+        }
+        return result;
+    }
+
+    /** The element type and the list constructor of this SEQUENCE OF type. */
+    ListPlan listPlan() {
+        ListPlan result = listPlan;
+        if (result == null) {
+            result = listPlan = new ListPlan(type);
+        }
+        return result;
+    }
+
+    /**
+     * Fields that the no-argument constructor leaves non-null. A CHOICE has exactly one of its
+     * fields set, so the decoder has to clear these after instantiating it.
+     */
+    List<FieldPlan> fieldsSetByConstructor() {
+        List<FieldPlan> result = fieldsSetByConstructor;
+        if (result == null) {
+            Object prototype = UperEncoder.instantiate(type);
+            List<FieldPlan> nonNull = new ArrayList<>();
+            for (FieldPlan f : allFields()) {
+                if (f.get(prototype) != null) {
+                    nonNull.add(f);
+                }
+            }
+            result = fieldsSetByConstructor = Collections.unmodifiableList(nonNull);
+        }
+        return result;
+    }
+
+    /**
+     * The value that the no-argument constructor puts in field f if it is the same object for
+     * every instance, e.g. a static default like CoopIts.defaultValidity, otherwise null. Decoding
+     * leaves absent optional fields as the constructor set them, so such values turn up in
+     * decoded messages too.
+     */
+    Object sharedConstructorValue(FieldPlan f) {
+        Map<FieldPlan, Object> result = sharedConstructorValues;
+        if (result == null) {
+            result = new HashMap<>();
+            List<FieldPlan> setByConstructor = fieldsSetByConstructor();
+            if (!setByConstructor.isEmpty()) {
+                Object first = UperEncoder.instantiate(type);
+                Object second = UperEncoder.instantiate(type);
+                for (FieldPlan field : setByConstructor) {
+                    Object value = field.get(first);
+                    if (value == field.get(second)) {
+                        result.put(field, value);
+                    }
+                }
+            }
+            result = sharedConstructorValues = Collections.unmodifiableMap(result);
+        }
+        return result.get(f);
+    }
+
+    /**
+     * The value of field f of obj for {@link UperEncoder#decodeInto} to decode into, or null if it
+     * is a {@link #sharedConstructorValue}: obj does not own that one, decoding into it would
+     * change every instance that shares it.
+     */
+    Object reusableValue(FieldPlan f, Object obj) {
+        Object value = f.get(obj);
+        return value != null && value == sharedConstructorValue(f) ? null : value;
+    }
+
+    /**
+     * The codec generated for this type by the uper-codegen annotation processor, or null if the
+     * type was compiled without it, is not a SEQUENCE or CHOICE, or generated codecs are disabled
+     * with system property {@value CodecSupport#GENERATED_CODECS_PROPERTY}=false. Looked up by name,
+     * see {@link CodecSupport#generatedCodecName}, in the class loader of the type. If there is no
+     * such codec, a codec compiled at runtime by {@link CodecCompiler}, if that is switched on
+     * and it can compile one.
+     */
+    Object generatedCodec() {
+        Object result = generatedCodec;
+        if (result == null) {
+            result = generatedCodec = findGeneratedCodec();
+        }
+        return result == NO_GENERATED_CODEC ? null : result;
+    }
+
+    private Object findGeneratedCodec() {
+        if (type.getAnnotation(Sequence.class) == null
+                && type.getAnnotation(Choice.class) == null) {
+            return NO_GENERATED_CODEC;
+        }
+        if (!CodecSupport.USE_GENERATED_CODECS) {
+            return compileCodec();
+        }
+        String name = CodecSupport.generatedCodecName(type);
+        try {
+            Class<?> codecClass = Class.forName(name, true, type.getClassLoader());
+            UperEncoder.logger.debug("using generated codec {}", name);
+            return codecClass.getConstructor().newInstance();
+        } catch (ClassNotFoundException e) {
+            return compileCodec();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            UperEncoder.logger.warn("can't use generated codec {}, falling back to reflection: {}",
+                    name, e);
+            return NO_GENERATED_CODEC;
+        }
+    }
+
+    /** For types built without the codegen profile, e.g. loaded from plugins. */
+    private Object compileCodec() {
+        Object result = CodecCompiler.ENABLED ? CodecCompiler.compile(type) : null;
+        if (result == null) { return NO_GENERATED_CODEC; }
+        UperEncoder.logger.debug("using runtime compiled codec for {}", type.getName());
+        return result;
+    }
+
+    boolean hasNonNullExtensions(Object obj) {
+        for (FieldPlan f : extensionFields()) {
+            if (f.get(obj) != null) { return true; }
+        }
+        return false;
+    }
+
+    @Override public String toString() {
+        return "CodecPlan(" + type.getName() + ")";
+    }
+
+    /**
+     * A type together with the annotations of a field of that type: the merged annotations, the
+     * constraints extracted from them, and the encoder and decoder picked for it (resolved by
+     * {@link UperEncoder} on first use).
+     */
+    static final class Binding {
+        final AnnotationStore annotations;
+        final boolean hasExtensionMarker;
+        final IntRange intRange;
+        final SizeRange sizeRange;
+        final FixedSize fixedSize;
+        final RestrictedString restrictedString;
+
+        volatile Encoder encoder;
+        volatile Decoder decoder;
+        /** The reflective decoder, used when decoding into an existing value. */
+        volatile Decoder reflectiveDecoder;
+        /** The decoder used to skip values, see {@link UperEncoder#skip2}. */
+        volatile Decoder skippingDecoder;
+        /** Bits taken by every value, -1 if it depends on the value, {@link #WIDTH_UNKNOWN} if not computed yet. */
+        volatile int fixedWidth = WIDTH_UNKNOWN;
+
+        static final int WIDTH_UNKNOWN = -2;
+
+        private Binding(AnnotationStore annotations) {
+            this.annotations = annotations;
+            this.hasExtensionMarker = annotations.getAnnotation(HasExtensionMarker.class) != null;
+            // Copied, as querying an annotation proxy is slow and this is read for every value.
+            IntRange range = annotations.getAnnotation(IntRange.class);
+            this.intRange = range == null ? null : UperEncoder.newRange(range.minValue(),
+                    range.maxValue(), range.hasExtensionMarker());
+            this.sizeRange = annotations.getAnnotation(SizeRange.class);
+            this.fixedSize = annotations.getAnnotation(FixedSize.class);
+            this.restrictedString = annotations.getAnnotation(RestrictedString.class);
+        }
+    }
+
+    /**
+     * What a SEQUENCE OF type needs for each list besides its size constraints: the type of the
+     * elements, their decoder, and the constructor that takes the decoded elements. Resolved once
+     * per type, instead of a generic type resolution per element and a constructor lookup per
+     * list.
+     */
+    static final class ListPlan {
+        private final Class<?> listType;
+        /** Null if the element type can't be resolved, e.g. for a raw List. */
+        private final Class<?> elementType;
+        private volatile Decoder elementDecoder;
+        /** The constructor taking an ArrayList of the elements, of the generic type (Object) Object. */
+        private volatile MethodHandle constructor;
+
+        private ListPlan(Class<?> listType) {
+            this.listType = listType;
+            Class<?> resolved = TypeResolver.resolveRawArguments(List.class, listType)[0];
+            this.elementType = resolved == Unknown.class ? null : resolved;
+        }
+
+        /** @throws IllegalArgumentException if the type of the elements can't be resolved */
+        Class<?> elementType() {
+            if (elementType == null) { throw new IllegalArgumentException(
+                    "Can't resolve type of elements for " + listType.getName()); }
+            return elementType;
+        }
+
+        /** The decoder of the elements, as {@link UperEncoder#decoderFor} picks it. */
+        Decoder elementDecoder() {
+            Decoder result = elementDecoder;
+            if (result == null) {
+                result = elementDecoder = UperEncoder.decoderFor(elementType(),
+                        UperEncoder.NO_ANNOTATIONS);
+            }
+            return result;
+        }
+
+        /** A new list of this type holding the elements, see {@link UperEncoder#instantiate}. */
+        <T> T newList(Class<T> classOfT, ArrayList<Object> elements) {
+            MethodHandle result = constructor;
+            if (result == null) {
+                result = constructor = of(listType).constructorFor(elements);
+            }
+            try {
+                return classOfT.cast((Object) result.invokeExact((Object) elements));
+            } catch (Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalArgumentException("Can't instantiate " + listType.getName(), e);
+            }
+        }
+    }
+
+    /**
+     * A field of a SEQUENCE, CHOICE or named BIT STRING, with its annotations resolved once and
+     * method handles to read and write it.
+     */
+    static final class FieldPlan {
+        private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class,
+                Object.class);
+        private static final MethodType SETTER_TYPE = MethodType.methodType(void.class,
+                Object.class, Object.class);
+
+        final Field field;
+        final String name;
+        final Class<?> type;
+        /** The field annotations; the same array is passed down on every call. */
+        final Annotation[] annotations;
+        final boolean isOptional;
+        final boolean isExtension;
+        /** (Object) Object, boxes primitives. */
+        private final MethodHandle getter;
+        /** (Object, Object) void, unboxes primitives. */
+        private final MethodHandle setter;
+
+        private volatile CodecPlan plan;
+        private volatile Binding binding;
+
+        private FieldPlan(Field field) {
+            field.setAccessible(true);  // Our own copy of the Field, nobody else sees the flag.
+            this.field = field;
+            this.name = field.getName();
+            this.type = field.getType();
+            this.annotations = field.getAnnotations();
+            this.isOptional = field.getAnnotation(Asn1Optional.class) != null;
+            this.isExtension = field.getAnnotation(IsExtension.class) != null;
+            try {
+                MethodHandles.Lookup lookup = MethodHandles.lookup();
+                this.getter = lookup.unreflectGetter(field).asType(GETTER_TYPE);
+                this.setter = lookup.unreflectSetter(field).asType(SETTER_TYPE);
+            } catch (IllegalAccessException e) {
+                throw new IllegalArgumentException("Can't access field " + field, e);
+            }
+        }
+
+        boolean isMandatory() {
+            return !isOptional;
+        }
+
+        /** Plan of the declared type of this field, resolved on first use. */
+        CodecPlan plan() {
+            CodecPlan result = plan;
+            if (result == null) {
+                result = plan = CodecPlan.of(type);
+            }
+            return result;
+        }
+
+        /** Binding of the declared type of this field with its annotations, resolved on first use. */
+        Binding binding() {
+            Binding result = binding;
+            if (result == null) {
+                result = binding = plan().binding(annotations);
+            }
+            return result;
+        }
+
+        Object get(Object obj) {
+            try {
+                return (Object) getter.invokeExact(obj);
+            } catch (ClassCastException e) {
+                throw new IllegalArgumentException("can't get field " + field + " of " + obj, e);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new AssertionError("field access threw " + e);
+            }
+        }
+
+        boolean getBoolean(Object obj) {
+            Object value = get(obj);
+            if (!(value instanceof Boolean)) {
+                throw new IllegalArgumentException("field " + field + " is not boolean");
+            }
+            return (Boolean) value;
+        }
+
+        void set(Object obj, Object value) {
+            try {
+                setter.invokeExact(obj, value);
+            } catch (ClassCastException | NullPointerException e) {
+                throw new IllegalArgumentException("can't set field " + field + " of " + obj
+                        + " to " + value, e);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new AssertionError("field access threw " + e);
+            }
+        }
+
+        @Override public String toString() {
+            return field.toString();
+        }
+    }
+}
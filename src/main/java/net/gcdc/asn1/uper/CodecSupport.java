@@ -0,0 +1,173 @@
+package net.gcdc.asn1.uper;
+
+import java.lang.annotation.Annotation;
+
+import net.gcdc.asn1.datatypes.Asn1Integer;
+import net.gcdc.asn1.uper.CodecPlan.FieldPlan;
+
+/**
+ * Runtime support for the codecs generated by the uper-codegen annotation processor.
+ *
+ * For every {@code @Sequence} and {@code @Choice} class it can handle, the processor generates a
+ * class named by {@link #generatedCodecName}, in the package of the model class, that implements
+ * {@link Encoder} and {@link Decoder} with straight-line code: direct field access, a no-argument
+ * constructor call, presence bits read as one long, and constrained integers decoded in place.
+ * {@link UperEncoder} picks these classes up by name and uses them instead of the reflective
+ * coders; types without a generated codec, and fields the processor does not handle itself (BIT
+ * STRINGs, SEQUENCE OFs, strings, extensions, ...), still go through the reflective coders via
+ * {@link #decode} and {@link #encode}.
+ *
+ * The methods here are public only because the generated classes live in the packages of the
+ * model. They are not meant to be called by application code.
+ */
+public final class CodecSupport {
+
+    /** Set to false to ignore generated codecs and always use the reflective coders. */
+    public static final String GENERATED_CODECS_PROPERTY = "net.gcdc.asn1.uper.generatedCodecs";
+    static final boolean USE_GENERATED_CODECS = !"false".equalsIgnoreCase(
+            System.getProperty(GENERATED_CODECS_PROPERTY));
+
+    /**
+     * Set to true to compile codecs at runtime (see {@link CodecCompiler}) for model classes that
+     * have no generated codec, e.g. ones loaded from plugins. Off by default.
+     */
+    public static final String RUNTIME_CODECS_PROPERTY = "net.gcdc.asn1.uper.runtimeCodecs";
+
+    /** Appended to the (flattened) class name of a model class to get its generated codec. */
+    public static final String GENERATED_CODEC_SUFFIX = "_UperCodec";
+
+    /** Whether decoded small-range integers are shared, see {@link IntCoder}. */
+    public static final boolean SHARE_SMALL_INTEGERS = IntCoder.SHARE_SMALL_INTEGERS;
+
+    private CodecSupport() {}
+
+    /**
+     * Binary name of the generated codec for a model class: same package, the nested class names
+     * joined with '_' instead of '$', plus {@value #GENERATED_CODEC_SUFFIX}. For example,
+     * net.gcdc.camdenm.CoopIts$Denm2 has codec net.gcdc.camdenm.CoopIts_Denm2_UperCodec.
+     */
+    public static String generatedCodecName(Class<?> type) {
+        String name = type.getName();
+        int lastDot = name.lastIndexOf('.');
+        return name.substring(0, lastDot + 1) + name.substring(lastDot + 1).replace('$', '_')
+                + GENERATED_CODEC_SUFFIX;
+    }
+
+    /**
+     * The annotation arrays of the named fields of type. These are the same arrays the reflective
+     * coders use, so both paths share the cached bindings of the field types.
+     */
+    public static Annotation[][] fieldAnnotations(Class<?> type, String... fieldNames) {
+        Annotation[][] result = new Annotation[fieldNames.length][];
+        for (int i = 0; i < fieldNames.length; i++) {
+            result[i] = field(CodecPlan.of(type), fieldNames[i]).annotations;
+        }
+        return result;
+    }
+
+    private static FieldPlan field(CodecPlan plan, String name) {
+        for (FieldPlan f : plan.allFields()) {
+            if (f.name.equals(name)) { return f; }
+        }
+        throw new IllegalArgumentException("no field " + name + " in " + plan.type.getName());
+    }
+
+    /** Whether type, used with the given field annotations, is extensible. */
+    public static boolean hasExtensionMarker(Class<?> type, Annotation[] extraAnnotations) {
+        return CodecPlan.of(type).hasExtensionMarker(extraAnnotations);
+    }
+
+    /** Decodes a value of any type with the reflective dispatch of {@link UperEncoder}. */
+    public static <T> T decode(BitBuffer bitbuffer, Class<T> classOfT,
+            Annotation[] extraAnnotations) {
+        return UperEncoder.decode2(bitbuffer, classOfT, extraAnnotations);
+    }
+
+    /**
+     * Like {@link #decode}, decoding into reuse (the previous value of the field, may be null)
+     * where possible, see {@link UperEncoder#decodeInto}.
+     */
+    public static Object decodeInto(BitBuffer bitbuffer, Class<?> classOfT,
+            Annotation[] extraAnnotations, Object reuse) {
+        return UperEncoder.decodeInto2(bitbuffer, classOfT, extraAnnotations, reuse);
+    }
+
+    /** Value if it can be decoded into as a value of exactly type, otherwise null. */
+    public static Object reusable(Object value, Class<?> type) {
+        return value != null && value.getClass() == type ? value : null;
+    }
+
+    /** Encodes a value of any type with the reflective dispatch of {@link UperEncoder}. */
+    public static void encode(BitBuffer bitbuffer, Object obj, Annotation[] extraAnnotations)
+            throws Asn1EncodingException {
+        UperEncoder.encode2(bitbuffer, obj, extraAnnotations);
+    }
+
+    /** Reads n (at most 64) bits, e.g. a presence bitmask, failing if the input is too short. */
+    public static long readBits(BitBuffer bitbuffer, int n) {
+        return UperEncoder.getBits(bitbuffer, n);
+    }
+
+    public static long decodeConstrainedInt(BitBuffer bitbuffer, long lowerBound,
+            long upperBound, boolean hasExtensionMarker) {
+        return UperEncoder.decodeConstrainedInt(bitbuffer, lowerBound, upperBound,
+                hasExtensionMarker);
+    }
+
+    public static void encodeConstrainedInt(BitBuffer bitbuffer, long value, long lowerBound,
+            long upperBound, boolean hasExtensionMarker) throws Asn1EncodingException {
+        UperEncoder.encodeConstrainedInt(bitbuffer, value, lowerBound, upperBound,
+                hasExtensionMarker);
+    }
+
+    /** Encodes an INTEGER with the given constraint, reporting errors like {@link IntCoder}. */
+    public static void encodeInteger(BitBuffer bitbuffer, Asn1Integer value, long lowerBound,
+            long upperBound, boolean hasExtensionMarker) throws Asn1EncodingException {
+        try {
+            UperEncoder.encodeConstrainedInt(bitbuffer, value.value(), lowerBound, upperBound,
+                    hasExtensionMarker);
+        } catch (Asn1EncodingException e) {
+            throw new Asn1EncodingException(" " + value.getClass().getSimpleName(), e);
+        }
+    }
+
+    /** An instance of an integer type, shared if {@link #SHARE_SMALL_INTEGERS} allows it. */
+    public static Object newInteger(Class<?> type, long value) {
+        return IntCoder.newInstance(type, value);
+    }
+
+    /** Whether any extension addition of a SEQUENCE is present. */
+    public static boolean hasNonNullExtensions(Object obj) {
+        CodecPlan plan = CodecPlan.of(obj.getClass());
+        return !plan.extensionFields().isEmpty() && plan.hasNonNullExtensions(obj);
+    }
+
+    /** Encodes the extension additions of a SEQUENCE that has at least one of them set. */
+    public static void encodeExtensions(BitBuffer bitbuffer, Object obj)
+            throws Asn1EncodingException {
+        SequenceCoder.encodeExtensions(bitbuffer, obj, CodecPlan.of(obj.getClass()));
+    }
+
+    /** Decodes the extension additions of a SEQUENCE into result, after its extension bit. */
+    public static void decodeExtensions(BitBuffer bitbuffer, Object result) {
+        SequenceCoder.decodeExtensions(bitbuffer, result, CodecPlan.of(result.getClass()));
+    }
+
+    /**
+     * Fails the encoding of a CHOICE none of whose root alternatives is set, the same way the
+     * reflective coder does.
+     */
+    public static void encodeChoiceWithoutRootAlternative(BitBuffer bitbuffer, Object obj,
+            boolean hasExtensionMarker) {
+        if (hasExtensionMarker) {
+            if (!CodecPlan.of(obj.getClass()).hasNonNullExtensions(obj)) {
+                throw new IllegalArgumentException("All fields of Choice are null");
+            }
+            bitbuffer.put(true);
+            throw new UnsupportedOperationException("Choice extension is not implemented yet");
+        } else {
+            throw new IllegalArgumentException(
+                    "Not Extension and All ordinary fields of Choice are null");
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package net.gcdc.asn1.uper;
+
+import java.lang.annotation.Annotation;
+
+/**
+ * Base class of the codecs that {@link CodecCompiler} generates at runtime. Subclasses only
+ * implement {@link #decodeValue} and {@link #encodeValue} for the one class they are compiled for;
+ * the dispatch checks, and the wrapping of exceptions into the messages of the reflective coders,
+ * are here.
+ *
+ * Public only because the compiled subclasses are defined in the packages of the model classes.
+ * Not meant to be extended by application code.
+ */
+public abstract class CompiledCodec implements Encoder, ReusingDecoder {
+
+    private final Class<?> type;
+    private final boolean hasExtensionMarker;
+    /**
+     * Objects the compiled code loads by index: field annotations, classes and enum constants
+     * that it can't (or should not) name in its constant pool.
+     */
+    protected final Object[] constants;
+
+    protected CompiledCodec(Class<?> type, Object[] constants) {
+        this.type = type;
+        this.hasExtensionMarker = CodecPlan.of(type).hasExtensionMarker(UperEncoder.NO_ANNOTATIONS);
+        this.constants = constants;
+    }
+
+    /**
+     * Decodes a value of the class this codec was compiled for, into reuse if that is not null
+     * and has exactly that class (see {@link UperEncoder#decodeInto}).
+     */
+    protected abstract Object decodeValue(BitBuffer bitbuffer, Object reuse);
+
+    /** Encodes a value of the class this codec was compiled for. */
+    protected abstract void encodeValue(BitBuffer bitbuffer, Object value)
+            throws Asn1EncodingException;
+
+    @Override public <T> boolean canDecode(Class<T> classOfT, Annotation[] extraAnnotations) {
+        return classOfT == type
+                && CodecPlan.of(type).hasExtensionMarker(extraAnnotations) == hasExtensionMarker;
+    }
+
+    @Override public <T> T decode(BitBuffer bitbuffer, Class<T> classOfT,
+            Annotation[] extraAnnotations) {
+        @SuppressWarnings("unchecked")  // canDecode only accepts the compiled type.
+        T result = (T) decodeValue(bitbuffer, null);
+        return result;
+    }
+
+    @Override public <T> T decodeInto(BitBuffer bitbuffer, Class<T> classOfT,
+            Annotation[] extraAnnotations, T reuse) {
+        @SuppressWarnings("unchecked")  // canDecode only accepts the compiled type.
+        T result = (T) decodeValue(bitbuffer, reuse);
+        return result;
+    }
+
+    @Override public <T> boolean canEncode(T obj, Annotation[] extraAnnotations) {
+        return obj.getClass() == type
+                && CodecPlan.of(type).hasExtensionMarker(extraAnnotations) == hasExtensionMarker;
+    }
+
+    @Override public <T> void encode(BitBuffer bitbuffer, T obj, Annotation[] extraAnnotations)
+            throws Asn1EncodingException {
+        encodeValue(bitbuffer, obj);
+    }
+
+    /**
+     * The exception to throw when encoding SEQUENCE value failed with e while encoding its root
+     * field with the given index (-1 if not in a field), wrapped like {@link SequenceCoder} does.
+     */
+    protected static Throwable sequenceEncodingFailed(Throwable e, int rootFieldIndex,
+            Object value) {
+        if (!(e instanceof Asn1EncodingException) && !(e instanceof IllegalArgumentException)) {
+            return e;
+        }
+        String field = rootFieldIndex < 0 ? null
+                : CodecPlan.of(value.getClass()).ordinaryFields().get(rootFieldIndex).name;
+        if (e instanceof Asn1EncodingException) {
+            return field == null ? e : new Asn1EncodingException("." + field,
+                    (Asn1EncodingException) e);
+        }
+        return new IllegalArgumentException("can't encode " + value, field == null ? e
+                : new IllegalArgumentException("Illegal value for field " + field, e));
+    }
+
+    /** Like {@link #sequenceEncodingFailed}, for a CHOICE, as {@link ChoiceCoder} does. */
+    protected static Throwable choiceEncodingFailed(Throwable e, Object value) {
+        if (e instanceof Asn1EncodingException) {
+            return new Asn1EncodingException("." + value.getClass().getName(),
+                    (Asn1EncodingException) e);
+        } else if (e instanceof IllegalArgumentException) {
+            return new IllegalArgumentException("can't encode " + value, e);
+        } else {
+            return e;
+        }
+    }
+
+    /** For a decoded CHOICE index that is not one of the root alternatives. */
+    protected static RuntimeException choiceIndexOutOfBounds(int index, int size) {
+        return new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + size);
+    }
+}
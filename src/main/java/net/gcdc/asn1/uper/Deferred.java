@@ -0,0 +1,68 @@
+package net.gcdc.asn1.uper;
+
+import java.lang.annotation.Annotation;
+
+/**
+ * A value that was not decoded yet: where its encoding starts in the bytes of a message, see
+ * {@link Projection#deferring}. It is decoded on the first {@link #get} and kept.
+ *
+ * Deferred values can be handed to other threads; the value is decoded once, by whichever thread
+ * asks first. The bytes are not copied, so they must not be modified while a deferred value
+ * refers to them.
+ */
+public final class Deferred<T> {
+
+    private final byte[] bytes;
+    private final int bitOffset;
+    private final Class<T> type;
+    private final Annotation[] annotations;
+    private volatile T value;
+
+    Deferred(byte[] bytes, int bitOffset, Class<T> type, Annotation[] annotations) {
+        this.bytes = bytes;
+        this.bitOffset = bitOffset;
+        this.type = type;
+        this.annotations = annotations;
+    }
+
+    /**
+     * The value, decoded on first use.
+     *
+     * @throws IllegalArgumentException if it can't be decoded; the next call tries again
+     */
+    public T get() throws IllegalArgumentException, UnsupportedOperationException {
+        T result = value;
+        if (result == null) {
+            synchronized (this) {
+                result = value;
+                if (result == null) {
+                    UperEncoder.logger.debug("Decoding deferred {} at bit {}", type, bitOffset);
+                    BitBufferPool pool = BitBufferPool.get();
+                    ByteBufferBitBuffer bitbuffer = pool.view();
+                    try {
+                        result = value = UperEncoder.decode2(bitbuffer.rewrap(bytes, bitOffset,
+                                bytes.length * 8 - bitOffset), type, annotations);
+                    } finally {
+                        pool.release(bitbuffer);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    public Class<T> type() {
+        return type;
+    }
+
+    /** Whether {@link #get} was called and decoded the value. */
+    public boolean isDecoded() {
+        return value != null;
+    }
+
+    @Override public String toString() {
+        T decoded = value;
+        return "Deferred(" + type.getName() + (decoded != null ? ", " + decoded
+                : " at bit " + bitOffset) + ")";
+    }
+}
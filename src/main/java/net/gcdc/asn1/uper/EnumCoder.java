@@ -7,7 +7,7 @@ import java.util.List;
 
 import net.gcdc.asn1.datatypes.IsExtension;
 
-class EnumCoder implements Decoder, Encoder {
+class EnumCoder implements SkippingDecoder, Encoder {
 
     @Override public <T> boolean canEncode(T obj, Annotation[] extraAnnotations) {
         Class<?> type = obj.getClass();
@@ -16,12 +16,11 @@ class EnumCoder implements Decoder, Encoder {
 
     @Override public <T> void encode(BitBuffer bitbuffer, T obj, Annotation[] extraAnnotations) throws Asn1EncodingException {
         Class<?> type = obj.getClass();
-        AnnotationStore annotations = new AnnotationStore(type.getAnnotations(),
-                extraAnnotations);
+        CodecPlan.Binding binding = CodecPlan.of(type).binding(extraAnnotations);
         UperEncoder.logger.debug("ENUM");
         try {
         int position = bitbuffer.position();
-        if (!UperEncoder.hasExtensionMarker(annotations)) {
+        if (!binding.hasExtensionMarker) {
             List<?> values = Arrays.asList(type.getEnumConstants());
             int index = values.indexOf(obj);
             UperEncoder.logger.debug("enum without ext, index {}, encoding index...", index);
@@ -42,8 +41,10 @@ class EnumCoder implements Decoder, Encoder {
                 bitbuffer.put(false);
                 int index = valuesWithinExtensionRoot.indexOf(obj);
                 UperEncoder.encodeConstrainedInt(bitbuffer, index, 0, valuesWithinExtensionRoot.size() - 1);
-                UperEncoder.logger.debug("ENUM w/ext (index {}), encoded as <{}>", index,
-                        bitbuffer.toBooleanStringFromPosition(position));
+                if (UperEncoder.logger.isDebugEnabled()) {
+                    UperEncoder.logger.debug("ENUM w/ext (index {}), encoded as <{}>", index,
+                            bitbuffer.toBooleanStringFromPosition(position));
+                }
                 return;
             } else {
                 throw new UnsupportedOperationException("Enum extensions are not supported yet");
@@ -61,10 +62,33 @@ class EnumCoder implements Decoder, Encoder {
     @Override public <T> T decode(BitBuffer bitbuffer,
             Class<T> classOfT,
             Annotation[] extraAnnotations) {
-        AnnotationStore annotations = new AnnotationStore(classOfT.getAnnotations(),
-                extraAnnotations);
+        CodecPlan plan = CodecPlan.of(classOfT);
         UperEncoder.logger.debug("ENUM");
-        if (UperEncoder.hasExtensionMarker(annotations)) {
+        decodeExtensionBit(bitbuffer, plan.binding(extraAnnotations));
+        Object[] enumValues = plan.enumConstants;
+        int index = (int) UperEncoder.decodeConstrainedInt(bitbuffer, 0, enumValues.length - 1,
+                false);
+        if (index > enumValues.length - 1) { throw new IllegalArgumentException(
+                "decoded enum index " + index + " is larger then number of elements (0.."
+                        + enumValues.length + ") in " + classOfT.getName()); }
+        T value = classOfT.cast(enumValues[index]);
+        return value;        }
+
+    @Override public <T> void skip(BitBuffer bitbuffer, Class<T> classOfT,
+            Annotation[] extraAnnotations) {
+        CodecPlan plan = CodecPlan.of(classOfT);
+        decodeExtensionBit(bitbuffer, plan.binding(extraAnnotations));
+        UperEncoder.skipConstrainedInt(bitbuffer, 0, plan.enumConstants.length - 1, false);
+    }
+
+    @Override public <T> int fixedWidth(Class<T> classOfT, Annotation[] extraAnnotations) {
+        CodecPlan plan = CodecPlan.of(classOfT);
+        return plan.hasExtensionMarker(extraAnnotations) ? -1
+                : UperEncoder.constrainedIntWidth(0, plan.enumConstants.length - 1);
+    }
+
+    private static void decodeExtensionBit(BitBuffer bitbuffer, CodecPlan.Binding binding) {
+        if (binding.hasExtensionMarker) {
             boolean extensionPresent = bitbuffer.get();
             UperEncoder.logger.debug("with extension marker, {}", extensionPresent ? "present" : "absent");
             if (extensionPresent) {
@@ -74,13 +98,6 @@ class EnumCoder implements Decoder, Encoder {
                 // We already consumed the bit, keep processing as if there were no extension.
             }
         }
-        T[] enumValues = classOfT.getEnumConstants();
-        int index = (int) UperEncoder.decodeConstrainedInt(bitbuffer,
-                UperEncoder.newRange(0, enumValues.length - 1, false));
-        if (index > enumValues.length - 1) { throw new IllegalArgumentException(
-                "decoded enum index " + index + " is larger then number of elements (0.."
-                        + enumValues.length + ") in " + classOfT.getName()); }
-        T value = enumValues[index];
-        return value;        }
+    }
 
 }
\ No newline at end of file
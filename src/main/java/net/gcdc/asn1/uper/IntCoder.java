@@ -1,11 +1,14 @@
 package net.gcdc.asn1.uper;
 
 import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Constructor;
-import java.lang.reflect.InvocationTargetException;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import net.gcdc.asn1.datatypes.Asn1Integer;
 import net.gcdc.asn1.datatypes.IntRange;
@@ -13,7 +16,7 @@ import net.gcdc.asn1.datatypes.IntRange;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-class IntCoder implements Encoder, Decoder {
+class IntCoder implements Encoder, ReusingDecoder, SkippingDecoder {
 
     private static final Map<Class<?>, IntRange> DEFAULT_RANGE;
     private static final Logger LOGGER = LoggerFactory.getLogger(IntCoder.class.getName());
@@ -32,6 +35,113 @@ class IntCoder implements Encoder, Decoder {
         DEFAULT_RANGE.put(Asn1Integer.class, UperEncoder.newRange(Long.MIN_VALUE, Long.MAX_VALUE, false));
     }
 
+    /**
+     * If set (system property {@value #SHARE_SMALL_INTEGERS_PROPERTY}, off by default), decoded
+     * Asn1Integer types with a class-level {@link IntRange} of at most {@value #MAX_SHARED_RANGE}
+     * values (CauseCodeType, StationType, InformationQuality, ...) return one shared instance per
+     * value instead of a new object for every decoded integer. Asn1Integer.value is public, so only
+     * enable it if decoded messages are never modified.
+     */
+    static final String SHARE_SMALL_INTEGERS_PROPERTY = "net.gcdc.asn1.uper.shareSmallIntegers";
+    static final boolean SHARE_SMALL_INTEGERS = Boolean.getBoolean(SHARE_SMALL_INTEGERS_PROPERTY);
+    static final int MAX_SHARED_RANGE = 256;
+
+    private static final ClassValue<IntType> INT_TYPES = new ClassValue<IntType>() {
+        @Override protected IntType computeValue(Class<?> type) {
+            return new IntType(type);
+        }
+    };
+
+    /**
+     * How to create instances of an integer type, resolved once per class: its numeric
+     * constructor as a (long) Object method handle, and the shared instances if enabled.
+     */
+    private static final class IntType {
+        private final Class<?> type;
+        private final MethodHandle factory;
+        private final long sharedMinValue;
+        private final AtomicReferenceArray<Object> shared;  // Null if instances are not shared.
+
+        IntType(Class<?> type) {
+            this.type = type;
+            Class<?>[] numericTypes = new Class<?>[] { long.class, int.class, short.class };
+            Constructor<?> constructor = null;
+            for (Class<?> t : numericTypes) {
+                try {
+                    constructor = type.getConstructor(t);
+                    break;
+                } catch (NoSuchMethodException e) {
+                    // We expect exception here. Just ignore them and try next constructor.
+                    // After the loop, check if any constructor was found.
+                } catch (SecurityException e) {
+                    throw new IllegalArgumentException("can't access constructor of "
+                            + type.getName() + ": " + e);
+                }
+            }
+            if (constructor == null) { throw new IllegalArgumentException(
+                    "can't find any numeric constructor for " + type.getName()
+                            + ", all constructors: " + Arrays.asList(type.getConstructors())); }
+            constructor.setAccessible(true);  // Public, but the class itself might not be.
+            try {
+                // Narrows the long argument to int or short like a cast, as before.
+                this.factory = MethodHandles.explicitCastArguments(
+                        MethodHandles.lookup().unreflectConstructor(constructor),
+                        MethodType.methodType(Object.class, long.class));
+            } catch (IllegalAccessException e) {
+                throw new IllegalArgumentException("can't access constructor of "
+                        + type.getName() + ": " + e);
+            }
+            IntRange range = type.getAnnotation(IntRange.class);
+            long rangeSize = range != null ? range.maxValue() - range.minValue() : -1;
+            if (SHARE_SMALL_INTEGERS && Asn1Integer.class.isAssignableFrom(type)
+                    && rangeSize >= 0 && rangeSize < MAX_SHARED_RANGE) {
+                this.sharedMinValue = range.minValue();
+                this.shared = new AtomicReferenceArray<>((int) rangeSize + 1);
+            } else {
+                this.sharedMinValue = 0;
+                this.shared = null;
+            }
+        }
+
+        Object newInstance(long value) {
+            if (shared != null) {
+                long index = value - sharedMinValue;
+                if (index >= 0 && index < shared.length()) {
+                    Object result = shared.get((int) index);
+                    if (result == null) {
+                        result = create(value);
+                        if (!shared.compareAndSet((int) index, null, result)) {
+                            result = shared.get((int) index);
+                        }
+                    }
+                    return result;
+                }
+            }
+            return create(value);
+        }
+
+        /** Whether instances of this type may be shared, so must not be modified. */
+        boolean isShared() {
+            return shared != null;
+        }
+
+        private Object create(long value) {
+            try {
+                return (Object) factory.invokeExact(value);
+            } catch (Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalArgumentException("failed to invoke constructor of "
+                        + type.getName() + ": " + e);
+            }
+        }
+    }
+
+    /** A new (or shared, see {@link #SHARE_SMALL_INTEGERS}) instance of an integer type. */
+    static Object newInstance(Class<?> type, long value) {
+        return INT_TYPES.get(type).newInstance(value);
+    }
+
     @Override public <T> boolean canDecode(Class<T> classOfT, Annotation[] extraAnnotations) {
         return Asn1Integer.class.isAssignableFrom(classOfT) |
                 Long.class.isAssignableFrom(classOfT) |
@@ -45,49 +155,56 @@ class IntCoder implements Encoder, Decoder {
     @Override public <T> T decode(BitBuffer bitbuffer,
             Class<T> classOfT,
             Annotation[] extraAnnotations) {
-        AnnotationStore annotations = new AnnotationStore(classOfT.getAnnotations(),
-                extraAnnotations);
-        UperEncoder.logger.debug("INTEGER");
-        IntRange intRange = annotations.getAnnotation(IntRange.class);
-        if (intRange == null) {
-            intRange = DEFAULT_RANGE.get(classOfT);
+        long value = decodeValue(bitbuffer, classOfT, extraAnnotations);
+        @SuppressWarnings("unchecked")
+        // The factory creates instances of classOfT.
+        T result = (T) newInstance(classOfT, value);
+        return result;
+    }
+
+    /**
+     * Sets the value of reuse if it is an Asn1Integer that is not shared. Values the constructor
+     * shares between instances never get here, see {@link CodecPlan#reusableValue}.
+     */
+    @Override public <T> T decodeInto(BitBuffer bitbuffer, Class<T> classOfT,
+            Annotation[] extraAnnotations, T reuse) {
+        if (!(reuse instanceof Asn1Integer) || INT_TYPES.get(classOfT).isShared()) {
+            return decode(bitbuffer, classOfT, extraAnnotations);
         }
-        UperEncoder.logger.debug("Integer, range {}..{}", intRange.minValue(), intRange.maxValue());
+        ((Asn1Integer) reuse).value = decodeValue(bitbuffer, classOfT, extraAnnotations);
+        return reuse;
+    }
+
+    @Override public <T> void skip(BitBuffer bitbuffer, Class<T> classOfT,
+            Annotation[] extraAnnotations) {
+        UperEncoder.skipConstrainedInt(bitbuffer, range(classOfT, extraAnnotations));
+    }
+
+    @Override public <T> int fixedWidth(Class<T> classOfT, Annotation[] extraAnnotations) {
+        IntRange intRange = range(classOfT, extraAnnotations);
+        return intRange.hasExtensionMarker() ? -1
+                : UperEncoder.constrainedIntWidth(intRange.minValue(), intRange.maxValue());
+    }
+
+    /** The range of classOfT with these annotations, the range of its Java type if there is none. */
+    static IntRange range(Class<?> classOfT, Annotation[] extraAnnotations) {
+        IntRange intRange = CodecPlan.of(classOfT).binding(extraAnnotations).intRange;
+        if (intRange != null) { return intRange; }
+        return DEFAULT_RANGE.get(Asn1Integer.class.isAssignableFrom(classOfT) ? Asn1Integer.class
+                : classOfT);
+    }
+
+    private static long decodeValue(BitBuffer bitbuffer, Class<?> classOfT,
+            Annotation[] extraAnnotations) {
+        UperEncoder.logger.debug("INTEGER");
+        IntRange intRange = range(classOfT, extraAnnotations);
         long value = UperEncoder.decodeConstrainedInt(bitbuffer, intRange);
-        UperEncoder.logger.debug("decoded as {}", value);
-        Class<?>[] numericTypes = new Class<?>[] { long.class, int.class, short.class };
-        Constructor<T> constructor = null;
-        for (Class<?> t : numericTypes) {
-            try {
-                constructor = classOfT.getConstructor(t);
-            } catch (NoSuchMethodException e) {
-                // We expect exception here. Just ignore them and try next constructor.
-                // After the loop, check if any constructor was found.
-            } catch (SecurityException e) {
-                throw new IllegalArgumentException("can't access constructor of "
-                        + classOfT.getName() + ": " + e);
-            }
-        }
-        if (constructor == null) { throw new IllegalArgumentException(
-                "can't find any numeric constructor for " + classOfT.getName()
-                        + ", all constructors: " + Arrays.asList(classOfT.getConstructors())); }
-        try {
-            Class<?> typeOfConstructorArgument = constructor.getParameterTypes()[0];
-            if (typeOfConstructorArgument.isAssignableFrom(long.class)) {
-                return constructor.newInstance(value);
-            } else if (typeOfConstructorArgument.isAssignableFrom(int.class)) {
-                return constructor.newInstance((int) value);
-            } else if (typeOfConstructorArgument.isAssignableFrom(short.class)) {
-                return constructor.newInstance((short) value);
-            } else {
-                throw new IllegalArgumentException("unrecognized constructor argument "
-                        + typeOfConstructorArgument.getName());
-            }
-        } catch (IllegalAccessException | IllegalArgumentException | InvocationTargetException
-                | InstantiationException e1) {
-            throw new IllegalArgumentException("failed to invoke constructor of "
-                    + classOfT.getName() + ": " + e1);
+        if (UperEncoder.logger.isDebugEnabled()) {
+            UperEncoder.logger.debug("Integer, range {}..{}", intRange.minValue(),
+                    intRange.maxValue());
+            UperEncoder.logger.debug("decoded as {}", value);
         }
+        return value;
     }
 
     @Override public <T> boolean canEncode(T obj, Annotation[] extraAnnotations) {
@@ -99,12 +216,7 @@ class IntCoder implements Encoder, Decoder {
 
     @Override public <T> void encode(BitBuffer bitbuffer, T obj, Annotation[] extraAnnotations) throws Asn1EncodingException {
         Class<?> type = obj.getClass();
-        AnnotationStore annotations = new AnnotationStore(type.getAnnotations(),
-                extraAnnotations);
-        IntRange range = annotations.getAnnotation(IntRange.class);
-        if (range == null) {
-            range = DEFAULT_RANGE.get(obj);
-        }
+        IntRange range = range(type, extraAnnotations);
         int position = bitbuffer.position();
         try {
             UperEncoder.encodeConstrainedInt(bitbuffer, ((Asn1Integer) obj).value(), range.minValue(),
@@ -112,7 +224,9 @@ class IntCoder implements Encoder, Decoder {
         } catch (Asn1EncodingException e) {
             throw new Asn1EncodingException(" " + type.getSimpleName(), e);
         }
-        UperEncoder.logger.debug("INT({}): {}", obj, bitbuffer.toBooleanStringFromPosition(position));
+        if (UperEncoder.logger.isDebugEnabled()) {
+            UperEncoder.logger.debug("INT({}): {}", obj, bitbuffer.toBooleanStringFromPosition(position));
+        }
         return;
     }
 
@@ -0,0 +1,126 @@
+package net.gcdc.asn1.uper;
+
+import java.lang.annotation.Annotation;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+import net.gcdc.asn1.datatypes.FixedSize;
+import net.gcdc.asn1.datatypes.OctetString;
+import net.gcdc.asn1.datatypes.SizeRange;
+
+/**
+ * OCTET STRING, for byte[] and ByteBuffer values and for lists of Byte marked {@link OctetString}
+ * (e.g. an Asn1SequenceOf&lt;Byte&gt;). The size is coded like the size of a SEQUENCE OF, with
+ * {@link FixedSize} or {@link SizeRange}, and the octets are copied in one go (see
+ * {@link BitBuffer#getBytes}) instead of one Byte element at a time.
+ *
+ * A ByteBuffer is decoded as a read-only buffer that shares the input bytes if the octets start
+ * on a byte boundary, so the input must not be modified while it is in use; otherwise it gets a
+ * copy. A ByteBuffer is encoded from its remaining bytes, its position is not changed.
+ */
+class OctetStringCoder implements SkippingDecoder, Encoder {
+
+    @Override public <T> boolean canEncode(T obj, Annotation[] extraAnnotations) {
+        return obj instanceof byte[] || obj instanceof ByteBuffer
+                || (obj instanceof List<?> && isOctetString(obj.getClass(), extraAnnotations));
+    }
+
+    @Override public <T> void encode(BitBuffer bitbuffer, T obj, Annotation[] extraAnnotations)
+            throws Asn1EncodingException {
+        Class<?> type = obj.getClass();
+        CodecPlan.Binding binding = CodecPlan.of(type).binding(extraAnnotations);
+        if (obj instanceof byte[]) {
+            byte[] octets = (byte[]) obj;
+            encodeSize(bitbuffer, octets.length, type, binding);
+            bitbuffer.putBytes(octets, 0, octets.length);
+        } else if (obj instanceof ByteBuffer) {
+            ByteBuffer buffer = (ByteBuffer) obj;
+            int numOctets = buffer.remaining();
+            encodeSize(bitbuffer, numOctets, type, binding);
+            if (buffer.hasArray()) {
+                bitbuffer.putBytes(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                        numOctets);
+            } else {
+                for (int i = buffer.position(); i < buffer.limit(); i++) {
+                    bitbuffer.putBits(buffer.get(i) & 0xff, 8);
+                }
+            }
+        } else {
+            List<?> list = (List<?>) obj;
+            encodeSize(bitbuffer, list.size(), type, binding);
+            for (int i = 0; i < list.size(); i++) {
+                bitbuffer.putBits(((Byte) list.get(i)) & 0xff, 8);
+            }
+        }
+    }
+
+    private static void encodeSize(BitBuffer bitbuffer, int numOctets, Class<?> type,
+            CodecPlan.Binding binding) throws Asn1EncodingException {
+        if (UperEncoder.logger.isDebugEnabled()) {
+            UperEncoder.logger.debug("OCTET STRING {} of {} octets", type.getName(), numOctets);
+        }
+        SeqOfCoder.encodeSize(bitbuffer, numOctets, type, binding);
+    }
+
+    @Override public <T> boolean canDecode(Class<T> classOfT, Annotation[] extraAnnotations) {
+        return classOfT == byte[].class || classOfT == ByteBuffer.class
+                || (List.class.isAssignableFrom(classOfT)
+                        && isOctetString(classOfT, extraAnnotations));
+    }
+
+    @Override public <T> T decode(BitBuffer bitbuffer, Class<T> classOfT,
+            Annotation[] extraAnnotations) {
+        long numOctets = SeqOfCoder.decodeSize(bitbuffer, classOfT, extraAnnotations);
+        if (UperEncoder.logger.isDebugEnabled()) {
+            UperEncoder.logger.debug("OCTET STRING {} of {} octets", classOfT.getName(), numOctets);
+        }
+        if (classOfT == ByteBuffer.class) {
+            UperEncoder.checkOctets(bitbuffer, numOctets);
+            if (bitbuffer instanceof ByteBufferBitBuffer) {
+                return classOfT.cast(((ByteBufferBitBuffer) bitbuffer).getSlice((int) numOctets));
+            }
+            return classOfT.cast(ByteBuffer.wrap(UperEncoder.getOctets(bitbuffer, numOctets))
+                    .asReadOnlyBuffer());
+        }
+        byte[] octets = UperEncoder.getOctets(bitbuffer, numOctets);
+        if (classOfT == byte[].class) {
+            return classOfT.cast(octets);
+        }
+        return UperEncoder.instantiate(classOfT, new OctetList(octets));
+    }
+
+    @Override public <T> void skip(BitBuffer bitbuffer, Class<T> classOfT,
+            Annotation[] extraAnnotations) {
+        long numOctets = SeqOfCoder.decodeSize(bitbuffer, classOfT, extraAnnotations);
+        UperEncoder.skipBits(bitbuffer, numOctets * 8);
+    }
+
+    @Override public <T> int fixedWidth(Class<T> classOfT, Annotation[] extraAnnotations) {
+        FixedSize fixedSize = CodecPlan.of(classOfT).binding(extraAnnotations).fixedSize;
+        return fixedSize == null ? -1 : fixedSize.value() * 8;
+    }
+
+    private static boolean isOctetString(Class<?> type, Annotation[] extraAnnotations) {
+        CodecPlan.Binding binding = CodecPlan.of(type).binding(extraAnnotations);
+        return binding.annotations.getAnnotation(OctetString.class) != null;
+    }
+
+    /** The decoded octets as the collection that list types are constructed from. */
+    private static final class OctetList extends AbstractList<Byte> implements RandomAccess {
+        private final byte[] octets;
+
+        OctetList(byte[] octets) {
+            this.octets = octets;
+        }
+
+        @Override public Byte get(int index) {
+            return octets[index];  // Boxed from the Byte cache.
+        }
+
+        @Override public int size() {
+            return octets.length;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package net.gcdc.asn1.uper;
+
+import java.util.List;
+
+/**
+ * The result of {@link UperEncoder#decodePartial}: the value with the selected fields decoded,
+ * and the deferred fields of the projection, to be decoded when needed.
+ *
+ * Can be handed to other threads, see {@link Deferred}.
+ */
+public final class Partial<T> {
+
+    private final T value;
+    private final List<String> deferredPaths;
+    /** Per deferred path, null if the field was absent. */
+    private final Deferred<?>[] deferred;
+
+    Partial(T value, List<String> deferredPaths, Deferred<?>[] deferred) {
+        this.value = value;
+        this.deferredPaths = deferredPaths;
+        this.deferred = deferred;
+    }
+
+    /** The decoded value; deferred fields are null in it, like fields that were not selected. */
+    public T value() {
+        return value;
+    }
+
+    /**
+     * The deferred field with the given path, or null if it was absent from the encoding (an
+     * optional field, or a field of a SEQUENCE that was absent itself).
+     *
+     * @throws IllegalArgumentException if the projection does not defer the path, or the field is
+     *         not of the given type
+     */
+    public <F> Deferred<F> deferred(String fieldPath, Class<F> type) {
+        int index = deferredPaths.indexOf(fieldPath);
+        if (index < 0) {
+            throw new IllegalArgumentException(fieldPath + " is not deferred, only "
+                    + deferredPaths);
+        }
+        Deferred<?> result = deferred[index];
+        if (result != null && result.type() != type) {
+            throw new IllegalArgumentException(fieldPath + " is a " + result.type().getName()
+                    + ", not a " + type.getName());
+        }
+        @SuppressWarnings("unchecked")
+        // Checked above.
+        Deferred<F> typedResult = (Deferred<F>) result;
+        return typedResult;
+    }
+
+    @Override public String toString() {
+        StringBuilder result = new StringBuilder("Partial(").append(value);
+        for (int i = 0; i < deferred.length; i++) {
+            result.append(", ").append(deferredPaths.get(i)).append(": ").append(deferred[i]);
+        }
+        return result.append(")").toString();
+    }
+}
@@ -0,0 +1,220 @@
+package net.gcdc.asn1.uper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import net.gcdc.asn1.datatypes.Sequence;
+import net.gcdc.asn1.uper.CodecPlan.FieldPlan;
+
+/**
+ * The fields of a SEQUENCE class to decode, e.g. only the header and the management container of
+ * a DENM:
+ *
+ * <pre>
+ * static final Projection&lt;Denm2&gt; ROUTING = Projection.of(Denm2.class, "header", "denm.management");
+ * ...
+ * Denm2 denm = UperEncoder.decode(bytes, ROUTING);
+ * </pre>
+ *
+ * Fields are named by paths of field names through nested SEQUENCEs of the extension root.
+ * Decoding with a projection (see {@link UperEncoder#decode(byte[], Projection)}) stops as soon as
+ * the last selected field is decoded, so the rest of the message is not even read. Fields in
+ * front of a selected field are read past but not kept. Every field that was not selected is null
+ * in the result (or the default value, if primitive), mandatory or not, so the result is a view
+ * for reading, not a message to encode again.
+ *
+ * Fields can also be {@link #deferring deferred}: decoding with
+ * {@link UperEncoder#decodePartial} does not decode them, but records where they start, and
+ * {@link Partial#deferred} decodes them on first use.
+ *
+ * Projections are immutable and can be shared between threads; resolve them once and keep them.
+ */
+public final class Projection<T> {
+
+    final Class<T> type;
+    final Node root;
+    private final List<String> fieldPaths;
+    final List<String> deferredPaths;
+
+    private Projection(Class<T> type, Node root, List<String> fieldPaths,
+            List<String> deferredPaths) {
+        this.type = type;
+        this.root = root;
+        this.fieldPaths = fieldPaths;
+        this.deferredPaths = deferredPaths;
+    }
+
+    /**
+     * The projection of type to the given fields, e.g. "header" or "denm.management".
+     *
+     * @throws IllegalArgumentException if type is not a SEQUENCE, a path names no field of the
+     *         extension root, or goes through a field that is not a SEQUENCE
+     */
+    public static <T> Projection<T> of(Class<T> type, String... fieldPaths) {
+        if (fieldPaths.length == 0) {
+            throw new IllegalArgumentException("No fields selected for " + type.getName());
+        }
+        return build(type, Collections.unmodifiableList(new ArrayList<>(Arrays.asList(
+                fieldPaths))), Collections.<String>emptyList());
+    }
+
+    /**
+     * This projection, and also the given fields deferred, e.g. "denm.location": where they start
+     * is recorded, and they are only decoded when asked for, see {@link Partial#deferred}. To
+     * find where a deferred field starts, the fields in front of it are skipped, not decoded.
+     *
+     * @throws IllegalArgumentException if a path names no field of the extension root, goes
+     *         through a field that is not a SEQUENCE or a selected one, or is already selected
+     */
+    public Projection<T> deferring(String... fieldPaths) {
+        List<String> deferred = new ArrayList<>(deferredPaths);
+        deferred.addAll(Arrays.asList(fieldPaths));
+        return build(type, this.fieldPaths, Collections.unmodifiableList(deferred));
+    }
+
+    private static <T> Projection<T> build(Class<T> type, List<String> fieldPaths,
+            List<String> deferredPaths) {
+        Builder root = new Builder(type);
+        for (String path : fieldPaths) {
+            Builder node = root;
+            String[] names = path.split("\\.", -1);
+            for (int i = 0; i < names.length; i++) {
+                int index = node.fieldIndex(names[i], path);
+                if (i == names.length - 1) {
+                    node.selectWhole(index);
+                } else {
+                    node = node.selectPart(index, path);
+                    if (node == null) { break; }  // Already selected as a whole.
+                }
+            }
+        }
+        for (int k = 0; k < deferredPaths.size(); k++) {
+            String path = deferredPaths.get(k);
+            Builder node = root;
+            String[] names = path.split("\\.", -1);
+            for (int i = 0; i < names.length; i++) {
+                int index = node.fieldIndex(names[i], path);
+                if (i == names.length - 1) {
+                    node.selectDeferred(index, k, path);
+                } else {
+                    node = node.selectPart(index, path);
+                    if (node == null) { throw new IllegalArgumentException("Can't defer "
+                            + path + ", a field on its path is selected as a whole"); }
+                }
+            }
+        }
+        return new Projection<>(type, root.build(), fieldPaths, deferredPaths);
+    }
+
+    public Class<T> type() {
+        return type;
+    }
+
+    /** The deferred field paths, in the order they were given. */
+    public List<String> deferredPaths() {
+        return deferredPaths;
+    }
+
+    @Override public String toString() {
+        return "Projection(" + type.getName() + ", " + fieldPaths
+                + (deferredPaths.isEmpty() ? "" : ", deferring " + deferredPaths) + ")";
+    }
+
+    /** The selection in one SEQUENCE: what to do with each field of its extension root. */
+    static final class Node {
+        /** Marks fields that are decoded as a whole. */
+        static final Node WHOLE = new Node(null, new Node[0], -1, -1);
+
+        final CodecPlan plan;
+        /**
+         * Per ordinary field: null if not selected, {@link #WHOLE}, a deferred field, or the
+         * nested selection.
+         */
+        final Node[] fields;
+        /** Index of the last selected or deferred ordinary field, decoding stops after it. */
+        final int lastField;
+        /** For a deferred field, its index in {@link Projection#deferredPaths}, otherwise -1. */
+        final int deferredIndex;
+
+        private Node(CodecPlan plan, Node[] fields, int lastField, int deferredIndex) {
+            this.plan = plan;
+            this.fields = fields;
+            this.lastField = lastField;
+            this.deferredIndex = deferredIndex;
+        }
+
+        static Node deferred(int deferredIndex) {
+            return new Node(null, new Node[0], -1, deferredIndex);
+        }
+    }
+
+    private static final class Builder {
+        private final CodecPlan plan;
+        private final Object[] fields;  // Null, Node.WHOLE, a deferred Node or a Builder.
+
+        Builder(Class<?> type) {
+            if (type.getAnnotation(Sequence.class) == null) {
+                throw new IllegalArgumentException("Not a SEQUENCE: " + type.getName());
+            }
+            this.plan = CodecPlan.of(type);
+            this.fields = new Object[plan.ordinaryFields().size()];
+        }
+
+        int fieldIndex(String name, String path) {
+            List<FieldPlan> ordinaryFields = plan.ordinaryFields();
+            for (int i = 0; i < ordinaryFields.size(); i++) {
+                if (ordinaryFields.get(i).name.equals(name)) { return i; }
+            }
+            throw new IllegalArgumentException("No field " + name + " (of " + path
+                    + ") in the extension root of " + plan.type.getName());
+        }
+
+        void selectWhole(int index) {
+            fields[index] = Node.WHOLE;
+        }
+
+        void selectDeferred(int index, int deferredIndex, String path) {
+            if (fields[index] != null) {
+                throw new IllegalArgumentException("Can't defer " + path
+                        + ", it is already selected or deferred");
+            }
+            fields[index] = Node.deferred(deferredIndex);
+        }
+
+        Builder selectPart(int index, String path) {
+            if (fields[index] == Node.WHOLE) { return null; }
+            if (fields[index] instanceof Node) {
+                throw new IllegalArgumentException("Field "
+                        + plan.ordinaryFields().get(index).name + " (of " + path
+                        + ") is deferred, nothing in it can be selected");
+            }
+            if (fields[index] == null) {
+                FieldPlan f = plan.ordinaryFields().get(index);
+                if (f.type.getAnnotation(Sequence.class) == null) {
+                    throw new IllegalArgumentException("Field " + f.name + " (of " + path
+                            + ") is not a SEQUENCE, only whole values can be selected");
+                }
+                fields[index] = new Builder(f.type);
+            }
+            return (Builder) fields[index];
+        }
+
+        Node build() {
+            Node[] result = new Node[fields.length];
+            int lastField = -1;
+            for (int i = 0; i < fields.length; i++) {
+                if (fields[i] instanceof Builder) {
+                    result[i] = ((Builder) fields[i]).build();
+                } else {
+                    result[i] = (Node) fields[i];
+                }
+                if (result[i] != null) {
+                    lastField = i;
+                }
+            }
+            return new Node(plan, result, lastField, -1);
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package net.gcdc.asn1.uper;
+
+import java.lang.annotation.Annotation;
+
+/**
+ * A {@link Decoder} that can also decode into an existing value of the type, see
+ * {@link UperEncoder#decodeInto}. Implemented by the reflective coders of the mutable types:
+ * SEQUENCE and CHOICE classes, SEQUENCE OF lists and Asn1Integer types.
+ */
+interface ReusingDecoder extends Decoder {
+
+    /**
+     * Decodes a value of classOfT, reusing reuse (an instance of exactly classOfT) and what it
+     * holds where possible. Returns reuse itself, or a new value if it could not be reused.
+     */
+    <T> T decodeInto(BitBuffer bitbuffer, Class<T> classOfT, Annotation[] extraAnnotations,
+            T reuse);
+}
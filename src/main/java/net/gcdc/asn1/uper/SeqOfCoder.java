@@ -2,15 +2,12 @@ package net.gcdc.asn1.uper;
 
 import java.lang.annotation.Annotation;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.List;
 
 import net.gcdc.asn1.datatypes.FixedSize;
 import net.gcdc.asn1.datatypes.SizeRange;
-import net.jodah.typetools.TypeResolver;
-import net.jodah.typetools.TypeResolver.Unknown;
 
-class SeqOfCoder implements Decoder, Encoder {
+class SeqOfCoder implements ReusingDecoder, SkippingDecoder, Encoder {
 
     @Override public <T> boolean canEncode(T obj, Annotation[] extraAnnotations) {
         return obj instanceof List<?>;
@@ -18,12 +15,30 @@ class SeqOfCoder implements Decoder, Encoder {
 
     @Override public <T> void encode(BitBuffer bitbuffer, T obj, Annotation[] extraAnnotations) throws Asn1EncodingException {
         Class<?> type = obj.getClass();
-        AnnotationStore annotations = new AnnotationStore(type.getAnnotations(),
-                extraAnnotations);
+        CodecPlan.Binding binding = CodecPlan.of(type).binding(extraAnnotations);
         UperEncoder.logger.debug("SEQUENCE OF");
         List<?> list = (List<?>) obj;
-        final FixedSize fixedSize = annotations.getAnnotation(FixedSize.class);
-        SizeRange sizeRange = annotations.getAnnotation(SizeRange.class);
+        encodeSize(bitbuffer, list.size(), type, binding);
+        UperEncoder.logger.debug("  all elems of Seq Of: {}", list);
+        boolean unbound = binding.fixedSize == null && binding.sizeRange == null;
+        for (Object elem : list) {
+            try {
+                UperEncoder.encode2(bitbuffer, elem, UperEncoder.NO_ANNOTATIONS);
+            } catch (Asn1EncodingException e) {
+                if (!unbound) { throw e; }
+                throw new Asn1EncodingException(" element " + elem.toString(), e);
+            }
+        }
+    }
+
+    /**
+     * Encodes the number of elements (or octets, see {@link OctetStringCoder}) of a value of type,
+     * as {@link #decodeSize} reads it.
+     */
+    static void encodeSize(BitBuffer bitbuffer, int size, Class<?> type,
+            CodecPlan.Binding binding) throws Asn1EncodingException {
+        final FixedSize fixedSize = binding.fixedSize;
+        SizeRange sizeRange = binding.sizeRange;
         if (fixedSize != null)
             sizeRange = new SizeRange() {
                 @Override public Class<? extends Annotation> annotationType() { return SizeRange.class; }
@@ -34,44 +49,34 @@ class SeqOfCoder implements Decoder, Encoder {
         if (sizeRange == null) {
             int position1 = bitbuffer.position();
             try {
-                UperEncoder.encodeLengthDeterminant(bitbuffer, list.size());
+                UperEncoder.encodeLengthDeterminant(bitbuffer, size);
             } catch (Asn1EncodingException e) {
                 throw new Asn1EncodingException(" number of elements ", e);
             }
-            UperEncoder.logger.debug("unbound size {}, encoded as {}", list.size(),
-                    bitbuffer.toBooleanStringFromPosition(position1));
-            UperEncoder.logger.debug("  all elems of Seq Of: {}", list);
-            for (Object elem : list) {
-                try {
-                    UperEncoder.encode2(bitbuffer, elem, new Annotation[] {});
-                } catch (Asn1EncodingException e) {
-                    throw new Asn1EncodingException(" element " + elem.toString(), e);
-                }
+            if (UperEncoder.logger.isDebugEnabled()) {
+                UperEncoder.logger.debug("unbound size {}, encoded as {}", size,
+                        bitbuffer.toBooleanStringFromPosition(position1));
             }
             return;
         }
-        boolean outsideOfRange = list.size() < sizeRange.minValue()
-                || sizeRange.maxValue() < list.size();
+        boolean outsideOfRange = size < sizeRange.minValue()
+                || sizeRange.maxValue() < size;
         if (outsideOfRange && !sizeRange.hasExtensionMarker()) { throw new IllegalArgumentException(
-                "Out-of-range size for " + obj.getClass() + ", expected " +
+                "Out-of-range size for " + type + ", expected " +
                         sizeRange.minValue() + ".." + sizeRange.maxValue() + ", got "
-                        + list.size()); }
+                        + size); }
         if (sizeRange.hasExtensionMarker()) {
             bitbuffer.put(outsideOfRange);
             UperEncoder.logger.debug("With Extension Marker, {} of range ({} <= {} <= {})",
-                    (outsideOfRange ? "outside" : "inside"), sizeRange.minValue(), list.size(),
+                    (outsideOfRange ? "outside" : "inside"), sizeRange.minValue(), size,
                     sizeRange.maxValue());
             if (outsideOfRange) { throw new UnsupportedOperationException(
                     "Sequence-of size range extensions are not implemented yet, range " +
                             sizeRange.minValue() + ".." + sizeRange.maxValue()
-                            + ", requested size " + list.size()); }
-        }
-        UperEncoder.logger.debug("seq-of of constrained size {}, encoding size...", list.size());
-        UperEncoder.encodeConstrainedInt(bitbuffer, list.size(), sizeRange.minValue(), sizeRange.maxValue());
-        UperEncoder.logger.debug("  all elems of Seq Of: {}", list);
-        for (Object elem : list) {
-            UperEncoder.encode2(bitbuffer, elem, new Annotation[] {});
+                            + ", requested size " + size); }
         }
+        UperEncoder.logger.debug("seq-of of constrained size {}, encoding size...", size);
+        UperEncoder.encodeConstrainedInt(bitbuffer, size, sizeRange.minValue(), sizeRange.maxValue());
     }
 
     @Override public <T> boolean canDecode(Class<T> classOfT, Annotation[] extraAnnotations) {
@@ -81,24 +86,92 @@ class SeqOfCoder implements Decoder, Encoder {
     @Override public <T> T decode(BitBuffer bitbuffer,
             Class<T> classOfT,
             Annotation[] extraAnnotations) {
-        AnnotationStore annotations = new AnnotationStore(classOfT.getAnnotations(),
-                extraAnnotations);
         UperEncoder.logger.debug("SEQUENCE OF for {}", classOfT);
-        FixedSize fixedSize = annotations.getAnnotation(FixedSize.class);
-        SizeRange sizeRange = annotations.getAnnotation(SizeRange.class);
-        long size =
-          (fixedSize != null) ? fixedSize.value() :
-              (sizeRange != null) ? UperEncoder.decodeConstrainedInt(bitbuffer, UperEncoder.intRangeFromSizeRange(sizeRange)) :
-                  UperEncoder.decodeLengthDeterminant(bitbuffer);
-        Collection<Object> coll = new ArrayList<Object>((int) size);
+        CodecPlan.ListPlan listPlan = CodecPlan.of(classOfT).listPlan();
+        long size = decodeSize(bitbuffer, classOfT, extraAnnotations);
+        ArrayList<Object> coll = new ArrayList<Object>((int) size);
+        if (size > 0) {
+            Class<?> classOfElements = listPlan.elementType();
+            Decoder elementDecoder = listPlan.elementDecoder();
+            for (int i = 0; i < size; i++) {
+                coll.add(elementDecoder.decode(bitbuffer, classOfElements,
+                        UperEncoder.NO_ANNOTATIONS));
+            }
+        }
+        return listPlan.newList(classOfT, coll);
+    }
+
+    /**
+     * Decodes the elements into the elements of reuse. If that gives back the same elements, and
+     * as many, the list itself is reused, otherwise a new one is made.
+     */
+    @Override public <T> T decodeInto(BitBuffer bitbuffer, Class<T> classOfT,
+            Annotation[] extraAnnotations, T reuse) {
+        UperEncoder.logger.debug("SEQUENCE OF for {}, into the existing list", classOfT);
+        List<?> oldList = (List<?>) reuse;
+        CodecPlan.ListPlan listPlan = CodecPlan.of(classOfT).listPlan();
+        long size = decodeSize(bitbuffer, classOfT, extraAnnotations);
+        Class<?> classOfElements = size > 0 ? listPlan.elementType() : null;
+        ArrayList<Object> coll = size == oldList.size() ? null
+                : new ArrayList<Object>((int) size);
         for (int i = 0; i < size; i++) {
-            Class<?>[] typeArgs = TypeResolver.resolveRawArguments(List.class, classOfT);
-            Class<?> classOfElements = typeArgs[0];
-            if (classOfElements == Unknown.class) { throw new IllegalArgumentException(
-                    "Can't resolve type of elements for " + classOfT.getName()); }
-            coll.add(UperEncoder.decode2(bitbuffer, classOfElements, new Annotation[] {}));
+            Object oldElement = i < oldList.size() ? oldList.get(i) : null;
+            Object element = UperEncoder.decodeInto2(bitbuffer, classOfElements,
+                    UperEncoder.NO_ANNOTATIONS, oldElement);
+            if (coll == null && element != oldElement) {
+                coll = new ArrayList<Object>((int) size);
+                coll.addAll(oldList.subList(0, i));
+            }
+            if (coll != null) {
+                coll.add(element);
+            }
+        }
+        if (coll == null) {
+            return reuse;
         }
-        T result = UperEncoder.instantiate(classOfT, coll);
-        return result;        }
+        return listPlan.newList(classOfT, coll);
+    }
+
+    @Override public <T> void skip(BitBuffer bitbuffer, Class<T> classOfT,
+            Annotation[] extraAnnotations) {
+        UperEncoder.logger.debug("SEQUENCE OF for {}, skipped", classOfT);
+        long size = decodeSize(bitbuffer, classOfT, extraAnnotations);
+        if (size == 0) {
+            return;
+        }
+        Class<?> classOfElements = CodecPlan.of(classOfT).listPlan().elementType();
+        int elementWidth = UperEncoder.fixedWidth(classOfElements, UperEncoder.NO_ANNOTATIONS);
+        if (elementWidth >= 0) {
+            UperEncoder.skipBits(bitbuffer, size * elementWidth);
+            return;
+        }
+        for (int i = 0; i < size; i++) {
+            UperEncoder.skip2(bitbuffer, classOfElements, UperEncoder.NO_ANNOTATIONS);
+        }
+    }
+
+    @Override public <T> int fixedWidth(Class<T> classOfT, Annotation[] extraAnnotations) {
+        CodecPlan.Binding binding = CodecPlan.of(classOfT).binding(extraAnnotations);
+        if (binding.fixedSize == null) {
+            return -1;
+        }
+        if (binding.fixedSize.value() == 0) {
+            return 0;
+        }
+        Class<?> classOfElements = CodecPlan.of(classOfT).listPlan().elementType();
+        int elementWidth = UperEncoder.fixedWidth(classOfElements, UperEncoder.NO_ANNOTATIONS);
+        return elementWidth < 0 ? -1 : binding.fixedSize.value() * elementWidth;
+    }
+
+    static long decodeSize(BitBuffer bitbuffer, Class<?> classOfT,
+            Annotation[] extraAnnotations) {
+        CodecPlan.Binding binding = CodecPlan.of(classOfT).binding(extraAnnotations);
+        FixedSize fixedSize = binding.fixedSize;
+        SizeRange sizeRange = binding.sizeRange;
+        return (fixedSize != null) ? fixedSize.value() :
+              (sizeRange != null) ? UperEncoder.decodeConstrainedInt(bitbuffer,
+                      sizeRange.minValue(), sizeRange.maxValue(), sizeRange.hasExtensionMarker()) :
+                  UperEncoder.decodeLengthDeterminant(bitbuffer);
+    }
 
 }
\ No newline at end of file
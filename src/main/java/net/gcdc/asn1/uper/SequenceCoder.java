@@ -1,164 +1,333 @@
 package net.gcdc.asn1.uper;
 
 import java.lang.annotation.Annotation;
-import java.lang.reflect.Field;
-import java.util.ArrayDeque;
-import java.util.Deque;
+import java.util.List;
 
 import net.gcdc.asn1.datatypes.Sequence;
-import net.gcdc.asn1.uper.UperEncoder.Asn1ContainerFieldSorter;
+import net.gcdc.asn1.uper.CodecPlan.FieldPlan;
 
-class SequenceCoder implements Decoder, Encoder {
+class SequenceCoder implements ReusingDecoder, SkippingDecoder, Encoder {
 
     @Override public <T> boolean canEncode(T obj, Annotation[] extraAnnotations) {
         Class<?> type = obj.getClass();
-        AnnotationStore annotations = new AnnotationStore(type.getAnnotations(),
-                extraAnnotations);
-        return annotations.getAnnotation(Sequence.class) != null;
+        CodecPlan.Binding binding = CodecPlan.of(type).binding(extraAnnotations);
+        return binding.annotations.getAnnotation(Sequence.class) != null;
     }
 
     @Override public <T> void encode(BitBuffer bitbuffer, T obj, Annotation[] extraAnnotations) throws Asn1EncodingException {
         Class<?> type = obj.getClass();
-        AnnotationStore annotations = new AnnotationStore(type.getAnnotations(),
-                extraAnnotations);
+        CodecPlan plan = CodecPlan.of(type);
+        boolean hasExtensionMarker = plan.hasExtensionMarker(extraAnnotations);
         UperEncoder.logger.debug("SEQUENCE {}", type.getName());
-        Asn1ContainerFieldSorter sorter = new Asn1ContainerFieldSorter(type);
         try {
-            if (UperEncoder.hasExtensionMarker(annotations)) {
-                boolean extensionsPresent = !sorter.extensionFields.isEmpty()
-                        && UperEncoder.hasNonNullExtensions(obj, sorter);
+            if (hasExtensionMarker) {
+                boolean extensionsPresent = !plan.extensionFields().isEmpty()
+                        && plan.hasNonNullExtensions(obj);
                 UperEncoder.logger.debug("with extension marker, {} extensions, extensionBit: <{}>",
                         extensionsPresent ? "with" : "without", extensionsPresent);
                 bitbuffer.put(extensionsPresent);
             }
             // Bitmask for optional fields.
-            for (Field f : sorter.optionalOrdinaryFields) {
+            for (FieldPlan f : plan.optionalOrdinaryFields()) {
                 boolean fieldPresent = f.get(obj) != null;
                 UperEncoder.logger.debug("with optional field {} {}, presence encoded as bit <{}>",
-                        f.getName(), fieldPresent ? "present" : "absent", fieldPresent);
+                        f.name, fieldPresent ? "present" : "absent", fieldPresent);
                 bitbuffer.put(fieldPresent);  // null means the field is absent.
             }
             // All ordinary fields (fields within extension root).
-            for (Field f : sorter.ordinaryFields) {
-                if ((UperEncoder.isMandatory(f) || f.get(obj) != null) && !UperEncoder.isTestInstrumentation(f)) {
-                    UperEncoder.logger.debug("Field : {}", f.getName());
+            for (FieldPlan f : plan.ordinaryFields()) {
+                Object fieldValue = f.get(obj);
+                if (f.isMandatory() || fieldValue != null) {
+                    UperEncoder.logger.debug("Field : {}", f.name);
                     try {
-                        UperEncoder.encode2(bitbuffer, f.get(obj), f.getAnnotations());
+                        UperEncoder.encode2(bitbuffer, fieldValue, f.annotations);
                     } catch (Asn1EncodingException e) {
-                        throw new Asn1EncodingException("." + f.getName(), e);
+                        throw new Asn1EncodingException("." + f.name, e);
                     } catch (IllegalArgumentException e) {
-                        throw new IllegalArgumentException("Illegal value for field " + f.getName(), e);
+                        throw new IllegalArgumentException("Illegal value for field " + f.name, e);
                     }
                 }
             }
             // Extension fields.
-            if (UperEncoder.hasExtensionMarker(annotations) && !sorter.extensionFields.isEmpty()
-                    && UperEncoder.hasNonNullExtensions(obj, sorter)) {
-                // Total extensions count.
-                int numExtensions = sorter.extensionFields.size();
-                UperEncoder.logger.debug(
-                        "continuing sequence : {} extension(s) are present, encoding length determinant for them...",
-                        numExtensions);
-                UperEncoder.encodeLengthOfBitmask(bitbuffer, numExtensions);
-                // Bitmask for present extensions.
-                for (Field f : sorter.extensionFields) {
-                    boolean fieldIsPresent = f.get(obj) != null;
-                    UperEncoder.logger.debug("Extension {} is {}, presence encoded as <{}>", f.getName(),
-                            fieldIsPresent ? "present" : "absent", fieldIsPresent ? "1" : "0");
-                    bitbuffer.put(fieldIsPresent);
-                }
-                // Values of extensions themselves.
-                for (Field f : sorter.extensionFields) {
-                    if (f.get(obj) != null) {
-                        UperEncoder.logger.debug("Encoding extension field {}", f.getName());
-                        try {
-                            UperEncoder.encodeAsOpenType(bitbuffer, f.get(obj), f.getAnnotations());
-                        } catch (IllegalArgumentException e) {
-                            throw new IllegalArgumentException("Illegal value for extension field " + f.getName(), e);
-                        }
-                    }
-                }
+            if (hasExtensionMarker && !plan.extensionFields().isEmpty()
+                    && plan.hasNonNullExtensions(obj)) {
+                encodeExtensions(bitbuffer, obj, plan);
             }
-        } catch (IllegalArgumentException | IllegalAccessException e) {
+        } catch (IllegalArgumentException e) {
             throw new IllegalArgumentException("can't encode " + obj, e);
         }
-        sorter.revertAccess();
     }
 
     @Override public <T> boolean canDecode(Class<T> classOfT, Annotation[] extraAnnotations) {
-        AnnotationStore annotations = new AnnotationStore(classOfT.getAnnotations(),
-                extraAnnotations);
-        return annotations.getAnnotation(Sequence.class) != null;
+        CodecPlan.Binding binding = CodecPlan.of(classOfT).binding(extraAnnotations);
+        return binding.annotations.getAnnotation(Sequence.class) != null;
     }
 
     @Override public <T> T decode(BitBuffer bitbuffer,
             Class<T> classOfT,
             Annotation[] extraAnnotations) {
-        AnnotationStore annotations = new AnnotationStore(classOfT.getAnnotations(),
-                extraAnnotations);
+        return decode(bitbuffer, classOfT, extraAnnotations, UperEncoder.instantiate(classOfT),
+                false);
+    }
+
+    @Override public <T> T decodeInto(BitBuffer bitbuffer, Class<T> classOfT,
+            Annotation[] extraAnnotations, T reuse) {
+        return decode(bitbuffer, classOfT, extraAnnotations, reuse, true);
+    }
+
+    /**
+     * Decodes the fields into result. If reuse, result is a previously decoded value: fields are
+     * decoded into their old values where possible, and absent fields are set to null.
+     */
+    private static <T> T decode(BitBuffer bitbuffer, Class<T> classOfT,
+            Annotation[] extraAnnotations, T result, boolean reuse) {
+        CodecPlan plan = CodecPlan.of(classOfT);
+        boolean hasExtensionMarker = plan.hasExtensionMarker(extraAnnotations);
         UperEncoder.logger.debug("SEQUENCE");
-        T result = UperEncoder.instantiate(classOfT);
-        Asn1ContainerFieldSorter sorter = new Asn1ContainerFieldSorter(classOfT);
         boolean extensionPresent = false;
-        if (UperEncoder.hasExtensionMarker(annotations)) {
+        if (hasExtensionMarker) {
             extensionPresent = bitbuffer.get();
             UperEncoder.logger.debug("with extension marker, extension {}", extensionPresent ? "present!"
                     : "absent");
         }
-        // Bitmask for optional fields.
-        Deque<Boolean> optionalFieldsMask = new ArrayDeque<>(
-                sorter.optionalOrdinaryFields.size());
-        for (Field f : sorter.optionalOrdinaryFields) {
-            optionalFieldsMask.add(bitbuffer.get());
-            UperEncoder.logger.debug("with optional field {} {}", f.getName(),
-                    optionalFieldsMask.getLast() ? "present" : "absent");
+        // Bitmask for optional fields, read as one long unless there are more than 64.
+        int numOptional = plan.optionalOrdinaryFields().size();
+        boolean[] optionalFieldsMask = numOptional > 64
+                ? UperEncoder.decodeBitmask(bitbuffer, numOptional) : null;
+        long presenceBits = numOptional > 0 && numOptional <= 64
+                ? UperEncoder.getBits(bitbuffer, numOptional) : 0;
+        for (int i = 0; i < numOptional; i++) {
+            UperEncoder.logger.debug("with optional field {} {}",
+                    plan.optionalOrdinaryFields().get(i).name,
+                    isPresent(optionalFieldsMask, presenceBits, numOptional, i) ? "present"
+                            : "absent");
         }
         // All ordinary fields (fields within extension root).
-        for (Field f : sorter.ordinaryFields) {
-            if (!UperEncoder.isTestInstrumentation(f)
-                    && (UperEncoder.isMandatory(f) || (UperEncoder.isOptional(f) && optionalFieldsMask.pop()))) {
-                UperEncoder.logger.debug("Field : {}", f.getName());
-                try {
-                    f.set(result, UperEncoder.decode2(bitbuffer, f.getType(), f.getAnnotations()));
-                } catch (IllegalAccessException e) {
-                    throw new IllegalArgumentException("can't access 'set method' for field " + f + " of class " + classOfT + " " + e, e);
-                }
+        int optionalIndex = 0;
+        List<FieldPlan> ordinaryFields = plan.ordinaryFields();
+        for (int i = 0; i < ordinaryFields.size(); i++) {  // Indexed, no iterator per value.
+            FieldPlan f = ordinaryFields.get(i);
+            if (f.isMandatory()
+                    || isPresent(optionalFieldsMask, presenceBits, numOptional, optionalIndex++)) {
+                UperEncoder.logger.debug("Field : {}", f.name);
+                f.set(result, reuse
+                        ? UperEncoder.decodeInto2(bitbuffer, f.type, f.annotations,
+                                plan.reusableValue(f, result))
+                        : UperEncoder.decode2(bitbuffer, f.type, f.annotations));
+            } else if (reuse) {
+                f.set(result, null);
             }
         }
         // Extension fields.
-        if (UperEncoder.hasExtensionMarker(annotations) && extensionPresent) {
-            // Number of extensions.
-            int numExtensions = (int) UperEncoder.decodeLengthOfBitmask(bitbuffer);
-            UperEncoder.logger.debug("sequence has {} extension(s)", numExtensions);
-            // Bitmask for extensions.
-            boolean[] bitmaskValueIsPresent = new boolean[numExtensions];
-            for (int i = 0; i < numExtensions; i++) {
-                bitmaskValueIsPresent[i] = bitbuffer.get();
-                UperEncoder.logger.debug("extension {} is {}", i, bitmaskValueIsPresent[i] ? "present"
-                        : "absent");
+        if (reuse) {
+            List<FieldPlan> extensionFields = plan.extensionFields();
+            for (int i = 0; i < extensionFields.size(); i++) {
+                extensionFields.get(i).set(result, null);
             }
-            // Values.
-            UperEncoder.logger.debug("decoding extensions values...");
-            for (int i = 0; i < numExtensions; i++) {
-                UperEncoder.logger.debug("sequence extension {} {}", i,
-                        bitmaskValueIsPresent[i] ? "present" : "absent");
-                if (bitmaskValueIsPresent[i]) {
-                    UperEncoder.logger.debug("decoding extension {}...", i);
-                    Field field = sorter.extensionFields.size() > i ? sorter.extensionFields
-                            .get(i) : null;
-                    Class<?> classOfElement = field != null ? field.getType() : null;
-                    try {
-                        Object decodedValue = UperEncoder.decodeAsOpenType(bitbuffer, classOfElement,
-                                field.getAnnotations());
-                        if (field != null) {
-                            field.set(result, decodedValue);
-                        }
-                    } catch (IllegalArgumentException | IllegalAccessException e) {
-                        throw new IllegalArgumentException("can't decode " + classOfT, e);
+        }
+        if (hasExtensionMarker && extensionPresent) {
+            decodeExtensions(bitbuffer, result, plan);
+        }
+        return result;
+    }
+
+    @Override public <T> void skip(BitBuffer bitbuffer, Class<T> classOfT,
+            Annotation[] extraAnnotations) {
+        CodecPlan plan = CodecPlan.of(classOfT);
+        UperEncoder.logger.debug("SEQUENCE, skipped");
+        boolean extensionPresent = plan.hasExtensionMarker(extraAnnotations) && bitbuffer.get();
+        int numOptional = plan.optionalOrdinaryFields().size();
+        boolean[] optionalFieldsMask = numOptional > 64
+                ? UperEncoder.decodeBitmask(bitbuffer, numOptional) : null;
+        long presenceBits = numOptional > 0 && numOptional <= 64
+                ? UperEncoder.getBits(bitbuffer, numOptional) : 0;
+        int optionalIndex = 0;
+        List<FieldPlan> ordinaryFields = plan.ordinaryFields();
+        for (int i = 0; i < ordinaryFields.size(); i++) {
+            FieldPlan f = ordinaryFields.get(i);
+            if (f.isMandatory()
+                    || isPresent(optionalFieldsMask, presenceBits, numOptional, optionalIndex++)) {
+                int width = f.binding().fixedWidth;
+                if (width >= 0) {
+                    UperEncoder.skipBits(bitbuffer, width);
+                } else {
+                    UperEncoder.skip2(bitbuffer, f.type, f.annotations);
+                }
+            }
+        }
+        if (extensionPresent) {
+            skipExtensions(bitbuffer);
+        }
+    }
+
+    @Override public <T> int fixedWidth(Class<T> classOfT, Annotation[] extraAnnotations) {
+        CodecPlan plan = CodecPlan.of(classOfT);
+        if (plan.hasExtensionMarker(extraAnnotations) || !plan.optionalOrdinaryFields().isEmpty()) {
+            return -1;
+        }
+        int result = 0;
+        for (FieldPlan f : plan.ordinaryFields()) {
+            int width = UperEncoder.fixedWidth(f.type, f.annotations);
+            if (width < 0) {
+                return -1;
+            }
+            result += width;
+        }
+        return result;
+    }
+
+    /**
+     * Decodes the fields of a SEQUENCE selected by node, see {@link Projection}, and stops after
+     * the last of them, unless toEnd: then the rest of the value is skipped, as the caller goes
+     * on reading after it. Other fields are set to null. Deferred fields are recorded in deferred
+     * (if not null) as positions in bytes, which bitbuffer wraps from its start.
+     */
+    static <T> T decodeProjection(BitBuffer bitbuffer, Class<T> classOfT,
+            Annotation[] extraAnnotations, Projection.Node node, boolean toEnd, byte[] bytes,
+            Deferred<?>[] deferred) {
+        CodecPlan plan = node.plan;
+        UperEncoder.logger.debug("SEQUENCE, projection");
+        T result = UperEncoder.instantiate(classOfT);
+        // Extensions come last, they are never selected.
+        boolean extensionPresent = plan.hasExtensionMarker(extraAnnotations) && bitbuffer.get();
+        int numOptional = plan.optionalOrdinaryFields().size();
+        boolean[] optionalFieldsMask = numOptional > 64
+                ? UperEncoder.decodeBitmask(bitbuffer, numOptional) : null;
+        long presenceBits = numOptional > 0 && numOptional <= 64
+                ? UperEncoder.getBits(bitbuffer, numOptional) : 0;
+        List<FieldPlan> ordinaryFields = plan.ordinaryFields();
+        // The last selected field that is present: nothing after it has to be read.
+        int lastField = -1;
+        int optionalIndex = 0;
+        for (int i = 0; i <= node.lastField; i++) {
+            if (ordinaryFields.get(i).isMandatory()
+                    || isPresent(optionalFieldsMask, presenceBits, numOptional, optionalIndex++)) {
+                lastField = node.fields[i] != null ? i : lastField;
+            }
+        }
+        optionalIndex = 0;
+        for (int i = 0; i < ordinaryFields.size(); i++) {
+            FieldPlan f = ordinaryFields.get(i);
+            Projection.Node selection = node.fields[i];
+            boolean present = f.isMandatory()
+                    || isPresent(optionalFieldsMask, presenceBits, numOptional, optionalIndex++);
+            boolean readOn = toEnd || i < lastField;  // Whether anything after f is read.
+            if (present && (i <= lastField || toEnd)) {
+                if (selection == null) {
+                    UperEncoder.skip2(bitbuffer, f.type, f.annotations);
+                } else if (selection.deferredIndex >= 0) {
+                    if (deferred != null) {
+                        UperEncoder.logger.debug("Field : {}, deferred", f.name);
+                        deferred[selection.deferredIndex] = new Deferred<>(bytes,
+                                bitbuffer.position(), f.type, f.annotations);
+                    }
+                    if (readOn) {
+                        UperEncoder.skip2(bitbuffer, f.type, f.annotations);
+                    }
+                } else {
+                    UperEncoder.logger.debug("Field : {}", f.name);
+                    f.set(result, selection != Projection.Node.WHOLE
+                            ? decodeProjection(bitbuffer, f.type, f.annotations, selection,
+                                    readOn, bytes, deferred)
+                            : UperEncoder.decode2(bitbuffer, f.type, f.annotations));
+                    continue;
+                }
+            }
+            if ((selection == null || selection.deferredIndex >= 0) && !f.type.isPrimitive()) {
+                f.set(result, null);
+            }
+        }
+        if (toEnd && extensionPresent) {
+            skipExtensions(bitbuffer);
+        }
+        for (FieldPlan f : plan.extensionFields()) {
+            f.set(result, null);
+        }
+        return result;
+    }
+
+    /** Whether optional field i is present, from the bitmask as an array or as a long. */
+    private static boolean isPresent(boolean[] mask, long bits, int numOptional, int i) {
+        return mask != null ? mask[i] : ((bits >>> (numOptional - 1 - i)) & 1) != 0;
+    }
+
+    /**
+     * Encodes the extension additions of obj, which has at least one of them set: their count,
+     * presence bitmask and values as open types. Shared with the generated codecs.
+     */
+    static void encodeExtensions(BitBuffer bitbuffer, Object obj, CodecPlan plan)
+            throws Asn1EncodingException {
+        // Total extensions count.
+        int numExtensions = plan.extensionFields().size();
+        UperEncoder.logger.debug(
+                "continuing sequence : {} extension(s) are present, encoding length determinant for them...",
+                numExtensions);
+        UperEncoder.encodeLengthOfBitmask(bitbuffer, numExtensions);
+        // Bitmask for present extensions.
+        for (FieldPlan f : plan.extensionFields()) {
+            boolean fieldIsPresent = f.get(obj) != null;
+            UperEncoder.logger.debug("Extension {} is {}, presence encoded as <{}>", f.name,
+                    fieldIsPresent ? "present" : "absent", fieldIsPresent ? "1" : "0");
+            bitbuffer.put(fieldIsPresent);
+        }
+        // Values of extensions themselves.
+        for (FieldPlan f : plan.extensionFields()) {
+            Object fieldValue = f.get(obj);
+            if (fieldValue != null) {
+                UperEncoder.logger.debug("Encoding extension field {}", f.name);
+                try {
+                    UperEncoder.encodeAsOpenType(bitbuffer, fieldValue, f.annotations);
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("Illegal value for extension field " + f.name, e);
+                }
+            }
+        }
+    }
+
+    /** Advances past the extension additions, after the extension bit was found set. */
+    static void skipExtensions(BitBuffer bitbuffer) {
+        int numExtensions = (int) UperEncoder.decodeLengthOfBitmask(bitbuffer);
+        int numPresent = UperEncoder.countBitmask(bitbuffer, numExtensions);
+        UperEncoder.logger.debug("skipping {} of {} extension(s)", numPresent, numExtensions);
+        for (int i = 0; i < numPresent; i++) {
+            UperEncoder.skipOpenType(bitbuffer);
+        }
+    }
+
+    /**
+     * Decodes the extension additions into result, after the extension bit was found set. Unknown
+     * extensions are skipped. Shared with the generated codecs.
+     */
+    static void decodeExtensions(BitBuffer bitbuffer, Object result, CodecPlan plan) {
+        // Number of extensions.
+        int numExtensions = (int) UperEncoder.decodeLengthOfBitmask(bitbuffer);
+        UperEncoder.logger.debug("sequence has {} extension(s)", numExtensions);
+        // Bitmask for extensions.
+        boolean[] bitmaskValueIsPresent = UperEncoder.decodeBitmask(bitbuffer, numExtensions);
+        for (int i = 0; i < numExtensions; i++) {
+            UperEncoder.logger.debug("extension {} is {}", i, bitmaskValueIsPresent[i] ? "present"
+                    : "absent");
+        }
+        // Values.
+        UperEncoder.logger.debug("decoding extensions values...");
+        for (int i = 0; i < numExtensions; i++) {
+            UperEncoder.logger.debug("sequence extension {} {}", i,
+                    bitmaskValueIsPresent[i] ? "present" : "absent");
+            if (bitmaskValueIsPresent[i]) {
+                UperEncoder.logger.debug("decoding extension {}...", i);
+                FieldPlan field = plan.extensionFields().size() > i ? plan.extensionFields()
+                        .get(i) : null;
+                Class<?> classOfElement = field != null ? field.type : null;
+                try {
+                    Object decodedValue = UperEncoder.decodeAsOpenType(bitbuffer, classOfElement,
+                            field != null ? field.annotations : UperEncoder.NO_ANNOTATIONS);
+                    if (field != null) {
+                        field.set(result, decodedValue);
                     }
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("can't decode " + plan.type, e);
                 }
             }
         }
-        sorter.revertAccess();
-        return result;        }
+    }
 }
\ No newline at end of file
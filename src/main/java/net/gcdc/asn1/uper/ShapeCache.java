@@ -0,0 +1,550 @@
+package net.gcdc.asn1.uper;
+
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.gcdc.asn1.datatypes.IntRange;
+import net.gcdc.asn1.uper.CodecPlan.FieldPlan;
+
+/**
+ * A decoder for messages of one type that keep coming in the same few shapes, e.g. the DENMs of
+ * one road side unit: the same optional fields present, the same CHOICE alternatives and the same
+ * list sizes, only the values change.
+ *
+ * The shape of a message is what decoding branches on: presence bitmasks, extension bits, CHOICE
+ * indexes and SEQUENCE OF sizes. When a message of a new shape is decoded, its shape is recorded
+ * on the way: where those bits are and what they were, and where each value of fixed width
+ * (INTEGER, ENUMERATED, BOOLEAN, ...) starts. A later message with the same bits in the same places has the
+ * same layout, so its values are read at their recorded offsets, without decoders, bindings or
+ * presence bits to look at per field. Values of varying width (UTF8Strings, SEQUENCEs with
+ * extension additions, ...) are decoded as usual where they start; if one ends anywhere else
+ * than in the recorded message, the layout does not hold and the message is decoded as usual.
+ *
+ * That replaces the work of the reflective coders, which decode the model in the default build. A
+ * type with a generated codec (codegen profile) or a runtime-compiled one
+ * ({@value CodecSupport#RUNTIME_CODECS_PROPERTY}=true) is decoded by that codec instead, which
+ * reads the bits in one pass of straight-line code.
+ *
+ * A message whose values don't fit the recorded shapes is recorded and decoded in one pass, like
+ * a message of a new shape. One that fails to record is decoded as usual, so it fails with the
+ * same exception as {@link UperEncoder#decode(byte[], Class)}; no message is decoded more than
+ * twice.
+ *
+ * The {@code maxShapes} most recently used shapes are kept. Instances can be shared between
+ * threads.
+ */
+public final class ShapeCache<T> {
+
+    private static final int DEFAULT_MAX_SHAPES = 8;
+
+    private final Class<T> type;
+    private final int maxShapes;
+    /** Whether type has a generated or runtime-compiled codec, which is used instead. */
+    private final boolean compiled;
+    /** Most recently used first, replaced as a whole. */
+    private volatile Shape[] shapes = new Shape[0];
+
+    public ShapeCache(Class<T> type) {
+        this(type, DEFAULT_MAX_SHAPES);
+    }
+
+    public ShapeCache(Class<T> type, int maxShapes) {
+        if (maxShapes < 1) {
+            throw new IllegalArgumentException("maxShapes " + maxShapes + " is less than 1");
+        }
+        this.type = type;
+        this.maxShapes = maxShapes;
+        this.compiled = UperEncoder.decoderFor(type, UperEncoder.NO_ANNOTATIONS)
+                != UperEncoder.reflectiveDecoderFor(type, UperEncoder.NO_ANNOTATIONS);
+    }
+
+    /** Decodes like {@link UperEncoder#decode(byte[], Class)}, using a recorded shape if one fits. */
+    public T decode(byte[] bytes) throws IllegalArgumentException, UnsupportedOperationException {
+        if (compiled) {
+            return UperEncoder.decode(bytes, type);
+        }
+        BitBufferPool pool = BitBufferPool.get();
+        ByteBufferBitBuffer bitbuffer = pool.view();
+        try {
+            T result = decode(bitbuffer, bytes, null);
+            return result != null ? result : UperEncoder.decode(bytes, type);
+        } finally {
+            pool.release(bitbuffer);
+        }
+    }
+
+    /**
+     * Decodes the remaining bytes of the buffer like {@link UperEncoder#decode(ByteBuffer, Class)},
+     * using a recorded shape if one fits. The position of the buffer is not changed.
+     */
+    public T decode(ByteBuffer buffer) throws IllegalArgumentException,
+            UnsupportedOperationException {
+        if (compiled) {
+            return UperEncoder.decode(buffer, type);
+        }
+        BitBufferPool pool = BitBufferPool.get();
+        ByteBufferBitBuffer bitbuffer = pool.view();
+        try {
+            T result = decode(bitbuffer, null, buffer);
+            return result != null ? result : UperEncoder.decode(buffer, type);
+        } finally {
+            pool.release(bitbuffer);
+        }
+    }
+
+    /** Number of shapes kept now. */
+    public int size() {
+        return shapes.length;
+    }
+
+    /**
+     * Decodes bytes or buffer with a shape, or records its shape while decoding it if none fits;
+     * null if that fails.
+     */
+    private T decode(ByteBufferBitBuffer bitbuffer, byte[] bytes, ByteBuffer buffer) {
+        Shape[] current = shapes;
+        for (int i = 0; i < current.length; i++) {
+            Shape shape = current[i];
+            if (shape.matches(rewrap(bitbuffer, bytes, buffer))) {
+                T result = shape.build(rewrap(bitbuffer, bytes, buffer), type);
+                if (result != null && i > 0) {
+                    moveToFront(shape);
+                }
+                if (result != null) {
+                    return result;
+                }
+            }
+        }
+        Recorder recorder = new Recorder();
+        Shape shape;
+        try {
+            shape = recorder.record(rewrap(bitbuffer, bytes, buffer), type);
+        } catch (RuntimeException | AssertionError e) {
+            // Decoding as usual reports it, with its own exception.
+            UperEncoder.logger.debug("Can't record the shape of {}, decoding as usual", type, e);
+            return null;
+        }
+        if (bitbuffer.remaining() > 7) {
+            return null;  // Decoding as usual reports the garbage.
+        }
+        moveToFront(shape);
+        return type.cast(recorder.value);
+    }
+
+    private static ByteBufferBitBuffer rewrap(ByteBufferBitBuffer bitbuffer, byte[] bytes,
+            ByteBuffer buffer) {
+        return bytes != null ? bitbuffer.rewrap(bytes) : bitbuffer.rewrap(buffer);
+    }
+
+    /** Puts shape first, dropping the least recently used shape if there are too many. */
+    private synchronized void moveToFront(Shape shape) {
+        Shape[] current = shapes;
+        List<Shape> result = new ArrayList<>(current.length + 1);
+        result.add(shape);
+        for (Shape s : current) {
+            if (s != shape && result.size() < maxShapes) {
+                result.add(s);
+            }
+        }
+        shapes = result.toArray(new Shape[result.size()]);
+    }
+
+    /** The layout of messages of one shape. Immutable. */
+    private static final class Shape {
+        /** The bits that decide the shape: their offsets, widths (at most 64) and values. */
+        private final int[] checkOffsets;
+        private final int[] checkWidths;
+        private final long[] checkBits;
+        private final Node root;
+        /** Offset of the end of the message. */
+        private final int end;
+
+        Shape(int[] checkOffsets, int[] checkWidths, long[] checkBits, Node root, int end) {
+            this.checkOffsets = checkOffsets;
+            this.checkWidths = checkWidths;
+            this.checkBits = checkBits;
+            this.root = root;
+            this.end = end;
+        }
+
+        /** Whether the shape bits of the message in bitbuffer are the recorded ones. */
+        boolean matches(ByteBufferBitBuffer bitbuffer) {
+            if (bitbuffer.remaining() < end) {
+                return false;
+            }
+            for (int i = 0; i < checkOffsets.length; i++) {
+                bitbuffer.skip(checkOffsets[i] - bitbuffer.position());
+                if (bitbuffer.getBits(checkWidths[i]) != checkBits[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Reads the values of the message in bitbuffer at their offsets, null if a value of
+         * varying width turns out to end elsewhere than recorded.
+         */
+        <T> T build(ByteBufferBitBuffer bitbuffer, Class<T> type) {
+            try {
+                Object result = root.build(bitbuffer);
+                bitbuffer.skip(end - bitbuffer.position());
+                if (bitbuffer.remaining() > 7) {
+                    return null;  // Decoding as usual reports the garbage.
+                }
+                return type.cast(result);
+            } catch (RuntimeException | AssertionError e) {
+                UperEncoder.logger.debug("Shape of {} does not fit: {}", type, e.getMessage());
+                return null;
+            }
+        }
+    }
+
+    /** Reads a value at its recorded offset. The offsets increase in the order of building. */
+    private abstract static class Node {
+        abstract Object build(ByteBufferBitBuffer bitbuffer);
+    }
+
+    /**
+     * Like {@link UperEncoder#instantiate}, with the no-argument constructor of type resolved
+     * when the shape was recorded.
+     */
+    private static Object instantiate(MethodHandle constructor, Class<?> type) {
+        try {
+            return (Object) constructor.invokeExact();
+        } catch (Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalArgumentException("Can't instantiate " + type.getName(), e);
+        }
+    }
+
+    private static final class IntLeaf extends Node {
+        private final int offset;
+        private final int width;
+        private final long lowerBound;
+        private final long upperBound;
+        private final Class<?> type;
+
+        IntLeaf(int offset, int width, IntRange range, Class<?> type) {
+            this.offset = offset;
+            this.width = width;
+            this.lowerBound = range.minValue();
+            this.upperBound = range.maxValue();
+            this.type = type;
+        }
+
+        @Override Object build(ByteBufferBitBuffer bitbuffer) {
+            return IntCoder.newInstance(type, read(bitbuffer));
+        }
+
+        long read(ByteBufferBitBuffer bitbuffer) {
+            bitbuffer.skip(offset - bitbuffer.position());
+            long value = lowerBound + bitbuffer.getBits(width);
+            if (value > upperBound) {  // Decoding as usual reports it.
+                throw new IllegalArgumentException("Decoded value " + value
+                        + " is outside of range (" + lowerBound + ".." + upperBound + ")");
+            }
+            return value;
+        }
+    }
+
+    private static final class EnumLeaf extends Node {
+        private final int offset;
+        private final int width;
+        private final Object[] constants;
+
+        EnumLeaf(int offset, int width, Object[] constants) {
+            this.offset = offset;
+            this.width = width;
+            this.constants = constants;
+        }
+
+        @Override Object build(ByteBufferBitBuffer bitbuffer) {
+            bitbuffer.skip(offset - bitbuffer.position());
+            long index = bitbuffer.getBits(width);
+            if (index >= constants.length) {
+                throw new IllegalArgumentException("decoded enum index " + index
+                        + " is larger then number of elements (0.." + constants.length + ")");
+            }
+            return constants[(int) index];
+        }
+    }
+
+    private static final class BooleanLeaf extends Node {
+        private final int offset;
+
+        BooleanLeaf(int offset) {
+            this.offset = offset;
+        }
+
+        @Override Object build(ByteBufferBitBuffer bitbuffer) {
+            bitbuffer.skip(offset - bitbuffer.position());
+            return bitbuffer.get();
+        }
+    }
+
+    /** Any other value, decoded as usual; it must end where it did in the recorded message. */
+    private static final class ValueLeaf extends Node {
+        private final int offset;
+        private final int end;
+        private final Class<?> type;
+        private final Annotation[] annotations;
+
+        ValueLeaf(int offset, int end, Class<?> type, Annotation[] annotations) {
+            this.offset = offset;
+            this.end = end;
+            this.type = type;
+            this.annotations = annotations;
+        }
+
+        @Override Object build(ByteBufferBitBuffer bitbuffer) {
+            bitbuffer.skip(offset - bitbuffer.position());
+            Object result = UperEncoder.decode2(bitbuffer, type, annotations);
+            if (bitbuffer.position() != end) {
+                throw new IllegalArgumentException(type.getName() + " ends at bit "
+                        + bitbuffer.position() + " instead of " + end);
+            }
+            return result;
+        }
+    }
+
+    private static final class SequenceNode extends Node {
+        private final Class<?> type;
+        private final MethodHandle constructor;
+        /** The fields present in this shape, and their values. */
+        private final FieldPlan[] fields;
+        private final Node[] values;
+
+        SequenceNode(Class<?> type, FieldPlan[] fields, Node[] values) {
+            this.type = type;
+            this.constructor = CodecPlan.of(type).constructorFor();
+            this.fields = fields;
+            this.values = values;
+        }
+
+        @Override Object build(ByteBufferBitBuffer bitbuffer) {
+            Object result = instantiate(constructor, type);
+            for (int i = 0; i < fields.length; i++) {
+                fields[i].set(result, values[i].build(bitbuffer));
+            }
+            return result;
+        }
+    }
+
+    private static final class ChoiceNode extends Node {
+        private final Class<?> type;
+        private final MethodHandle constructor;
+        private final List<FieldPlan> fieldsSetByConstructor;
+        private final FieldPlan chosen;
+        private final Node value;
+
+        ChoiceNode(Class<?> type, FieldPlan chosen, Node value) {
+            this.type = type;
+            this.constructor = CodecPlan.of(type).constructorFor();
+            this.fieldsSetByConstructor = CodecPlan.of(type).fieldsSetByConstructor();
+            this.chosen = chosen;
+            this.value = value;
+        }
+
+        @Override Object build(ByteBufferBitBuffer bitbuffer) {
+            Object result = instantiate(constructor, type);
+            for (int i = 0; i < fieldsSetByConstructor.size(); i++) {
+                fieldsSetByConstructor.get(i).set(result, null);
+            }
+            chosen.set(result, value.build(bitbuffer));
+            return result;
+        }
+    }
+
+    private static final class ListNode extends Node {
+        private final Class<?> type;
+        private final CodecPlan.ListPlan listPlan;
+        private final Node[] elements;
+
+        ListNode(Class<?> type, Node[] elements) {
+            this.type = type;
+            this.listPlan = CodecPlan.of(type).listPlan();
+            this.elements = elements;
+        }
+
+        @Override Object build(ByteBufferBitBuffer bitbuffer) {
+            ArrayList<Object> result = new ArrayList<>(elements.length);
+            for (Node element : elements) {
+                result.add(element.build(bitbuffer));
+            }
+            return listPlan.newList(type, result);
+        }
+    }
+
+    /**
+     * Records the shape of one message while decoding it, making a node for each value on the way.
+     * Each value is read by its node, so the message is decoded like later ones of its shape.
+     */
+    private static final class Recorder {
+        private final List<int[]> checks = new ArrayList<>();  // Offset and width.
+        private final List<Long> checkBits = new ArrayList<>();
+        private ByteBufferBitBuffer bitbuffer;
+        /** The value of the node recorded last; of the whole message after {@link #record}. */
+        private Object value;
+
+        Shape record(ByteBufferBitBuffer bitbuffer, Class<?> type) {
+            this.bitbuffer = bitbuffer;
+            Node root = record(type, UperEncoder.NO_ANNOTATIONS);
+            int n = checks.size();
+            int[] offsets = new int[n];
+            int[] widths = new int[n];
+            long[] bits = new long[n];
+            for (int i = 0; i < n; i++) {
+                offsets[i] = checks.get(i)[0];
+                widths[i] = checks.get(i)[1];
+                bits[i] = checkBits.get(i);
+            }
+            UperEncoder.logger.debug("Recorded a shape of {} with {} shape bit groups", type, n);
+            return new Shape(offsets, widths, bits, root, bitbuffer.position());
+        }
+
+        private Node record(Class<?> type, Annotation[] annotations) {
+            Decoder decoder = UperEncoder.reflectiveDecoderFor(type, annotations);
+            if (decoder instanceof SequenceCoder) {
+                return recordSequence(type, annotations);
+            } else if (decoder instanceof ChoiceCoder) {
+                return recordChoice(type, annotations);
+            } else if (decoder instanceof SeqOfCoder) {
+                return recordList(type, annotations);
+            }
+            int start = bitbuffer.position();
+            int width = UperEncoder.fixedWidth(type, annotations);
+            Node leaf = null;
+            if (decoder instanceof IntCoder) {
+                IntRange range = IntCoder.range(type, annotations);
+                if (range.hasExtensionMarker() && !peek()) {
+                    check(start, 1);
+                    bitbuffer.skip(1);
+                    start++;
+                    width = UperEncoder.constrainedIntWidth(range.minValue(), range.maxValue());
+                }
+                if (width >= 0) {
+                    leaf = new IntLeaf(start, width, range, type);
+                }
+            } else if (decoder instanceof EnumCoder && width >= 0) {
+                leaf = new EnumLeaf(start, width, CodecPlan.of(type).enumConstants);
+            } else if (decoder instanceof BooleanCoder) {
+                leaf = new BooleanLeaf(start);
+            }
+            if (leaf == null) {
+                return value(type, annotations);
+            }
+            value = leaf.build(bitbuffer);  // Checks ranges and indexes, like decoding as usual.
+            return leaf;
+        }
+
+        private Node recordSequence(Class<?> type, Annotation[] annotations) {
+            CodecPlan plan = CodecPlan.of(type);
+            int numOptional = plan.optionalOrdinaryFields().size();
+            if (numOptional > 64 || plan.hasExtensionMarker(annotations) && peek()) {
+                return value(type, annotations);  // Extension additions are open types.
+            }
+            if (plan.hasExtensionMarker(annotations)) {
+                check(bitbuffer.position(), 1);
+                bitbuffer.skip(1);
+            }
+            int start = bitbuffer.position();
+            long presenceBits = UperEncoder.getBits(bitbuffer, numOptional);
+            check(start, numOptional);
+            List<FieldPlan> fields = new ArrayList<>();
+            List<Node> values = new ArrayList<>();
+            Object result = instantiate(plan.constructorFor(), type);
+            int optionalIndex = 0;
+            for (FieldPlan f : plan.ordinaryFields()) {
+                if (f.isMandatory()
+                        || ((presenceBits >>> (numOptional - 1 - optionalIndex++)) & 1) != 0) {
+                    fields.add(f);
+                    values.add(record(f.type, f.annotations));
+                    f.set(result, value);
+                }
+            }
+            value = result;
+            return new SequenceNode(type, fields.toArray(new FieldPlan[fields.size()]),
+                    values.toArray(new Node[values.size()]));
+        }
+
+        private Node recordChoice(Class<?> type, Annotation[] annotations) {
+            CodecPlan plan = CodecPlan.of(type);
+            if (plan.hasExtensionMarker(annotations)) {
+                if (peek()) {
+                    return value(type, annotations);  // Fails to decode, as usual.
+                }
+                check(bitbuffer.position(), 1);
+                bitbuffer.skip(1);
+            }
+            int start = bitbuffer.position();
+            int index = (int) UperEncoder.decodeConstrainedInt(bitbuffer, 0,
+                    plan.ordinaryFields().size() - 1, false);
+            check(start, bitbuffer.position() - start);
+            FieldPlan chosen = plan.ordinaryFields().get(index);
+            Object result = instantiate(plan.constructorFor(), type);
+            for (FieldPlan f : plan.fieldsSetByConstructor()) {
+                f.set(result, null);
+            }
+            Node node = new ChoiceNode(type, chosen, record(chosen.type, chosen.annotations));
+            chosen.set(result, value);
+            value = result;
+            return node;
+        }
+
+        private Node recordList(Class<?> type, Annotation[] annotations) {
+            int start = bitbuffer.position();
+            long size = SeqOfCoder.decodeSize(bitbuffer, type, annotations);
+            if (bitbuffer.position() - start > 64) {
+                throw new UnsupportedOperationException("Size of " + type.getName()
+                        + " takes more than 64 bits");
+            }
+            check(start, bitbuffer.position() - start);
+            Node[] elements = new Node[(int) size];
+            ArrayList<Object> result = new ArrayList<>(elements.length);
+            if (size > 0) {
+                Class<?> classOfElements = CodecPlan.of(type).listPlan().elementType();
+                for (int i = 0; i < size; i++) {
+                    elements[i] = record(classOfElements, UperEncoder.NO_ANNOTATIONS);
+                    result.add(value);
+                }
+            }
+            value = CodecPlan.of(type).listPlan().newList(type, result);
+            return new ListNode(type, elements);
+        }
+
+        /** A value decoded as usual, which finds its end. */
+        private Node value(Class<?> type, Annotation[] annotations) {
+            int start = bitbuffer.position();
+            value = UperEncoder.decode2(bitbuffer, type, annotations);
+            return new ValueLeaf(start, bitbuffer.position(), type, annotations);
+        }
+
+        /** The next bit, without reading it. */
+        private boolean peek() {
+            return bitbuffer.get(bitbuffer.position());
+        }
+
+        /** Records the width bits at offset, which were read already, as shape bits. */
+        private void check(int offset, int width) {
+            if (width == 0) {
+                return;
+            }
+            long bits = 0;
+            for (int i = 0; i < width; i++) {
+                bits = (bits << 1) | (bitbuffer.get(offset + i) ? 1 : 0);
+            }
+            checks.add(new int[] { offset, width });
+            checkBits.add(bits);
+        }
+    }
+
+    @Override public String toString() {
+        return "ShapeCache(" + type.getName() + ", " + shapes.length + " of " + maxShapes
+                + " shapes)";
+    }
+}
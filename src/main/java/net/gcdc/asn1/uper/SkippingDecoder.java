@@ -0,0 +1,20 @@
+package net.gcdc.asn1.uper;
+
+import java.lang.annotation.Annotation;
+
+/**
+ * A {@link Decoder} that can also read past a value of the type without making it, see
+ * {@link UperEncoder#skip2}. Values of fixed width are skipped by moving the position, without
+ * reading their bits. Implemented by all the reflective coders.
+ */
+interface SkippingDecoder extends Decoder {
+
+    /** Advances bitbuffer past an encoded value of classOfT, instantiating nothing. */
+    <T> void skip(BitBuffer bitbuffer, Class<T> classOfT, Annotation[] extraAnnotations);
+
+    /**
+     * The number of bits that every value of classOfT takes, e.g. for an INTEGER with a range
+     * and no extension marker, or -1 if it depends on the value.
+     */
+    <T> int fixedWidth(Class<T> classOfT, Annotation[] extraAnnotations);
+}
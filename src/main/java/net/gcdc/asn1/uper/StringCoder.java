@@ -1,14 +1,10 @@
 package net.gcdc.asn1.uper;
 
 import java.lang.annotation.Annotation;
-import java.math.BigInteger;
-import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
 
+import net.gcdc.asn1.datatypes.Alphabet;
 import net.gcdc.asn1.datatypes.Asn1String;
 import net.gcdc.asn1.datatypes.CharacterRestriction;
 import net.gcdc.asn1.datatypes.DefaultAlphabet;
@@ -18,7 +14,7 @@ import net.gcdc.asn1.datatypes.SizeRange;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-class StringCoder implements Decoder, Encoder {
+class StringCoder implements SkippingDecoder, Encoder {
 
     private  static final Logger LOGGER = LoggerFactory.getLogger(StringCoder.class);
 
@@ -28,19 +24,17 @@ class StringCoder implements Decoder, Encoder {
 
     @Override public <T> void encode(BitBuffer bitbuffer, T obj, Annotation[] extraAnnotations) throws Asn1EncodingException {
         Class<?> type = obj.getClass();
-        AnnotationStore annotations = new AnnotationStore(type.getAnnotations(),
-                extraAnnotations);
+        CodecPlan.Binding binding = CodecPlan.of(type).binding(extraAnnotations);
         UperEncoder.logger.debug("STRING {} of type {}", obj, obj.getClass().getName());
         String string = (obj instanceof String) ? ((String) obj) : ((Asn1String) obj).value();
-        RestrictedString restrictionAnnotation = annotations
-                .getAnnotation(RestrictedString.class);
+        RestrictedString restrictionAnnotation = binding.restrictedString;
         if (restrictionAnnotation == null) {
             throw new UnsupportedOperationException(
                 "Unrestricted character strings are not supported yet. All annotations: "
                         + Arrays.asList(type.getAnnotations()));
         }
-        FixedSize fixedSize = annotations.getAnnotation(FixedSize.class);
-        SizeRange sizeRange = annotations.getAnnotation(SizeRange.class);
+        FixedSize fixedSize = binding.fixedSize;
+        SizeRange sizeRange = binding.sizeRange;
         if (fixedSize != null && fixedSize.value() != string.length()) {
             throw new IllegalArgumentException(
                 "Bad string length, expected " + fixedSize.value() + ", got " + string.length());
@@ -52,45 +46,37 @@ class StringCoder implements Decoder, Encoder {
                 "Bad string length, expected " + sizeRange.minValue() + ".."
                         + sizeRange.maxValue() + ", got " + string.length()); }
         if (restrictionAnnotation.value() == CharacterRestriction.UTF8String) {
-            // UTF8 length
-                                                                                BitBuffer stringbuffer = ByteBitBuffer.createInfinite();
-            for (char c : string.toCharArray()) {
-                encodeChar(stringbuffer, c, restrictionAnnotation);
-            }
-            stringbuffer.flip();
-            if (stringbuffer.limit() % 8 != 0) { throw new AssertionError(
-                    "utf8 encoding resulted not in multiple of 8 bits"); }
-            int numOctets = (stringbuffer.limit() + 7) / 8;  // Actually +7 is not needed here,
-                                                            // since we already checked with %8.
+            byte[] octets = string.getBytes(StandardCharsets.UTF_8);
+            int numOctets = octets.length;
             int position1 = bitbuffer.position();
             UperEncoder.encodeLengthDeterminant(bitbuffer, numOctets);
-            UperEncoder.logger.debug("UTF8String {},  length {} octets, encoded as {}", string, numOctets,
-                    bitbuffer.toBooleanStringFromPosition(position1));
+            if (UperEncoder.logger.isDebugEnabled()) {
+                UperEncoder.logger.debug("UTF8String {},  length {} octets, encoded as {}", string, numOctets,
+                        bitbuffer.toBooleanStringFromPosition(position1));
+            }
             int position2 = bitbuffer.position();
-            for (int i = 0; i < stringbuffer.limit(); i++) {
-                bitbuffer.put(stringbuffer.get());
+            bitbuffer.putBytes(octets, 0, numOctets);
+            if (UperEncoder.logger.isDebugEnabled()) {
+                UperEncoder.logger.debug("UTF8String {}, encoded length {} octets, value bits: {}", string,
+                        numOctets, bitbuffer.toBooleanStringFromPosition(position2));
             }
-            UperEncoder.logger.debug("UTF8String {}, encoded length {} octets, value bits: {}", string,
-                    numOctets, bitbuffer.toBooleanStringFromPosition(position2));
             return;
         } else if (fixedSize != null) {
             if (fixedSize.value() != string.length()) { throw new IllegalArgumentException(
                     "String length does not match constraints"); }
             int position = bitbuffer.position();
-            for (int i = 0; i < fixedSize.value(); i++) {
-                encodeChar(bitbuffer, string.charAt(i), restrictionAnnotation);
+            CharTable.of(restrictionAnnotation).encode(bitbuffer, string);
+            if (UperEncoder.logger.isDebugEnabled()) {
+                UperEncoder.logger.debug("string encoded as <{}>",
+                        bitbuffer.toBooleanStringFromPosition(position));
             }
-            UperEncoder.logger.debug("string encoded as <{}>",
-                    bitbuffer.toBooleanStringFromPosition(position));
             return;
         } else if (sizeRange != null) {
             UperEncoder.logger.debug("string length");
             UperEncoder.encodeConstrainedInt(bitbuffer, string.length(), sizeRange.minValue(),
                     sizeRange.maxValue(), sizeRange.hasExtensionMarker());
             UperEncoder.logger.debug("string content");
-            for (int i = 0; i < string.length(); i++) {
-                encodeChar(bitbuffer, string.charAt(i), restrictionAnnotation);
-            }
+            CharTable.of(restrictionAnnotation).encode(bitbuffer, string);
             // logger.debug("string of type {} size {}: {}", obj.getClass().getName(),
             // binaryStringFromCollection(lengthBits), binaryStringFromCollection(valuebits));
             return;
@@ -98,12 +84,12 @@ class StringCoder implements Decoder, Encoder {
             int position1 = bitbuffer.position();
             UperEncoder.encodeLengthDeterminant(bitbuffer, string.length());
             int position2 = bitbuffer.position();
-            for (int i = 0; i < string.length(); i++) {
-                encodeChar(bitbuffer, string.charAt(i), restrictionAnnotation);
+            CharTable.of(restrictionAnnotation).encode(bitbuffer, string);
+            if (UperEncoder.logger.isDebugEnabled()) {
+                UperEncoder.logger.debug("STRING {} size {}: {}", obj.getClass().getName(),
+                        bitbuffer.toBooleanString(position1, position2 - position1),
+                        bitbuffer.toBooleanStringFromPosition(position2));
             }
-            UperEncoder.logger.debug("STRING {} size {}: {}", obj.getClass().getName(),
-                    bitbuffer.toBooleanString(position1, position2 - position1),
-                    bitbuffer.toBooleanStringFromPosition(position2));
             return;
         }
     }
@@ -116,180 +102,189 @@ class StringCoder implements Decoder, Encoder {
     @Override public <T> T decode(BitBuffer bitbuffer,
             Class<T> classOfT,
             Annotation[] extraAnnotations) {
-        AnnotationStore annotations = new AnnotationStore(classOfT.getAnnotations(),
-                extraAnnotations);
+        CodecPlan.Binding binding = CodecPlan.of(classOfT).binding(extraAnnotations);
         UperEncoder.logger.debug("String");
-        RestrictedString restrictionAnnotation = annotations
-                .getAnnotation(RestrictedString.class);
+        RestrictedString restrictionAnnotation = binding.restrictedString;
         if (restrictionAnnotation == null) { throw new UnsupportedOperationException(
                 "Unrestricted character strings are not supported yet. All annotations: "
                         + Arrays.asList(classOfT.getAnnotations())); }
         if (restrictionAnnotation.value() == CharacterRestriction.UTF8String) {
-            long numOctets = UperEncoder.decodeLengthDeterminant(bitbuffer);
-            List<Boolean> content = new ArrayList<Boolean>();
-            for (int i = 0; i < numOctets * 8; i++) {
-                content.add(bitbuffer.get());
-            }
-            byte[] contentBytes = UperEncoder.bytesFromCollection(content);
-            String resultStr = StandardCharsets.UTF_8.decode(ByteBuffer.wrap(contentBytes))
-                    .toString();
+            byte[] octets = UperEncoder.getOctets(bitbuffer,
+                    UperEncoder.decodeLengthDeterminant(bitbuffer));
+            String resultStr = new String(octets, StandardCharsets.UTF_8);
             T result = UperEncoder.instantiate(classOfT, resultStr);
             return result;
         } else {
-            FixedSize fixedSize = annotations.getAnnotation(FixedSize.class);
-            SizeRange sizeRange = annotations.getAnnotation(SizeRange.class);
+            FixedSize fixedSize = binding.fixedSize;
+            SizeRange sizeRange = binding.sizeRange;
             long numChars = (fixedSize != null) ? fixedSize.value() :
                     (sizeRange != null) ? UperEncoder.decodeConstrainedInt(bitbuffer,
                             UperEncoder.intRangeFromSizeRange(sizeRange)) :
                             UperEncoder.decodeLengthDeterminant(bitbuffer);
             UperEncoder.logger.debug("known-multiplier string, numchars: {}", numChars);
-            StringBuilder stringBuilder = new StringBuilder((int) numChars);
-            for (int c = 0; c < numChars; c++) {
-                stringBuilder.append(decodeRestrictedChar(bitbuffer, restrictionAnnotation));
-            }
-            String resultStr = stringBuilder.toString();
+            String resultStr = CharTable.of(restrictionAnnotation).decode(bitbuffer, numChars);
             UperEncoder.logger.debug("Decoded as {}", resultStr);
             T result = UperEncoder.instantiate(classOfT, resultStr);
             return result;
         }
     }
 
-    private static void encodeChar(BitBuffer bitbuffer, char c, RestrictedString restriction) throws Asn1EncodingException {
-        UperEncoder.logger.debug("char {}", c);
-        switch (restriction.value()) {
-            case IA5String:
-                if (restriction.alphabet() != DefaultAlphabet.class) {
-                    throw new UnsupportedOperationException(
-                        "alphabet for IA5String is not supported yet.");
-                }
-                UperEncoder.encodeConstrainedInt(
-                        bitbuffer,
-                        StandardCharsets.US_ASCII.encode(CharBuffer.wrap(new char[] { c })).get() & 0xff,
-                        0,
-                        127);
-                return;
-            case UTF8String:
-                if (restriction.alphabet() != DefaultAlphabet.class) {
-                    throw new UnsupportedOperationException(
-                        "alphabet for UTF8 is not supported yet.");
+    @Override public <T> void skip(BitBuffer bitbuffer, Class<T> classOfT,
+            Annotation[] extraAnnotations) {
+        CodecPlan.Binding binding = CodecPlan.of(classOfT).binding(extraAnnotations);
+        RestrictedString restrictionAnnotation = binding.restrictedString;
+        if (restrictionAnnotation == null) { throw new UnsupportedOperationException(
+                "Unrestricted character strings are not supported yet. All annotations: "
+                        + Arrays.asList(classOfT.getAnnotations())); }
+        if (restrictionAnnotation.value() == CharacterRestriction.UTF8String) {
+            UperEncoder.skipBits(bitbuffer, UperEncoder.decodeLengthDeterminant(bitbuffer) * 8);
+        } else {
+            FixedSize fixedSize = binding.fixedSize;
+            SizeRange sizeRange = binding.sizeRange;
+            long numChars = (fixedSize != null) ? fixedSize.value() :
+                    (sizeRange != null) ? UperEncoder.decodeConstrainedInt(bitbuffer,
+                            UperEncoder.intRangeFromSizeRange(sizeRange)) :
+                            UperEncoder.decodeLengthDeterminant(bitbuffer);
+            UperEncoder.skipBits(bitbuffer, numChars * CharTable.of(restrictionAnnotation).bits);
+        }
+    }
+
+    @Override public <T> int fixedWidth(Class<T> classOfT, Annotation[] extraAnnotations) {
+        CodecPlan.Binding binding = CodecPlan.of(classOfT).binding(extraAnnotations);
+        RestrictedString restrictionAnnotation = binding.restrictedString;
+        if (restrictionAnnotation == null || binding.fixedSize == null
+                || restrictionAnnotation.value() == CharacterRestriction.UTF8String) {
+            return -1;
+        }
+        return binding.fixedSize.value() * CharTable.of(restrictionAnnotation).bits;
+    }
+
+    /**
+     * How the characters of a known-multiplier string are coded: each is a constrained INTEGER
+     * 0..maxIndex, an index into the characters of the table. Tables are built once per alphabet,
+     * so that a string is coded in one pass over its characters.
+     */
+    private static final class CharTable {
+        /** IA5String: the US-ASCII codes, 0..127. */
+        private static final CharTable IA5 = ascii(127);
+        /** VisibleString and ISO646String: the US-ASCII codes, 0..126. */
+        private static final CharTable VISIBLE = ascii(126);
+        /**
+         * VisibleStrings with an alphabet: indexes into the sorted alphabet, if that makes them
+         * narrower than US-ASCII codes, {@link #VISIBLE} otherwise.
+         */
+        private static final ClassValue<CharTable> ALPHABETS = new ClassValue<CharTable>() {
+            @Override protected CharTable computeValue(Class<?> alphabet) {
+                char[] chars;
+                try {
+                    chars = UperEncoder.instantiate(alphabet.asSubclass(Alphabet.class)).chars()
+                            .toCharArray();
+                } catch (IllegalArgumentException e) {
+                    LOGGER.info("Uninstantinatable alphabet ", e);
+                    throw new IllegalArgumentException("Uninstantinatable alphabet"
+                            + alphabet.getName());
                 }
-                ByteBuffer buffer = StandardCharsets.UTF_8
-                        .encode(CharBuffer.wrap(new char[] { c }));
-                for (int i = 0; i < buffer.limit(); i++) {
-                    UperEncoder.encodeConstrainedInt(bitbuffer, buffer.get() & 0xff, 0, 255);
+                if (UperEncoder.bitLength(chars.length - 1) >= UperEncoder.bitLength(126)) {
+                    return VISIBLE;
                 }
-                return;
-            case VisibleString:
-            case ISO646String:
-                if (restriction.alphabet() != DefaultAlphabet.class) {
-                    char[] chars;
-                    try {
-                        chars = UperEncoder.instantiate(restriction.alphabet()).chars().toCharArray();
-                    } catch (IllegalArgumentException e) {
-                        LOGGER.info("Uninstantinatable alphabet ", e);
-                        throw new IllegalArgumentException("Uninstantinatable alphabet"
-                                + restriction.alphabet().getName());
-                    }
-                    if (BigInteger.valueOf(chars.length - 1).bitLength() < BigInteger.valueOf(126)
-                            .bitLength()) {
-                        Arrays.sort(chars);
-                        String strAlphabet = new String(chars);
-                        int index = strAlphabet.indexOf(c);
-                        if (index < 0) { throw new IllegalArgumentException("can't find character "
-                                + c + " in alphabet " + strAlphabet); }
-                        UperEncoder.encodeConstrainedInt(
-                                bitbuffer,
-                                index,
-                                0,
-                                chars.length - 1);
-                        return;
-                    } else {
-                        UperEncoder.encodeConstrainedInt(
-                                bitbuffer,
-                                StandardCharsets.US_ASCII.encode(CharBuffer.wrap(new char[] { c }))
-                                        .get() & 0xff,
-                                0,
-                                126);
-                        return;
-                    }
-                } else {
-                    UperEncoder.encodeConstrainedInt(
-                            bitbuffer,
-                            StandardCharsets.US_ASCII.encode(CharBuffer.wrap(new char[] { c }))
-                                    .get() & 0xff,
-                            0,
-                            126);
-                    return;
+                Arrays.sort(chars);
+                int maxChar = chars.length == 0 ? -1 : chars[chars.length - 1];
+                short[] indexes = new short[maxChar + 1];
+                Arrays.fill(indexes, (short) -1);
+                for (int i = chars.length - 1; i >= 0; i--) {
+                    indexes[chars[i]] = (short) i;  // The first of duplicates wins.
                 }
-            default:
-                throw new UnsupportedOperationException("String type " + restriction
-                        + " is not supported yet");
+                return new CharTable(chars, indexes, -1, "alphabet " + new String(chars));
+            }
+        };
+
+        /** Width of each character. */
+        final int bits;
+        private final int maxIndex;
+        /** Character of each index. */
+        private final char[] chars;
+        /** Index of each character, -1 if not in the table. */
+        private final short[] indexes;
+        /** Index of the characters past the end of indexes, -1 if they are not in the table. */
+        private final int otherIndex;
+        private final String description;
+
+        private CharTable(char[] chars, short[] indexes, int otherIndex, String description) {
+            this.maxIndex = chars.length - 1;
+            this.bits = Math.max(UperEncoder.bitLength(maxIndex), 0);
+            this.chars = chars;
+            this.indexes = indexes;
+            this.otherIndex = otherIndex;
+            this.description = description;
         }
-    }
 
-    private static String decodeRestrictedChar(BitBuffer bitqueue,
-            RestrictedString restrictionAnnotation) {
-        switch (restrictionAnnotation.value()) {
-            case IA5String: {
-                if (restrictionAnnotation.alphabet() != DefaultAlphabet.class) {
-                    throw new UnsupportedOperationException(
-                        "alphabet for IA5String is not supported yet.");
+        /**
+         * US-ASCII codes up to maxIndex. Characters outside of US-ASCII are coded as '?', like
+         * the US-ASCII encoder replaces them; the codes past maxIndex fail as out of range.
+         */
+        private static CharTable ascii(int maxIndex) {
+            char[] chars = new char[maxIndex + 1];
+            short[] indexes = new short[128];
+            for (int i = 0; i < indexes.length; i++) {
+                if (i < chars.length) {
+                    chars[i] = (char) i;
                 }
-                byte charByte = (byte) UperEncoder.decodeConstrainedInt(bitqueue, UperEncoder.newRange(0, 127, false));
-                byte[] bytes = new byte[] { charByte };
-                String result = StandardCharsets.US_ASCII.decode(ByteBuffer.wrap(bytes)).toString();
-                if (result.length() != 1) { throw new AssertionError("decoded more than one char ("
-                        + result + ")"); }
-                return result;
+                indexes[i] = (short) i;
             }
-            case VisibleString:
-            case ISO646String: {
-                if (restrictionAnnotation.alphabet() != DefaultAlphabet.class) {
-                    char[] chars;
-                    try {
-                        chars = UperEncoder.instantiate(restrictionAnnotation.alphabet()).chars().toCharArray();
-                    } catch (IllegalArgumentException e) {
-                        LOGGER.info("Uninstantinatable alphabet ", e);
-                        throw new IllegalArgumentException("Uninstantinatable alphabet"
-                                + restrictionAnnotation.alphabet().getName());
-                    }
-                    if (BigInteger.valueOf(chars.length - 1).bitLength() < BigInteger.valueOf(126)
-                            .bitLength()) {
-                        Arrays.sort(chars);
-                        int index = (byte) UperEncoder.decodeConstrainedInt(bitqueue,
-                                UperEncoder.newRange(0, chars.length - 1, false));
-                        String strAlphabet = new String(chars);
-                        char c = strAlphabet.charAt(index);
-                        String result = new String("" + c);
-                        return result;
-                    } else {  // Encode normally
-                        byte charByte = (byte) UperEncoder.decodeConstrainedInt(bitqueue,
-                                UperEncoder.newRange(0, 126, false));
-                        byte[] bytes = new byte[] { charByte };
-                        String result = StandardCharsets.US_ASCII.decode(ByteBuffer.wrap(bytes))
-                                .toString();
-                        if (result.length() != 1) { throw new AssertionError(
-                                "decoded more than one char (" + result + ")");
-                        }
-                        return result;
+            return new CharTable(chars, indexes, '?', "US-ASCII");
+        }
+
+        static CharTable of(RestrictedString restriction) {
+            switch (restriction.value()) {
+                case IA5String:
+                    if (restriction.alphabet() != DefaultAlphabet.class) {
+                        throw new UnsupportedOperationException(
+                            "alphabet for IA5String is not supported yet.");
                     }
-                } else {  // Encode normally
-                    byte charByte = (byte) UperEncoder.decodeConstrainedInt(bitqueue, UperEncoder.newRange(0, 126, false));
-                    byte[] bytes = new byte[] { charByte };
-                    String result = StandardCharsets.US_ASCII.decode(ByteBuffer.wrap(bytes))
-                            .toString();
-                    if (result.length() != 1) {
-                        throw new AssertionError(
-                            "decoded more than one char (" + result + ")");
+                    return IA5;
+                case VisibleString:
+                case ISO646String:
+                    if (restriction.alphabet() != DefaultAlphabet.class) {
+                        return ALPHABETS.get(restriction.alphabet());
                     }
-                    return result;
+                    return VISIBLE;
+                default:
+                    throw new UnsupportedOperationException("String type " + restriction
+                            + " is not supported yet");
+            }
+        }
+
+        void encode(BitBuffer bitbuffer, String string) throws Asn1EncodingException {
+            for (int i = 0; i < string.length(); i++) {
+                char c = string.charAt(i);
+                int index = c < indexes.length ? indexes[c] : otherIndex;
+                if (index < 0) {
+                    throw new IllegalArgumentException("can't find character " + c + " in "
+                            + description);
+                } else if (index > maxIndex) {
+                    // Fails as out of range, like any other constrained INTEGER.
+                    UperEncoder.encodeConstrainedInt(bitbuffer, index, 0, maxIndex);
                 }
+                bitbuffer.putBits(index, bits);
             }
-            default:
-                throw new UnsupportedOperationException("String type " + restrictionAnnotation
-                        + " is not supported yet");
+        }
 
+        String decode(BitBuffer bitbuffer, long numChars) {
+            if (numChars * bits > bitbuffer.remaining()) {
+                throw new IllegalArgumentException("Incomplete input, " + numChars
+                        + " characters of " + bits + " bits required, got "
+                        + bitbuffer.remaining() + " bits");
+            }
+            char[] result = new char[(int) numChars];
+            for (int i = 0; i < result.length; i++) {
+                long index = bitbuffer.getBits(bits);
+                if (index > maxIndex) {
+                    throw new AssertionError("Decoded value " + index + " is outside of range (0.."
+                            + maxIndex + ")");
+                }
+                result[i] = chars[(int) index];
+            }
+            return new String(result);
         }
     }
-
-}
\ No newline at end of file
+}
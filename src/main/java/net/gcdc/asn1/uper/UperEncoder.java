@@ -1,21 +1,19 @@
 package net.gcdc.asn1.uper;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
-import java.math.BigInteger;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
 
-import net.gcdc.asn1.datatypes.Asn1Optional;
-import net.gcdc.asn1.datatypes.HasExtensionMarker;
 import net.gcdc.asn1.datatypes.IntRange;
-import net.gcdc.asn1.datatypes.IsExtension;
 import net.gcdc.asn1.datatypes.SizeRange;
 
 import org.slf4j.Logger;
@@ -24,6 +22,13 @@ import org.slf4j.LoggerFactory;
 /** A "quick-and-dirty" implementation of ASN.1 encoder for UPER (Unaligned Packed Encoding Rules).
  * <p>
  * See ITU-T Recommendation <a href="http://www.itu.int/rec/T-REC-X.691">X.691</a>.
+ * <p>
+ * Encoding and decoding are thread-safe: the coders are stateless, and the per-class state
+ * (fields, constructors, constraints and the coder chosen for each type, see {@link CodecPlan})
+ * is resolved once, never changed afterwards and safe to share. No reflective access flags are
+ * toggled while coding, so any number of threads can decode at the same time. A
+ * {@link BitBuffer} is not thread-safe and must not be shared between concurrent calls; the
+ * buffers used internally come from per-thread pools (see {@link BitBufferPool}).
  */
 public final class UperEncoder {
     final static Logger logger = LoggerFactory.getLogger(UperEncoder.class);
@@ -36,58 +41,441 @@ public final class UperEncoder {
     @SuppressWarnings("unused")
     private final static int NUM_64K = 65536;
     
+    /** Extra annotations for values that are not fields, e.g. the top-level value or SEQUENCE OF elements. */
+    static final Annotation[] NO_ANNOTATIONS = new Annotation[] {};
+
     private UperEncoder(){}
 
     public static <T> byte[] encode(T obj)
             throws IllegalArgumentException, UnsupportedOperationException {
         try {
-            BitBuffer bitbuffer = ByteBitBuffer.createInfinite();
-            encode2(bitbuffer, obj, new Annotation[] {});
-            bitbuffer.flip();
-            byte[] result = Arrays.copyOf(bitbuffer.array(), (bitbuffer.limit() + 7) / 8);
-            return result;
+            // Sizing pass first, so the result is allocated once, at its final size.
+            int bitLength = bitLength(obj);
+            BitBufferPool pool = BitBufferPool.get();
+            ByteBitBuffer bitbuffer = pool.writer(new byte[(bitLength + 7) / 8]);
+            try {
+                encode2(bitbuffer, obj, NO_ANNOTATIONS);
+                checkEncodedLength(bitbuffer, bitLength);
+                return bitbuffer.array();
+            } finally {
+                pool.releaseWriter(bitbuffer);
+            }
+        } catch (IllegalArgumentException e) {
+            throw cantEncode(obj, e);
+        } catch (Asn1EncodingException e) {
+            throw cantEncode(obj, e);
+        }
+    }
+
+    /**
+     * Encodes obj into the buffer at its position, padded to whole bytes like {@link #encode},
+     * and moves the position past it. Heap and direct buffers are written in place, e.g. right
+     * after the GeoNetworking and BTP headers of a frame, without an intermediate array.
+     *
+     * @throws BufferOverflowException if the encoding does not fit, nothing is written then
+     */
+    public static <T> ByteBuffer encodeTo(ByteBuffer buffer, T obj)
+            throws IllegalArgumentException, UnsupportedOperationException {
+        try {
+            int bitLength = bitLength(obj);
+            int numBytes = (bitLength + 7) / 8;
+            if (buffer.remaining() < numBytes) {
+                throw new BufferOverflowException();
+            }
+            BitBufferPool pool = BitBufferPool.get();
+            ByteBufferBitBuffer bitbuffer = pool.view();
+            try {
+                encode2(bitbuffer.rewrapForWriting(buffer, numBytes * 8), obj, NO_ANNOTATIONS);
+                checkEncodedLength(bitbuffer, bitLength);
+                bitbuffer.putBits(0, numBytes * 8 - bitLength);  // The bytes were not cleared.
+            } finally {
+                pool.release(bitbuffer);
+            }
+            buffer.position(buffer.position() + numBytes);
+            return buffer;
+        } catch (IllegalArgumentException e) {
+            throw cantEncode(obj, e);
+        } catch (Asn1EncodingException e) {
+            throw cantEncode(obj, e);
+        }
+    }
+
+    /**
+     * Encodes obj into the stream, padded to whole bytes like {@link #encode}, and writes it with
+     * one call. The encoding is built in a pooled scratch buffer of this thread, so a steady stream
+     * of encodes allocates no arrays; the stream must not keep the array it is given. Nothing is
+     * written if obj can't be encoded.
+     */
+    public static <T> void encodeTo(OutputStream out, T obj)
+            throws IOException, IllegalArgumentException, UnsupportedOperationException {
+        BitBufferPool pool = BitBufferPool.get();
+        ByteBitBuffer bitbuffer = pool.scratch();
+        try {
+            int numBytes;
+            try {
+                int bitLength = bitLength(obj);
+                numBytes = (bitLength + 7) / 8;
+                encode2(bitbuffer, obj, NO_ANNOTATIONS);
+                checkEncodedLength(bitbuffer, bitLength);
+                bitbuffer.putBits(0, numBytes * 8 - bitLength);  // The bytes were not cleared.
+            } catch (IllegalArgumentException e) {
+                throw cantEncode(obj, e);
+            } catch (Asn1EncodingException e) {
+                throw cantEncode(obj, e);
+            }
+            out.write(bitbuffer.array(), 0, numBytes);
+        } finally {
+            pool.releaseScratch(bitbuffer);
+        }
+    }
+
+    /**
+     * The exact length in bits of the UPER encoding of obj, without the padding to whole bytes
+     * that {@link #encode} adds. Nothing is allocated for the encoded bits.
+     */
+    public static <T> int encodedBitLength(T obj)
+            throws IllegalArgumentException, UnsupportedOperationException {
+        try {
+            return bitLength(obj);
         } catch (IllegalArgumentException e) {
-            throw new IllegalArgumentException("Can't encode " + obj.getClass().getName() + ": "
-                    + e, e);
+            throw cantEncode(obj, e);
         } catch (Asn1EncodingException e) {
-            throw new IllegalArgumentException("Can't encode " + obj.getClass().getName() + ":"
-                    + e.getMessage(), e);
+            throw cantEncode(obj, e);
+        }
+    }
+
+    /** The sizing pass: encodes obj into a {@link BitLengthCounter}. */
+    private static <T> int bitLength(T obj) throws Asn1EncodingException {
+        BitBufferPool pool = BitBufferPool.get();
+        BitLengthCounter counter = pool.counter();
+        try {
+            encode2(counter, obj, NO_ANNOTATIONS);
+            return counter.position();
+        } finally {
+            pool.release(counter);
+        }
+    }
+
+    private static void checkEncodedLength(BitBuffer bitbuffer, int bitLength) {
+        if (bitbuffer.position() != bitLength) {
+            throw new IllegalStateException("Encoded " + bitbuffer.position()
+                    + " bits, sized as " + bitLength + ", was the object modified?");
         }
     }
 
+    private static IllegalArgumentException cantEncode(Object obj, IllegalArgumentException e) {
+        return new IllegalArgumentException("Can't encode " + obj.getClass().getName() + ": "
+                + e, e);
+    }
+
+    private static IllegalArgumentException cantEncode(Object obj, Asn1EncodingException e) {
+        return new IllegalArgumentException("Can't encode " + obj.getClass().getName() + ":"
+                + e.getMessage(), e);
+    }
+
     public static <T> T decode(byte[] bytes, Class<T> classOfT) throws IllegalArgumentException,
             UnsupportedOperationException {
-        BitBuffer bitQueue = bitBufferFromBinaryString(binaryStringFromBytes(bytes));
+        BitBufferPool pool = BitBufferPool.get();
+        ByteBufferBitBuffer bitbuffer = pool.view();
+        try {
+            return decode(bitbuffer.rewrap(bytes), classOfT);
+        } finally {
+            pool.release(bitbuffer);
+        }
+    }
+
+    /**
+     * Decodes the remaining bytes of the buffer (from its position to its limit) without copying
+     * them. Works for heap and direct buffers; the position of the buffer is not changed.
+     */
+    public static <T> T decode(ByteBuffer buffer, Class<T> classOfT) throws IllegalArgumentException,
+            UnsupportedOperationException {
+        BitBufferPool pool = BitBufferPool.get();
+        ByteBufferBitBuffer bitbuffer = pool.view();
+        try {
+            return decode(bitbuffer.rewrap(buffer), classOfT);
+        } finally {
+            pool.release(bitbuffer);
+        }
+    }
+
+    /** Decodes {@code bitLength} bits of the array, starting at bit {@code bitOffset}, without copying them. */
+    public static <T> T decode(byte[] bytes, int bitOffset, int bitLength, Class<T> classOfT)
+            throws IllegalArgumentException, UnsupportedOperationException {
+        BitBufferPool pool = BitBufferPool.get();
+        ByteBufferBitBuffer bitbuffer = pool.view();
+        try {
+            return decode(bitbuffer.rewrap(bytes, bitOffset, bitLength), classOfT);
+        } finally {
+            pool.release(bitbuffer);
+        }
+    }
+
+    /**
+     * Decodes only the fields selected by the projection, and stops reading the bytes after the
+     * last of them; see {@link Projection}.
+     */
+    public static <T> T decode(byte[] bytes, Projection<T> projection)
+            throws IllegalArgumentException, UnsupportedOperationException {
+        BitBufferPool pool = BitBufferPool.get();
+        ByteBufferBitBuffer bitbuffer = pool.view();
+        try {
+            return SequenceCoder.decodeProjection(bitbuffer.rewrap(bytes), projection.type,
+                    NO_ANNOTATIONS, projection.root, false, bytes, null);
+        } finally {
+            pool.release(bitbuffer);
+        }
+    }
+
+    /**
+     * Like {@link #decode(byte[], Projection)}, for the remaining bytes of the buffer; the
+     * position of the buffer is not changed.
+     */
+    public static <T> T decode(ByteBuffer buffer, Projection<T> projection)
+            throws IllegalArgumentException, UnsupportedOperationException {
+        BitBufferPool pool = BitBufferPool.get();
+        ByteBufferBitBuffer bitbuffer = pool.view();
+        try {
+            return SequenceCoder.decodeProjection(bitbuffer.rewrap(buffer), projection.type,
+                    NO_ANNOTATIONS, projection.root, false, null, null);
+        } finally {
+            pool.release(bitbuffer);
+        }
+    }
+
+    /**
+     * Like {@link #decode(byte[], Projection)}, and also records where the deferred fields of the
+     * projection start, to decode them later (see {@link Projection#deferring}). The bytes are
+     * kept, not copied, and must not be modified while the result is in use.
+     */
+    public static <T> Partial<T> decodePartial(byte[] bytes, Projection<T> projection)
+            throws IllegalArgumentException, UnsupportedOperationException {
+        Deferred<?>[] deferred = new Deferred<?>[projection.deferredPaths.size()];
+        BitBufferPool pool = BitBufferPool.get();
+        ByteBufferBitBuffer bitbuffer = pool.view();
+        try {
+            T value = SequenceCoder.decodeProjection(bitbuffer.rewrap(bytes), projection.type,
+                    NO_ANNOTATIONS, projection.root, false, bytes, deferred);
+            return new Partial<>(value, projection.deferredPaths, deferred);
+        } finally {
+            pool.release(bitbuffer);
+        }
+    }
+
+    private static <T> T decode(BitBuffer bitQueue, Class<T> classOfT) throws IllegalArgumentException,
+            UnsupportedOperationException {
         T result = decode2(bitQueue, classOfT, new Annotation[] {});
+        checkFullyDecoded(bitQueue, classOfT, result);
+        return result;
+    }
+
+    /**
+     * Decodes the bytes into target, overwriting it in place instead of building a new object
+     * graph: nested SEQUENCEs and CHOICEs of the same class and SEQUENCE OF lists of the same
+     * size are decoded into, Asn1Integer values are set in their existing instances, and optional
+     * fields that are absent are set to null. Other values (strings, bit strings, enums, ...) are
+     * replaced, and so are values that the no-argument constructor of a class puts in every
+     * instance, like CoopIts.defaultValidity: they are shared, not owned by target. Meant for
+     * pipelines that process a message and drop it before the next one, so that a steady stream
+     * of messages creates little garbage.
+     *
+     * Runtime compiled codecs (see {@link CodecCompiler}) decode into target as well; types with a
+     * codec generated by uper-codegen are decoded by the reflective coders instead. Nothing that
+     * was decoded into target must be kept across calls. If decoding fails, target is left
+     * partially overwritten.
+     *
+     * @return target, or a new value if target is not of a SEQUENCE, CHOICE, SEQUENCE OF or
+     *         Asn1Integer type, or is a shared instance (see
+     *         {@link CodecSupport#SHARE_SMALL_INTEGERS})
+     */
+    public static <T> T decodeInto(byte[] bytes, T target) throws IllegalArgumentException,
+            UnsupportedOperationException {
+        BitBufferPool pool = BitBufferPool.get();
+        ByteBufferBitBuffer bitbuffer = pool.view();
+        try {
+            return decodeInto(bitbuffer.rewrap(bytes), target);
+        } finally {
+            pool.release(bitbuffer);
+        }
+    }
+
+    /**
+     * Like {@link #decodeInto(byte[], Object)}, for the remaining bytes of the buffer, read like
+     * {@link #decode(ByteBuffer, Class)} does.
+     */
+    public static <T> T decodeInto(ByteBuffer buffer, T target) throws IllegalArgumentException,
+            UnsupportedOperationException {
+        BitBufferPool pool = BitBufferPool.get();
+        ByteBufferBitBuffer bitbuffer = pool.view();
+        try {
+            return decodeInto(bitbuffer.rewrap(buffer), target);
+        } finally {
+            pool.release(bitbuffer);
+        }
+    }
+
+    private static <T> T decodeInto(BitBuffer bitQueue, T target) throws IllegalArgumentException,
+            UnsupportedOperationException {
+        @SuppressWarnings("unchecked")  // The class of a T.
+        Class<T> classOfT = (Class<T>) target.getClass();
+        T result = decodeInto2(bitQueue, classOfT, NO_ANNOTATIONS, target);
+        checkFullyDecoded(bitQueue, classOfT, result);
+        return result;
+    }
+
+    private static void checkFullyDecoded(BitBuffer bitQueue, Class<?> classOfT, Object result) {
         if (bitQueue.remaining() > 7) {
             throw new IllegalArgumentException("Can't fully decode "
                 + classOfT.getName() + ", got (" + result.getClass().getName() + "): " + result
                 + "; remaining " + bitQueue.remaining() + "  bits: " + bitQueue);
         }
-        return result;
     }
 
 
     static <T> void encode2(BitBuffer bitbuffer, T obj, Annotation[] extraAnnotations) throws Asn1EncodingException {
-        for (Encoder e : encoders) {
-            if (e.canEncode(obj, extraAnnotations)) {
-                e.encode(bitbuffer, obj, extraAnnotations);
-                return;
+        encoderFor(obj, extraAnnotations).encode(bitbuffer, obj, extraAnnotations);
+    }
+
+    static <T> T decode2(BitBuffer bitbuffer, Class<T> classOfT, Annotation[] extraAnnotations) {
+        if (logger.isDebugEnabled()) {
+            logger.debug("Decoding classOfT : {}", classOfT);
+        }
+        return decoderFor(classOfT, extraAnnotations).decode(bitbuffer, classOfT, extraAnnotations);
+    }
+
+    /**
+     * Like {@link #decode2}, but decodes into reuse (the previous value of the field, may be null)
+     * if it has exactly the class classOfT and a {@link ReusingDecoder} for it: the usual one if it
+     * is, e.g. a runtime compiled codec, otherwise the reflective one.
+     */
+    static <T> T decodeInto2(BitBuffer bitbuffer, Class<T> classOfT, Annotation[] extraAnnotations,
+            Object reuse) {
+        if (reuse != null && reuse.getClass() == classOfT) {
+            Decoder decoder = decoderFor(classOfT, extraAnnotations);
+            if (!(decoder instanceof ReusingDecoder)) {  // E.g. a generated codec.
+                decoder = reflectiveDecoderFor(classOfT, extraAnnotations);
+            }
+            if (decoder instanceof ReusingDecoder) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Decoding classOfT : {} into the existing value", classOfT);
+                }
+                return ((ReusingDecoder) decoder).decodeInto(bitbuffer, classOfT,
+                        extraAnnotations, classOfT.cast(reuse));
             }
         }
-        throw new IllegalArgumentException("Can't find encoder for " + obj.getClass().getName()
-                + " with extra annotations " + Arrays.asList(extraAnnotations));
+        return decode2(bitbuffer, classOfT, extraAnnotations);
     }
 
-    static <T> T decode2(BitBuffer bitbuffer, Class<T> classOfT, Annotation[] extraAnnotations) {
-        logger.debug("Decoding classOfT : {}", classOfT);
-        for (Decoder e : decoders) {
-            if (e.canDecode(classOfT, extraAnnotations)) {
-                return e.decode(bitbuffer, classOfT, extraAnnotations);
+    /**
+     * Advances bitbuffer past a value of classOfT without keeping it. Uses the usual decoder if it
+     * is a {@link SkippingDecoder}, otherwise the reflective one (e.g. for a generated codec), and
+     * decodes the value and drops it if neither can skip.
+     */
+    static <T> void skip2(BitBuffer bitbuffer, Class<T> classOfT, Annotation[] extraAnnotations) {
+        if (logger.isDebugEnabled()) {
+            logger.debug("Skipping classOfT : {}", classOfT);
+        }
+        CodecPlan.Binding binding = CodecPlan.of(classOfT).binding(extraAnnotations);
+        int width = binding.fixedWidth;
+        if (width == CodecPlan.Binding.WIDTH_UNKNOWN) {
+            width = fixedWidth(classOfT, extraAnnotations);
+        }
+        if (width >= 0) {
+            skipBits(bitbuffer, width);
+            return;
+        }
+        Decoder decoder = binding.skippingDecoder;
+        if (decoder instanceof SkippingDecoder) {
+            ((SkippingDecoder) decoder).skip(bitbuffer, classOfT, extraAnnotations);
+        } else {
+            decoder.decode(bitbuffer, classOfT, extraAnnotations);
+        }
+    }
+
+    /**
+     * The number of bits every value of classOfT takes, -1 if it depends on the value. Computed
+     * once per binding by its {@link SkippingDecoder}; -1 if there is none.
+     */
+    static <T> int fixedWidth(Class<T> classOfT, Annotation[] extraAnnotations) {
+        CodecPlan.Binding binding = CodecPlan.of(classOfT).binding(extraAnnotations);
+        int result = binding.fixedWidth;
+        if (result == CodecPlan.Binding.WIDTH_UNKNOWN) {
+            Decoder decoder = decoderFor(classOfT, extraAnnotations);
+            if (!(decoder instanceof SkippingDecoder)) {  // E.g. a generated codec.
+                decoder = reflectiveDecoderFor(classOfT, extraAnnotations);
+            }
+            binding.skippingDecoder = decoder;
+            result = binding.fixedWidth = decoder instanceof SkippingDecoder
+                    ? ((SkippingDecoder) decoder).fixedWidth(classOfT, extraAnnotations) : -1;
+        }
+        return result;
+    }
+
+    /**
+     * The first encoder that accepts the class of obj with these annotations. The answer only
+     * depends on the class and the annotations, so it is looked up once and kept in the binding.
+     * A codec generated at compile time for the class (see {@link CodecSupport}) is preferred
+     * over the reflective coders.
+     */
+    static <T> Encoder encoderFor(T obj, Annotation[] extraAnnotations) {
+        CodecPlan plan = CodecPlan.of(obj.getClass());
+        CodecPlan.Binding binding = plan.binding(extraAnnotations);
+        Encoder result = binding.encoder;
+        if (result == null) {
+            Object generated = plan.generatedCodec();
+            if (generated instanceof Encoder && ((Encoder) generated).canEncode(obj, extraAnnotations)) {
+                return binding.encoder = (Encoder) generated;
+            }
+            for (Encoder e : encoders) {
+                if (e.canEncode(obj, extraAnnotations)) {
+                    return binding.encoder = e;
+                }
+            }
+            throw new IllegalArgumentException("Can't find encoder for " + obj.getClass().getName()
+                    + " with extra annotations " + Arrays.asList(extraAnnotations));
+        }
+        return result;
+    }
+
+    /**
+     * The first decoder that accepts classOfT with these annotations, looked up once per binding,
+     * preferring a generated codec like {@link #encoderFor}.
+     */
+    static <T> Decoder decoderFor(Class<T> classOfT, Annotation[] extraAnnotations) {
+        CodecPlan plan = CodecPlan.of(classOfT);
+        CodecPlan.Binding binding = plan.binding(extraAnnotations);
+        Decoder result = binding.decoder;
+        if (result == null) {
+            Object generated = plan.generatedCodec();
+            if (generated instanceof Decoder && ((Decoder) generated).canDecode(classOfT, extraAnnotations)) {
+                return binding.decoder = (Decoder) generated;
+            }
+            for (Decoder e : decoders) {
+                if (e.canDecode(classOfT, extraAnnotations)) {
+                    return binding.decoder = e;
+                }
+            }
+            throw new IllegalArgumentException("Can't find decoder for " + classOfT.getName()
+                    + " with extra annotations " + Arrays.asList(extraAnnotations));
+        }
+        return result;
+    }
+
+    /** The first of the reflective decoders that accepts classOfT, ignoring generated codecs. */
+    static <T> Decoder reflectiveDecoderFor(Class<T> classOfT,
+            Annotation[] extraAnnotations) {
+        CodecPlan.Binding binding = CodecPlan.of(classOfT).binding(extraAnnotations);
+        Decoder result = binding.reflectiveDecoder;
+        if (result == null) {
+            for (Decoder e : decoders) {
+                if (e.canDecode(classOfT, extraAnnotations)) {
+                    return binding.reflectiveDecoder = e;
+                }
             }
+            throw new IllegalArgumentException("Can't find decoder for " + classOfT.getName()
+                    + " with extra annotations " + Arrays.asList(extraAnnotations));
         }
-        throw new IllegalArgumentException("Can't find decoder for " + classOfT.getName()
-                + " with extra annotations " + Arrays.asList(extraAnnotations));
+        return result;
     }
 
     static IntRange newRange(
@@ -108,41 +496,67 @@ public final class UperEncoder {
         return newRange(sizeRange.minValue(), sizeRange.maxValue(), sizeRange.hasExtensionMarker());
     }
 
-    private static List<Encoder> encoders = new ArrayList<>();
-    private static List<Decoder> decoders = new ArrayList<>();
+    private static final List<Encoder> encoders;
+    private static final List<Decoder> decoders;
 
     static {
-        encoders.add(new IntCoder());
-        encoders.add(new BigIntCoder());
-        encoders.add(new ByteCoder());
-        encoders.add(new BooleanCoder());
-        encoders.add(new SequenceCoder());
-        encoders.add(new ChoiceCoder());
-        encoders.add(new EnumCoder());
-        encoders.add(new BitStringCoder());
-        encoders.add(new SeqOfCoder());
-        encoders.add(new StringCoder());
-
-        decoders.add(new IntCoder());
-        decoders.add(new BigIntCoder());
-        decoders.add(new ByteCoder());
-        decoders.add(new BooleanCoder());
-        decoders.add(new SequenceCoder());
-        decoders.add(new ChoiceCoder());
-        decoders.add(new EnumCoder());
-        decoders.add(new BitStringCoder());
-        decoders.add(new SeqOfCoder());
-        decoders.add(new StringCoder());
+        List<Encoder> encoderList = new ArrayList<>();
+        List<Decoder> decoderList = new ArrayList<>();
+        encoderList.add(new IntCoder());
+        encoderList.add(new BigIntCoder());
+        encoderList.add(new ByteCoder());
+        encoderList.add(new BooleanCoder());
+        encoderList.add(new SequenceCoder());
+        encoderList.add(new ChoiceCoder());
+        encoderList.add(new EnumCoder());
+        encoderList.add(new BitStringCoder());
+        encoderList.add(new OctetStringCoder());
+        encoderList.add(new SeqOfCoder());
+        encoderList.add(new StringCoder());
+
+        decoderList.add(new IntCoder());
+        decoderList.add(new BigIntCoder());
+        decoderList.add(new ByteCoder());
+        decoderList.add(new BooleanCoder());
+        decoderList.add(new SequenceCoder());
+        decoderList.add(new ChoiceCoder());
+        decoderList.add(new EnumCoder());
+        decoderList.add(new BitStringCoder());
+        decoderList.add(new OctetStringCoder());
+        decoderList.add(new SeqOfCoder());
+        decoderList.add(new StringCoder());
+        encoders = Collections.unmodifiableList(encoderList);
+        decoders = Collections.unmodifiableList(decoderList);
 
     }
 
 
     static <T> void encodeAsOpenType(
             BitBuffer bitbuffer, T obj, Annotation[] extraAnnotations)
-            throws IllegalArgumentException, IllegalAccessException, Asn1EncodingException {
+            throws IllegalArgumentException, Asn1EncodingException {
         logger.debug("OPEN TYPE for {}. Encoding preceedes length determinant", obj.getClass()
                 .getName());
-        BitBuffer tmpbuffer = ByteBitBuffer.createInfinite();
+        // The sizing pass only needs the length of the content.
+        BitBufferPool pool = BitBufferPool.get();
+        if (bitbuffer instanceof BitLengthCounter) {
+            BitLengthCounter counter = pool.counter();
+            try {
+                encodeAsOpenType(bitbuffer, counter, obj, extraAnnotations);
+            } finally {
+                pool.release(counter);
+            }
+        } else {
+            ByteBitBuffer scratch = pool.scratch();
+            try {
+                encodeAsOpenType(bitbuffer, scratch, obj, extraAnnotations);
+            } finally {
+                pool.releaseScratch(scratch);
+            }
+        }
+    }
+
+    private static <T> void encodeAsOpenType(BitBuffer bitbuffer, BitBuffer tmpbuffer, T obj,
+            Annotation[] extraAnnotations) throws Asn1EncodingException {
         encode2(tmpbuffer, obj, extraAnnotations);
         int numBytes = (tmpbuffer.position() + 7) / 8;
         logger.debug(
@@ -154,9 +568,7 @@ public final class UperEncoder {
             throw new Asn1EncodingException(" length of open type ", e);
         }
         tmpbuffer.flip();
-        for (int i = 0; i < tmpbuffer.limit(); i++) {
-            bitbuffer.put(tmpbuffer.get());
-        }
+        bitbuffer.putBits(tmpbuffer, tmpbuffer.limit());
     }
 
     static <T> T decodeAsOpenType(BitBuffer bitbuffer,
@@ -165,20 +577,29 @@ public final class UperEncoder {
         logger.debug("OPEN TYPE for {}. Encoding preceedes length determinant",
                 classOfT != null ? classOfT.getName() : "null");
         long numBytes = decodeLengthDeterminant(bitbuffer);
-        BitBuffer openTypeBitBuffer = ByteBitBuffer.allocate((int)numBytes * 8);
-        for (int i = 0; i < numBytes * 8; i++) {
-            openTypeBitBuffer.put(bitbuffer.get());
+        // A view of the content, so unknown extensions (classOfT == null) are skipped without copying.
+        BitBufferPool pool = BitBufferPool.get();
+        ByteBufferBitBuffer openTypeBitBuffer = pool.view();
+        try {
+            openTypeBitBuffer.rewrapAsView(bitbuffer, (int) numBytes * 8);
+            return decodeOpenTypeContent(openTypeBitBuffer, classOfT, extraAnnotations);
+        } finally {
+            pool.release(openTypeBitBuffer);
         }
-        openTypeBitBuffer.flip();
+    }
+
+    private static <T> T decodeOpenTypeContent(BitBuffer openTypeBitBuffer, Class<T> classOfT,
+            Annotation[] extraAnnotations) {
         if (classOfT != null) {
             T result = decode2(openTypeBitBuffer, classOfT, extraAnnotations);
             // Assert that padding bits are all 0.
-            logger.debug("open type had {} padding bits");
-            for (int i = 0; i < openTypeBitBuffer.remaining(); i++) {
-                boolean paddingBit = openTypeBitBuffer.get();
-                logger.debug("padding bit {} was <{}>", i, paddingBit ? "1" : "0");
-                if (paddingBit) { throw new IllegalArgumentException("non-zero padding bit " + i
-                        + " for open type " + classOfT.getName()); }
+            int paddingBits = openTypeBitBuffer.remaining();
+            logger.debug("open type had {} padding bits", paddingBits);
+            for (int i = 0; i < paddingBits; i += 64) {
+                if (openTypeBitBuffer.getBits(Math.min(64, paddingBits - i)) != 0) {
+                    throw new IllegalArgumentException("non-zero padding bit for open type "
+                            + classOfT.getName());
+                }
             }
             return result;
         } else {
@@ -186,16 +607,7 @@ public final class UperEncoder {
         }
     }
 
-    static <T> boolean hasNonNullExtensions(
-            T obj, Asn1ContainerFieldSorter sorter)
-                    throws IllegalArgumentException, IllegalAccessException {
-        for (Field f : sorter.extensionFields) {
-            if (f.get(obj) != null) { return true; }
-        }
-        return false;
-    }
-
-    private static <T> Constructor<T> findConsturctor(Class<T> classOfT, Object... parameters) {
+    static <T> Constructor<T> findConsturctor(Class<T> classOfT, Object... parameters) {
         @SuppressWarnings("unchecked")
         Constructor<T>[] declaredConstructors = (Constructor<T>[]) classOfT
                 .getDeclaredConstructors();
@@ -226,28 +638,63 @@ public final class UperEncoder {
 
     /** Instantiate a given class T using given parameters. */
     static <T> T instantiate(Class<T> classOfT, Object... parameters) {
-        Class<?>[] parameterTypes = new Class<?>[parameters.length];
-        for (int i = 0; i < parameters.length; i++) {
-            parameterTypes[i] = parameters[i].getClass();
-        }
-        Constructor<T> constructor = findConsturctor(classOfT, parameters);
-        boolean constructorIsAccessible = constructor.isAccessible();
-        constructor.setAccessible(true);
-        T result;
+        MethodHandle constructor = CodecPlan.of(classOfT).constructorFor(parameters);
+        Object result;
         try {
-            result = constructor.newInstance(parameters);
-        } catch (IllegalArgumentException | InvocationTargetException | InstantiationException
-                | IllegalAccessException e) {
+            switch (parameters.length) {
+                case 0:
+                    result = (Object) constructor.invokeExact();
+                    break;
+                case 1:
+                    result = (Object) constructor.invokeExact(parameters[0]);
+                    break;
+                default:
+                    result = constructor.invokeWithArguments(parameters);
+            }
+        } catch (Error e) {
+            throw e;
+        } catch (Throwable e) {
             throw new IllegalArgumentException("Can't instantiate " + classOfT.getName(), e);
         }
-        constructor.setAccessible(constructorIsAccessible);
-        return result;
+        @SuppressWarnings("unchecked")
+        // The constructor is a constructor of classOfT.
+        T typedResult = (T) result;
+        return typedResult;
+    }
+
+    /** Advances past a value that {@link #decodeConstrainedInt} would decode. */
+    static void skipConstrainedInt(BitBuffer bitqueue, IntRange intRange) {
+        skipConstrainedInt(bitqueue, intRange.minValue(), intRange.maxValue(),
+                intRange.hasExtensionMarker());
+    }
+
+    static void skipConstrainedInt(BitBuffer bitqueue, long lowerBound, long upperBound,
+            boolean hasExtensionMarker) {
+        if (hasExtensionMarker && bitqueue.get()) {
+            decodeLengthDeterminant(bitqueue);  // See decodeConstrainedInt.
+            return;
+        }
+        skipBits(bitqueue, constrainedIntWidth(lowerBound, upperBound));
+    }
+
+    /**
+     * Bits of a constrained int without extension marker, as {@link #decodeConstrainedInt} reads it.
+     * The offset from the lower bound is unsigned, ranges can have up to 2^64 values.
+     */
+    static int constrainedIntWidth(long lowerBound, long upperBound) {
+        return 64 - Long.numberOfLeadingZeros(upperBound - lowerBound);
     }
 
     static long decodeConstrainedInt(BitBuffer bitqueue, IntRange intRange) {
-        long lowerBound = intRange.minValue();
-        long upperBound = intRange.maxValue();
-        boolean hasExtensionMarker = intRange.hasExtensionMarker();
+        return decodeConstrainedInt(bitqueue, intRange.minValue(), intRange.maxValue(),
+                intRange.hasExtensionMarker());
+    }
+
+    static long decodeConstrainedInt(
+            final BitBuffer bitqueue,
+            final long lowerBound,
+            final long upperBound,
+            final boolean hasExtensionMarker) {
         if (upperBound < lowerBound) {
             throw new IllegalArgumentException("Lower bound "
                 + lowerBound + " is larger that upper bound " + upperBound);
@@ -266,99 +713,30 @@ public final class UperEncoder {
         if (range == 1) {
             return lowerBound;
         }
-        int bitlength = BigInteger.valueOf(range - 1).bitLength();
-        logger.trace("This int will require {} bits, available {}", bitlength, bitqueue.remaining());
+        int bitlength = constrainedIntWidth(lowerBound, upperBound);
+        if (logger.isTraceEnabled()) {
+            logger.trace("This int will require {} bits, available {}", bitlength, bitqueue.remaining());
+        }
         if (bitlength > bitqueue.remaining()) {
             throw new IllegalArgumentException("Incomplete input, constrained int required " + bitlength + " bits, got "
                     + bitqueue.remaining());
         }
-        BitBuffer relevantBits = ByteBitBuffer.allocate( ((bitlength + 7) / 8) * 8);  // Full bytes.
-        int numPaddingBits = (8 - (bitlength % 8)) % 8;  // Leading padding 0-bits.
-        for (int i = 0; i < numPaddingBits; i++) {
-            relevantBits.put(false);
-        }
-        for (int i = 0; i < bitlength; i++) {
-            relevantBits.put(bitqueue.get());
-        }
-        relevantBits.flip();
-        final BigInteger big = new BigInteger(+1, relevantBits.array());
-        final long result = lowerBound + big.longValue();
-        logger.debug("-bits {} decoded as {} plus lower bound {} give {} (upper bound: {})",
-                relevantBits.toBooleanStringFromPosition(0), big.longValue(), lowerBound, result, upperBound);
-        //logger.debug(relevantBits.toBooleanStringFromPosition(0));
-        if ((result < intRange.minValue() || intRange.maxValue() < result)
-                && !intRange.hasExtensionMarker()) {
+        final long offset = bitqueue.getBits(bitlength);
+        final long result = lowerBound + offset;
+        if (logger.isDebugEnabled()) {
+            logger.debug("-{} bits decoded as {} plus lower bound {} give {} (upper bound: {})",
+                    bitlength, offset, lowerBound, result, upperBound);
+        }
+        if ((result < lowerBound || upperBound < result) && !hasExtensionMarker) {
             throw new AssertionError("Decoded value "
-                + result + " is outside of range (" + intRange.minValue() + ".."
-                + intRange.maxValue() + ")");
+                + result + " is outside of range (" + lowerBound + ".."
+                + upperBound + ")");
         }
         return result;
     }
 
 
 
-    static boolean hasExtensionMarker(AnnotationStore annotations) {
-        return annotations.getAnnotation(HasExtensionMarker.class) != null;
-    }
-
-    private static boolean isExtension(Field f) {
-
-        return f.getAnnotation(IsExtension.class) != null;
-    }
-
-    static boolean isMandatory(Field f) {
-
-        return !isOptional(f);
-    }
-
-    static boolean isOptional(Field f) {
-
-        return f.getAnnotation(Asn1Optional.class) != null;
-    }
-
-    static class Asn1ContainerFieldSorter {
-        /** "Outside extension root" */
-        List<Field> extensionFields = new ArrayList<>();
-        /** "Within extension root" */
-        List<Field> ordinaryFields = new ArrayList<>();
-        List<Field> mandatoryOrdinaryFields = new ArrayList<>();
-        List<Field> optionalOrdinaryFields = new ArrayList<>();
-        List<Field> allFields = new ArrayList<>();  // Excluding test instrumentation.
-
-        Map<Field, Boolean> originalAccess = new HashMap<>();
-
-        Asn1ContainerFieldSorter(Class<?> type) {
-            for (Field f : type.getDeclaredFields()) {
-                if (isTestInstrumentation(f)) {
-                    continue;
-                }
-                originalAccess.put(f, f.isAccessible());
-                f.setAccessible(true);
-                if (isExtension(f)) {
-                    extensionFields.add(f);
-                }
-                else {
-                    ordinaryFields.add(f);
-                }
-                allFields.add(f);
-            }
-            for (Field f : ordinaryFields) {
-                if (isMandatory(f)) {
-                    mandatoryOrdinaryFields.add(f);
-                }
-                else {
-                    optionalOrdinaryFields.add(f);
-                }
-            }
-        }
-
-        public void revertAccess() {
-            for (Entry<Field, Boolean> entry : originalAccess.entrySet()) {
-                entry.getKey().setAccessible(entry.getValue());
-            }
-        }
-    }
-
     static boolean isTestInstrumentation(Field f) {
         return f.getName().startsWith("$") || f.getName().contains("this$");
     }
@@ -386,24 +764,21 @@ public final class UperEncoder {
     static void encodeLengthDeterminant(BitBuffer bitbuffer, int n) throws Asn1EncodingException  {
         try {
             int position = bitbuffer.position();
-            if (n < 128) {
-                bitbuffer.put(false);
-                encodeConstrainedInt(bitbuffer, n, 0, 127);
-                logger.debug("Length determinant {}, encoded as <{}>", n,
-                        bitbuffer.toBooleanStringFromPosition(position));
-                if (bitbuffer.position() - position != 8) {
-                    throw new AssertionError(
-                        "length determinant encoded not as 8 bits");
+            if (n < 0) {
+                throw new Asn1EncodingException(" Value " + n + " is outside of fixed range 0.."
+                        + (NUM_16K - 1));
+            } else if (n < 128) {
+                bitbuffer.putBits(n, 8);  // Leading <0>, then 7 bits of n.
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Length determinant {}, encoded as <{}>", n,
+                            bitbuffer.toBooleanStringFromPosition(position));
                 }
                 return;
             } else if (n < NUM_16K) {
-                bitbuffer.put(true);
-                bitbuffer.put(false);
-                encodeConstrainedInt(bitbuffer, n, 0, NUM_16K - 1);
-                logger.debug("Length determinant {}, encoded as 2bits+14bits: <{}>", n,
-                        bitbuffer.toBooleanStringFromPosition(position));
-                if (bitbuffer.position() - position != 16) {
-                    throw new AssertionError("length determinant encoded not as 16 bits");
+                bitbuffer.putBits(0x8000 | n, 16);  // Leading <10>, then 14 bits of n.
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Length determinant {}, encoded as 2bits+14bits: <{}>", n,
+                            bitbuffer.toBooleanStringFromPosition(position));
                 }
                 return;
             } else {
@@ -423,7 +798,7 @@ public final class UperEncoder {
                 "length determinant extension preamble size flag: <{}> (preamble size {} 64)",
                 isGreaterThan64 ? "1" : "0", isGreaterThan64 ? ">" : "<=");
         if (!isGreaterThan64) {
-            long result = decodeConstrainedInt(bitbuffer, newRange(1, 64, false));
+            long result = 1 + getBits(bitbuffer, 6);
             logger.debug("normally small length of bitmask, length <= 64, decoded as {}",
                     result);
             return result;
@@ -436,13 +811,13 @@ public final class UperEncoder {
     static long decodeLengthDeterminant(BitBuffer bitbuffer) {
             boolean bit8 = bitbuffer.get();
             if (!bit8) {  // then value is less than 128
-                long result = decodeConstrainedInt(bitbuffer, newRange(0, 127, false));
+                long result = getBits(bitbuffer, 7);
                 logger.debug("length determinant, decoded as {}", result);
                 return result;
             } else {
                 boolean bit7 = bitbuffer.get();
                 if (!bit7) {  // then value is less than 16K
-                    long result = decodeConstrainedInt(bitbuffer, newRange(0, NUM_16K - 1, false));
+                    long result = getBits(bitbuffer, 14);
                     logger.debug("length determinant, decoded as {}", result);
                     return result;
                 } else {  // "Large" n
@@ -453,6 +828,75 @@ public final class UperEncoder {
 
     }
 
+    /** Reads n bits, failing like {@link #decodeConstrainedInt} if the input is too short. */
+    static long getBits(BitBuffer bitbuffer, int n) {
+        if (n > bitbuffer.remaining()) {
+            throw new IllegalArgumentException("Incomplete input, required " + n + " bits, got "
+                    + bitbuffer.remaining());
+        }
+        return bitbuffer.getBits(n);
+    }
+
+    /** Reads the next n octets, failing like {@link #getBits} if there are fewer bits. */
+    static byte[] getOctets(BitBuffer bitbuffer, long n) {
+        checkOctets(bitbuffer, n);
+        byte[] result = new byte[(int) n];
+        bitbuffer.getBytes(result, 0, result.length);
+        return result;
+    }
+
+    /** Fails like {@link #getBits} if fewer than n octets remain. */
+    static void checkOctets(BitBuffer bitbuffer, long n) {
+        if (n * 8 > bitbuffer.remaining()) {
+            throw new IllegalArgumentException("Incomplete input, required " + n + " octets, got "
+                    + bitbuffer.remaining() + " bits");
+        }
+    }
+
+    /** Advances past n bits without reading them, failing like {@link #getBits} if there are fewer. */
+    static void skipBits(BitBuffer bitbuffer, long n) {
+        if (n > bitbuffer.remaining()) {
+            throw new IllegalArgumentException("Incomplete input, required " + n + " bits, got "
+                    + bitbuffer.remaining());
+        }
+        if (bitbuffer instanceof ByteBufferBitBuffer) {
+            ((ByteBufferBitBuffer) bitbuffer).skip((int) n);
+        } else if (bitbuffer instanceof ByteBitBuffer) {
+            ((ByteBitBuffer) bitbuffer).position += n;
+        } else {
+            bitbuffer.getView((int) n);
+        }
+    }
+
+    /** Advances past an open type (length determinant and content), e.g. an extension addition. */
+    static void skipOpenType(BitBuffer bitbuffer) {
+        long numBytes = decodeLengthDeterminant(bitbuffer);
+        logger.debug("skipping OPEN TYPE of {} bytes", numBytes);
+        skipBits(bitbuffer, numBytes * 8);
+    }
+
+    /** Reads a bitmask of n bits, as found in front of SEQUENCE and extension addition contents. */
+    static boolean[] decodeBitmask(BitBuffer bitbuffer, int n) {
+        boolean[] result = new boolean[n];
+        for (int i = 0; i < n; i += 64) {
+            int chunk = Math.min(64, n - i);
+            long bits = getBits(bitbuffer, chunk);
+            for (int j = 0; j < chunk; j++) {
+                result[i + j] = ((bits >>> (chunk - 1 - j)) & 1) != 0;
+            }
+        }
+        return result;
+    }
+
+    /** Reads a bitmask of n bits like {@link #decodeBitmask}, but only counts the bits set. */
+    static int countBitmask(BitBuffer bitbuffer, int n) {
+        int result = 0;
+        for (int i = 0; i < n; i += 64) {
+            result += Long.bitCount(getBits(bitbuffer, Math.min(64, n - i)));
+        }
+        return result;
+    }
+
     static void encodeConstrainedInt(
             final BitBuffer bitbuffer,
             final long value,
@@ -493,19 +937,22 @@ public final class UperEncoder {
             logger.debug("constrained int of empty range, resulting in empty encoding <>");
             return;
         }
-        final BigInteger big = BigInteger.valueOf(value - lowerBound);
-        final int numPaddingBits = BigInteger.valueOf(range - 1).bitLength() - big.bitLength();
-        for (int i = 0; i < numPaddingBits; i++) {
-            bitbuffer.put(false);
-        }
-        for (int i = big.bitLength() - 1; i >= 0; i--) {
-            bitbuffer.put(big.testBit(i));
+        bitbuffer.putBits(value - lowerBound, constrainedIntWidth(lowerBound, upperBound));
+        if (logger.isDebugEnabled()) {
+            logger.debug("constrained int {} encoded as <{}>", value,
+                    bitbuffer.toBooleanStringFromPosition(position));
         }
-        logger.debug("constrained int {} encoded as <{}>", value,
-                bitbuffer.toBooleanStringFromPosition(position));
         return;
     }
 
+    /**
+     * Number of bits needed for the two's complement representation of x, excluding the sign bit,
+     * same as {@link java.math.BigInteger#bitLength()}.
+     */
+    static int bitLength(long x) {
+        return 64 - Long.numberOfLeadingZeros(x < 0 ? ~x : x);
+    }
+
     public static byte[] bytesFromCollection(List<Boolean> bitlist) {
         int sizeBytes = (bitlist.size() + 7) / 8;
         byte[] result = new byte[sizeBytes];
@@ -570,17 +1017,4 @@ public final class UperEncoder {
         return result;
     }
 
-    private static BitBuffer bitBufferFromBinaryString(String s) {
-        ByteBitBuffer result = ByteBitBuffer.allocate(s.length());
-        for (int i = 0; i < s.length(); i++) {
-            if (s.charAt(i) != '1' && s.charAt(i) != '0') {
-                throw new IllegalArgumentException(
-                    "bad character in 'binary' string " + s.charAt(i));
-            }
-            result.put(s.charAt(i) == '1');
-        }
-        result.flip();
-        return result;
-    }
-
 }
@@ -0,0 +1,135 @@
+package net.gcdc.camdenm;
+
+import java.nio.ByteBuffer;
+
+import net.gcdc.asn1.uper.UperEncoder;
+import net.gcdc.camdenm.CoopIts.Cam1;
+import net.gcdc.camdenm.CoopIts.Cam2;
+import net.gcdc.camdenm.CoopIts.CamInterface;
+import net.gcdc.camdenm.CoopIts.Denm1;
+import net.gcdc.camdenm.CoopIts.Denm2;
+import net.gcdc.camdenm.CoopIts.DenmInterface;
+import net.gcdc.camdenm.CoopIts.ItsPduHeader.MessageId;
+import net.gcdc.camdenm.Iclcm.IgameCooperativeLaneChangeMessage;
+
+/**
+ * Decodes ITS PDUs (CAM, DENM, iCLCM) as the class their header names, in one pass.
+ *
+ * Every ITS PDU starts with an ItsPduHeader, a SEQUENCE without optional fields or extension
+ * marker whose first two fields, protocolVersion and messageID, are INTEGERs (0..255). Their UPER
+ * encoding is the first two bytes of the PDU as they are, so both are read from there before
+ * anything is decoded. Version 1 of the CAM and DENM layouts is {@link Cam1} and {@link Denm1},
+ * every other version is taken to be the current {@link Cam2} and {@link Denm2}.
+ */
+public final class ItsPdu {
+
+    private ItsPdu() {}
+
+    /** The protocolVersion of the ITS PDU in encoded, without decoding it. */
+    public static int protocolVersion(byte[] encoded) {
+        return headerByte(encoded, 0);
+    }
+
+    /**
+     * The protocolVersion of the ITS PDU in the remaining bytes of the buffer, without decoding
+     * it. The position of the buffer is not changed.
+     */
+    public static int protocolVersion(ByteBuffer encoded) {
+        return headerByte(encoded, 0);
+    }
+
+    /** The messageID of the ITS PDU in encoded, see {@link MessageId}, without decoding it. */
+    public static int messageId(byte[] encoded) {
+        return headerByte(encoded, 1);
+    }
+
+    /**
+     * The messageID of the ITS PDU in the remaining bytes of the buffer, see {@link MessageId},
+     * without decoding it. The position of the buffer is not changed.
+     */
+    public static int messageId(ByteBuffer encoded) {
+        return headerByte(encoded, 1);
+    }
+
+    /**
+     * The class of the ITS PDUs with the given header fields.
+     *
+     * @throws IllegalArgumentException if there is no class for messageId
+     */
+    public static Class<?> messageClass(int protocolVersion, int messageId) {
+        switch (messageId) {
+            case MessageId.denm:
+                return protocolVersion == 1 ? Denm1.class : Denm2.class;
+            case MessageId.cam:
+                return protocolVersion == 1 ? Cam1.class : Cam2.class;
+            case Iclcm.MessageID_iCLCM:
+                return IgameCooperativeLaneChangeMessage.class;
+            default:
+                throw new IllegalArgumentException("Unsupported ITS PDU, messageID " + messageId
+                        + " (protocolVersion " + protocolVersion + ")");
+        }
+    }
+
+    /**
+     * Decodes the ITS PDU in encoded as the class its header names, see {@link #messageClass}: a
+     * {@link DenmInterface}, a {@link CamInterface} or an {@link IgameCooperativeLaneChangeMessage}.
+     */
+    public static Object decode(byte[] encoded) {
+        return UperEncoder.decode(encoded,
+                messageClass(protocolVersion(encoded), messageId(encoded)));
+    }
+
+    /** Same as {@link #decode(byte[])}, reading the remaining bytes of the buffer in place. */
+    public static Object decode(ByteBuffer encoded) {
+        return UperEncoder.decode(encoded,
+                messageClass(protocolVersion(encoded), messageId(encoded)));
+    }
+
+    /**
+     * Decodes the DENM in encoded as the version its header names. The messageID is not checked.
+     */
+    public static DenmInterface decodeDenm(byte[] encoded) {
+        return protocolVersion(encoded) == 1
+                ? UperEncoder.decode(encoded, Denm1.class)
+                : UperEncoder.decode(encoded, Denm2.class);
+    }
+
+    /** Same as {@link #decodeDenm(byte[])}, reading the remaining bytes of the buffer in place. */
+    public static DenmInterface decodeDenm(ByteBuffer encoded) {
+        return protocolVersion(encoded) == 1
+                ? UperEncoder.decode(encoded, Denm1.class)
+                : UperEncoder.decode(encoded, Denm2.class);
+    }
+
+    /**
+     * Decodes the CAM in encoded as the version its header names. The messageID is not checked.
+     */
+    public static CamInterface decodeCam(byte[] encoded) {
+        return protocolVersion(encoded) == 1
+                ? UperEncoder.decode(encoded, Cam1.class)
+                : UperEncoder.decode(encoded, Cam2.class);
+    }
+
+    /** Same as {@link #decodeCam(byte[])}, reading the remaining bytes of the buffer in place. */
+    public static CamInterface decodeCam(ByteBuffer encoded) {
+        return protocolVersion(encoded) == 1
+                ? UperEncoder.decode(encoded, Cam1.class)
+                : UperEncoder.decode(encoded, Cam2.class);
+    }
+
+    private static int headerByte(byte[] encoded, int index) {
+        if (encoded.length <= index) {
+            throw new IllegalArgumentException("Incomplete input, ITS PDU header of "
+                    + encoded.length + " bytes");
+        }
+        return encoded[index] & 0xff;
+    }
+
+    private static int headerByte(ByteBuffer encoded, int index) {
+        if (encoded.remaining() <= index) {
+            throw new IllegalArgumentException("Incomplete input, ITS PDU header of "
+                    + encoded.remaining() + " bytes");
+        }
+        return encoded.get(encoded.position() + index) & 0xff;
+    }
+}
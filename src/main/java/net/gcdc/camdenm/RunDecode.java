@@ -1,9 +1,24 @@
 package net.gcdc.camdenm;
 
+import java.nio.ByteBuffer;
+
+import net.gcdc.asn1.uper.Deferred;
+import net.gcdc.asn1.uper.Partial;
+import net.gcdc.asn1.uper.Projection;
 import net.gcdc.asn1.uper.UperEncoder;
+import net.gcdc.camdenm.CoopIts.AlacarteContainer;
+import net.gcdc.camdenm.CoopIts.DecentralizedEnvironmentalNotificationMessage1;
+import net.gcdc.camdenm.CoopIts.DecentralizedEnvironmentalNotificationMessage2;
 import net.gcdc.camdenm.CoopIts.Denm1;
 import net.gcdc.camdenm.CoopIts.Denm2;
+import net.gcdc.camdenm.CoopIts.DecentralizedEnvironmentalNotificationMessageInterface;
 import net.gcdc.camdenm.CoopIts.DenmInterface;
+import net.gcdc.camdenm.CoopIts.ItsPduHeader;
+import net.gcdc.camdenm.CoopIts.LocationContainer;
+import net.gcdc.camdenm.CoopIts.ManagementContainer;
+import net.gcdc.camdenm.CoopIts.SituationContainer1;
+import net.gcdc.camdenm.CoopIts.SituationContainer2;
+import net.gcdc.camdenm.CoopIts.SituationContainerInterface;
 
 public class RunDecode {
 
@@ -21,13 +36,165 @@ public class RunDecode {
         return decoded.getHeader().stationID.value;
     }
 
+    /** Decodes a DENM once, as the version its header names, see {@link ItsPdu#decodeDenm}. */
     public static DenmInterface getDecoded(byte[] encoded) throws IllegalArgumentException, IllegalAccessException, InstantiationException, AssertionError {
-        DenmInterface denm = UperEncoder.decode(encoded, Denm2.class);
-        if(denm.getHeader().protocolVersion.value == 1)
-            denm = UperEncoder.decode(encoded, Denm1.class);
+        return ItsPdu.decodeDenm(encoded);
+    }
+
+    /** Same as {@link #getDecoded(byte[])}, but reads the remaining bytes of the buffer in place. */
+    public static DenmInterface getDecoded(ByteBuffer encoded) throws IllegalArgumentException, IllegalAccessException, InstantiationException, AssertionError {
+        return ItsPdu.decodeDenm(encoded);
+    }
+
+    /**
+     * Only the header and the management container, enough to route or deduplicate DENMs. The
+     * rest of the message is not decoded; the situation, location and a-la-carte containers are
+     * null. Both DENM versions share this part of the encoding, so it is decoded once.
+     */
+    static final Projection<Denm2> HEADER_AND_MANAGEMENT = Projection.of(Denm2.class,
+            "header", "denm.management");
+
+    /** Decodes the header and the management container only, see {@link #HEADER_AND_MANAGEMENT}. */
+    public static DenmInterface getHeaderAndManagement(byte[] encoded) {
+        return asVersion(UperEncoder.decode(encoded, HEADER_AND_MANAGEMENT));
+    }
+
+    /** Same as {@link #getHeaderAndManagement(byte[])}, reading the remaining bytes of the buffer in place. */
+    public static DenmInterface getHeaderAndManagement(ByteBuffer encoded) {
+        return asVersion(UperEncoder.decode(encoded, HEADER_AND_MANAGEMENT));
+    }
+
+    private static DenmInterface asVersion(Denm2 denm) {
+        if (denm.header.protocolVersion.value == 1) {
+            return new Denm1(denm.header,
+                    new DecentralizedEnvironmentalNotificationMessage1(denm.denm.management));
+        }
         return denm;
     }
 
+    static final Projection<Denm1> LAZY_DENM1 = Projection.of(Denm1.class,
+            "header", "denm.management").deferring("denm.situation", "denm.location", "denm.alacarte");
+
+    static final Projection<Denm2> LAZY_DENM2 = Projection.of(Denm2.class,
+            "header", "denm.management").deferring("denm.situation", "denm.location", "denm.alacarte");
+
+    /**
+     * Decodes the header and the management container; the situation, location and a-la-carte
+     * containers are only decoded when first asked for, and then kept. Until then they are
+     * positions in encoded, which must not be modified afterwards.
+     *
+     * The result can be handed to other threads. It is for reading only: it is not an instance
+     * of the model classes, so {@link UperEncoder} refuses to encode it (use {@link #getDecoded}
+     * for a message to modify or encode again).
+     */
+    public static DenmInterface getDecodedLazily(byte[] encoded) {
+        if (ItsPdu.protocolVersion(encoded) == 1) {
+            Partial<Denm1> partial = UperEncoder.decodePartial(encoded, LAZY_DENM1);
+            return new LazyDenm(partial.value().header, new LazyDenmBody(
+                    partial.value().denm.management, partial, SituationContainer1.class));
+        }
+        Partial<Denm2> partial = UperEncoder.decodePartial(encoded, LAZY_DENM2);
+        return new LazyDenm(partial.value().header, new LazyDenmBody(
+                partial.value().denm.management, partial, SituationContainer2.class));
+    }
+
+    /** A DENM with deferred containers, see {@link #getDecodedLazily}. */
+    private static final class LazyDenm implements DenmInterface {
+        private final ItsPduHeader header;
+        private final LazyDenmBody denm;
+
+        LazyDenm(ItsPduHeader header, LazyDenmBody denm) {
+            this.header = header;
+            this.denm = denm;
+        }
+
+        @Override public ItsPduHeader getHeader() {
+            return header;
+        }
+
+        @Override public DecentralizedEnvironmentalNotificationMessageInterface getDenm() {
+            return denm;
+        }
+
+        /** The same DENM as a model object, with every container decoded. */
+        private DenmInterface toModel() {
+            DecentralizedEnvironmentalNotificationMessageInterface body = denm.toModel();
+            if (body instanceof DecentralizedEnvironmentalNotificationMessage1) {
+                return new Denm1(header, (DecentralizedEnvironmentalNotificationMessage1) body);
+            }
+            return new Denm2(header, (DecentralizedEnvironmentalNotificationMessage2) body);
+        }
+
+        @Override public String toString() {
+            return toModel().toString();
+        }
+
+        @Override public String toJson() {
+            return toModel().toJson();
+        }
+    }
+
+    /** The body of a {@link LazyDenm}, of either DENM version. */
+    private static final class LazyDenmBody
+            implements DecentralizedEnvironmentalNotificationMessageInterface {
+        private final ManagementContainer management;
+        private final Class<? extends SituationContainerInterface> situationType;
+        private final Deferred<? extends SituationContainerInterface> lazySituation;
+        private final Deferred<LocationContainer> lazyLocation;
+        private final Deferred<AlacarteContainer> lazyAlacarte;
+
+        LazyDenmBody(ManagementContainer management, Partial<?> partial,
+                Class<? extends SituationContainerInterface> situationType) {
+            this.management = management;
+            this.situationType = situationType;
+            this.lazySituation = partial.deferred("denm.situation", situationType);
+            this.lazyLocation = partial.deferred("denm.location", LocationContainer.class);
+            this.lazyAlacarte = partial.deferred("denm.alacarte", AlacarteContainer.class);
+        }
+
+        @Override public ManagementContainer getManagement() {
+            return management;
+        }
+
+        @Override public boolean hasSituation() {
+            return lazySituation != null;
+        }
+
+        @Override public SituationContainerInterface getSituation() {
+            return lazySituation != null ? lazySituation.get() : null;
+        }
+
+        @Override public boolean hasLocation() {
+            return lazyLocation != null;
+        }
+
+        @Override public LocationContainer getLocation() {
+            return lazyLocation != null ? lazyLocation.get() : null;
+        }
+
+        @Override public boolean hasAlacarte() {
+            return lazyAlacarte != null;
+        }
+
+        @Override public AlacarteContainer getAlacarte() {
+            return lazyAlacarte != null ? lazyAlacarte.get() : null;
+        }
+
+        /** The same body as a model object, with every container decoded. */
+        DecentralizedEnvironmentalNotificationMessageInterface toModel() {
+            if (situationType == SituationContainer1.class) {
+                return new DecentralizedEnvironmentalNotificationMessage1(management,
+                        (SituationContainer1) getSituation(), getLocation(), getAlacarte());
+            }
+            return new DecentralizedEnvironmentalNotificationMessage2(management,
+                    (SituationContainer2) getSituation(), getLocation(), getAlacarte());
+        }
+
+        @Override public String toString() {
+            return toModel().toString();
+        }
+    }
+
     public static void runSearch(String msg)
     {
         System.out.println("Searching..");
@@ -66,15 +66,27 @@ public class BtpPacket {
 
     public byte[] asBytes() {
         if (gnPayload == null) {
-            ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + payload.length);
-            gnPayload = putHeaderTo(buffer).put(payload).array();
+            gnPayload = putTo(ByteBuffer.allocate(HEADER_LENGTH + payload.length)).array();
         }
         return gnPayload;
     }
 
-    private ByteBuffer putHeaderTo(ByteBuffer buffer) {
+    /** Puts the BTP header and the payload, e.g. into a frame after the GeoNetworking headers. */
+    public ByteBuffer putTo(ByteBuffer buffer) {
+        return putHeaderTo(buffer, destinationPort,
+                sourcePort.orElse(destinationPortInfo.orElse((short)0x00))).put(payload);
+    }
+
+    /**
+     * Puts a BTP header only, so the payload can be written straight after it, e.g. with
+     * {@link net.gcdc.asn1.uper.UperEncoder#encodeTo(ByteBuffer, Object)}.
+     *
+     * @param sourcePortOrInfo the source port for BTP-A, the destination port info for BTP-B
+     */
+    public static ByteBuffer putHeaderTo(ByteBuffer buffer, short destinationPort,
+            short sourcePortOrInfo) {
         return buffer.putShort(destinationPort)
-                     .putShort(sourcePort.orElse(destinationPortInfo.orElse((short)0x00)));
+                     .putShort(sourcePortOrInfo);
     }
 
     public static BtpPacket fromGeonetData(GeonetData data) {
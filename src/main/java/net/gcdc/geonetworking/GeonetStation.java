@@ -104,34 +104,24 @@ public class GeonetStation {
                     LongPositionVector senderLpv = LongPositionVector.getFrom(buffer);
                     Area area = Area.getFrom(buffer, Area.Type.fromCode(commonHeader.typeAndSubtype().subtype()));
                     buffer.getShort();  // Reserved 16-bit.
-                    byte[] upperPayload = new byte[commonHeader.payloadLength()];
-                    buffer.slice().get(upperPayload, 0, commonHeader.payloadLength());
+                    // The upper payload is decoded in place, straight from the frame.
+                    ByteBuffer upperPayload = buffer.slice();
+                    upperPayload.limit(commonHeader.payloadLength());
 
-                    Destination.Geobroadcast destination = Destination.geobroadcast(area)
-                            .withMaxLifetimeSeconds(basicHeader.lifetime().asSeconds())
-                            .withRemainingHopLimit(basicHeader.remainingHopLimit())
-                            .withMaxHopLimit(commonHeader.maximumHopLimit());
-                    GeonetData indication = new GeonetData(
-                            commonHeader.nextHeader(),
-                            destination,
-                            Optional.of(commonHeader.trafficClass()),
-                            Optional.of(senderLpv),
-                            upperPayload
-                            );
-                    PacketId packetId = new PacketId(Instant.now(), sequenceNumber, indication.sender.get().address().get());
+                    PacketId packetId = new PacketId(Instant.now(), sequenceNumber, senderLpv.address().get());
                     logger.debug("PacketId: {}",packetId.hashCode());
-                    
 
-                    BtpPacket btpP = BtpPacket.fromGeonetData(indication);
-                    
-                    /*StringBuilder sb = new StringBuilder();
-                    for (byte b : btpP.payload()) {
-                        sb.append(String.format("%02X ", b));
+                    switch (commonHeader.nextHeader()) {
+                        case BTP_A:
+                        case BTP_B:
+                            upperPayload.position(BtpPacket.HEADER_LENGTH);
+                            break;
+                        default:
+                            throw new IllegalArgumentException("Unsupported BTP protocol: " + commonHeader.nextHeader());
                     }
-                    System.out.println(sb.toString());*/
-                    
+
                     try {
-                        return RunDecode.getDecoded(btpP.payload());
+                        return RunDecode.getDecoded(upperPayload);
                     } catch (IllegalAccessException e) {
                         e.printStackTrace();
                     } catch (InstantiationException e) {
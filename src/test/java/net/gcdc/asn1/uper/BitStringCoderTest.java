@@ -0,0 +1,69 @@
+package net.gcdc.asn1.uper;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import net.gcdc.asn1.datatypes.Asn1VarSizeBitstring;
+import net.gcdc.asn1.datatypes.Bitstring;
+import net.gcdc.asn1.datatypes.SizeRange;
+import net.gcdc.camdenm.CoopIts.DrivingLaneStatus;
+
+import org.junit.Test;
+
+/**
+ * Bit strings of subclasses that override setBit are decoded through it, one call per bit, set or
+ * not; the others have their bits set all at once. Both code the same bits.
+ */
+public class BitStringCoderTest {
+
+    @Bitstring
+    @SizeRange(minValue = 1, maxValue = 14)
+    public static class CountingBitstring extends Asn1VarSizeBitstring {
+        int setBitCalls;
+
+        public CountingBitstring() {
+            super(new BitSet());
+        }
+
+        @Override protected void setBit(int bitIndex, boolean value) {
+            setBitCalls++;
+            super.setBit(bitIndex, value);
+        }
+    }
+
+    /** Starts with bits 0 and 9 set. */
+    @Bitstring
+    @SizeRange(minValue = 1, maxValue = 14)
+    public static class PresetBitstring extends Asn1VarSizeBitstring {
+        public PresetBitstring() {
+            super(BitSet.valueOf(new long[] { 1 | 1 << 9 }));
+        }
+    }
+
+    private static final Boolean[] BITS = { false, true, true, false, false, false, true };
+
+    @Test public void overriddenSetBitIsCalled() {
+        byte[] bytes = UperEncoder.encode(new DrivingLaneStatus(Arrays.asList(BITS)));
+        CountingBitstring decoded = UperEncoder.decode(bytes, CountingBitstring.class);
+        assertEquals(BITS.length, decoded.setBitCalls);
+        assertEquals(Arrays.asList(BITS), new ArrayList<>(decoded));
+        assertArrayEquals(bytes, UperEncoder.encode(decoded));
+    }
+
+    @Test public void bitsAreSetAtOnce() {
+        byte[] bytes = UperEncoder.encode(new DrivingLaneStatus(Arrays.asList(BITS)));
+        DrivingLaneStatus decoded = UperEncoder.decode(bytes, DrivingLaneStatus.class);
+        assertEquals(Arrays.asList(BITS), new ArrayList<>(decoded));
+        assertArrayEquals(bytes, UperEncoder.encode(decoded));
+    }
+
+    @Test public void bitsSetByTheConstructorAreCleared() {
+        byte[] bytes = UperEncoder.encode(new DrivingLaneStatus(Arrays.asList(BITS)));
+        PresetBitstring decoded = UperEncoder.decode(bytes, PresetBitstring.class);
+        assertEquals(Arrays.asList(BITS), new ArrayList<>(decoded));
+    }
+}
@@ -0,0 +1,54 @@
+package net.gcdc.asn1.uper;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/** What {@link ByteBufferBitBuffer#array} returns for the different kinds of view. */
+public class ByteBufferBitBufferTest {
+
+    private static final byte[] BYTES = { (byte) 0xA5, (byte) 0x3C, (byte) 0xF0, (byte) 0x0F };
+
+    @Test public void viewOfWholeArrayReturnsIt() {
+        byte[] bytes = BYTES.clone();
+        assertSame(bytes, ByteBufferBitBuffer.wrap(bytes).array());
+        assertSame(bytes, ByteBufferBitBuffer.wrap(bytes, 0, 12).array());
+    }
+
+    @Test public void viewAtOffsetReturnsCopyOfItsBits() {
+        byte[] bytes = BYTES.clone();
+        BitBuffer view = ByteBufferBitBuffer.wrap(bytes, 4, 20);
+        // Bits 4..23 of A5 3C F0, then zeros up to the byte boundary.
+        assertArrayEquals(new byte[] { (byte) 0x53, (byte) 0xCF, (byte) 0x00 }, view.array());
+        assertNotSame(bytes, view.array());
+        assertArrayEquals(BYTES, bytes);
+    }
+
+    @Test public void directAndReadOnlyBuffersReturnCopy() {
+        ByteBuffer direct = ByteBuffer.allocateDirect(BYTES.length);
+        direct.put(BYTES).flip();
+        assertArrayEquals(BYTES, ByteBufferBitBuffer.wrap(direct).array());
+        ByteBuffer readOnly = ByteBuffer.wrap(BYTES.clone()).asReadOnlyBuffer();
+        readOnly.position(1);
+        assertArrayEquals(new byte[] { (byte) 0x3C, (byte) 0xF0, (byte) 0x0F },
+                ByteBufferBitBuffer.wrap(readOnly).array());
+    }
+
+    @Test public void writableViewReturnsWrittenBits() {
+        ByteBuffer heap = ByteBuffer.allocate(8);
+        heap.position(3);
+        BitBuffer written = new ByteBufferBitBuffer().rewrapForWriting(heap, 16)
+                .putBits(0xBEEF, 16);
+        assertArrayEquals(new byte[] { (byte) 0xBE, (byte) 0xEF }, written.array());
+        ByteBuffer direct = ByteBuffer.allocateDirect(2);
+        written = new ByteBufferBitBuffer().rewrapForWriting(direct, 16).putBits(0xBEEF, 16);
+        assertArrayEquals(new byte[] { (byte) 0xBE, (byte) 0xEF }, written.array());
+        written = new ByteBufferBitBuffer().rewrapForWriting(ByteBuffer.allocate(2), 16)
+                .putBits(0xBE, 8);
+        assertSame(written.array(), written.array());
+    }
+}
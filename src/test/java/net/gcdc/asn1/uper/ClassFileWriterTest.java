@@ -0,0 +1,70 @@
+package net.gcdc.asn1.uper;
+
+import static net.gcdc.asn1.uper.ClassFileWriter.*;
+import static org.junit.Assert.assertArrayEquals;
+
+import net.gcdc.asn1.uper.ClassFileWriter.Label;
+import net.gcdc.asn1.uper.ClassFileWriter.MethodWriter;
+
+import org.junit.Test;
+
+/** The stack and local sizes {@link ClassFileWriter} computes, and the code it rejects. */
+public class ClassFileWriterTest {
+
+    private final ClassFileWriter writer = new ClassFileWriter("Test", "java/lang/Object");
+
+    @Test public void longsTakeTwoSlots() {
+        MethodWriter m = writer.method(ACC_PUBLIC, "m", "(J)I");
+        m.local(LLOAD, 1).pushLong(7).op(LAND).local(LSTORE, 4).local(LLOAD, 4).op(L2I).op(POP)
+                .pushInt(0).op(ARETURN);
+        assertArrayEquals(new int[] { 4, 6 }, m.maxStackAndLocals());
+    }
+
+    @Test public void callsPopArgumentsAndPushResult() {
+        MethodWriter m = writer.method(ACC_PUBLIC, "m", "()V");
+        m.local(ALOAD, 0).pushLong(1).pushLong(2).pushInt(3)
+                .op(INVOKEVIRTUAL, writer.methodRef("Test", "f", "(JJZ)I"))
+                .op(POP).op(RETURN);
+        assertArrayEquals(new int[] { 6, 1 }, m.maxStackAndLocals());
+    }
+
+    @Test public void handlersStartWithTheException() {
+        MethodWriter m = writer.method(ACC_PUBLIC, "m", "(Ljava/lang/Object;)V");
+        int start = m.position();
+        m.op(RETURN);
+        int handler = m.position();
+        m.local(ASTORE, 2).local(ALOAD, 2).op(ATHROW);
+        m.catchAll(start, handler, handler);
+        assertArrayEquals(new int[] { 1, 3 }, m.maxStackAndLocals());
+    }
+
+    @Test public void branchesJoinWithTheSameDepth() {
+        MethodWriter m = writer.method(ACC_PUBLIC, "m", "(I)Ljava/lang/Object;");
+        Label other = new Label();
+        Label done = new Label();
+        m.local(ILOAD, 1).jump(IFEQ, other).op(ACONST_NULL).jump(GOTO, done)
+                .mark(other).local(ALOAD, 0)
+                .mark(done).op(ARETURN);
+        assertArrayEquals(new int[] { 1, 2 }, m.maxStackAndLocals());
+    }
+
+    @Test(expected = IllegalStateException.class) public void branchesJoiningWithOtherDepths() {
+        MethodWriter m = writer.method(ACC_PUBLIC, "m", "(I)V");
+        Label done = new Label();
+        m.op(ACONST_NULL).local(ILOAD, 1).jump(IFEQ, done).op(POP)
+                .mark(done).op(RETURN);
+        m.maxStackAndLocals();
+    }
+
+    @Test(expected = IllegalStateException.class) public void stackUnderflow() {
+        MethodWriter m = writer.method(ACC_PUBLIC, "m", "()V");
+        m.op(POP).op(RETURN);
+        m.maxStackAndLocals();
+    }
+
+    @Test(expected = IllegalStateException.class) public void runningOffTheEnd() {
+        MethodWriter m = writer.method(ACC_PUBLIC, "m", "()V");
+        m.pushInt(1).op(POP);
+        m.maxStackAndLocals();
+    }
+}
@@ -0,0 +1,65 @@
+package net.gcdc.asn1.uper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import net.gcdc.asn1.uper.IsolatedCodec.Codecs;
+import net.gcdc.asn1.uper.TestMessages.Sample;
+import net.gcdc.camdenm.CoopIts;
+import net.gcdc.camdenm.Iclcm;
+
+import org.junit.Test;
+
+/**
+ * Every SEQUENCE and CHOICE of the model that {@link CodecCompiler} compiles, compiled on its own
+ * as the root of a codec, decodes and encodes random values like the reflective coders, and so do
+ * the codecs of the top-level messages on the sample messages.
+ */
+public class CompiledCodecTest {
+
+    private static final int VALUES_PER_TYPE = 20;
+
+    private static boolean isCompiled(Class<?> codecClass) {
+        return codecClass.getSuperclass().getName().equals(CompiledCodec.class.getName());
+    }
+
+    @Test public void everyCompiledTypeMatchesReflective() throws Exception {
+        IsolatedCodec reflective = new IsolatedCodec(Codecs.REFLECTIVE);
+        IsolatedCodec compiled = new IsolatedCodec(Codecs.RUNTIME_COMPILED);
+        Random random = new Random(21);
+        int types = 0;
+        for (Class<?> model : Arrays.asList(CoopIts.class, Iclcm.class)) {
+            for (Class<?> type : model.getDeclaredClasses()) {
+                if (!CodecCompiler.isCompilable(type)) { continue; }
+                assertTrue(type.getName(), isCompiled(compiled.codecClass(type)));
+                for (int i = 0; i < VALUES_PER_TYPE; i++) {
+                    byte[] bytes = UperEncoder.encode(TestMessages.random(type, random));
+                    assertEquals(type.getName() + " " + UperEncoder.hexStringFromBytes(bytes),
+                            reflective.roundTrip(bytes, type), compiled.roundTrip(bytes, type));
+                }
+                types++;
+            }
+        }
+        assertTrue("only " + types + " types compiled", types > 50);
+    }
+
+    @Test public void samplesMatchReflective() throws Exception {
+        IsolatedCodec reflective = new IsolatedCodec(Codecs.REFLECTIVE);
+        IsolatedCodec compiled = new IsolatedCodec(Codecs.RUNTIME_COMPILED);
+        for (Sample sample : TestMessages.samples(VALUES_PER_TYPE, 23)) {
+            assertTrue(sample.toString(), isCompiled(compiled.codecClass(sample.type)));
+            assertEquals(sample.toString(), reflective.roundTrip(sample.bytes, sample.type),
+                    compiled.roundTrip(sample.bytes, sample.type));
+        }
+    }
+
+    @Test public void offByDefault() throws Exception {
+        IsolatedCodec codec = new IsolatedCodec(Codecs.DEFAULT);
+        for (Class<?> type : TestMessages.TYPES) {
+            assertTrue(type.getName(), !isCompiled(codec.codecClass(type)));
+        }
+    }
+}
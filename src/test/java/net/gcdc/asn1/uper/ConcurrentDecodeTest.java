@@ -0,0 +1,83 @@
+package net.gcdc.asn1.uper;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.gcdc.asn1.uper.IsolatedCodec.Codecs;
+import net.gcdc.asn1.uper.TestMessages.Sample;
+
+import org.junit.Test;
+
+/**
+ * Many threads decoding and encoding all message types at once, starting from a cold codec: every
+ * plan, binding and (runtime compiled) codec is created while the other threads already use it.
+ */
+public class ConcurrentDecodeTest {
+
+    private static final int THREADS = Math.max(8, 2 * Runtime.getRuntime().availableProcessors());
+    private static final int ROUNDS = 20;
+    private static final int MESSAGES_PER_TYPE = 10;
+
+    @Test public void defaultCodecs() throws Exception {
+        stress(Codecs.DEFAULT);
+    }
+
+    @Test public void runtimeCompiledCodecs() throws Exception {
+        stress(Codecs.RUNTIME_COMPILED);
+    }
+
+    @Test public void reflectiveCodecs() throws Exception {
+        stress(Codecs.REFLECTIVE);
+    }
+
+    private static void stress(Codecs codecs) throws Exception {
+        final List<Sample> samples = TestMessages.samples(MESSAGES_PER_TYPE, 5);
+        // What one thread gets, with a codec of its own.
+        IsolatedCodec reference = new IsolatedCodec(Codecs.REFLECTIVE);
+        final List<String> expected = new ArrayList<>();
+        for (Sample sample : samples) {
+            expected.add(reference.roundTrip(sample.bytes, sample.type));
+        }
+        final IsolatedCodec codec = new IsolatedCodec(codecs);
+        final CyclicBarrier start = new CyclicBarrier(THREADS);
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                final int first = t * samples.size() / THREADS;  // Threads start on other types.
+                results.add(pool.submit(new Callable<Void>() {
+                    @Override public Void call() throws Exception {
+                        start.await();
+                        for (int round = 0; round < ROUNDS; round++) {
+                            for (int i = 0; i < samples.size(); i++) {
+                                int index = (first + i) % samples.size();
+                                Sample sample = samples.get(index);
+                                assertEquals(codec + " " + sample, expected.get(index),
+                                        codec.roundTrip(sample.bytes, sample.type));
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> result : results) {
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Error) { throw (Error) e.getCause(); }
+                    throw (Exception) e.getCause();
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
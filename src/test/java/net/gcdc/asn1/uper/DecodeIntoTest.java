@@ -0,0 +1,88 @@
+package net.gcdc.asn1.uper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+
+import net.gcdc.camdenm.CoopIts;
+import net.gcdc.camdenm.CoopIts.ActionID;
+import net.gcdc.camdenm.CoopIts.ManagementContainer;
+import net.gcdc.camdenm.CoopIts.ReferencePosition;
+import net.gcdc.camdenm.CoopIts.StationType;
+import net.gcdc.camdenm.CoopIts.TimestampIts;
+import net.gcdc.camdenm.CoopIts.ValidityDuration;
+
+import org.junit.Test;
+
+/**
+ * {@link UperEncoder#decodeInto} decodes into the values of the target, but never into one that
+ * the constructor shares between instances: ManagementContainer.validityDuration starts as the
+ * static CoopIts.defaultValidity, and decoding leaves it there when the field is absent.
+ */
+public class DecodeIntoTest {
+
+    private static final byte[] WITHOUT_VALIDITY = UperEncoder.encode(management(null));
+    private static final byte[] WITH_VALIDITY =
+            UperEncoder.encode(management(new ValidityDuration(15923)));
+
+    private static ManagementContainer management(ValidityDuration validityDuration) {
+        return ManagementContainer.builder()
+                .actionID(new ActionID())
+                .detectionTime(new TimestampIts())
+                .referenceTime(new TimestampIts())
+                .eventPosition(new ReferencePosition())
+                .validityDuration(validityDuration)
+                .stationType(new StationType())
+                .create();
+    }
+
+    @Test public void defaultCodecDoesNotChangeDefault() {
+        ManagementContainer decoded = UperEncoder.decode(WITHOUT_VALIDITY,
+                ManagementContainer.class);
+        assertSame(CoopIts.defaultValidity, decoded.getValidityDuration());
+        decoded = UperEncoder.decodeInto(WITH_VALIDITY, decoded);
+        assertEquals(15923, decoded.getValidityDuration().value);
+        assertEquals(600, CoopIts.defaultValidity.value);
+    }
+
+    @Test public void defaultCodecDoesNotChangeDefaultOfNewTarget() {
+        ManagementContainer decoded = UperEncoder.decodeInto(WITH_VALIDITY,
+                new ManagementContainer());
+        assertEquals(15923, decoded.getValidityDuration().value);
+        assertEquals(600, CoopIts.defaultValidity.value);
+    }
+
+    @Test public void runtimeCompiledCodecDoesNotChangeDefault() {
+        ReusingDecoder codec = CodecCompiler.compile(ManagementContainer.class);
+        assertNotNull(codec);
+        assertKeepsDefault(codec);
+        ManagementContainer decoded = codec.decodeInto(ByteBufferBitBuffer.wrap(WITH_VALIDITY),
+                ManagementContainer.class, UperEncoder.NO_ANNOTATIONS, new ManagementContainer());
+        assertEquals(15923, decoded.getValidityDuration().value);
+        assertEquals(600, CoopIts.defaultValidity.value);
+    }
+
+    @Test public void reflectiveCoderDoesNotChangeDefault() {
+        assertKeepsDefault((ReusingDecoder) UperEncoder.reflectiveDecoderFor(
+                ManagementContainer.class, UperEncoder.NO_ANNOTATIONS));
+    }
+
+    private static void assertKeepsDefault(ReusingDecoder coder) {
+        ManagementContainer decoded = coder.decode(ByteBufferBitBuffer.wrap(WITHOUT_VALIDITY),
+                ManagementContainer.class, UperEncoder.NO_ANNOTATIONS);
+        assertSame(CoopIts.defaultValidity, decoded.getValidityDuration());
+        decoded = coder.decodeInto(ByteBufferBitBuffer.wrap(WITH_VALIDITY),
+                ManagementContainer.class, UperEncoder.NO_ANNOTATIONS, decoded);
+        assertEquals(15923, decoded.getValidityDuration().value);
+        assertEquals(600, CoopIts.defaultValidity.value);
+    }
+
+    @Test public void reusesOwnIntegers() {
+        ManagementContainer decoded = UperEncoder.decode(WITH_VALIDITY, ManagementContainer.class);
+        ValidityDuration validityDuration = decoded.getValidityDuration();
+        decoded = UperEncoder.decodeInto(UperEncoder.encode(
+                management(new ValidityDuration(42))), decoded);
+        assertSame(validityDuration, decoded.getValidityDuration());
+        assertEquals(42, validityDuration.value);
+    }
+}
@@ -0,0 +1,45 @@
+package net.gcdc.asn1.uper;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import net.gcdc.asn1.uper.TestMessages.Sample;
+
+import org.junit.Test;
+
+/**
+ * {@link UperEncoder#encodeTo} writes what {@link UperEncoder#encode} returns, also when the pooled
+ * buffers it encodes into still hold the bits of a longer message.
+ */
+public class EncodeToTest {
+
+    @Test public void streamGetsEncoding() throws Exception {
+        for (Sample sample : TestMessages.samples(20, 3)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            UperEncoder.encodeTo(out, sample.value);
+            UperEncoder.encodeTo(out, sample.value);
+            assertEquals(sample.toString(), 2 * sample.bytes.length, out.size());
+            assertArrayEquals(sample.toString(), sample.bytes,
+                    Arrays.copyOf(out.toByteArray(), sample.bytes.length));
+            assertArrayEquals(sample.toString(), sample.bytes, Arrays.copyOfRange(
+                    out.toByteArray(), sample.bytes.length, out.size()));
+        }
+    }
+
+    @Test public void bufferGetsEncoding() throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        for (Sample sample : TestMessages.samples(20, 3)) {
+            byte[] filled = new byte[sample.bytes.length];
+            buffer.clear();
+            UperEncoder.encodeTo(buffer, sample.value);
+            assertEquals(sample.toString(), sample.bytes.length, buffer.position());
+            buffer.flip();
+            buffer.get(filled);
+            assertArrayEquals(sample.toString(), sample.bytes, filled);
+        }
+    }
+}
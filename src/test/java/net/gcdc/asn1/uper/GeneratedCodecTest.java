@@ -0,0 +1,110 @@
+package net.gcdc.asn1.uper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaCompiler.CompilationTask;
+import javax.tools.JavaFileObject;
+import javax.tools.ToolProvider;
+
+import net.gcdc.asn1.codegen.UperCodecProcessor;
+import net.gcdc.asn1.datatypes.Asn1Integer;
+import net.gcdc.asn1.datatypes.Choice;
+import net.gcdc.asn1.datatypes.Sequence;
+import net.gcdc.asn1.uper.IsolatedCodec.Codecs;
+import net.gcdc.asn1.uper.TestMessages.Sample;
+import net.gcdc.camdenm.CoopIts;
+import net.gcdc.camdenm.Iclcm;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * The codecs generated by uper-codegen decode the sample messages to the same values as the
+ * reflective coders, and encode these values to the same bytes. The codecs of the build are only
+ * there if the model was compiled with the codegen profile ({@code mvn -Pcodegen test}); the
+ * processor is also run on the model classes here, so every build checks what it generates.
+ */
+public class GeneratedCodecTest {
+
+    private static final int MESSAGES_PER_TYPE = 20;
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private static boolean isGenerated(Class<?> codecClass) {
+        return codecClass.getName().endsWith(CodecSupport.GENERATED_CODEC_SUFFIX);
+    }
+
+    @Test public void generatedMatchesReflective() throws Exception {
+        IsolatedCodec generated = new IsolatedCodec(Codecs.DEFAULT);
+        assumeTrue("no generated codecs, build with -Pcodegen",
+                isGenerated(generated.codecClass(TestMessages.TYPES.get(0))));
+        assertMatchesReflective(generated);
+    }
+
+    @Test public void processorOutputMatchesReflective() throws Exception {
+        assertMatchesReflective(new IsolatedCodec(Codecs.DEFAULT, generateCodecs()));
+    }
+
+    @Test public void generatedCodecsCanBeSwitchedOff() throws Exception {
+        IsolatedCodec reflective = new IsolatedCodec(Codecs.REFLECTIVE, generateCodecs());
+        for (Class<?> type : TestMessages.TYPES) {
+            assertTrue(type.getName(), !isGenerated(reflective.codecClass(type)));
+        }
+    }
+
+    private static void assertMatchesReflective(IsolatedCodec generated) throws Exception {
+        IsolatedCodec reflective = new IsolatedCodec(Codecs.REFLECTIVE);
+        for (Sample sample : TestMessages.samples(MESSAGES_PER_TYPE, 17)) {
+            assertTrue(sample.toString(), isGenerated(generated.codecClass(sample.type)));
+            assertEquals(sample.toString(), reflective.roundTrip(sample.bytes, sample.type),
+                    generated.roundTrip(sample.bytes, sample.type));
+        }
+    }
+
+    /**
+     * Runs {@link UperCodecProcessor} on the compiled SEQUENCEs and CHOICEs of the model, like the
+     * codegen profile does on their sources, and compiles the codecs into a new directory.
+     */
+    private File generateCodecs() throws Exception {
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        assertNotNull("no system Java compiler, run the tests on a JDK", javac);
+        List<String> classes = new ArrayList<>();
+        for (Class<?> model : Arrays.<Class<?>>asList(CoopIts.class, Iclcm.class)) {
+            addModelClasses(model, classes);
+        }
+        File out = folder.newFolder("generated-codecs");
+        List<String> options = Arrays.asList("-nowarn", "-d", out.getPath(), "-s", out.getPath(),
+                "-classpath", location(UperEncoder.class) + File.pathSeparator
+                        + location(Asn1Integer.class));
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        CompilationTask task = javac.getTask(null, null, diagnostics, options, classes, null);
+        task.setProcessors(Collections.singletonList(new UperCodecProcessor()));
+        assertTrue(diagnostics.getDiagnostics().toString(), task.call());
+        return out;
+    }
+
+    private static void addModelClasses(Class<?> c, List<String> classes) {
+        if (c.isAnnotationPresent(Sequence.class) || c.isAnnotationPresent(Choice.class)) {
+            classes.add(c.getName());
+        }
+        for (Class<?> nested : c.getDeclaredClasses()) {
+            addModelClasses(nested, classes);
+        }
+    }
+
+    private static String location(Class<?> c) throws Exception {
+        return new File(c.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+    }
+}
@@ -0,0 +1,91 @@
+package net.gcdc.asn1.uper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.lang.reflect.Field;
+import java.util.Random;
+
+import net.gcdc.asn1.datatypes.Asn1Integer;
+import net.gcdc.asn1.datatypes.Sequence;
+import net.gcdc.asn1.uper.IsolatedCodec.Codecs;
+import net.gcdc.asn1.uper.TestMessages.Sample;
+import net.gcdc.camdenm.CoopIts.Cam2;
+
+import org.junit.Test;
+
+/**
+ * {@link IntCoder} shares the instances of small-range integer types if asked to, with every kind
+ * of codec, without changing what is decoded, and codes integers without a range in the range of
+ * their Java type.
+ */
+public class IntCoderTest {
+
+    /** The value of the field at the path of names, e.g. "header", "protocolVersion". */
+    private static Object field(Object value, String... names) throws Exception {
+        for (String name : names) {
+            Field f = value.getClass().getDeclaredField(name);
+            f.setAccessible(true);  // Package-private fields of another class loader.
+            value = f.get(value);
+        }
+        return value;
+    }
+
+    @Test public void sharesSmallRangeIntegers() throws Exception {
+        byte[] cam = UperEncoder.encode(TestMessages.random(Cam2.class, new Random(7)));
+        for (Codecs codecs : Codecs.values()) {
+            IsolatedCodec codec = new IsolatedCodec(codecs, true);
+            Object first = codec.decode(cam, Cam2.class);
+            Object second = codec.decode(cam, Cam2.class);
+            // ProtocolVersion has 256 values, StationID 2^32.
+            assertSame(codec.toString(), field(first, "header", "protocolVersion"),
+                    field(second, "header", "protocolVersion"));
+            assertNotSame(codec.toString(), field(first, "header", "stationID"),
+                    field(second, "header", "stationID"));
+        }
+    }
+
+    @Test public void createsNewIntegersByDefault() throws Exception {
+        byte[] cam = UperEncoder.encode(TestMessages.random(Cam2.class, new Random(7)));
+        for (Codecs codecs : Codecs.values()) {
+            IsolatedCodec codec = new IsolatedCodec(codecs);
+            assertNotSame(codec.toString(),
+                    field(codec.decode(cam, Cam2.class), "header", "protocolVersion"),
+                    field(codec.decode(cam, Cam2.class), "header", "protocolVersion"));
+        }
+    }
+
+    @Test public void sharingDecodesTheSameValues() throws Exception {
+        IsolatedCodec reference = new IsolatedCodec(Codecs.REFLECTIVE);
+        for (Codecs codecs : Codecs.values()) {
+            IsolatedCodec codec = new IsolatedCodec(codecs, true);
+            for (Sample sample : TestMessages.samples(10, 13)) {
+                assertEquals(codec + " " + sample, reference.roundTrip(sample.bytes, sample.type),
+                        codec.roundTrip(sample.bytes, sample.type));
+            }
+        }
+    }
+
+    /** An INTEGER type without a range. */
+    public static class Count extends Asn1Integer {
+        public Count() { this(0); }
+        public Count(long value) { super(value); }
+    }
+
+    @Sequence
+    public static class Unconstrained {
+        Count count = new Count();
+        public Unconstrained() {}
+    }
+
+    @Test public void codesIntegersWithoutRangeInTheRangeOfLong() {
+        for (long value : new long[] { 0, -1, 1000, Long.MIN_VALUE, Long.MAX_VALUE }) {
+            Unconstrained message = new Unconstrained();
+            message.count = new Count(value);
+            byte[] encoded = UperEncoder.encode(message);
+            assertEquals(8, encoded.length);
+            assertEquals(value, UperEncoder.decode(encoded, Unconstrained.class).count.value());
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package net.gcdc.asn1.uper;
+
+import java.io.File;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import net.gcdc.asn1.datatypes.Asn1Integer;
+import net.jodah.typetools.TypeResolver;
+
+import org.slf4j.LoggerFactory;
+
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.core.Context;
+
+/**
+ * {@link UperEncoder} in a class loader of its own, with its own copy of the codec and the model
+ * classes. Each instance starts cold (no plans or bindings yet), and reads the system properties
+ * that select the codecs anew, so one test JVM can compare or stress several configurations. Values are handed over as UPER bytes and compared as {@link #dump}s.
+ */
+final class IsolatedCodec {
+
+    /** Which codecs the isolated {@link UperEncoder} uses for SEQUENCEs and CHOICEs. */
+    enum Codecs {
+        /** Generated codecs if the model was compiled with them, else the reflective coders. */
+        DEFAULT("true", "false"),
+        /** Runtime compiled codecs (see {@link CodecCompiler}), generated ones are ignored. */
+        RUNTIME_COMPILED("false", "true"),
+        /** The reflective coders only. */
+        REFLECTIVE("false", "false");
+
+        private final String generatedCodecs;
+        private final String runtimeCodecs;
+
+        private Codecs(String generatedCodecs, String runtimeCodecs) {
+            this.generatedCodecs = generatedCodecs;
+            this.runtimeCodecs = runtimeCodecs;
+        }
+    }
+
+    /** The classes that read the codec properties when they are initialized. */
+    private static final String[] CONFIGURED_CLASSES = {
+            CodecSupport.class.getName(), CodecCompiler.class.getName(),
+            IntCoder.class.getName() };
+
+    final Codecs codecs;
+    /** Whether small integers are shared, see {@link IntCoder#SHARE_SMALL_INTEGERS}. */
+    final boolean shareSmallIntegers;
+    private final ClassLoader loader;
+    private final Method encode;
+    private final Method decode;
+    private final Method decoderFor;
+
+    IsolatedCodec(Codecs codecs) throws Exception {
+        this(codecs, false);
+    }
+
+    IsolatedCodec(Codecs codecs, boolean shareSmallIntegers) throws Exception {
+        this(codecs, shareSmallIntegers, null);
+    }
+
+    /** With the classes in generatedCodecs ahead of the model, e.g. codecs generated by a test. */
+    IsolatedCodec(Codecs codecs, File generatedCodecs) throws Exception {
+        this(codecs, false, generatedCodecs);
+    }
+
+    private IsolatedCodec(Codecs codecs, boolean shareSmallIntegers, File generatedCodecs)
+            throws Exception {
+        this.codecs = codecs;
+        this.shareSmallIntegers = shareSmallIntegers;
+        Set<URL> classpath = new LinkedHashSet<>();
+        if (generatedCodecs != null) {
+            classpath.add(generatedCodecs.toURI().toURL());
+        }
+        // The codec and model, the test resources (logging configuration), and the dependencies.
+        for (Class<?> c : Arrays.asList(UperEncoder.class, IsolatedCodec.class, Asn1Integer.class,
+                TypeResolver.class, LoggerFactory.class, LoggerContext.class, Context.class)) {
+            classpath.add(c.getProtectionDomain().getCodeSource().getLocation());
+        }
+        this.loader = new URLClassLoader(classpath.toArray(new URL[0]),
+                ClassLoader.getSystemClassLoader().getParent());
+        synchronized (IsolatedCodec.class) {
+            String generated = System.setProperty(CodecSupport.GENERATED_CODECS_PROPERTY,
+                    codecs.generatedCodecs);
+            String runtime = System.setProperty(CodecSupport.RUNTIME_CODECS_PROPERTY,
+                    codecs.runtimeCodecs);
+            String share = System.setProperty(IntCoder.SHARE_SMALL_INTEGERS_PROPERTY,
+                    Boolean.toString(shareSmallIntegers));
+            try {
+                for (String name : CONFIGURED_CLASSES) {
+                    Class.forName(name, true, loader);
+                }
+            } finally {
+                restore(CodecSupport.GENERATED_CODECS_PROPERTY, generated);
+                restore(CodecSupport.RUNTIME_CODECS_PROPERTY, runtime);
+                restore(IntCoder.SHARE_SMALL_INTEGERS_PROPERTY, share);
+            }
+        }
+        Class<?> encoder = loader.loadClass(UperEncoder.class.getName());
+        this.encode = encoder.getMethod("encode", Object.class);
+        this.decode = encoder.getMethod("decode", byte[].class, Class.class);
+        this.decoderFor = encoder.getDeclaredMethod("decoderFor", Class.class,
+                Annotation[].class);
+        decoderFor.setAccessible(true);  // Package-private, in another class loader.
+    }
+
+    private static void restore(String property, String value) {
+        if (value == null) {
+            System.clearProperty(property);
+        } else {
+            System.setProperty(property, value);
+        }
+    }
+
+    /** Decodes bytes as the isolated copy of type. */
+    Object decode(byte[] bytes, Class<?> type) throws Exception {
+        return invoke(decode, null, bytes, loader.loadClass(type.getName()));
+    }
+
+    /** Encodes a value decoded by this codec. */
+    byte[] encode(Object value) throws Exception {
+        return (byte[]) invoke(encode, null, value);
+    }
+
+    /** A new {@link ShapeCache} for the isolated copy of type. */
+    Object shapeCache(Class<?> type) throws Exception {
+        Class<?> shapeCache = loader.loadClass(ShapeCache.class.getName());
+        return shapeCache.getConstructor(Class.class).newInstance(loader.loadClass(type.getName()));
+    }
+
+    /** Decodes bytes with a {@link #shapeCache}. */
+    Object decode(Object shapeCache, byte[] bytes) throws Exception {
+        return invoke(shapeCache.getClass().getMethod("decode", byte[].class), shapeCache, bytes);
+    }
+
+    /** The class of the decoder the isolated {@link UperEncoder} uses for type. */
+    Class<?> codecClass(Class<?> type) throws Exception {
+        return invoke(decoderFor, null, loader.loadClass(type.getName()), new Annotation[0])
+                .getClass();
+    }
+
+    /**
+     * What decoding bytes as type and encoding the result again gives: the {@link #dump} of the
+     * decoded value, then the bytes encoded from it or the exception the encoder threw. Decoding
+     * leaves absent optional fields as the constructor set them, and a few constructors of the
+     * model set them to values that can't be encoded, e.g. strings without a value.
+     */
+    String roundTrip(byte[] bytes, Class<?> type) throws Exception {
+        Object decoded = decode(bytes, type);
+        String encoded;
+        try {
+            encoded = UperEncoder.hexStringFromBytes(encode(decoded));
+        } catch (RuntimeException e) {
+            encoded = e.getClass().getName();
+        }
+        return dump(decoded) + "\n" + encoded;
+    }
+
+    private static Object invoke(Method method, Object target, Object... arguments)
+            throws Exception {
+        try {
+            return method.invoke(target, arguments);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof Exception) { throw (Exception) e.getCause(); }
+            if (e.getCause() instanceof Error) { throw (Error) e.getCause(); }
+            throw e;
+        }
+    }
+
+    @Override public String toString() {
+        return "IsolatedCodec(" + codecs + (shareSmallIntegers ? ", sharing small integers" : "")
+                + ")";
+    }
+
+    /**
+     * The fields of value and of everything it contains, with the simple names of their classes.
+     * Equal for equal values, whichever class loader their classes come from.
+     */
+    static String dump(Object value) throws IllegalAccessException {
+        StringBuilder result = new StringBuilder();
+        dump(value, result);
+        return result.toString();
+    }
+
+    private static void dump(Object value, StringBuilder out) throws IllegalAccessException {
+        if (value == null) {
+            out.append("null");
+        } else if (value instanceof Enum<?>) {
+            out.append(((Enum<?>) value).name());
+        } else if (value instanceof byte[]) {
+            out.append(Arrays.toString((byte[]) value));
+        } else if (value instanceof Iterable<?>) {
+            out.append(value.getClass().getSimpleName()).append('[');
+            for (Object element : (Iterable<?>) value) {
+                dump(element, out);
+                out.append(',');
+            }
+            out.append(']');
+        } else if (value.getClass().getName().startsWith("java.")) {
+            out.append(value);
+        } else {
+            out.append(value.getClass().getSimpleName()).append('{');
+            for (Class<?> c = value.getClass(); c != Object.class; c = c.getSuperclass()) {
+                for (Field f : c.getDeclaredFields()) {
+                    if (Modifier.isStatic(f.getModifiers()) || f.isSynthetic()) { continue; }
+                    f.setAccessible(true);
+                    out.append(f.getName()).append('=');
+                    dump(f.get(value), out);
+                    out.append(',');
+                }
+            }
+            out.append('}');
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package net.gcdc.asn1.uper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import net.gcdc.asn1.uper.IsolatedCodec.Codecs;
+import net.gcdc.asn1.uper.TestMessages.Sample;
+import net.gcdc.camdenm.CoopIts.Cam1;
+
+import org.junit.Test;
+
+/**
+ * {@link ShapeCache} decodes like {@link UperEncoder#decode(byte[], Class)}, messages of recorded
+ * shapes and new ones, and fails like it on broken messages. Tested with the reflective coders, a
+ * type with a generated or runtime-compiled codec is decoded by that codec.
+ */
+public class ShapeCacheTest {
+
+    private static final int MESSAGES_PER_TYPE = 20;
+    private static final int BROKEN_COPIES = 20;
+
+    @Test public void decodesLikeUperEncoder() throws Exception {
+        IsolatedCodec codec = new IsolatedCodec(Codecs.REFLECTIVE);
+        Map<Class<?>, Object> shapeCaches = new HashMap<>();
+        Random random = new Random(13);
+        for (Sample sample : TestMessages.samples(MESSAGES_PER_TYPE, 11)) {
+            Object shapeCache = shapeCaches.get(sample.type);
+            if (shapeCache == null) {
+                shapeCache = codec.shapeCache(sample.type);
+                shapeCaches.put(sample.type, shapeCache);
+            }
+            assertDecodesLike(codec, shapeCache, sample.type, sample.bytes);
+            for (int i = 0; i < BROKEN_COPIES; i++) {
+                byte[] broken = Arrays.copyOf(sample.bytes, sample.bytes.length);
+                for (int j = random.nextInt(broken.length); j < broken.length; j += 8) {
+                    broken[j] = (byte) random.nextInt();
+                }
+                assertDecodesLike(codec, shapeCache, sample.type, broken);
+                // Twice, the first decoding may have recorded the shape of the broken message.
+                assertDecodesLike(codec, shapeCache, sample.type, broken);
+            }
+            assertDecodesLike(codec, shapeCache, sample.type,
+                    Arrays.copyOf(sample.bytes, sample.bytes.length / 2));
+            byte[] garbage = new byte[sample.bytes.length];
+            random.nextBytes(garbage);
+            assertDecodesLike(codec, shapeCache, sample.type, garbage);
+        }
+    }
+
+    @Test public void recordsShapesWithDefaultCodecs() throws Exception {
+        IsolatedCodec codec = new IsolatedCodec(Codecs.DEFAULT);
+        assumeTrue("generated codecs decode instead",
+                !codec.codecClass(Cam1.class).getName().endsWith(
+                        CodecSupport.GENERATED_CODEC_SUFFIX));
+        Object shapeCache = codec.shapeCache(Cam1.class);
+        for (Sample sample : TestMessages.samples(MESSAGES_PER_TYPE, 11)) {
+            if (sample.type == Cam1.class) {
+                assertDecodesLike(codec, shapeCache, sample.type, sample.bytes);
+            }
+        }
+        assertTrue(shapeCache.toString(), !shapeCache.toString().contains(" 0 of "));
+    }
+
+    /** A CAM with an out of range INTEGER, after which the recorder used to read garbage sizes. */
+    @Test public void failsLikeUperEncoderWhileRecording() throws Exception {
+        IsolatedCodec codec = new IsolatedCodec(Codecs.REFLECTIVE);
+        byte[] bytes = UperEncoder.bytesFromHexString("CA00B5E770CB546A6B42F950C8294919D61C8729"
+                + "B2697DC1D22C130481DF5AD1EEA76D187A44");
+        assertDecodesLike(codec, codec.shapeCache(Cam1.class), Cam1.class, bytes);
+    }
+
+    private static void assertDecodesLike(IsolatedCodec codec, Object shapeCache, Class<?> type,
+            byte[] bytes) throws Exception {
+        String expected;
+        try {
+            expected = IsolatedCodec.dump(codec.decode(bytes, type));
+        } catch (Exception | AssertionError e) {
+            expected = failure(e);
+        }
+        String actual;
+        try {
+            actual = IsolatedCodec.dump(codec.decode(shapeCache, bytes));
+        } catch (Exception | AssertionError e) {
+            actual = failure(e);
+        }
+        assertEquals(type.getSimpleName() + " " + UperEncoder.hexStringFromBytes(bytes), expected,
+                actual);
+    }
+
+    /** The exception, without the identity hash codes of the values its message shows. */
+    private static String failure(Throwable e) {
+        return e.toString().replaceAll("@[0-9a-f]+", "@");
+    }
+}
@@ -0,0 +1,251 @@
+package net.gcdc.asn1.uper;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+
+import net.gcdc.asn1.datatypes.Asn1Integer;
+import net.gcdc.asn1.datatypes.Asn1Optional;
+import net.gcdc.asn1.datatypes.Asn1SequenceOf;
+import net.gcdc.asn1.datatypes.Asn1String;
+import net.gcdc.asn1.datatypes.Asn1VarSizeBitstring;
+import net.gcdc.asn1.datatypes.Choice;
+import net.gcdc.asn1.datatypes.FixedSize;
+import net.gcdc.asn1.datatypes.IntRange;
+import net.gcdc.asn1.datatypes.IsExtension;
+import net.gcdc.asn1.datatypes.SizeRange;
+import net.gcdc.camdenm.CoopIts.Cam1;
+import net.gcdc.camdenm.CoopIts.Cam2;
+import net.gcdc.camdenm.CoopIts.Denm1;
+import net.gcdc.camdenm.CoopIts.Denm2;
+import net.gcdc.camdenm.Iclcm.IgameCooperativeLaneChangeMessage;
+import net.gcdc.camdenm.RunDecode;
+import net.gcdc.geonetworking.GeonetStation;
+import net.gcdc.geonetworking.StationConfig;
+import net.jodah.typetools.TypeResolver;
+
+/**
+ * The messages the codec tests and the benchmarks run on: the DENMs in the hex samples of
+ * {@link GeonetStation} and {@link RunDecode}, random messages of every top-level type of the
+ * model, and full ones.
+ *
+ * Optional fields typed with a version-neutral interface are always left out, the codec can't
+ * instantiate them.
+ */
+public final class TestMessages {
+
+    private TestMessages() {}
+
+    /** The top-level messages of the model. */
+    static final List<Class<?>> TYPES = Arrays.<Class<?>>asList(Denm1.class, Denm2.class,
+            Cam1.class, Cam2.class, IgameCooperativeLaneChangeMessage.class);
+
+    /** Sizes of lists and strings that have no upper bound go up to this much above the lower. */
+    private static final int MAX_EXTRA_SIZE = 3;
+
+    private static final int MAX_DEPTH = 16;
+
+    /** A message and its encoding. */
+    static final class Sample {
+        final String name;
+        final Class<?> type;
+        final Object value;
+        final byte[] bytes;
+
+        Sample(String name, Object value) {
+            this.name = name;
+            this.type = value.getClass();
+            this.value = value;
+            this.bytes = UperEncoder.encode(value);
+        }
+
+        @Override public String toString() { return name; }
+    }
+
+    /** The two real DENMs, then messagesPerType random messages of each of {@link #TYPES}. */
+    static List<Sample> samples(int messagesPerType, long seed) throws Exception {
+        List<Sample> result = new ArrayList<>();
+        result.add(new Sample("GeonetStation.testmsg", embeddedDenm(GeonetStation.class)));
+        result.add(new Sample("RunDecode.testmsg", embeddedDenm(RunDecode.class)));
+        Random random = new Random(seed);
+        for (Class<?> type : TYPES) {
+            for (int i = 0; i < messagesPerType; i++) {
+                result.add(new Sample(type.getSimpleName() + "#" + i, random(type, random)));
+            }
+        }
+        return result;
+    }
+
+    /** The DENM in the GeoNetworking packet of the testmsg hex sample of owner. */
+    public static Object embeddedDenm(Class<?> owner) throws Exception {
+        Field sample = owner.getDeclaredField("testmsg");
+        sample.setAccessible(true);  // Package-private sample, not part of the API.
+        StationConfig config = new StationConfig();
+        config.setItsGnProtocolVersion(1);
+        Object denm = new GeonetStation(config).decodeGeoNetworking(
+                GeonetStation.bytesFromHexString((String) sample.get(null)));
+        if (denm == null) {
+            throw new IllegalStateException("No DENM in " + owner.getSimpleName() + ".testmsg");
+        }
+        return denm;
+    }
+
+    /**
+     * A random value of type: each optional field and extension present or absent at random,
+     * CHOICEs take any of their alternatives, integers, sizes and bits are random within their
+     * constraints.
+     */
+    public static <T> T random(Class<T> type, Random random) throws Exception {
+        return new Generator(random).value(type, new Annotation[0], 0);
+    }
+
+    /**
+     * A value of type with every field set, optional and extension fields included, so every
+     * container of a message is coded. Values are in the middle of their ranges, lists and
+     * strings have their smallest non-empty allowed size, and CHOICEs take their first
+     * alternative.
+     */
+    public static <T> T full(Class<T> type) throws Exception {
+        return new Generator(null).value(type, new Annotation[0], 0);
+    }
+
+    /** Builds the values of {@link #random} and {@link #full}. */
+    private static final class Generator {
+        /** Null for a full value. */
+        private final Random random;
+
+        Generator(Random random) {
+            this.random = random;
+        }
+
+        <T> T value(Class<T> type, Annotation[] fieldAnnotations, int depth) throws Exception {
+            if (depth > MAX_DEPTH) {
+                throw new IllegalArgumentException("Too deep, recursive type? " + type);
+            }
+            Object result;
+            if (type == boolean.class || type == Boolean.class) {
+                result = random == null || random.nextBoolean();
+            } else if (type == byte.class || type == Byte.class) {
+                result = random == null ? (byte) 0x5A : (byte) random.nextInt();
+            } else if (type.isEnum()) {
+                Object[] constants = type.getEnumConstants();
+                result = constants[random == null ? 0 : random.nextInt(constants.length)];
+            } else if (Asn1Integer.class.isAssignableFrom(type)) {
+                result = integer(type, annotation(IntRange.class, type, fieldAnnotations));
+            } else if (Asn1String.class.isAssignableFrom(type)) {
+                StringBuilder value = new StringBuilder();
+                for (int i = size(type, fieldAnnotations); i > 0; i--) {
+                    value.append((char) ('A' + (random == null ? i % 26 : random.nextInt(26))));
+                }
+                result = constructor(type, String.class).newInstance(value.toString());
+            } else if (Asn1VarSizeBitstring.class.isAssignableFrom(type)) {
+                // The size of the bit string is its highest set bit, so the last bit is set.
+                List<Boolean> bits = new ArrayList<>();
+                for (int i = size(type, fieldAnnotations); i > 1; i--) {
+                    bits.add(random == null ? i % 2 == 0 : random.nextBoolean());
+                }
+                bits.add(true);
+                result = constructor(type, Collection.class).newInstance(bits);
+            } else if (Asn1SequenceOf.class.isAssignableFrom(type)) {
+                Class<?> elementType = TypeResolver.resolveRawArguments(List.class, type)[0];
+                List<Object> elements = new ArrayList<>();
+                for (int i = size(type, fieldAnnotations); i > 0; i--) {
+                    elements.add(value(elementType, new Annotation[0], depth + 1));
+                }
+                result = constructor(type, Collection.class).newInstance(elements);
+            } else {
+                result = constructor(type).newInstance();
+                List<Field> fields = new ArrayList<>();
+                for (Field f : type.getDeclaredFields()) {
+                    if (Modifier.isStatic(f.getModifiers()) || f.isSynthetic()) { continue; }
+                    f.setAccessible(true);
+                    fields.add(f);
+                }
+                if (type.getAnnotation(Choice.class) != null) {
+                    int chosen = random == null ? 0 : random.nextInt(fields.size());
+                    for (int i = 0; i < fields.size(); i++) {
+                        Field f = fields.get(i);
+                        f.set(result, i == chosen
+                                ? value(f.getType(), f.getAnnotations(), depth + 1) : null);
+                    }
+                } else {
+                    for (Field f : fields) {
+                        boolean optional = f.getAnnotation(Asn1Optional.class) != null
+                                || f.getAnnotation(IsExtension.class) != null;
+                        if (optional && (isAbstract(f.getType())
+                                || random != null && random.nextBoolean())) {
+                            f.set(result, null);
+                        } else {
+                            f.set(result, value(f.getType(), f.getAnnotations(), depth + 1));
+                        }
+                    }
+                }
+            }
+            @SuppressWarnings("unchecked")  // Primitives are returned boxed.
+            T t = (T) result;
+            return t;
+        }
+
+        private Object integer(Class<?> type, IntRange range) throws Exception {
+            long value;
+            if (range == null) {
+                value = random == null ? 0 : random.nextInt(2001) - 1000;
+            } else if (random == null) {
+                // Floor of the midpoint, without overflowing on the widest ranges.
+                value = (range.minValue() & range.maxValue())
+                        + ((range.minValue() ^ range.maxValue()) >> 1);
+            } else {
+                long span = range.maxValue() - range.minValue();  // Wraps for the widest ranges.
+                value = range.minValue() + (span >= 0 && span < Long.MAX_VALUE
+                        ? (long) (random.nextDouble() * (span + 1))
+                        : random.nextLong() & Long.MAX_VALUE);
+                value = Math.max(range.minValue(), Math.min(range.maxValue(), value));
+            }
+            for (Constructor<?> c : type.getDeclaredConstructors()) {
+                Class<?>[] parameters = c.getParameterTypes();
+                if (parameters.length != 1) { continue; }
+                c.setAccessible(true);
+                if (parameters[0] == long.class) { return c.newInstance(value); }
+                if (parameters[0] == int.class) { return c.newInstance((int) value); }
+                if (parameters[0] == short.class) { return c.newInstance((short) value); }
+            }
+            throw new IllegalArgumentException("No integer constructor in " + type);
+        }
+
+        private int size(Class<?> type, Annotation[] fieldAnnotations) {
+            FixedSize fixedSize = annotation(FixedSize.class, type, fieldAnnotations);
+            if (fixedSize != null) { return fixedSize.value(); }
+            SizeRange sizeRange = annotation(SizeRange.class, type, fieldAnnotations);
+            int min = sizeRange == null ? 1 : Math.max(1, sizeRange.minValue());
+            if (random == null) { return min; }
+            int max = sizeRange == null ? min + MAX_EXTRA_SIZE
+                    : Math.min(sizeRange.maxValue(), min + MAX_EXTRA_SIZE);
+            return min + random.nextInt(max - min + 1);
+        }
+    }
+
+    private static boolean isAbstract(Class<?> type) {
+        return !type.isPrimitive() && Modifier.isAbstract(type.getModifiers());
+    }
+
+    private static <A extends Annotation> A annotation(Class<A> annotationType, Class<?> type,
+            Annotation[] fieldAnnotations) {
+        for (Annotation a : fieldAnnotations) {
+            if (a.annotationType() == annotationType) { return annotationType.cast(a); }
+        }
+        return type.getAnnotation(annotationType);
+    }
+
+    private static <T> Constructor<T> constructor(Class<T> type, Class<?>... parameterTypes)
+            throws NoSuchMethodException {
+        Constructor<T> result = type.getDeclaredConstructor(parameterTypes);
+        result.setAccessible(true);
+        return result;
+    }
+}
@@ -0,0 +1,41 @@
+package net.gcdc.camdenm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import net.gcdc.asn1.uper.UperEncoder;
+import net.gcdc.camdenm.CoopIts.DenmInterface;
+import net.gcdc.geonetworking.GeonetStation;
+import net.gcdc.geonetworking.StationConfig;
+
+import org.junit.Test;
+
+/** The DENMs of {@link RunDecode#getDecodedLazily} read like decoded ones, and can't be encoded. */
+public class RunDecodeTest {
+
+    /** The DENM in the GeoNetworking packet of {@link RunDecode#testmsg}. */
+    private static byte[] denm() {
+        StationConfig config = new StationConfig();
+        config.setItsGnProtocolVersion(1);
+        Object denm = new GeonetStation(config).decodeGeoNetworking(
+                GeonetStation.bytesFromHexString(RunDecode.testmsg));
+        return UperEncoder.encode(denm);
+    }
+
+    @Test public void lazyDenmReadsLikeDecodedDenm() throws Exception {
+        byte[] encoded = denm();
+        DenmInterface lazy = RunDecode.getDecodedLazily(encoded);
+        DenmInterface decoded = RunDecode.getDecoded(encoded);
+        assertEquals(decoded.toJson(), lazy.toJson());
+        assertEquals(decoded.toString(), lazy.toString());
+    }
+
+    @Test public void lazyDenmCantBeEncoded() {
+        DenmInterface lazy = RunDecode.getDecodedLazily(denm());
+        try {
+            UperEncoder.encode(lazy);
+            fail("encoded a lazily decoded DENM");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
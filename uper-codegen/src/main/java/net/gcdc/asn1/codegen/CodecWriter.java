@@ -0,0 +1,316 @@
+package net.gcdc.asn1.codegen;
+
+import java.util.List;
+
+import net.gcdc.asn1.codegen.UperCodecProcessor.FieldKind;
+import net.gcdc.asn1.codegen.UperCodecProcessor.FieldModel;
+import net.gcdc.asn1.codegen.UperCodecProcessor.TypeModel;
+
+/**
+ * Writes the source of the codec for one {@link TypeModel}. The generated code does, field by
+ * field and in the same order, what SequenceCoder and ChoiceCoder do for that class, and fails
+ * with the same exceptions and messages.
+ */
+class CodecWriter {
+
+    private final TypeModel model;
+    private final StringBuilder out = new StringBuilder();
+
+    CodecWriter(TypeModel model) {
+        this.model = model;
+        writeClass();
+    }
+
+    @Override public String toString() {
+        return out.toString();
+    }
+
+    private CodecWriter line(String s) {
+        out.append(s).append('\n');
+        return this;
+    }
+
+    private void writeClass() {
+        String type = model.typeName;
+        if (!model.packageName.isEmpty()) {
+            line("package " + model.packageName + ";").line("");
+        }
+        line("import java.lang.annotation.Annotation;").line("");
+        line("import net.gcdc.asn1.uper.Asn1EncodingException;");
+        line("import net.gcdc.asn1.uper.BitBuffer;");
+        line("import net.gcdc.asn1.uper.CodecSupport;");
+        line("import net.gcdc.asn1.uper.Decoder;");
+        line("import net.gcdc.asn1.uper.Encoder;").line("");
+        line("/**");
+        line(" * UPER codec for {@link " + type + "}, generated by "
+                + UperCodecProcessor.class.getName() + ".");
+        line(" * Do not edit, changes are lost on the next build.");
+        line(" */");
+        line("public final class " + model.codecName + " implements Encoder, Decoder {").line("");
+        line("    private static final boolean HAS_EXTENSION_MARKER = " + model.hasExtensionMarker
+                + ";");
+        if (!model.reflectiveFields.isEmpty()) {
+            StringBuilder names = new StringBuilder();
+            for (FieldModel f : model.reflectiveFields) {
+                names.append(", \"").append(f.name).append('"');
+            }
+            line("    /** Annotations of the fields coded by reflection, in declaration order. */");
+            line("    private static final Annotation[][] FIELD_ANNOTATIONS =");
+            line("            CodecSupport.fieldAnnotations(" + type + ".class" + names + ");");
+        }
+        for (int i = 0; i < model.enumTypes.size(); i++) {
+            String enumType = model.enumTypes.get(i);
+            line("    private static final " + enumType + "[] ENUM_VALUES_" + i + " = " + enumType
+                    + ".values();");
+        }
+        line("");
+        line("    @Override public <T> boolean canDecode(Class<T> classOfT, Annotation[] extraAnnotations) {");
+        line("        return classOfT == " + type + ".class");
+        line("                && CodecSupport.hasExtensionMarker(classOfT, extraAnnotations) == HAS_EXTENSION_MARKER;");
+        line("    }").line("");
+        line("    @Override public <T> T decode(BitBuffer bitbuffer, Class<T> classOfT, Annotation[] extraAnnotations) {");
+        line("        @SuppressWarnings(\"unchecked\")  // canDecode only accepts " + type + ".");
+        line("        T result = (T) decodeValue(bitbuffer);");
+        line("        return result;");
+        line("    }").line("");
+        line("    @Override public <T> boolean canEncode(T obj, Annotation[] extraAnnotations) {");
+        line("        return obj.getClass() == " + type + ".class");
+        line("                && CodecSupport.hasExtensionMarker(obj.getClass(), extraAnnotations) == HAS_EXTENSION_MARKER;");
+        line("    }").line("");
+        line("    @Override public <T> void encode(BitBuffer bitbuffer, T obj, Annotation[] extraAnnotations)");
+        line("            throws Asn1EncodingException {");
+        line("        encodeValue(bitbuffer, (" + type + ") obj);");
+        line("    }").line("");
+        if (model.isChoice) {
+            writeChoiceDecode();
+            line("");
+            writeChoiceEncode();
+        } else {
+            writeSequenceDecode();
+            line("");
+            writeSequenceEncode();
+        }
+        line("}");
+    }
+
+    private void writeDecodeHeader() {
+        if (needsUncheckedDecode()) {
+            line("    @SuppressWarnings(\"unchecked\")  // Raw class literals of generic field types.");
+        }
+        line("    public static " + model.typeName + " decodeValue(BitBuffer bitbuffer) {");
+        line("        " + model.typeName + " result = new " + model.typeName + "();");
+    }
+
+    private boolean needsUncheckedDecode() {
+        for (FieldModel f : model.reflectiveFields) {
+            if (f.isParameterized) { return true; }
+        }
+        return false;
+    }
+
+    private void writeSequenceDecode() {
+        writeDecodeHeader();
+        if (model.hasExtensionMarker) {
+            line("        boolean extensionPresent = bitbuffer.get();");
+        }
+        List<FieldModel> optional = model.optionalRootFields();
+        if (!optional.isEmpty()) {
+            line("        long presence = CodecSupport.readBits(bitbuffer, " + optional.size() + ");");
+        }
+        for (FieldModel f : model.rootFields) {
+            if (f.isOptional) {
+                long bit = 1L << (optional.size() - 1 - optional.indexOf(f));
+                line("        if ((presence & 0x" + Long.toHexString(bit) + "L) != 0) {");
+                writeFieldDecode(f, "            ");
+                line("        }");
+            } else {
+                writeFieldDecode(f, "        ");
+            }
+        }
+        if (model.hasExtensionMarker) {
+            line("        if (extensionPresent) {");
+            line("            CodecSupport.decodeExtensions(bitbuffer, result);");
+            line("        }");
+        }
+        line("        return result;");
+        line("    }");
+    }
+
+    private void writeChoiceDecode() {
+        writeDecodeHeader();
+        // Only the chosen alternative is set.
+        for (FieldModel f : model.rootFields) {
+            line("        result." + f.name + " = null;");
+        }
+        for (FieldModel f : model.extensionFields) {
+            line("        result." + f.name + " = null;");
+        }
+        if (model.hasExtensionMarker) {
+            line("        if (bitbuffer.get()) {");
+            line("            throw new UnsupportedOperationException(\"choice extension is not implemented yet\");");
+            line("        }");
+        }
+        line("        int index = (int) CodecSupport.decodeConstrainedInt(bitbuffer, 0L, "
+                + (model.rootFields.size() - 1) + "L, false);");
+        line("        switch (index) {");
+        for (int i = 0; i < model.rootFields.size(); i++) {
+            line("            case " + i + ": {");
+            writeFieldDecode(model.rootFields.get(i), "                ");
+            line("                break;");
+            line("            }");
+        }
+        line("            default:");
+        line("                throw new IndexOutOfBoundsException(\"Index \" + index"
+                + " + \" out of bounds for length " + model.rootFields.size() + "\");");
+        line("        }");
+        line("        return result;");
+        line("    }");
+    }
+
+    /** Statements that decode field f into result.f. */
+    private void writeFieldDecode(FieldModel f, String indent) {
+        String target = "result." + f.name;
+        switch (f.kind) {
+            case BOOLEAN:
+                line(indent + target + " = bitbuffer.get();");
+                break;
+            case ENUM:
+                line(indent + target + " = ENUM_VALUES_" + f.enumIndex
+                        + "[(int) CodecSupport.decodeConstrainedInt(bitbuffer, 0L, "
+                        + literal(f.enumSize - 1) + ", false)];");
+                break;
+            case GENERATED:
+                line(indent + target + " = " + f.codecName + ".decodeValue(bitbuffer);");
+                break;
+            case INTEGER: {
+                String decoded = "CodecSupport.decodeConstrainedInt(bitbuffer, " + literal(f.minValue)
+                        + ", " + literal(f.maxValue) + ", " + f.rangeHasExtensionMarker + ")";
+                if (f.mayShare) {
+                    line(indent + "long " + f.name + "Value = " + decoded + ";");
+                    line(indent + target + " = CodecSupport.SHARE_SMALL_INTEGERS");
+                    line(indent + "        ? (" + f.typeName + ") CodecSupport.newInteger("
+                            + f.typeName + ".class, " + f.name + "Value)");
+                    line(indent + "        : new " + f.typeName + "(" + f.constructorCast + f.name
+                            + "Value);");
+                } else {
+                    line(indent + target + " = new " + f.typeName + "(" + f.constructorCast
+                            + decoded + ");");
+                }
+                break;
+            }
+            case REFLECTIVE:
+                line(indent + target + " = CodecSupport.decode(bitbuffer, " + f.typeName
+                        + ".class, FIELD_ANNOTATIONS[" + f.annotationIndex + "]);");
+                break;
+            default:
+                throw new AssertionError(f.kind);
+        }
+    }
+
+    private void writeSequenceEncode() {
+        line("    public static void encodeValue(BitBuffer bitbuffer, " + model.typeName
+                + " value) throws Asn1EncodingException {");
+        line("        String field = null;");
+        line("        try {");
+        if (model.hasExtensionMarker) {
+            line("            boolean extensionsPresent = CodecSupport.hasNonNullExtensions(value);");
+            line("            bitbuffer.put(extensionsPresent);");
+        }
+        for (FieldModel f : model.optionalRootFields()) {
+            line("            bitbuffer.put(value." + f.name + " != null);");
+        }
+        boolean throwsEncodingException = model.hasExtensionMarker;
+        for (FieldModel f : model.rootFields) {
+            line("            field = \"" + f.name + "\";");
+            if (f.isOptional) {
+                line("            if (value." + f.name + " != null) {");
+                writeFieldEncode(f, "                ");
+                line("            }");
+            } else {
+                writeFieldEncode(f, "            ");
+            }
+            throwsEncodingException |= f.kind != FieldKind.BOOLEAN;
+        }
+        if (model.hasExtensionMarker) {
+            line("            if (extensionsPresent) {");
+            line("                field = null;");
+            line("                CodecSupport.encodeExtensions(bitbuffer, value);");
+            line("            }");
+        }
+        if (throwsEncodingException) {
+            line("        } catch (Asn1EncodingException e) {");
+            line("            if (field == null) { throw e; }");
+            line("            throw new Asn1EncodingException(\".\" + field, e);");
+        }
+        line("        } catch (IllegalArgumentException e) {");
+        line("            throw new IllegalArgumentException(\"can't encode \" + value, field == null ? e");
+        line("                    : new IllegalArgumentException(\"Illegal value for field \" + field, e));");
+        line("        }");
+        line("    }");
+    }
+
+    private void writeChoiceEncode() {
+        line("    public static void encodeValue(BitBuffer bitbuffer, " + model.typeName
+                + " value) throws Asn1EncodingException {");
+        line("        try {");
+        int size = model.rootFields.size();
+        boolean throwsEncodingException = size > 1;
+        for (int i = 0; i < size; i++) {
+            FieldModel f = model.rootFields.get(i);
+            line("            " + (i == 0 ? "" : "} else ") + "if (value." + f.name + " != null) {");
+            if (model.hasExtensionMarker) {
+                line("                bitbuffer.put(false);");
+            }
+            if (size > 1) {
+                line("                CodecSupport.encodeConstrainedInt(bitbuffer, " + i + "L, 0L, "
+                        + (size - 1) + "L, false);");
+            }
+            writeFieldEncode(f, "                ");
+            throwsEncodingException |= f.kind != FieldKind.BOOLEAN;
+        }
+        line("            } else {");
+        line("                CodecSupport.encodeChoiceWithoutRootAlternative(bitbuffer, value, HAS_EXTENSION_MARKER);");
+        line("            }");
+        line("        } catch (IllegalArgumentException e) {");
+        line("            throw new IllegalArgumentException(\"can't encode \" + value, e);");
+        if (throwsEncodingException) {
+            line("        } catch (Asn1EncodingException e) {");
+            line("            throw new Asn1EncodingException(\".\" + " + model.typeName
+                    + ".class.getName(), e);");
+        }
+        line("        }");
+        line("    }");
+    }
+
+    /** Statements that encode value.f. */
+    private void writeFieldEncode(FieldModel f, String indent) {
+        String source = "value." + f.name;
+        switch (f.kind) {
+            case BOOLEAN:
+                line(indent + "bitbuffer.put(" + source + ");");
+                break;
+            case ENUM:
+                line(indent + "CodecSupport.encodeConstrainedInt(bitbuffer, " + source
+                        + ".ordinal(), 0L, " + literal(f.enumSize - 1) + ", false);");
+                break;
+            case GENERATED:
+                line(indent + f.codecName + ".encodeValue(bitbuffer, " + source + ");");
+                break;
+            case INTEGER:
+                line(indent + "CodecSupport.encodeInteger(bitbuffer, " + source + ", "
+                        + literal(f.minValue) + ", " + literal(f.maxValue) + ", "
+                        + f.rangeHasExtensionMarker + ");");
+                break;
+            case REFLECTIVE:
+                line(indent + "CodecSupport.encode(bitbuffer, " + source + ", FIELD_ANNOTATIONS["
+                        + f.annotationIndex + "]);");
+                break;
+            default:
+                throw new AssertionError(f.kind);
+        }
+    }
+
+    private static String literal(long value) {
+        return value + "L";
+    }
+}
@@ -0,0 +1,421 @@
+package net.gcdc.asn1.codegen;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Generates a UPER codec for every {@code @Sequence} and {@code @Choice} class being compiled, so
+ * that net.gcdc.asn1.uper.UperEncoder does not have to walk the model with reflection.
+ *
+ * The codec of a class net.pkg.Outer.Inner is net.pkg.Outer_Inner_UperCodec (see
+ * CodecSupport.generatedCodecName). It reads and writes the fields directly, creates the class
+ * with its no-argument constructor, and calls the codecs generated for nested SEQUENCEs and
+ * CHOICEs directly. Booleans, constrained INTEGERs (Asn1Integer subclasses with an
+ * {@code @IntRange}) and non-extensible ENUMERATEDs are coded inline. Everything else (BIT
+ * STRINGs, SEQUENCE OFs, strings, extension additions) is handed back to the reflective coders
+ * through CodecSupport.
+ *
+ * Classes that the generated code could not access (private classes, fields or constructors,
+ * inner classes, generic classes) are skipped with a note and keep using the reflective coders.
+ */
+@SupportedAnnotationTypes({
+        "net.gcdc.asn1.datatypes.Sequence",
+        "net.gcdc.asn1.datatypes.Choice" })
+public class UperCodecProcessor extends AbstractProcessor {
+
+    static final String CODEC_SUFFIX = "_UperCodec";
+
+    // The model annotations are looked up by name, so the processor does not need the datatypes
+    // jar on its own class path.
+    private static final String DATATYPES = "net.gcdc.asn1.datatypes.";
+    private static final String SEQUENCE = DATATYPES + "Sequence";
+    private static final String CHOICE = DATATYPES + "Choice";
+    private static final String BITSTRING = DATATYPES + "Bitstring";
+    private static final String INT_RANGE = DATATYPES + "IntRange";
+    private static final String OPTIONAL = DATATYPES + "Asn1Optional";
+    private static final String IS_EXTENSION = DATATYPES + "IsExtension";
+    private static final String HAS_EXTENSION_MARKER = DATATYPES + "HasExtensionMarker";
+    private static final String ASN1_INTEGER = DATATYPES + "Asn1Integer";
+
+    @Override public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override public boolean process(Set<? extends TypeElement> annotations,
+            RoundEnvironment roundEnv) {
+        Set<TypeElement> candidates = new LinkedHashSet<>();
+        for (TypeElement annotation : annotations) {
+            for (Element e : roundEnv.getElementsAnnotatedWith(annotation)) {
+                if (e.getKind() == ElementKind.CLASS) {
+                    candidates.add((TypeElement) e);
+                }
+            }
+        }
+        // First find out which classes get a codec, then generate them: a field whose type has a
+        // codec calls it directly.
+        Map<TypeElement, TypeModel> models = new LinkedHashMap<>();
+        for (TypeElement type : candidates) {
+            String reason = unsupportedReason(type);
+            if (reason != null) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE,
+                        "no UPER codec generated for " + type.getQualifiedName() + ": " + reason
+                                + ", it will be coded by reflection",
+                        type);
+            } else {
+                models.put(type, new TypeModel(type));
+            }
+        }
+        for (TypeModel model : models.values()) {
+            model.resolveFields(models);
+            try {
+                JavaFileObject file = processingEnv.getFiler().createSourceFile(
+                        model.packageName + "." + model.codecName, model.element);
+                try (Writer writer = file.openWriter()) {
+                    writer.write(new CodecWriter(model).toString());
+                }
+            } catch (IOException e) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                        "can't write UPER codec for " + model.element.getQualifiedName() + ": " + e,
+                        model.element);
+            }
+        }
+        return false;  // Leave the annotations to other processors, if any.
+    }
+
+    /** Why no codec can be generated for type, or null if it can. */
+    private String unsupportedReason(TypeElement type) {
+        boolean isSequence = hasAnnotation(type, SEQUENCE);
+        boolean isChoice = hasAnnotation(type, CHOICE);
+        if (isSequence && isChoice) { return "both @Sequence and @Choice"; }
+        if (hasAnnotation(type, BITSTRING)) { return "also a @Bitstring"; }
+        if (type.getModifiers().contains(Modifier.ABSTRACT)) { return "abstract class"; }
+        if (!type.getTypeParameters().isEmpty()) { return "generic class"; }
+        if (type.getEnclosingElement().getKind() != ElementKind.PACKAGE
+                && !type.getModifiers().contains(Modifier.STATIC)) {
+            return "inner (non-static) class";
+        }
+        String packageName = packageOf(type);
+        if (!isAccessible(type, packageName)) { return "class not accessible"; }
+        boolean hasConstructors = false;
+        boolean hasNoArgConstructor = false;
+        for (ExecutableElement c : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+            hasConstructors = true;
+            if (c.getParameters().isEmpty() && !c.getModifiers().contains(Modifier.PRIVATE)) {
+                hasNoArgConstructor = true;
+            }
+        }
+        if (hasConstructors && !hasNoArgConstructor) { return "no accessible no-argument constructor"; }
+        int optionalRootFields = 0;
+        int rootFields = 0;
+        for (VariableElement f : codedFields(type)) {
+            if (f.getModifiers().contains(Modifier.PRIVATE)) {
+                return "private field " + f.getSimpleName();
+            }
+            if (f.getModifiers().contains(Modifier.FINAL)) {
+                return "final field " + f.getSimpleName();
+            }
+            TypeMirror fieldType = f.asType();
+            if (!isNameable(fieldType, packageName)) {
+                return "type of field " + f.getSimpleName() + " not accessible";
+            }
+            boolean isExtension = hasAnnotation(f, IS_EXTENSION);
+            boolean isOptional = hasAnnotation(f, OPTIONAL);
+            if (!isExtension) {
+                rootFields++;
+                if (isOptional) { optionalRootFields++; }
+            }
+            if (fieldType.getKind().isPrimitive() && (isChoice || isOptional || isExtension)) {
+                return "primitive field " + f.getSimpleName() + " can't be absent";
+            }
+        }
+        if (optionalRootFields > 64) { return "more than 64 optional fields"; }
+        if (isChoice && rootFields == 0) { return "CHOICE without alternatives"; }
+        return null;
+    }
+
+    /** The annotation with the given name on element, or null. */
+    static AnnotationMirror annotation(Element element, String annotationName) {
+        for (AnnotationMirror a : element.getAnnotationMirrors()) {
+            TypeElement annotationType = (TypeElement) a.getAnnotationType().asElement();
+            if (annotationType.getQualifiedName().contentEquals(annotationName)) { return a; }
+        }
+        return null;
+    }
+
+    static boolean hasAnnotation(Element element, String annotationName) {
+        return annotation(element, annotationName) != null;
+    }
+
+    /** Value of an annotation element, the default if it is not given explicitly. */
+    private Object value(AnnotationMirror annotation, String name) {
+        for (Entry<? extends ExecutableElement, ? extends AnnotationValue> e : processingEnv
+                .getElementUtils().getElementValuesWithDefaults(annotation).entrySet()) {
+            if (e.getKey().getSimpleName().contentEquals(name)) { return e.getValue().getValue(); }
+        }
+        throw new IllegalArgumentException("no element " + name + " in " + annotation);
+    }
+
+    /** The fields the coders look at: instance fields, in declaration order. */
+    static List<VariableElement> codedFields(TypeElement type) {
+        List<VariableElement> result = new ArrayList<>();
+        for (VariableElement f : ElementFilter.fieldsIn(type.getEnclosedElements())) {
+            String name = f.getSimpleName().toString();
+            // Same as UperEncoder.isTestInstrumentation.
+            if (f.getModifiers().contains(Modifier.STATIC) || name.startsWith("$")
+                    || name.contains("this$")) {
+                continue;
+            }
+            result.add(f);
+        }
+        return result;
+    }
+
+    static String packageOf(Element element) {
+        Element e = element;
+        while (e.getKind() != ElementKind.PACKAGE) {
+            e = e.getEnclosingElement();
+        }
+        return ((PackageElement) e).getQualifiedName().toString();
+    }
+
+    /** Whether type and all classes enclosing it can be named from a class in packageName. */
+    private static boolean isAccessible(TypeElement type, String packageName) {
+        boolean samePackage = packageOf(type).equals(packageName);
+        for (Element e = type; e.getKind() != ElementKind.PACKAGE; e = e.getEnclosingElement()) {
+            Set<Modifier> modifiers = e.getModifiers();
+            if (modifiers.contains(Modifier.PRIVATE)
+                    || (!samePackage && !modifiers.contains(Modifier.PUBLIC))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Whether the erasure of type can be written in source in packageName. */
+    private boolean isNameable(TypeMirror type, String packageName) {
+        if (type.getKind().isPrimitive()) { return true; }
+        if (type.getKind() == TypeKind.ARRAY) {
+            return isNameable(((ArrayType) type).getComponentType(), packageName);
+        }
+        if (type.getKind() == TypeKind.DECLARED) {
+            return isAccessible((TypeElement) ((DeclaredType) type).asElement(), packageName);
+        }
+        return false;  // Type variables and the like.
+    }
+
+    enum FieldKind {
+        /** BOOLEAN, read and written as a single bit. */
+        BOOLEAN,
+        /** Constrained INTEGER, created with its numeric constructor. */
+        INTEGER,
+        /** ENUMERATED without extension marker, coded as the index of the constant. */
+        ENUM,
+        /** A SEQUENCE or CHOICE that has a generated codec of its own. */
+        GENERATED,
+        /** Anything else, coded by the reflective coders. */
+        REFLECTIVE
+    }
+
+    /** A SEQUENCE or CHOICE to generate a codec for. */
+    final class TypeModel {
+        final TypeElement element;
+        final String packageName;
+        final String codecName;
+        final String typeName;
+        final boolean isChoice;
+        final boolean hasExtensionMarker;
+        final List<FieldModel> rootFields = new ArrayList<>();
+        final List<FieldModel> extensionFields = new ArrayList<>();
+        /** Root fields coded by reflection, in the order of the FIELD_ANNOTATIONS of the codec. */
+        final List<FieldModel> reflectiveFields = new ArrayList<>();
+        /** Enum types of {@link FieldKind#ENUM} fields, each gets an array of its constants. */
+        final List<String> enumTypes = new ArrayList<>();
+
+        TypeModel(TypeElement element) {
+            this.element = element;
+            this.packageName = packageOf(element);
+            String binaryName = processingEnv.getElementUtils().getBinaryName(element).toString();
+            this.codecName = binaryName.substring(packageName.isEmpty() ? 0
+                    : packageName.length() + 1).replace('$', '_') + CODEC_SUFFIX;
+            this.typeName = element.getQualifiedName().toString();
+            this.isChoice = hasAnnotation(element, CHOICE);
+            this.hasExtensionMarker = hasAnnotation(element, HAS_EXTENSION_MARKER);
+        }
+
+        String qualifiedCodecName() {
+            return packageName.isEmpty() ? codecName : packageName + "." + codecName;
+        }
+
+        void resolveFields(Map<TypeElement, TypeModel> models) {
+            for (VariableElement f : codedFields(element)) {
+                FieldModel field = new FieldModel(f, models);
+                if (field.isExtension) {
+                    extensionFields.add(field);
+                } else {
+                    rootFields.add(field);
+                }
+                if (field.kind == FieldKind.REFLECTIVE && !field.isExtension) {
+                    field.annotationIndex = reflectiveFields.size();
+                    reflectiveFields.add(field);
+                }
+                if (field.kind == FieldKind.ENUM) {
+                    if (!enumTypes.contains(field.typeName)) {
+                        enumTypes.add(field.typeName);
+                    }
+                    field.enumIndex = enumTypes.indexOf(field.typeName);
+                }
+            }
+        }
+
+        List<FieldModel> optionalRootFields() {
+            List<FieldModel> result = new ArrayList<>();
+            for (FieldModel f : rootFields) {
+                if (f.isOptional) { result.add(f); }
+            }
+            return result;
+        }
+    }
+
+    /** A field of a {@link TypeModel} and how the codec codes it. */
+    final class FieldModel {
+        final String name;
+        /** Erasure of the field type, as written in source. */
+        final String typeName;
+        final boolean isPrimitive;
+        final boolean isParameterized;
+        final boolean isOptional;
+        final boolean isExtension;
+        final FieldKind kind;
+        /** Codec class of a {@link FieldKind#GENERATED} field. */
+        String codecName;
+        /** Effective constraint of an {@link FieldKind#INTEGER} field. */
+        long minValue;
+        long maxValue;
+        boolean rangeHasExtensionMarker;
+        /** Cast applied to the decoded value to match the constructor, e.g. "(int) ". */
+        String constructorCast = "";
+        /** Whether decoded instances may be shared, see IntCoder. */
+        boolean mayShare;
+        int annotationIndex = -1;
+        /** Number of constants of an {@link FieldKind#ENUM} field, and its constants array. */
+        int enumSize;
+        int enumIndex = -1;
+
+        FieldModel(VariableElement field, Map<TypeElement, TypeModel> models) {
+            TypeMirror type = field.asType();
+            this.name = field.getSimpleName().toString();
+            this.typeName = processingEnv.getTypeUtils().erasure(type).toString();
+            this.isPrimitive = type.getKind().isPrimitive();
+            this.isParameterized = type.getKind() == TypeKind.DECLARED
+                    && !((DeclaredType) type).getTypeArguments().isEmpty();
+            this.isOptional = hasAnnotation(field, OPTIONAL);
+            this.isExtension = hasAnnotation(field, IS_EXTENSION);
+            this.kind = isExtension ? FieldKind.REFLECTIVE : classify(field, type, models);
+        }
+
+        private FieldKind classify(VariableElement field, TypeMirror type,
+                Map<TypeElement, TypeModel> models) {
+            if (type.getKind() == TypeKind.BOOLEAN || typeName.equals("java.lang.Boolean")) {
+                return FieldKind.BOOLEAN;
+            }
+            if (type.getKind() != TypeKind.DECLARED) { return FieldKind.REFLECTIVE; }
+            TypeElement typeElement = (TypeElement) ((DeclaredType) type).asElement();
+            TypeModel nested = models.get(typeElement);
+            // A field-level extension marker changes how the nested type is coded.
+            if (nested != null && !hasAnnotation(field, HAS_EXTENSION_MARKER)) {
+                this.codecName = nested.qualifiedCodecName();
+                return FieldKind.GENERATED;
+            }
+            if (typeElement.getKind() == ElementKind.ENUM) {
+                return classifyEnum(field, typeElement);
+            }
+            TypeElement asn1Integer = processingEnv.getElementUtils().getTypeElement(ASN1_INTEGER);
+            if (asn1Integer != null && !typeElement.getModifiers().contains(Modifier.ABSTRACT)
+                    && processingEnv.getTypeUtils().isSubtype(
+                            processingEnv.getTypeUtils().erasure(type), asn1Integer.asType())) {
+                return classifyInteger(field, typeElement);
+            }
+            return FieldKind.REFLECTIVE;
+        }
+
+        /** Like EnumCoder; enums with an extension marker are left to it. */
+        private FieldKind classifyEnum(VariableElement field, TypeElement typeElement) {
+            if (hasAnnotation(field, HAS_EXTENSION_MARKER)
+                    || hasAnnotation(typeElement, HAS_EXTENSION_MARKER)) {
+                return FieldKind.REFLECTIVE;
+            }
+            int constants = 0;
+            for (Element e : typeElement.getEnclosedElements()) {
+                if (e.getKind() == ElementKind.ENUM_CONSTANT) { constants++; }
+            }
+            if (constants == 0) { return FieldKind.REFLECTIVE; }
+            this.enumSize = constants;
+            return FieldKind.ENUM;
+        }
+
+        /** Like IntCoder: field range over class range, the constructor it would pick. */
+        private FieldKind classifyInteger(VariableElement field, TypeElement typeElement) {
+            AnnotationMirror classRange = annotation(typeElement, INT_RANGE);
+            AnnotationMirror range = hasAnnotation(field, INT_RANGE)
+                    ? annotation(field, INT_RANGE) : classRange;
+            if (range == null
+                    || (Long) value(range, "maxValue") < (Long) value(range, "minValue")) {
+                return FieldKind.REFLECTIVE;
+            }
+            // IntCoder tries the public (long), (int) and (short) constructors, first found wins.
+            String cast = null;
+            for (ExecutableElement c : ElementFilter.constructorsIn(
+                    typeElement.getEnclosedElements())) {
+                if (!c.getModifiers().contains(Modifier.PUBLIC) || c.getParameters().size() != 1) {
+                    continue;
+                }
+                TypeKind parameter = c.getParameters().get(0).asType().getKind();
+                if (parameter == TypeKind.LONG) {
+                    cast = "";
+                } else if (parameter == TypeKind.INT && !"".equals(cast)) {
+                    cast = "(int) ";
+                } else if (parameter == TypeKind.SHORT && cast == null) {
+                    cast = "(short) ";
+                }
+            }
+            if (cast == null) { return FieldKind.REFLECTIVE; }
+            this.constructorCast = cast;
+            this.minValue = (Long) value(range, "minValue");
+            this.maxValue = (Long) value(range, "maxValue");
+            this.rangeHasExtensionMarker = (Boolean) value(range, "hasExtensionMarker");
+            // Same condition as IntCoder, which only looks at the class range.
+            long classRangeSize = classRange == null ? -1
+                    : (Long) value(classRange, "maxValue") - (Long) value(classRange, "minValue");
+            this.mayShare = classRangeSize >= 0 && classRangeSize < 256;
+            return FieldKind.INTEGER;
+        }
+    }
+}